@@ -0,0 +1,168 @@
+package com.dj.models.mnist.benchmarks;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.model.graph.Neuron;
+import com.dj.core.serializer.ModelWrapper;
+import com.dj.models.mnist.Activation;
+import com.dj.models.mnist.CompiledModel;
+import com.dj.models.mnist.DenseLayer;
+import com.dj.models.mnist.ImageMatrix;
+import com.dj.models.mnist.ModelCompiler;
+import com.dj.models.mnist.QuantizedModel;
+import com.dj.models.mnist.Quantizer;
+import com.dj.models.mnist.SparseImageMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forward passes through the {@link ModelWrapper} neuron graph, its {@link CompiledModel} (on dense and on
+ * {@link SparseImageMatrix} input) and its int8 {@link QuantizedModel}, one image at a time and in batches.
+ * Scores are per image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InferenceBenchmark {
+
+    private static final int BATCH_SIZE = 256;
+
+    @Param({"10", "100"})
+    public int hidden;
+
+    private List<Neuron> inputLayer;
+
+    private List<Neuron> outputLayer;
+
+    private CompiledModel model;
+
+    private CompiledModel.Workspace workspace;
+
+    private QuantizedModel quantized;
+
+    private QuantizedModel.Workspace quantizedWorkspace;
+
+    private double[][] rows;
+
+    private ImageMatrix images;
+
+    private SparseImageMatrix sparseImages;
+
+    private int[] predictions;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        model = new CompiledModel(Arrays.asList(
+                layer(random, BenchmarkFixtures.IMAGE_SIZE, hidden, Activation.LEAKY_RELU, 1e-4f),
+                layer(random, hidden, 10, Activation.SIGMOID, 1f)));
+        final ModelWrapper modelWrapper = ModelCompiler.toModelWrapper(model, new Context(0.0005, false));
+        inputLayer = modelWrapper.getInputLayer();
+        outputLayer = modelWrapper.getOutputLayer();
+        workspace = model.newWorkspace();
+
+        final byte[][] pixels = BenchmarkFixtures.images(BATCH_SIZE);
+        rows = new double[BATCH_SIZE][BenchmarkFixtures.IMAGE_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            for (int p = 0; p < BenchmarkFixtures.IMAGE_SIZE; p++) {
+                rows[i][p] = (pixels[i][p] & 0xFF) / 255.;
+            }
+        }
+        images = ImageMatrix.fromRows(rows);
+        sparseImages = SparseImageMatrix.fromDense(images);
+        predictions = new int[BATCH_SIZE];
+        quantized = Quantizer.quantize(model, images);
+        quantizedWorkspace = quantized.newWorkspace();
+    }
+
+    @Benchmark
+    public void graphSingleImage(final Blackhole blackhole) {
+        forwardOnGraph(rows[0], blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void graphBatch(final Blackhole blackhole) {
+        for (final double[] row : rows) {
+            forwardOnGraph(row, blackhole);
+        }
+    }
+
+    @Benchmark
+    public int compiledSingleImage() {
+        return model.predict(images.data(), 0, workspace);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int[] compiledBatch() {
+        model.predict(images, 0, BATCH_SIZE, predictions, workspace);
+        return predictions;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int[] compiledSparseBatch() {
+        final int outputSize = model.outputSize();
+        for (int start = 0; start < BATCH_SIZE; start += CompiledModel.DEFAULT_BLOCK_SIZE) {
+            final float[] outputs = model.forward(sparseImages, start, CompiledModel.DEFAULT_BLOCK_SIZE, workspace);
+            for (int b = 0; b < CompiledModel.DEFAULT_BLOCK_SIZE; b++) {
+                predictions[start + b] = CompiledModel.argMax(outputs, b * outputSize, outputSize);
+            }
+        }
+        return predictions;
+    }
+
+    @Benchmark
+    public int quantizedSingleImage() {
+        return quantized.predict(images.data(), 0, quantizedWorkspace);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int[] quantizedBatch() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            predictions[i] = quantized.predict(images.data(), images.offset(i), quantizedWorkspace);
+        }
+        return predictions;
+    }
+
+    private void forwardOnGraph(final double[] image, final Blackhole blackhole) {
+        for (int i = 0; i < image.length; i++) {
+            inputLayer.get(i).forwardSignalReceived(null, image[i]);
+        }
+        for (final Neuron neuron : outputLayer) {
+            blackhole.consume(neuron.getForwardResult());
+        }
+    }
+
+    private static DenseLayer layer(final Random random,
+                                    final int inputSize,
+                                    final int outputSize,
+                                    final Activation activation,
+                                    final float parameter) {
+        final float[] weights = new float[inputSize * outputSize];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (float) ((random.nextDouble() * 2. - 1.) * Math.sqrt(2. / inputSize));
+        }
+        return new DenseLayer(inputSize, outputSize, weights, new float[outputSize], activation, parameter);
+    }
+}
@@ -0,0 +1,61 @@
+package com.dj.models.mnist.benchmarks;
+
+import com.dj.models.mnist.KaggleCsvReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing Kaggle "Digit Recognizer" CSV files, and converting them to IDX once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KaggleCsvBenchmark {
+
+    @Param({"5000"})
+    public int rows;
+
+    private File directory;
+
+    private String csvFile;
+
+    @Setup
+    public void setUp() {
+        directory = BenchmarkFixtures.createDirectory();
+        csvFile = BenchmarkFixtures.writeCsv(new File(directory, "train.csv"), rows, true).toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFixtures.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public int read(final Blackhole blackhole) {
+        return KaggleCsvReader.read(csvFile, true, KaggleCsvReader.DEFAULT_BATCH_SIZE,
+                (pixels, labels, batchSize, firstRow) -> blackhole.consume(pixels));
+    }
+
+    @Benchmark
+    public int convertToIdx() {
+        return KaggleCsvReader.convertToIdx(
+                csvFile, true, new File(directory, "images-idx3-ubyte"), new File(directory, "labels-idx1-ubyte"));
+    }
+}
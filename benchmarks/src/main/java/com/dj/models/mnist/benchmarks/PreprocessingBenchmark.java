@@ -0,0 +1,100 @@
+package com.dj.models.mnist.benchmarks;
+
+import com.dj.core.helpers.NormalizationHelper;
+import com.dj.models.mnist.ImageMatrix;
+import com.dj.models.mnist.MnistTrainer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning decoded images into network input, as {@code MnistTrainer} does before training.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreprocessingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Image {
+
+        private int[][] pixels;
+
+        @Setup
+        public void setUp() {
+            final byte[] raw = BenchmarkFixtures.images(1)[0];
+            pixels = new int[BenchmarkFixtures.ROWS][BenchmarkFixtures.COLUMNS];
+            for (int p = 0; p < BenchmarkFixtures.IMAGE_SIZE; p++) {
+                pixels[p / BenchmarkFixtures.COLUMNS][p % BenchmarkFixtures.COLUMNS] = raw[p] & 0xFF;
+            }
+        }
+    }
+
+    /**
+     * Normalization works in place, so every invocation starts from a fresh copy of the raw pixels.
+     */
+    @State(Scope.Thread)
+    public static class DataSet {
+
+        @Param({"10000"})
+        public int images;
+
+        private double[][] raw;
+
+        private double[][] rows;
+
+        private float[] rawPixels;
+
+        private ImageMatrix matrix;
+
+        @Setup
+        public void setUp() {
+            final byte[][] pixels = BenchmarkFixtures.images(images);
+            raw = new double[images][BenchmarkFixtures.IMAGE_SIZE];
+            for (int i = 0; i < images; i++) {
+                for (int p = 0; p < BenchmarkFixtures.IMAGE_SIZE; p++) {
+                    raw[i][p] = pixels[i][p] & 0xFF;
+                }
+            }
+            rows = new double[images][];
+            matrix = ImageMatrix.fromRows(raw);
+            rawPixels = matrix.data().clone();
+        }
+
+        @Setup(Level.Invocation)
+        public void reset() {
+            for (int i = 0; i < raw.length; i++) {
+                rows[i] = raw[i].clone();
+            }
+            System.arraycopy(rawPixels, 0, matrix.data(), 0, rawPixels.length);
+        }
+    }
+
+    @Benchmark
+    public double[] convertImageToTheInput(final Image image) {
+        return MnistTrainer.convertImageToTheInput(image.pixels);
+    }
+
+    @Benchmark
+    public double[][] normalizationHelper(final DataSet dataSet) {
+        return NormalizationHelper.normalize(dataSet.rows);
+    }
+
+    @Benchmark
+    public ImageMatrix imageMatrixNormalize(final DataSet dataSet) {
+        return dataSet.matrix.normalize();
+    }
+}
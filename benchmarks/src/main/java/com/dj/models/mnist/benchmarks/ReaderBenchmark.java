@@ -0,0 +1,74 @@
+package com.dj.models.mnist.benchmarks;
+
+import com.dj.models.mnist.IdxDataset;
+import com.dj.models.mnist.ImageMatrix;
+import com.dj.models.mnist.MnistReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading IDX files: the original {@link MnistReader} API next to the memory-mapped readers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReaderBenchmark {
+
+    @Param({"10000"})
+    public int images;
+
+    private File directory;
+
+    private String imagesFile;
+
+    private String labelsFile;
+
+    @Setup
+    public void setUp() {
+        directory = BenchmarkFixtures.createDirectory();
+        imagesFile = BenchmarkFixtures.writeImages(new File(directory, "images-idx3-ubyte"), images).toString();
+        labelsFile = BenchmarkFixtures.writeLabels(new File(directory, "labels-idx1-ubyte"), images).toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFixtures.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public byte[] loadFile() {
+        return MnistReader.loadFile(imagesFile);
+    }
+
+    @Benchmark
+    public List<int[][]> getImages() {
+        return MnistReader.getImages(imagesFile);
+    }
+
+    @Benchmark
+    public int[] getLabels() {
+        return MnistReader.getLabels(labelsFile);
+    }
+
+    @Benchmark
+    public ImageMatrix imageMatrixFromIdx() {
+        return ImageMatrix.fromIdx(IdxDataset.openImages(imagesFile));
+    }
+}
@@ -0,0 +1,129 @@
+package com.dj.models.mnist.benchmarks;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.model.loss.QuadraticLoss;
+import com.dj.core.optimizer.SGDOptimizer;
+import com.dj.core.serializer.ModelWrapper;
+import com.dj.models.mnist.Activation;
+import com.dj.models.mnist.BatchTrainer;
+import com.dj.models.mnist.CompiledModel;
+import com.dj.models.mnist.DataParallelTrainer;
+import com.dj.models.mnist.DenseLayer;
+import com.dj.models.mnist.ImageMatrix;
+import com.dj.models.mnist.LabelVector;
+import com.dj.models.mnist.ModelCompiler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One training epoch over the same images with the per-neuron {@link SGDOptimizer}, the image by image
+ * back-propagation of a single-worker {@link DataParallelTrainer} and the mini-batch matrix products of
+ * {@link BatchTrainer}, with and without its sparse first layer. Scores are per image.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingBenchmark {
+
+    private static final int IMAGES = 2048;
+
+    @Param({"10", "128"})
+    public int hidden;
+
+    private CompiledModel model;
+
+    private ModelWrapper modelWrapper;
+
+    private double[][] rows;
+
+    private double[][] oneHot;
+
+    private ImageMatrix images;
+
+    private LabelVector labels;
+
+    private DataParallelTrainer perImage;
+
+    private BatchTrainer batched;
+
+    private BatchTrainer batchedDense;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        model = new CompiledModel(Arrays.asList(
+                layer(random, BenchmarkFixtures.IMAGE_SIZE, hidden, Activation.LEAKY_RELU, 1e-4f),
+                layer(random, hidden, 10, Activation.SIGMOID, 1f)));
+        modelWrapper = ModelCompiler.toModelWrapper(model, new Context(0.0005, false));
+
+        final byte[][] pixels = BenchmarkFixtures.images(IMAGES);
+        final byte[] digits = BenchmarkFixtures.labels(IMAGES);
+        rows = new double[IMAGES][BenchmarkFixtures.IMAGE_SIZE];
+        oneHot = new double[IMAGES][10];
+        for (int i = 0; i < IMAGES; i++) {
+            for (int p = 0; p < BenchmarkFixtures.IMAGE_SIZE; p++) {
+                rows[i][p] = (pixels[i][p] & 0xFF) / 255.;
+            }
+            oneHot[i][digits[i]] = 1.;
+        }
+        images = ImageMatrix.fromRows(rows);
+        labels = LabelVector.fromOneHot(oneHot);
+        perImage = new DataParallelTrainer.Builder().workers(1).batchSize(BatchTrainer.DEFAULT_BATCH_SIZE).build();
+        batched = new BatchTrainer.Builder().build();
+        batchedDense = new BatchTrainer.Builder().sparseThreshold(0).build();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public void graphEpoch() {
+        new SGDOptimizer(new QuadraticLoss(), 1, null, 2.).train(modelWrapper.getContext(),
+                modelWrapper.getInputLayer(), modelWrapper.getOutputLayer(), rows, oneHot, rows, oneHot);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public double perImageEpoch() {
+        return perImage.train(model, images, labels);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public double batchedEpoch() {
+        return batched.train(model, images, labels);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public double batchedDenseEpoch() {
+        return batchedDense.train(model, images, labels);
+    }
+
+    private static DenseLayer layer(final Random random,
+                                    final int inputSize,
+                                    final int outputSize,
+                                    final Activation activation,
+                                    final float parameter) {
+        final float[] weights = new float[inputSize * outputSize];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (float) ((random.nextDouble() * 2. - 1.) * Math.sqrt(2. / inputSize));
+        }
+        return new DenseLayer(inputSize, outputSize, weights, new float[outputSize], activation, parameter);
+    }
+}
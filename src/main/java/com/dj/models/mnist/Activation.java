@@ -0,0 +1,85 @@
+package com.dj.models.mnist;
+
+/**
+ * Activation functions supported by {@link CompiledModel}. The ids are stable, they are part of the
+ * persisted model format.
+ */
+public enum Activation {
+
+    LINEAR(0) {
+        @Override
+        public float apply(final float x, final float parameter) {
+            return x;
+        }
+
+        @Override
+        public float derivative(final float output, final float parameter) {
+            return 1f;
+        }
+    },
+
+    /**
+     * {@code x} for positive input, {@code parameter * x} otherwise.
+     */
+    LEAKY_RELU(1) {
+        @Override
+        public float apply(final float x, final float parameter) {
+            return x > 0f ? x : parameter * x;
+        }
+
+        @Override
+        public float derivative(final float output, final float parameter) {
+            return output > 0f ? 1f : parameter;
+        }
+    },
+
+    /**
+     * Logistic function. A parameter of 1 marks the bounded {@code Sigmoid(true)} variant of
+     * {@code com.dj.core}, which {@link ModelCompiler} only compiles when it computes the same function; the
+     * parameter only matters when a model is turned back into a neuron graph.
+     */
+    SIGMOID(2) {
+        @Override
+        public float apply(final float x, final float parameter) {
+            return (float) (1. / (1. + Math.exp(-x)));
+        }
+
+        @Override
+        public float derivative(final float output, final float parameter) {
+            return output * (1f - output);
+        }
+    };
+
+    private final int id;
+
+    Activation(final int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public abstract float apply(float x, float parameter);
+
+    /**
+     * Derivative of the function at the input for which it returned {@code output}, as needed for
+     * back-propagation.
+     */
+    public abstract float derivative(float output, float parameter);
+
+    public void apply(final float[] values, final int offset, final int length, final float parameter) {
+        for (int i = offset; i < offset + length; i++) {
+            values[i] = apply(values[i], parameter);
+        }
+    }
+
+    public static Activation forId(final int id) {
+        for (final Activation activation : values()) {
+            if (activation.id == id) {
+                return activation;
+            }
+        }
+        throw new IllegalArgumentException("Unknown activation id " + id);
+    }
+}
@@ -0,0 +1,719 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.model.graph.Neuron;
+import com.dj.core.model.loss.Loss;
+import com.dj.core.model.loss.QuadraticLoss;
+import com.dj.core.optimizer.Optimizer;
+import com.dj.core.optimizer.OptimizerProgressListener;
+
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Mini-batch SGD on one thread that runs the forward and backward passes of a whole mini-batch as dense
+ * matrix products instead of image by image.
+ * <p>
+ * During training every layer keeps its weights transposed, input-major, so all three products (outputs,
+ * deltas of the layer below and weight updates) stream through contiguous rows, in blocks of
+ * {@value #BLOCK_ROWS} weight rows that stay in cache for the whole mini-batch. Zero inputs, most pixels
+ * of an MNIst image, are skipped; below a density threshold the images are converted to a
+ * {@link SparseImageMatrix} once and the first layer only visits their stored pixels. Bias, activation
+ * and the loss and activation derivatives are applied in the same pass that finishes a row. The weights
+ * are written back to the {@link CompiledModel} after every epoch; used as a {@code com.dj.core}
+ * {@link Optimizer}, they are also copied into the neuron graph, so the trained {@code ModelWrapper}
+ * serializes as before.
+ * <p>
+ * Batches can also come from a {@link MnistDataLoader}, which shuffles, copies and augments them on its own
+ * threads; the first update then does not wait for the whole data set, and its images are read densely.
+ * <p>
+ * As in {@link DataParallelTrainer}, an update is the gradient summed over the mini-batch times the
+ * learning rate. As an optimizer it trains at the rate the {@link Context} was created with; a
+ * {@link TrainingControl} hands it the rate of every epoch instead.
+ */
+public class BatchTrainer implements Optimizer {
+
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    /**
+     * Rows of transposed weights per cache block, 40 KB for a 128 wide layer.
+     */
+    static final int BLOCK_ROWS = 64;
+
+    private static final float MIN_PROBABILITY = 1e-7f;
+
+    public enum LossFunction {
+
+        /**
+         * Half the squared distance between the outputs and the one-hot label.
+         */
+        QUADRATIC {
+            @Override
+            public Loss create() {
+                return new QuadraticLoss();
+            }
+        },
+
+        /**
+         * Binary cross-entropy of every output when the last layer is a sigmoid, whose derivative then
+         * cancels out; otherwise the cross-entropy of the softmax of the outputs.
+         */
+        CROSS_ENTROPY {
+            @Override
+            public Loss create() {
+                throw new UnsupportedOperationException("com.dj.core has no cross-entropy loss");
+            }
+        };
+
+        /**
+         * The {@code com.dj.core} loss of the same name, to train a neuron graph itself.
+         *
+         * @throws UnsupportedOperationException when {@code com.dj.core} has none
+         */
+        public abstract Loss create();
+    }
+
+    private final int batchSize;
+
+    private final int epochs;
+
+    private final double learningRate;
+
+    private final long seed;
+
+    private final LossFunction loss;
+
+    private final OptimizerProgressListener listener;
+
+    private final double sparseThreshold;
+
+    private BatchTrainer(final Builder builder) {
+        this.batchSize = builder.batchSize;
+        this.epochs = builder.epochs;
+        this.learningRate = builder.learningRate;
+        this.seed = builder.seed;
+        this.loss = builder.loss;
+        this.listener = builder.listener;
+        this.sparseThreshold = builder.sparseThreshold;
+    }
+
+    public static class Builder {
+
+        private int batchSize = DEFAULT_BATCH_SIZE;
+
+        private int epochs = 1;
+
+        private double learningRate = 0.0005;
+
+        private long seed;
+
+        private LossFunction loss = LossFunction.QUADRATIC;
+
+        private OptimizerProgressListener listener;
+
+        private double sparseThreshold = SparseImageMatrix.DEFAULT_DENSITY_THRESHOLD;
+
+        public Builder batchSize(final int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder epochs(final int epochs) {
+            this.epochs = epochs;
+            return this;
+        }
+
+        /**
+         * Learning rate of {@link #train(CompiledModel, ImageMatrix, LabelVector)}; as an optimizer the rate
+         * of the context is used.
+         */
+        public Builder learningRate(final double learningRate) {
+            this.learningRate = learningRate;
+            return this;
+        }
+
+        public Builder seed(final long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder loss(final LossFunction loss) {
+            this.loss = loss;
+            return this;
+        }
+
+        /**
+         * Called after every epoch with the mean loss per image.
+         */
+        public Builder listener(final OptimizerProgressListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Density of non-zero pixels below which dense images are trained in sparse form; 0 disables it.
+         */
+        public Builder sparseThreshold(final double sparseThreshold) {
+            this.sparseThreshold = sparseThreshold;
+            return this;
+        }
+
+        public BatchTrainer build() {
+            if (batchSize < 1 || epochs < 1 || loss == null) {
+                throw new IllegalArgumentException("Batch size and epochs must be positive and a loss is required");
+            }
+            return new BatchTrainer(this);
+        }
+    }
+
+    @Override
+    public void train(final Context context,
+                      final List<Neuron> inputLayer,
+                      final List<Neuron> outputLayer,
+                      final double[][] trainImages,
+                      final double[][] trainLabels,
+                      final double[][] validationImages,
+                      final double[][] validationLabels) {
+        train(inputLayer, outputLayer, ImageMatrix.fromRows(trainImages), LabelVector.fromOneHot(trainLabels),
+                LearningRateSchedule.constant(ModelCompiler.getLearningRate(context)));
+    }
+
+    /**
+     * Trains a neuron graph, compiled, at the rate {@code learningRate} gives every epoch; the weights are
+     * written back into the graph after every epoch.
+     */
+    void train(final List<Neuron> inputLayer,
+               final List<Neuron> outputLayer,
+               final ImageMatrix images,
+               final LabelVector labels,
+               final LearningRateSchedule learningRate) {
+        final CompiledModel model = ModelCompiler.compile(inputLayer, outputLayer);
+        final SparseImageMatrix sparse = sparseForm(model, images);
+        train(model, sparse == null ? images : null, sparse, labels, learningRate,
+                () -> ModelCompiler.restore(model, inputLayer, outputLayer));
+    }
+
+    /**
+     * Trains the weights of {@code model} in place.
+     *
+     * @return mean loss per image of the last epoch
+     */
+    public double train(final CompiledModel model, final ImageMatrix images, final LabelVector labels) {
+        final SparseImageMatrix sparse = sparseForm(model, images);
+        return train(model, sparse == null ? images : null, sparse, labels,
+                LearningRateSchedule.constant(learningRate), () -> { });
+    }
+
+    public double train(final CompiledModel model, final SparseImageMatrix images, final LabelVector labels) {
+        return train(model, null, images, labels, LearningRateSchedule.constant(learningRate), () -> { });
+    }
+
+    /**
+     * Trains the weights of {@code model} in place on the batches of {@code loader}, whose batch size and
+     * order replace those of this trainer.
+     *
+     * @return mean loss per image of the last epoch
+     */
+    public double train(final CompiledModel model, final MnistDataLoader loader) {
+        return train(model, loader, LearningRateSchedule.constant(learningRate), () -> { });
+    }
+
+    /**
+     * Trains a neuron graph, compiled, on the batches of {@code loader} at the rate {@code learningRate} gives
+     * every epoch; the weights are written back into the graph after every epoch.
+     */
+    void train(final List<Neuron> inputLayer,
+               final List<Neuron> outputLayer,
+               final MnistDataLoader loader,
+               final LearningRateSchedule learningRate) {
+        final CompiledModel model = ModelCompiler.compile(inputLayer, outputLayer);
+        train(model, loader, learningRate, () -> ModelCompiler.restore(model, inputLayer, outputLayer));
+    }
+
+    private double train(final CompiledModel model,
+                         final MnistDataLoader loader,
+                         final LearningRateSchedule learningRate,
+                         final Runnable afterEpoch) {
+        final long start = System.nanoTime();
+        if (loader.imageSize() != model.inputSize()) {
+            throw new IllegalArgumentException(
+                    format("Images have %d pixels, the model expects %d", loader.imageSize(), model.inputSize()));
+        }
+        final Network network = new Network(model, loader.batchSize(), null, null, null);
+        double loss = Double.NaN;
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            final float rate = (float) learningRate.learningRate(epoch);
+            double sum = 0;
+            int size = 0;
+            try (MnistDataLoader.BatchIterator batches = loader.epoch(epoch)) {
+                while (batches.hasNext()) {
+                    final MnistDataLoader.Batch batch = batches.next();
+                    sum += network.step(batch.images(), batch.labels(), batch.size(), this.loss, rate);
+                    if (epoch == 0 && size == 0) {
+                        Metrics.registry().timer(Metrics.TRAIN_FIRST_STEP_TIME).recordSince(start);
+                    }
+                    size += batch.size();
+                }
+            }
+            network.export();
+            loss = sum / Math.max(1, size);
+            afterEpoch.run();
+            if (listener != null) {
+                listener.onProgress(loss, epoch, epochs);
+            }
+        }
+        return loss;
+    }
+
+    private SparseImageMatrix sparseForm(final CompiledModel model, final ImageMatrix images) {
+        return images.imageSize() == model.inputSize() ? SparseImageMatrix.ifSparse(images, sparseThreshold) : null;
+    }
+
+    /**
+     * Trains on {@code sparse} when it is set, on {@code images} otherwise.
+     */
+    private double train(final CompiledModel model,
+                         final ImageMatrix images,
+                         final SparseImageMatrix sparse,
+                         final LabelVector labels,
+                         final LearningRateSchedule learningRate,
+                         final Runnable afterEpoch) {
+        final int size = sparse != null ? sparse.size() : images.size();
+        final int imageSize = sparse != null ? sparse.imageSize() : images.imageSize();
+        if (size != labels.size()) {
+            throw new IllegalArgumentException(format("%d images but %d labels", size, labels.size()));
+        }
+        if (imageSize != model.inputSize()) {
+            throw new IllegalArgumentException(
+                    format("Images have %d pixels, the model expects %d", imageSize, model.inputSize()));
+        }
+        final Network network = new Network(model, Math.min(batchSize, Math.max(1, size)), images, sparse, labels);
+        double loss = Double.NaN;
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            final int[] order = DataParallelTrainer.order(size, seed, epoch);
+            final float rate = (float) learningRate.learningRate(epoch);
+            double sum = 0;
+            for (int from = 0; from < order.length; from += batchSize) {
+                sum += network.step(order, from, Math.min(batchSize, order.length - from), this.loss, rate);
+            }
+            network.export();
+            loss = sum / Math.max(1, size);
+            afterEpoch.run();
+            if (listener != null) {
+                listener.onProgress(loss, epoch, epochs);
+            }
+        }
+        return loss;
+    }
+
+    /**
+     * Buffers for single mini-batch updates of {@code model}, for callers that drive the epochs themselves
+     * such as a {@link ParameterServerWorker}. Mostly-zero images are trained in sparse form.
+     */
+    static Network network(final CompiledModel model,
+                           final int batchSize,
+                           final ImageMatrix images,
+                           final LabelVector labels) {
+        if (images.size() != labels.size() || images.imageSize() != model.inputSize()) {
+            throw new IllegalArgumentException(format("%d images of %d pixels and %d labels do not fit the model",
+                    images.size(), images.imageSize(), labels.size()));
+        }
+        final SparseImageMatrix sparse = SparseImageMatrix.ifSparse(images);
+        return new Network(model, batchSize, sparse == null ? images : null, sparse, labels);
+    }
+
+    /**
+     * Buffers for a caller that refills {@code images} and {@code labels} before every step, such as an
+     * {@link OnlineLearner}; the images are always read densely.
+     */
+    static Network stagingNetwork(final CompiledModel model,
+                                  final ImageMatrix images,
+                                  final LabelVector labels) {
+        if (images.size() != labels.size() || images.imageSize() != model.inputSize()) {
+            throw new IllegalArgumentException(format("%d images of %d pixels and %d labels do not fit the model",
+                    images.size(), images.imageSize(), labels.size()));
+        }
+        return new Network(model, images.size(), images, null, labels);
+    }
+
+    /**
+     * Like {@link #network(CompiledModel, int, ImageMatrix, LabelVector)} for images already in sparse form.
+     */
+    static Network network(final CompiledModel model,
+                           final int batchSize,
+                           final SparseImageMatrix images,
+                           final LabelVector labels) {
+        if (images.size() != labels.size() || images.imageSize() != model.inputSize()) {
+            throw new IllegalArgumentException(format("%d images of %d pixels and %d labels do not fit the model",
+                    images.size(), images.imageSize(), labels.size()));
+        }
+        return new Network(model, batchSize, null, images, labels);
+    }
+
+    /**
+     * Transposed weights, the training data and the per-batch buffers: the inputs (or the records of a
+     * sparse batch), the outputs and the deltas of every layer, one row per image.
+     */
+    static class Network {
+
+        private final List<DenseLayer> layers;
+
+        private final float[][] transposed;
+
+        private final float[] input;
+
+        private final ImageMatrix images;
+
+        private final SparseImageMatrix sparse;
+
+        private final LabelVector labels;
+
+        private final int[] records;
+
+        private final float[][] outputs;
+
+        private final float[][] deltas;
+
+        /**
+         * Trains on {@code sparse} when it is set, on {@code images} otherwise.
+         */
+        private Network(final CompiledModel model,
+                        final int batchSize,
+                        final ImageMatrix images,
+                        final SparseImageMatrix sparse,
+                        final LabelVector labels) {
+            this.layers = model.layers();
+            final int size = layers.size();
+            this.transposed = new float[size][];
+            this.input = sparse == null ? new float[batchSize * model.inputSize()] : null;
+            this.images = images;
+            this.sparse = sparse;
+            this.labels = labels;
+            this.records = new int[batchSize];
+            this.outputs = new float[size][];
+            this.deltas = new float[size][];
+            for (int l = 0; l < size; l++) {
+                final DenseLayer layer = layers.get(l);
+                transposed[l] = new float[layer.weights().length];
+                outputs[l] = new float[batchSize * layer.outputSize()];
+                deltas[l] = new float[batchSize * layer.outputSize()];
+            }
+            importWeights();
+        }
+
+        /**
+         * One update from the images {@code order[from, from + count)}.
+         *
+         * @return the summed loss of the mini-batch
+         */
+        double step(final int[] order, final int from, final int count, final LossFunction loss, final float rate) {
+            load(order, from, count);
+            forward(count);
+            final double sum = outputDeltas(count, labels, loss);
+            backward(count, rate);
+            return sum;
+        }
+
+        /**
+         * One update from the first {@code count} rows of a batch that is not part of the training data,
+         * such as one served by a {@link MnistDataLoader}; only for networks that read their images densely.
+         *
+         * @return the summed loss of the mini-batch
+         */
+        double step(final ImageMatrix batchImages,
+                    final LabelVector batchLabels,
+                    final int count,
+                    final LossFunction loss,
+                    final float rate) {
+            final int imageSize = batchImages.imageSize();
+            for (int b = 0; b < count; b++) {
+                records[b] = b;
+                System.arraycopy(batchImages.data(), batchImages.offset(b), input, b * imageSize, imageSize);
+            }
+            forward(count);
+            final double sum = outputDeltas(count, batchLabels, loss);
+            backward(count, rate);
+            return sum;
+        }
+
+        /**
+         * Reads the weights of the model again, after something else changed them.
+         */
+        void importWeights() {
+            for (int l = 0; l < layers.size(); l++) {
+                final DenseLayer layer = layers.get(l);
+                final int inputSize = layer.inputSize();
+                final int outputSize = layer.outputSize();
+                final float[] weights = layer.weights();
+                final float[] target = transposed[l];
+                for (int j = 0; j < outputSize; j++) {
+                    for (int i = 0; i < inputSize; i++) {
+                        target[i * outputSize + j] = weights[j * inputSize + i];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gathers the images of the mini-batch into consecutive rows; sparse images stay where they are.
+         */
+        private void load(final int[] order, final int from, final int count) {
+            System.arraycopy(order, from, records, 0, count);
+            if (sparse != null) {
+                return;
+            }
+            final int imageSize = images.imageSize();
+            for (int b = 0; b < count; b++) {
+                System.arraycopy(images.data(), images.offset(records[b]), input, b * imageSize, imageSize);
+            }
+        }
+
+        private void forward(final int count) {
+            for (int l = 0; l < layers.size(); l++) {
+                if (l == 0 && sparse != null) {
+                    forwardSparse(count);
+                    continue;
+                }
+                final DenseLayer layer = layers.get(l);
+                final float[] in = l == 0 ? input : outputs[l - 1];
+                final float[] weights = transposed[l];
+                final float[] out = outputs[l];
+                final int inputSize = layer.inputSize();
+                final int outputSize = layer.outputSize();
+                for (int b = 0; b < count; b++) {
+                    System.arraycopy(layer.biases(), 0, out, b * outputSize, outputSize);
+                }
+                for (int block = 0; block < inputSize; block += BLOCK_ROWS) {
+                    final int end = Math.min(inputSize, block + BLOCK_ROWS);
+                    for (int b = 0; b < count; b++) {
+                        final int inRow = b * inputSize;
+                        final int outRow = b * outputSize;
+                        for (int i = block; i < end; i++) {
+                            final float x = in[inRow + i];
+                            if (x != 0f) {
+                                axpy(x, weights, i * outputSize, out, outRow, outputSize);
+                            }
+                        }
+                        if (end == inputSize) {
+                            activate(layer.activation(), out, outRow, outputSize, layer.activationParameter());
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * First layer outputs of a sparse batch: the transposed weight row of every stored pixel, scaled by
+         * its value, summed per image.
+         */
+        private void forwardSparse(final int count) {
+            final DenseLayer layer = layers.get(0);
+            final float[] weights = transposed[0];
+            final float[] out = outputs[0];
+            final int outputSize = layer.outputSize();
+            final char[] indexes = sparse.indexes();
+            final float[] values = sparse.values();
+            for (int b = 0; b < count; b++) {
+                final int outRow = b * outputSize;
+                System.arraycopy(layer.biases(), 0, out, outRow, outputSize);
+                for (int k = sparse.start(records[b]); k < sparse.end(records[b]); k++) {
+                    axpy(values[k], weights, indexes[k] * outputSize, out, outRow, outputSize);
+                }
+                activate(layer.activation(), out, outRow, outputSize, layer.activationParameter());
+            }
+        }
+
+        /**
+         * Fills the deltas of the last layer with the derivative of the loss by its pre-activation values.
+         *
+         * @return the summed loss of the mini-batch
+         */
+        private double outputDeltas(final int count, final LabelVector labels, final LossFunction loss) {
+            final int last = layers.size() - 1;
+            final DenseLayer layer = layers.get(last);
+            final float[] out = outputs[last];
+            final float[] delta = deltas[last];
+            final int outputSize = layer.outputSize();
+            final boolean sigmoidCrossEntropy = loss == LossFunction.CROSS_ENTROPY
+                    && layer.activation() == Activation.SIGMOID;
+            double sum = 0;
+            for (int b = 0; b < count; b++) {
+                final int label = labels.get(records[b]);
+                final int row = b * outputSize;
+                if (loss == LossFunction.QUADRATIC) {
+                    for (int j = 0; j < outputSize; j++) {
+                        final float difference = out[row + j] - (j == label ? 1f : 0f);
+                        sum += 0.5 * difference * difference;
+                        delta[row + j] = difference;
+                    }
+                } else if (sigmoidCrossEntropy) {
+                    for (int j = 0; j < outputSize; j++) {
+                        final float output = out[row + j];
+                        sum -= Math.log(Math.max(MIN_PROBABILITY, j == label ? output : 1f - output));
+                        delta[row + j] = output - (j == label ? 1f : 0f);
+                    }
+                } else {
+                    float max = out[row];
+                    for (int j = 1; j < outputSize; j++) {
+                        max = Math.max(max, out[row + j]);
+                    }
+                    float total = 0f;
+                    for (int j = 0; j < outputSize; j++) {
+                        delta[row + j] = (float) Math.exp(out[row + j] - max);
+                        total += delta[row + j];
+                    }
+                    for (int j = 0; j < outputSize; j++) {
+                        delta[row + j] = delta[row + j] / total - (j == label ? 1f : 0f);
+                    }
+                    sum -= Math.log(Math.max(MIN_PROBABILITY, delta[row + label] + 1f));
+                }
+                if (!sigmoidCrossEntropy) {
+                    multiplyByDerivative(
+                            layer.activation(), delta, out, row, outputSize, layer.activationParameter());
+                }
+            }
+            return sum;
+        }
+
+        /**
+         * Propagates the deltas down and updates every layer; the deltas of a layer are computed before the
+         * weights above them change.
+         */
+        private void backward(final int count, final float rate) {
+            for (int l = layers.size() - 1; l >= 0; l--) {
+                final DenseLayer layer = layers.get(l);
+                final float[] in = l == 0 ? input : outputs[l - 1];
+                final float[] weights = transposed[l];
+                final float[] delta = deltas[l];
+                final int inputSize = layer.inputSize();
+                final int outputSize = layer.outputSize();
+                if (l > 0) {
+                    final DenseLayer below = layers.get(l - 1);
+                    final float[] previous = deltas[l - 1];
+                    for (int b = 0; b < count; b++) {
+                        final int inRow = b * inputSize;
+                        for (int i = 0; i < inputSize; i++) {
+                            previous[inRow + i] = DenseLayer.dot(
+                                    delta, b * outputSize, weights, i * outputSize, outputSize);
+                        }
+                        multiplyByDerivative(below.activation(), previous, in, inRow, inputSize,
+                                below.activationParameter());
+                    }
+                }
+                if (l == 0 && sparse != null) {
+                    final char[] indexes = sparse.indexes();
+                    final float[] values = sparse.values();
+                    for (int b = 0; b < count; b++) {
+                        for (int k = sparse.start(records[b]); k < sparse.end(records[b]); k++) {
+                            axpy(-rate * values[k], delta, b * outputSize,
+                                    weights, indexes[k] * outputSize, outputSize);
+                        }
+                    }
+                } else {
+                    for (int block = 0; block < inputSize; block += BLOCK_ROWS) {
+                        final int end = Math.min(inputSize, block + BLOCK_ROWS);
+                        for (int b = 0; b < count; b++) {
+                            final int inRow = b * inputSize;
+                            for (int i = block; i < end; i++) {
+                                final float x = in[inRow + i];
+                                if (x != 0f) {
+                                    axpy(-rate * x, delta, b * outputSize, weights, i * outputSize, outputSize);
+                                }
+                            }
+                        }
+                    }
+                }
+                final float[] biases = layer.biases();
+                for (int b = 0; b < count; b++) {
+                    axpy(-rate, delta, b * outputSize, biases, 0, outputSize);
+                }
+            }
+        }
+
+        /**
+         * Writes the transposed weights back into the layers of the model.
+         */
+        void export() {
+            for (int l = 0; l < layers.size(); l++) {
+                final DenseLayer layer = layers.get(l);
+                final int inputSize = layer.inputSize();
+                final int outputSize = layer.outputSize();
+                final float[] weights = layer.weights();
+                final float[] source = transposed[l];
+                for (int i = 0; i < inputSize; i++) {
+                    for (int j = 0; j < outputSize; j++) {
+                        weights[j * inputSize + i] = source[i * outputSize + j];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * {@code y += a * x} over {@code length} values.
+     */
+    private static void axpy(final float a,
+                             final float[] x,
+                             final int xOffset,
+                             final float[] y,
+                             final int yOffset,
+                             final int length) {
+        for (int k = 0; k < length; k++) {
+            y[yOffset + k] += a * x[xOffset + k];
+        }
+    }
+
+    private static void activate(final Activation activation,
+                                 final float[] values,
+                                 final int offset,
+                                 final int length,
+                                 final float parameter) {
+        switch (activation) {
+            case LEAKY_RELU:
+                for (int k = offset; k < offset + length; k++) {
+                    final float x = values[k];
+                    values[k] = x > 0f ? x : parameter * x;
+                }
+                break;
+            case SIGMOID:
+                for (int k = offset; k < offset + length; k++) {
+                    values[k] = (float) (1. / (1. + Math.exp(-values[k])));
+                }
+                break;
+            default:
+                activation.apply(values, offset, length, parameter);
+        }
+    }
+
+    /**
+     * Multiplies deltas by the activation derivative at the matching outputs.
+     */
+    private static void multiplyByDerivative(final Activation activation,
+                                             final float[] deltas,
+                                             final float[] outputs,
+                                             final int offset,
+                                             final int length,
+                                             final float parameter) {
+        switch (activation) {
+            case LINEAR:
+                break;
+            case LEAKY_RELU:
+                for (int k = offset; k < offset + length; k++) {
+                    if (!(outputs[k] > 0f)) {
+                        deltas[k] *= parameter;
+                    }
+                }
+                break;
+            case SIGMOID:
+                for (int k = offset; k < offset + length; k++) {
+                    deltas[k] *= outputs[k] * (1f - outputs[k]);
+                }
+                break;
+            default:
+                for (int k = offset; k < offset + length; k++) {
+                    deltas[k] *= activation.derivative(outputs[k], parameter);
+                }
+        }
+    }
+}
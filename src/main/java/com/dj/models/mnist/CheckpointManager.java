@@ -0,0 +1,426 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.serializer.ModelWrapper;
+import com.dj.core.serializer.SerializerHelper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Takes checkpointing off the training thread. {@link #submit} only copies the weights; evaluation,
+ * serialization and listeners (e.g. writing a Kaggle submission) run on a background thread fed through a
+ * bounded queue. Only the last N and the best K checkpoints are kept on disk.
+ * <p>
+ * Checkpoints of a neuron graph keep its weights at full precision, so a serialized checkpoint resumes
+ * training exactly where it was taken; graphs that can not be compiled are still serialized, only not
+ * evaluated.
+ */
+public class CheckpointManager implements Closeable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+    /**
+     * What {@link #submit} does when the queue of pending checkpoints is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the checkpoint being submitted.
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest pending checkpoint to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Replace every pending checkpoint with the one being submitted, on every submit; at most one
+         * checkpoint is pending, so the queue capacity does not apply.
+         */
+        COALESCE
+    }
+
+    /**
+     * One snapshot of the model and what was learned about it in the background.
+     */
+    public static class Checkpoint {
+
+        private final int epoch;
+
+        private final double loss;
+
+        private final CompiledModel model;
+
+        private final GraphSnapshot graph;
+
+        private final List<File> files = new ArrayList<>();
+
+        private volatile double error = Double.NaN;
+
+        private Checkpoint(final int epoch, final double loss, final CompiledModel model, final GraphSnapshot graph) {
+            this.epoch = epoch;
+            this.loss = loss;
+            this.model = model;
+            this.graph = graph;
+        }
+
+        public int getEpoch() {
+            return epoch;
+        }
+
+        public double getLoss() {
+            return loss;
+        }
+
+        /**
+         * Error rate on the evaluation data, NaN when the manager has none or the model could not be
+         * compiled.
+         */
+        public double getError() {
+            return error;
+        }
+
+        /**
+         * The weights rounded to {@code float}, null when the graph could not be compiled.
+         */
+        public CompiledModel getModel() {
+            return model;
+        }
+
+        /**
+         * Files belonging to this checkpoint; they are deleted when the checkpoint is no longer retained.
+         */
+        public synchronized List<File> getFiles() {
+            return new ArrayList<>(files);
+        }
+
+        public synchronized void attach(final File file) {
+            files.add(file);
+        }
+    }
+
+    private static final Checkpoint END_OF_QUEUE = new Checkpoint(-1, Double.NaN, null, null);
+
+    private final String modelFilePattern;
+
+    private final Context context;
+
+    /**
+     * Built once: the sparse form of the evaluation images when they are mostly zero, else the dense one.
+     */
+    private final ImageMatrix evaluationImages;
+
+    private final SparseImageMatrix evaluationSparse;
+
+    private final LabelVector evaluationLabels;
+
+    private final List<Consumer<Checkpoint>> listeners;
+
+    private final int queueCapacity;
+
+    private final OverflowPolicy overflowPolicy;
+
+    private final int keepLast;
+
+    private final int keepBest;
+
+    private final ParallelEvaluator evaluator = new ParallelEvaluator();
+
+    private final LinkedList<Checkpoint> queue = new LinkedList<>();
+
+    private final List<Checkpoint> retained = new ArrayList<>();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicBoolean reportedUncompilable = new AtomicBoolean();
+
+    private final Thread worker;
+
+    private boolean closed;
+
+    private CheckpointManager(final Builder builder) {
+        this.modelFilePattern = builder.modelFilePattern;
+        this.context = builder.context;
+        this.evaluationSparse = builder.evaluationImages == null
+                ? null
+                : SparseImageMatrix.ifSparse(builder.evaluationImages);
+        this.evaluationImages = evaluationSparse == null ? builder.evaluationImages : null;
+        this.evaluationLabels = builder.evaluationLabels;
+        this.listeners = new ArrayList<>(builder.listeners);
+        this.queueCapacity = builder.queueCapacity != null ? builder.queueCapacity : DEFAULT_QUEUE_CAPACITY;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.keepLast = builder.keepLast;
+        this.keepBest = builder.keepBest;
+        this.worker = new Thread(this::processQueue, "mnist-checkpoints");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public static class Builder {
+
+        private String modelFilePattern;
+
+        private Context context;
+
+        private ImageMatrix evaluationImages;
+
+        private LabelVector evaluationLabels;
+
+        private final List<Consumer<Checkpoint>> listeners = new ArrayList<>();
+
+        private Integer queueCapacity;
+
+        private OverflowPolicy overflowPolicy = OverflowPolicy.COALESCE;
+
+        private int keepLast = 3;
+
+        private int keepBest = 1;
+
+        /**
+         * Serialize every checkpoint with {@code SerializerHelper} to this {@link String#format} pattern,
+         * which gets the epoch, e.g. {@code /tmp/mnist_model_checkpoint_%d.dj}.
+         */
+        public Builder modelFilePattern(final String modelFilePattern) {
+            this.modelFilePattern = modelFilePattern;
+            return this;
+        }
+
+        /**
+         * Context of the serialized neuron graphs, required with {@link #modelFilePattern(String)}.
+         */
+        public Builder context(final Context context) {
+            this.context = context;
+            return this;
+        }
+
+        public Builder evaluationData(final ImageMatrix images, final LabelVector labels) {
+            this.evaluationImages = images;
+            this.evaluationLabels = labels;
+            return this;
+        }
+
+        /**
+         * Runs on the background thread after the checkpoint was evaluated and serialized.
+         */
+        public Builder listener(final Consumer<Checkpoint> listener) {
+            this.listeners.add(listener);
+            return this;
+        }
+
+        /**
+         * Pending checkpoints {@link OverflowPolicy#DROP_NEWEST} and {@link OverflowPolicy#DROP_OLDEST} keep,
+         * {@value #DEFAULT_QUEUE_CAPACITY} by default; {@link OverflowPolicy#COALESCE}, the default policy,
+         * only accepts 1.
+         */
+        public Builder queueCapacity(final int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public Builder overflowPolicy(final OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public Builder keepLast(final int keepLast) {
+            this.keepLast = keepLast;
+            return this;
+        }
+
+        /**
+         * Number of checkpoints with the lowest evaluation error to keep besides the last ones.
+         */
+        public Builder keepBest(final int keepBest) {
+            this.keepBest = keepBest;
+            return this;
+        }
+
+        public CheckpointManager build() {
+            if (queueCapacity != null && queueCapacity < 1) {
+                throw new IllegalArgumentException("Queue capacity must be positive");
+            }
+            if (overflowPolicy == OverflowPolicy.COALESCE && queueCapacity != null && queueCapacity != 1) {
+                throw new IllegalArgumentException(
+                        "COALESCE keeps only the newest pending checkpoint, choose a DROP policy for a queue");
+            }
+            if (modelFilePattern != null && context == null) {
+                throw new IllegalArgumentException("A context is required to serialize checkpoints");
+            }
+            return new CheckpointManager(this);
+        }
+    }
+
+    /**
+     * Snapshots the weights of the graph on the calling thread and queues the rest of the work. A graph
+     * that can not be compiled is checkpointed without evaluation.
+     *
+     * @return false if the checkpoint was dropped because the queue was full
+     */
+    public boolean submit(final int epoch, final double loss, final ModelWrapper modelWrapper) {
+        final GraphSnapshot graph = GraphSnapshot.of(modelWrapper);
+        CompiledModel model = null;
+        try {
+            model = graph.compile();
+        } catch (UnsupportedOperationException e) {
+            if (reportedUncompilable.compareAndSet(false, true)) {
+                System.out.println("Checkpoints are not evaluated: " + e.getMessage());
+            }
+        }
+        return submit(new Checkpoint(epoch, loss, model, graph));
+    }
+
+    /**
+     * Queues a snapshot; {@code model} must not be modified afterwards.
+     */
+    public boolean submit(final int epoch, final double loss, final CompiledModel model) {
+        return submit(new Checkpoint(epoch, loss, model, null));
+    }
+
+    private boolean submit(final Checkpoint checkpoint) {
+        synchronized (queue) {
+            if (closed) {
+                throw new IllegalStateException("Checkpoint manager is closed");
+            }
+            if (overflowPolicy == OverflowPolicy.COALESCE) {
+                dropped.addAndGet(queue.size());
+                Metrics.registry().counter(Metrics.CHECKPOINTS_DROPPED).increment(queue.size());
+                queue.clear();
+            } else if (queue.size() >= queueCapacity) {
+                dropped.incrementAndGet();
+                Metrics.registry().counter(Metrics.CHECKPOINTS_DROPPED).increment();
+                if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                    return false;
+                }
+                queue.removeFirst();
+            }
+            queue.addLast(checkpoint);
+            queue.notifyAll();
+        }
+        return true;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Checkpoints currently kept, oldest first.
+     */
+    public List<Checkpoint> getRetained() {
+        synchronized (retained) {
+            return new ArrayList<>(retained);
+        }
+    }
+
+    /**
+     * Retained checkpoint with the lowest evaluation error, the latest one without evaluation data, or
+     * null before the first checkpoint was processed.
+     */
+    public Checkpoint getBest() {
+        synchronized (retained) {
+            return retained.stream().min(bestFirst()).orElse(null);
+        }
+    }
+
+    /**
+     * Processes the checkpoints still queued and stops the background thread.
+     */
+    @Override
+    public void close() {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.addLast(END_OF_QUEUE);
+            queue.notifyAll();
+        }
+        try {
+            worker.join(TimeUnit.MINUTES.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void processQueue() {
+        while (true) {
+            final Checkpoint checkpoint;
+            synchronized (queue) {
+                while (queue.isEmpty()) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                checkpoint = queue.removeFirst();
+            }
+            if (checkpoint == END_OF_QUEUE) {
+                return;
+            }
+            try {
+                process(checkpoint);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void process(final Checkpoint checkpoint) {
+        final long start = System.nanoTime();
+        if (evaluationLabels != null && checkpoint.model != null) {
+            checkpoint.error = evaluator
+                    .evaluate(checkpoint.model, evaluationImages, evaluationSparse, evaluationLabels)
+                    .errorRate();
+        }
+        if (modelFilePattern != null) {
+            final File file = new File(String.format(modelFilePattern, checkpoint.epoch));
+            final ModelWrapper modelWrapper = checkpoint.graph != null
+                    ? checkpoint.graph.toModelWrapper(context)
+                    : ModelCompiler.toModelWrapper(checkpoint.model, context);
+            SerializerHelper.serializeToFile(modelWrapper, file.toString());
+            checkpoint.attach(file);
+        }
+        for (final Consumer<Checkpoint> listener : listeners) {
+            try {
+                listener.accept(checkpoint);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        retain(checkpoint);
+        Metrics.registry().timer(Metrics.CHECKPOINT_TIME).recordSince(start);
+    }
+
+    private void retain(final Checkpoint checkpoint) {
+        final List<Checkpoint> discarded;
+        synchronized (retained) {
+            retained.add(checkpoint);
+            final List<Checkpoint> keep = new ArrayList<>(
+                    retained.subList(Math.max(0, retained.size() - keepLast), retained.size()));
+            retained.stream()
+                    .sorted(bestFirst())
+                    .limit(keepBest)
+                    .filter(best -> !keep.contains(best))
+                    .forEach(keep::add);
+            discarded = retained.stream().filter(c -> !keep.contains(c)).collect(Collectors.toList());
+            retained.removeAll(discarded);
+        }
+        for (final Checkpoint old : discarded) {
+            old.getFiles().forEach(File::delete);
+        }
+    }
+
+    private static Comparator<Checkpoint> bestFirst() {
+        return Comparator.<Checkpoint>comparingDouble(c -> Double.isNaN(c.error) ? Double.MAX_VALUE : c.error)
+                .thenComparing(Comparator.comparingInt((Checkpoint c) -> c.epoch).reversed());
+    }
+}
@@ -0,0 +1,216 @@
+package com.dj.models.mnist;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * A feed-forward network flattened into {@link DenseLayer}s. The model itself holds no per-inference
+ * state: callers pass a {@link Workspace}, one per thread, so a single instance can serve many threads.
+ */
+public class CompiledModel {
+
+    public static final int DEFAULT_BLOCK_SIZE = 32;
+
+    private final List<DenseLayer> layers;
+
+    private final int maxWidth;
+
+    public CompiledModel(final List<DenseLayer> layers) {
+        if (layers.isEmpty()) {
+            throw new IllegalArgumentException("A model needs at least one layer");
+        }
+        int maxWidth = layers.get(0).inputSize();
+        for (int i = 0; i < layers.size(); i++) {
+            if (i > 0 && layers.get(i - 1).outputSize() != layers.get(i).inputSize()) {
+                throw new IllegalArgumentException(format("Layer %d produces %d values, layer %d expects %d",
+                        i - 1, layers.get(i - 1).outputSize(), i, layers.get(i).inputSize()));
+            }
+            maxWidth = Math.max(maxWidth, layers.get(i).outputSize());
+        }
+        this.layers = Collections.unmodifiableList(Arrays.asList(layers.toArray(new DenseLayer[0])));
+        this.maxWidth = maxWidth;
+    }
+
+    /**
+     * Scratch buffers for forward passes of up to {@code blockSize} inputs at a time.
+     */
+    public static class Workspace {
+
+        private final float[] first;
+
+        private final float[] second;
+
+        private final int blockSize;
+
+        private Workspace(final int maxWidth, final int blockSize) {
+            this.first = new float[maxWidth * blockSize];
+            this.second = new float[maxWidth * blockSize];
+            this.blockSize = blockSize;
+        }
+    }
+
+    public Workspace newWorkspace() {
+        return newWorkspace(DEFAULT_BLOCK_SIZE);
+    }
+
+    public Workspace newWorkspace(final int blockSize) {
+        return new Workspace(maxWidth, blockSize);
+    }
+
+    public List<DenseLayer> layers() {
+        return layers;
+    }
+
+    public int inputSize() {
+        return layers.get(0).inputSize();
+    }
+
+    public int outputSize() {
+        return layers.get(layers.size() - 1).outputSize();
+    }
+
+    public long numberOfParameters() {
+        long parameters = 0;
+        for (final DenseLayer layer : layers) {
+            parameters += (long) layer.inputSize() * layer.outputSize() + layer.outputSize();
+        }
+        return parameters;
+    }
+
+    public CompiledModel copy() {
+        final DenseLayer[] copies = new DenseLayer[layers.size()];
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = layers.get(i).copy();
+        }
+        return new CompiledModel(Arrays.asList(copies));
+    }
+
+    /**
+     * Runs one input through the network.
+     *
+     * @return a workspace buffer holding the {@link #outputSize()} outputs at its start, valid until the
+     * workspace is used again
+     */
+    public float[] forward(final float[] input, final int offset, final Workspace workspace) {
+        return forward(input, offset, 1, workspace);
+    }
+
+    /**
+     * Runs {@code count} consecutive inputs (at most the workspace block size) through the network.
+     *
+     * @return a workspace buffer holding {@code count} rows of {@link #outputSize()} outputs
+     */
+    public float[] forward(final float[] input, final int offset, final int count, final Workspace workspace) {
+        checkWorkspace(count, workspace);
+        return forward(0, input, offset, count, workspace);
+    }
+
+    /**
+     * Runs images {@code [start, start + count)} of a sparse matrix through the network, the first layer
+     * multiplying only their stored pixels.
+     *
+     * @return a workspace buffer holding {@code count} rows of {@link #outputSize()} outputs
+     */
+    public float[] forward(final SparseImageMatrix images,
+                           final int start,
+                           final int count,
+                           final Workspace workspace) {
+        checkWorkspace(count, workspace);
+        layers.get(0).forward(images, start, count, workspace.first, 0);
+        return forward(1, workspace.first, 0, count, workspace);
+    }
+
+    private void checkWorkspace(final int count, final Workspace workspace) {
+        if (count > workspace.blockSize) {
+            throw new IllegalArgumentException(
+                    format("Block of %d inputs exceeds workspace block size %d", count, workspace.blockSize));
+        }
+        if (workspace.first.length < maxWidth * workspace.blockSize) {
+            throw new IllegalArgumentException(format("Workspace of a model at most %d wide, this one is %d wide",
+                    workspace.first.length / workspace.blockSize, maxWidth));
+        }
+    }
+
+    private float[] forward(final int firstLayer,
+                            final float[] input,
+                            final int offset,
+                            final int count,
+                            final Workspace workspace) {
+        float[] current = input;
+        int currentOffset = offset;
+        float[] next = current == workspace.first ? workspace.second : workspace.first;
+        for (int l = firstLayer; l < layers.size(); l++) {
+            layers.get(l).forward(current, currentOffset, count, next, 0);
+            current = next;
+            currentOffset = 0;
+            next = next == workspace.first ? workspace.second : workspace.first;
+        }
+        return current;
+    }
+
+    public int predict(final float[] input, final int offset, final Workspace workspace) {
+        return argMax(forward(input, offset, workspace), 0, outputSize());
+    }
+
+    /**
+     * Predicts images {@code [from, to)} into {@code predictions[from, to)}, block by block.
+     */
+    public void predict(final ImageMatrix images,
+                        final int from,
+                        final int to,
+                        final int[] predictions,
+                        final Workspace workspace) {
+        if (images.imageSize() != inputSize()) {
+            throw new IllegalArgumentException(
+                    format("Images have %d pixels, model expects %d inputs", images.imageSize(), inputSize()));
+        }
+        final int outputSize = outputSize();
+        for (int start = from; start < to; start += workspace.blockSize) {
+            final int count = Math.min(workspace.blockSize, to - start);
+            final float[] outputs = forward(images.data(), images.offset(start), count, workspace);
+            for (int b = 0; b < count; b++) {
+                predictions[start + b] = argMax(outputs, b * outputSize, outputSize);
+            }
+        }
+    }
+
+    public int[] predict(final ImageMatrix images) {
+        final int[] predictions = new int[images.size()];
+        predict(images, 0, images.size(), predictions, newWorkspace());
+        return predictions;
+    }
+
+    public int[] predict(final SparseImageMatrix images) {
+        if (images.imageSize() != inputSize()) {
+            throw new IllegalArgumentException(
+                    format("Images have %d pixels, model expects %d inputs", images.imageSize(), inputSize()));
+        }
+        final int[] predictions = new int[images.size()];
+        final Workspace workspace = newWorkspace();
+        final int outputSize = outputSize();
+        for (int start = 0; start < images.size(); start += workspace.blockSize) {
+            final int count = Math.min(workspace.blockSize, images.size() - start);
+            final float[] outputs = forward(images, start, count, workspace);
+            for (int b = 0; b < count; b++) {
+                predictions[start + b] = argMax(outputs, b * outputSize, outputSize);
+            }
+        }
+        return predictions;
+    }
+
+    /**
+     * Index of the largest value, the first one on ties.
+     */
+    public static int argMax(final float[] values, final int offset, final int length) {
+        int best = 0;
+        for (int i = 1; i < length; i++) {
+            if (values[offset + i] > values[offset + best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
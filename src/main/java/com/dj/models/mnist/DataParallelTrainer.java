@@ -0,0 +1,442 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.model.graph.Neuron;
+import com.dj.core.optimizer.Optimizer;
+import com.dj.core.optimizer.OptimizerProgressListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+
+/**
+ * Mini-batch SGD with quadratic loss on the flat weight arrays of a {@link CompiledModel}, spread over
+ * a fixed number of worker threads.
+ * <p>
+ * In {@link Mode#SYNCHRONOUS} mode every mini-batch is split into one contiguous shard per worker. The
+ * workers accumulate the gradients of their shard, sum them pairwise along a binary tree and then each
+ * applies the total to its own slice of the weights, separated by barriers. The shard boundaries, the
+ * shuffling (derived from the seed and the epoch) and the order of the tree sums are fixed, so a given
+ * seed and number of workers always produce the same weights. {@link Mode#HOGWILD} lets every worker run
+ * its own mini-batches over a strided part of the epoch and write updates to the shared weights without
+ * any synchronization; it scales better with many workers but is not reproducible.
+ * <p>
+ * An update is the gradient summed over the mini-batch times the learning rate, the same step per image
+ * as plain per-image SGD. Used as a {@code com.dj.core} {@link Optimizer} the graph is compiled, trained
+ * here, and written back after every epoch; it then trains at the rate the {@link Context} was created with,
+ * while a {@link TrainingControl} hands it the rate of every epoch.
+ */
+public class DataParallelTrainer implements Optimizer {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    public enum Mode {
+        SYNCHRONOUS,
+        HOGWILD
+    }
+
+    private final int workers;
+
+    private final int batchSize;
+
+    private final int epochs;
+
+    private final double learningRate;
+
+    private final long seed;
+
+    private final Mode mode;
+
+    private final OptimizerProgressListener listener;
+
+    private DataParallelTrainer(final Builder builder) {
+        this.workers = builder.workers;
+        this.batchSize = builder.batchSize;
+        this.epochs = builder.epochs;
+        this.learningRate = builder.learningRate;
+        this.seed = builder.seed;
+        this.mode = builder.mode;
+        this.listener = builder.listener;
+    }
+
+    public static class Builder {
+
+        private int workers = Runtime.getRuntime().availableProcessors();
+
+        private int batchSize = DEFAULT_BATCH_SIZE;
+
+        private int epochs = 1;
+
+        private double learningRate = 0.0005;
+
+        private long seed;
+
+        private Mode mode = Mode.SYNCHRONOUS;
+
+        private OptimizerProgressListener listener;
+
+        public Builder workers(final int workers) {
+            this.workers = workers;
+            return this;
+        }
+
+        /**
+         * Images per update; in synchronous mode they are shared by all workers, so it should be well above
+         * the number of workers.
+         */
+        public Builder batchSize(final int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder epochs(final int epochs) {
+            this.epochs = epochs;
+            return this;
+        }
+
+        /**
+         * Learning rate of {@link #train(CompiledModel, ImageMatrix, LabelVector)}; as an optimizer the rate
+         * of the context is used.
+         */
+        public Builder learningRate(final double learningRate) {
+            this.learningRate = learningRate;
+            return this;
+        }
+
+        public Builder seed(final long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder mode(final Mode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Called on the calling thread after every epoch with the mean loss per image.
+         */
+        public Builder listener(final OptimizerProgressListener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        public DataParallelTrainer build() {
+            if (workers < 1 || batchSize < 1 || epochs < 1) {
+                throw new IllegalArgumentException("Workers, batch size and epochs must be positive");
+            }
+            return new DataParallelTrainer(this);
+        }
+    }
+
+    @Override
+    public void train(final Context context,
+                      final List<Neuron> inputLayer,
+                      final List<Neuron> outputLayer,
+                      final double[][] trainImages,
+                      final double[][] trainLabels,
+                      final double[][] validationImages,
+                      final double[][] validationLabels) {
+        train(inputLayer, outputLayer, ImageMatrix.fromRows(trainImages), LabelVector.fromOneHot(trainLabels),
+                LearningRateSchedule.constant(ModelCompiler.getLearningRate(context)));
+    }
+
+    /**
+     * Trains a neuron graph, compiled, at the rate {@code learningRate} gives every epoch; the weights are
+     * written back into the graph after every epoch.
+     */
+    void train(final List<Neuron> inputLayer,
+               final List<Neuron> outputLayer,
+               final ImageMatrix images,
+               final LabelVector labels,
+               final LearningRateSchedule learningRate) {
+        final CompiledModel model = ModelCompiler.compile(inputLayer, outputLayer);
+        train(model, images, labels, learningRate, () -> ModelCompiler.restore(model, inputLayer, outputLayer));
+    }
+
+    /**
+     * Trains the weights of {@code model} in place.
+     *
+     * @return mean loss per image of the last epoch
+     */
+    public double train(final CompiledModel model, final ImageMatrix images, final LabelVector labels) {
+        return train(model, images, labels, LearningRateSchedule.constant(learningRate), () -> { });
+    }
+
+    private double train(final CompiledModel model,
+                         final ImageMatrix images,
+                         final LabelVector labels,
+                         final LearningRateSchedule learningRate,
+                         final Runnable afterEpoch) {
+        if (images.size() != labels.size()) {
+            throw new IllegalArgumentException(format("%d images but %d labels", images.size(), labels.size()));
+        }
+        if (images.imageSize() != model.inputSize()) {
+            throw new IllegalArgumentException(
+                    format("Images have %d pixels, the model expects %d", images.imageSize(), model.inputSize()));
+        }
+        final Worker[] replicas = new Worker[workers];
+        for (int w = 0; w < workers; w++) {
+            replicas[w] = new Worker(model);
+        }
+        final AtomicInteger threads = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            final Thread thread = new Thread(runnable, "mnist-trainer-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        double loss = Double.NaN;
+        try {
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                final int[] order = order(images.size(), seed, epoch);
+                final float rate = (float) learningRate.learningRate(epoch);
+                final CyclicBarrier barrier = new CyclicBarrier(workers);
+                final List<Callable<Void>> tasks = new ArrayList<>(workers);
+                for (int w = 0; w < workers; w++) {
+                    final int index = w;
+                    tasks.add(() -> {
+                        try {
+                            if (mode == Mode.SYNCHRONOUS) {
+                                runSynchronous(replicas, index, barrier, images, labels, order, rate);
+                            } else {
+                                runHogwild(replicas[index], index, images, labels, order, rate);
+                            }
+                        } catch (RuntimeException | InterruptedException | BrokenBarrierException e) {
+                            barrier.reset();
+                            throw e;
+                        }
+                        return null;
+                    });
+                }
+                for (final Future<Void> result : executor.invokeAll(tasks)) {
+                    result.get();
+                }
+                double sum = 0;
+                for (final Worker replica : replicas) {
+                    sum += replica.loss;
+                    replica.loss = 0;
+                }
+                loss = sum / Math.max(1, images.size());
+                afterEpoch.run();
+                if (listener != null) {
+                    listener.onProgress(loss, epoch, epochs);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while training", e);
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Training worker failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return loss;
+    }
+
+    /**
+     * Record indexes in the order they are visited in {@code epoch}, the same for every worker count.
+     */
+    static int[] order(final int size, final long seed, final int epoch) {
+        final int[] permutation = new int[size];
+        for (int i = 0; i < size; i++) {
+            permutation[i] = i;
+        }
+        final Random random = new Random(seed * 31 + epoch);
+        for (int i = size - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int swap = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = swap;
+        }
+        return permutation;
+    }
+
+    private void runSynchronous(final Worker[] replicas,
+                                final int index,
+                                final CyclicBarrier barrier,
+                                final ImageMatrix images,
+                                final LabelVector labels,
+                                final int[] order,
+                                final float rate) throws InterruptedException, BrokenBarrierException {
+        final Worker worker = replicas[index];
+        for (int from = 0; from < order.length; from += batchSize) {
+            final int length = Math.min(batchSize, order.length - from);
+            worker.clearGradients();
+            final int end = from + (int) ((long) length * (index + 1) / workers);
+            for (int p = from + (int) ((long) length * index / workers); p < end; p++) {
+                worker.accumulate(images.data(), images.offset(order[p]), labels.get(order[p]));
+            }
+            for (int stride = 1; stride < workers; stride <<= 1) {
+                barrier.await();
+                if (index % (2 * stride) == 0 && index + stride < workers) {
+                    worker.addGradients(replicas[index + stride]);
+                }
+            }
+            barrier.await();
+            replicas[0].applyGradients(rate, index, workers);
+            barrier.await();
+        }
+    }
+
+    private void runHogwild(final Worker worker,
+                            final int index,
+                            final ImageMatrix images,
+                            final LabelVector labels,
+                            final int[] order,
+                            final float rate) {
+        int inBatch = 0;
+        worker.clearGradients();
+        for (int p = index; p < order.length; p += workers) {
+            worker.accumulate(images.data(), images.offset(order[p]), labels.get(order[p]));
+            if (++inBatch == batchSize) {
+                worker.applyGradients(rate, 0, 1);
+                worker.clearGradients();
+                inBatch = 0;
+            }
+        }
+        if (inBatch > 0) {
+            worker.applyGradients(rate, 0, 1);
+        }
+    }
+
+    /**
+     * Gradient buffers and back-propagation scratch space of one worker; the weights are the shared ones
+     * of the model.
+     */
+    private static class Worker {
+
+        private final List<DenseLayer> layers;
+
+        private final float[][] outputs;
+
+        private final float[][] deltas;
+
+        private final float[][] weightGradients;
+
+        private final float[][] biasGradients;
+
+        private double loss;
+
+        private Worker(final CompiledModel model) {
+            this.layers = model.layers();
+            final int size = layers.size();
+            this.outputs = new float[size][];
+            this.deltas = new float[size][];
+            this.weightGradients = new float[size][];
+            this.biasGradients = new float[size][];
+            for (int l = 0; l < size; l++) {
+                final DenseLayer layer = layers.get(l);
+                outputs[l] = new float[layer.outputSize()];
+                deltas[l] = new float[layer.outputSize()];
+                weightGradients[l] = new float[layer.weights().length];
+                biasGradients[l] = new float[layer.outputSize()];
+            }
+        }
+
+        private void clearGradients() {
+            for (int l = 0; l < layers.size(); l++) {
+                Arrays.fill(weightGradients[l], 0f);
+                Arrays.fill(biasGradients[l], 0f);
+            }
+        }
+
+        /**
+         * Adds the gradients of the quadratic loss for one image to the buffers.
+         */
+        private void accumulate(final float[] input, final int offset, final int label) {
+            final int last = layers.size() - 1;
+            for (int l = 0; l <= last; l++) {
+                layers.get(l).forward(l == 0 ? input : outputs[l - 1], l == 0 ? offset : 0, outputs[l], 0);
+            }
+            final DenseLayer outputLayer = layers.get(last);
+            for (int j = 0; j < outputLayer.outputSize(); j++) {
+                final float output = outputs[last][j];
+                final float difference = output - (j == label ? 1f : 0f);
+                loss += 0.5 * difference * difference;
+                deltas[last][j] = difference
+                        * outputLayer.activation().derivative(output, outputLayer.activationParameter());
+            }
+            for (int l = last; l >= 0; l--) {
+                final DenseLayer layer = layers.get(l);
+                final float[] in = l == 0 ? input : outputs[l - 1];
+                final int inOffset = l == 0 ? offset : 0;
+                final int inputSize = layer.inputSize();
+                final float[] weights = layer.weights();
+                final float[] delta = deltas[l];
+                final float[] gradients = weightGradients[l];
+                final float[] previous = l > 0 ? deltas[l - 1] : null;
+                if (previous != null) {
+                    Arrays.fill(previous, 0f);
+                }
+                for (int j = 0; j < layer.outputSize(); j++) {
+                    final float d = delta[j];
+                    if (d == 0f) {
+                        continue;
+                    }
+                    biasGradients[l][j] += d;
+                    final int row = j * inputSize;
+                    for (int i = 0; i < inputSize; i++) {
+                        gradients[row + i] += d * in[inOffset + i];
+                    }
+                    if (previous != null) {
+                        for (int i = 0; i < inputSize; i++) {
+                            previous[i] += d * weights[row + i];
+                        }
+                    }
+                }
+                if (previous != null) {
+                    final DenseLayer below = layers.get(l - 1);
+                    for (int i = 0; i < inputSize; i++) {
+                        previous[i] *= below.activation().derivative(outputs[l - 1][i], below.activationParameter());
+                    }
+                }
+            }
+        }
+
+        private void addGradients(final Worker other) {
+            for (int l = 0; l < layers.size(); l++) {
+                add(weightGradients[l], other.weightGradients[l]);
+                add(biasGradients[l], other.biasGradients[l]);
+            }
+        }
+
+        /**
+         * Applies the gradients to slice {@code slice} of {@code slices} of every weight and bias array.
+         */
+        private void applyGradients(final float rate, final int slice, final int slices) {
+            for (int l = 0; l < layers.size(); l++) {
+                update(layers.get(l).weights(), weightGradients[l], rate, slice, slices);
+                update(layers.get(l).biases(), biasGradients[l], rate, slice, slices);
+            }
+        }
+
+        private static void add(final float[] target, final float[] source) {
+            for (int i = 0; i < target.length; i++) {
+                target[i] += source[i];
+            }
+        }
+
+        private static void update(final float[] values,
+                                   final float[] gradients,
+                                   final float rate,
+                                   final int slice,
+                                   final int slices) {
+            final int end = (int) ((long) values.length * (slice + 1) / slices);
+            for (int i = (int) ((long) values.length * slice / slices); i < end; i++) {
+                values[i] -= rate * gradients[i];
+            }
+        }
+    }
+}
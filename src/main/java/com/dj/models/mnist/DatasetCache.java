@@ -0,0 +1,261 @@
+package com.dj.models.mnist;
+
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * On-disk cache of preprocessed, training-ready data sets. An entry is named after the SHA-256 of the
+ * source file, a description of the preprocessing and the cache format version, so changing any of them
+ * simply misses the cache; stale entries are never read and eventually evicted. Entries are read by
+ * memory-mapping the file and bulk-copying the values, and every hit refreshes the entry's modification
+ * time, which orders the least-recently-used cleanup run after every write.
+ * <p>
+ * Layout of an entry, little-endian: int magic number {@value #MAGIC_NUMBER}, int version, int kind
+ * (images or labels), int number of records, int record size, then the float32 pixels or the label bytes.
+ */
+public class DatasetCache {
+
+    public static final int MAGIC_NUMBER = 0x43444A44; // "DJDC" in little-endian order
+
+    public static final int VERSION = 1;
+
+    public static final String DEFAULT_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "dj-cache").toString();
+
+    public static final long DEFAULT_MAX_BYTES = 2L << 30;
+
+    private static final String SUFFIX = ".djc";
+
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+
+    private static final int IMAGES = 1;
+
+    private static final int LABELS = 2;
+
+    private final File directory;
+
+    private final long maxBytes;
+
+    private DatasetCache(final Builder builder) {
+        this.directory = builder.directory;
+        this.maxBytes = builder.maxBytes;
+    }
+
+    public static class Builder {
+
+        private File directory = new File(DEFAULT_DIRECTORY);
+
+        private long maxBytes = DEFAULT_MAX_BYTES;
+
+        public Builder directory(final File directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /**
+         * Total size the cache directory is trimmed to after every write, oldest entries first.
+         */
+        public Builder maxBytes(final long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public DatasetCache build() {
+            if (directory == null || maxBytes < 0) {
+                throw new IllegalArgumentException("A cache directory and a non-negative size are required");
+            }
+            return new DatasetCache(this);
+        }
+    }
+
+    /**
+     * Cache configured by the system properties {@code dj.cache.dir} and {@code dj.cache.maxBytes}.
+     */
+    public static DatasetCache fromSystemProperties() {
+        return new Builder()
+                .directory(new File(System.getProperty("dj.cache.dir", DEFAULT_DIRECTORY)))
+                .maxBytes(Long.getLong("dj.cache.maxBytes", DEFAULT_MAX_BYTES))
+                .build();
+    }
+
+    /**
+     * Images derived from {@code source} by {@code preprocessing}, computed with {@code loader} on a miss.
+     *
+     * @param preprocessing identifies the transformation, e.g. {@code "normalized"}; change it whenever
+     *                      the loader starts producing different values
+     */
+    public ImageMatrix images(final File source, final String preprocessing, final Supplier<ImageMatrix> loader) {
+        final File entry = entryFor(source, preprocessing);
+        final ByteBuffer cached = read(entry, IMAGES);
+        if (cached != null) {
+            final int size = cached.getInt(3 * Integer.BYTES);
+            final int imageSize = cached.getInt(4 * Integer.BYTES);
+            final float[] data = new float[size * imageSize];
+            cached.position(HEADER_SIZE);
+            cached.asFloatBuffer().get(data);
+            return ImageMatrix.wrap(data, size, imageSize);
+        }
+        final ImageMatrix images = loader.get();
+        final ByteBuffer buffer = header(IMAGES, images.size(), images.imageSize(),
+                (long) images.size() * images.imageSize() * Float.BYTES);
+        buffer.asFloatBuffer().put(images.data(), 0, images.size() * images.imageSize());
+        write(entry, buffer);
+        return images;
+    }
+
+    /**
+     * Labels derived from {@code source}, see {@link #images}.
+     */
+    public LabelVector labels(final File source, final String preprocessing, final Supplier<LabelVector> loader) {
+        final File entry = entryFor(source, preprocessing);
+        final ByteBuffer cached = read(entry, LABELS);
+        if (cached != null) {
+            final byte[] labels = new byte[cached.getInt(3 * Integer.BYTES)];
+            cached.position(HEADER_SIZE);
+            cached.get(labels);
+            return LabelVector.wrap(labels);
+        }
+        final LabelVector labels = loader.get();
+        final ByteBuffer buffer = header(LABELS, labels.size(), 1, labels.size());
+        buffer.position(HEADER_SIZE);
+        buffer.put(labels.data(), 0, labels.size());
+        write(entry, buffer);
+        return labels;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Total size of the entries currently in the cache.
+     */
+    public long sizeInBytes() {
+        return Arrays.stream(entries()).mapToLong(File::length).sum();
+    }
+
+    File entryFor(final File source, final String preprocessing) {
+        final String sourceHash;
+        try {
+            sourceHash = com.google.common.io.Files.asByteSource(source).hash(Hashing.sha256()).toString();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to hash " + source, e);
+        }
+        final String key = Hashing.sha256()
+                .hashString(sourceHash + '\n' + preprocessing + '\n' + VERSION, StandardCharsets.UTF_8)
+                .toString();
+        return new File(directory, key + SUFFIX);
+    }
+
+    /**
+     * The entry mapped and validated, or null when it is missing or unusable; unusable entries are removed.
+     */
+    private ByteBuffer read(final File entry, final int kind) {
+        if (!entry.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile input = new RandomAccessFile(entry, "r")) {
+            final FileChannel channel = input.getChannel();
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.limit() >= HEADER_SIZE
+                    && buffer.getInt(0) == MAGIC_NUMBER
+                    && buffer.getInt(Integer.BYTES) == VERSION
+                    && buffer.getInt(2 * Integer.BYTES) == kind
+                    && buffer.limit() == HEADER_SIZE + payloadSize(kind,
+                            buffer.getInt(3 * Integer.BYTES), buffer.getInt(4 * Integer.BYTES))) {
+                entry.setLastModified(System.currentTimeMillis());
+                return buffer;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.err.println("Discarding invalid cache entry " + entry);
+        entry.delete();
+        return null;
+    }
+
+    private static long payloadSize(final int kind, final int records, final int recordSize) {
+        if (records < 0 || recordSize < 1) {
+            return -1;
+        }
+        return kind == IMAGES ? (long) records * recordSize * Float.BYTES : records;
+    }
+
+    private static ByteBuffer header(final int kind, final int records, final int recordSize, final long payload) {
+        if (HEADER_SIZE + payload > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(format("Data set of %d bytes is too large to cache", payload));
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) (HEADER_SIZE + payload)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC_NUMBER).putInt(VERSION).putInt(kind).putInt(records).putInt(recordSize);
+        return buffer;
+    }
+
+    /**
+     * Writes the entry through a temporary file, then evicts the least recently used other entries. A
+     * failure to write only costs the caching, the data is still returned to the caller.
+     */
+    private void write(final File entry, final ByteBuffer buffer) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Can not create cache directory " + directory);
+            return;
+        }
+        final File tmp = new File(entry.getPath() + ".tmp");
+        try (RandomAccessFile output = new RandomAccessFile(tmp, "rw")) {
+            output.setLength(0);
+            buffer.rewind();
+            final FileChannel channel = output.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return;
+        }
+        evict(entry);
+    }
+
+    private void evict(final File keep) {
+        final File[] entries = entries();
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        long size = Arrays.stream(entries).mapToLong(File::length).sum();
+        for (final File entry : entries) {
+            if (size <= maxBytes) {
+                return;
+            }
+            if (!entry.equals(keep)) {
+                size -= entry.length();
+                entry.delete();
+            }
+        }
+    }
+
+    private File[] entries() {
+        final File[] entries = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        return entries == null ? new File[0] : entries;
+    }
+}
@@ -0,0 +1,77 @@
+package com.dj.models.mnist;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * In-memory registry: counters are {@link LongAdder}s and timers {@link LatencyHistogram}s, both safe
+ * to update from any thread without locking.
+ */
+public class DefaultMetricsRegistry implements MetricsRegistry {
+
+    private final Map<String, LongAdderCounter> counters = new ConcurrentHashMap<>();
+
+    private final Map<String, HistogramTimer> timers = new ConcurrentHashMap<>();
+
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+
+    @Override
+    public Counter counter(final String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdderCounter());
+    }
+
+    @Override
+    public Timer timer(final String name) {
+        return timers.computeIfAbsent(name, n -> new HistogramTimer());
+    }
+
+    @Override
+    public void gauge(final String name, final DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public Map<String, Number> snapshot() {
+        final Map<String, Number> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum.sum()));
+        timers.forEach((name, timer) -> {
+            final LatencyHistogram histogram = timer.histogram;
+            snapshot.put(name + ".count", histogram.count());
+            snapshot.put(name + ".mean", histogram.meanMicros());
+            snapshot.put(name + ".p50", histogram.percentileMicros(50));
+            snapshot.put(name + ".p99", histogram.percentileMicros(99));
+            snapshot.put(name + ".max", histogram.maxMicros());
+        });
+        gauges.forEach((name, gauge) -> snapshot.put(name, gauge.getAsDouble()));
+        return snapshot;
+    }
+
+    private static final class LongAdderCounter implements Counter {
+
+        private final LongAdder sum = new LongAdder();
+
+        @Override
+        public void increment(final long delta) {
+            sum.add(delta);
+        }
+    }
+
+    private static final class HistogramTimer implements Timer {
+
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        @Override
+        public void record(final long duration, final TimeUnit unit) {
+            histogram.record(duration, unit);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.dj.models.mnist;
+
+import static java.lang.String.format;
+
+/**
+ * Fully connected layer with its weights in one row-major {@code float} array: row {@code j} holds the
+ * {@link #inputSize()} incoming weights of output neuron {@code j}.
+ */
+public class DenseLayer {
+
+    private final int inputSize;
+
+    private final int outputSize;
+
+    private final float[] weights;
+
+    private final float[] biases;
+
+    private final Activation activation;
+
+    private final float activationParameter;
+
+    public DenseLayer(final int inputSize,
+                      final int outputSize,
+                      final float[] weights,
+                      final float[] biases,
+                      final Activation activation,
+                      final float activationParameter) {
+        if (weights.length != inputSize * outputSize || biases.length != outputSize) {
+            throw new IllegalArgumentException(
+                    format("Layer %dx%d needs %d weights and %d biases, got %d and %d",
+                            inputSize, outputSize, inputSize * outputSize, outputSize, weights.length, biases.length));
+        }
+        this.inputSize = inputSize;
+        this.outputSize = outputSize;
+        this.weights = weights;
+        this.biases = biases;
+        this.activation = activation;
+        this.activationParameter = activationParameter;
+    }
+
+    public int inputSize() {
+        return inputSize;
+    }
+
+    public int outputSize() {
+        return outputSize;
+    }
+
+    public float[] weights() {
+        return weights;
+    }
+
+    public float[] biases() {
+        return biases;
+    }
+
+    public Activation activation() {
+        return activation;
+    }
+
+    public float activationParameter() {
+        return activationParameter;
+    }
+
+    public float weight(final int output, final int input) {
+        return weights[output * inputSize + input];
+    }
+
+    public DenseLayer copy() {
+        return new DenseLayer(inputSize, outputSize, weights.clone(), biases.clone(), activation, activationParameter);
+    }
+
+    /**
+     * {@code output = activation(weights * input + biases)} for one input vector.
+     */
+    public void forward(final float[] input, final int inputOffset, final float[] output, final int outputOffset) {
+        for (int j = 0; j < outputSize; j++) {
+            output[outputOffset + j] = activation.apply(
+                    biases[j] + dot(weights, j * inputSize, input, inputOffset, inputSize),
+                    activationParameter);
+        }
+    }
+
+    /**
+     * Forward pass for {@code count} input vectors stored back to back. Every weight row is reused for
+     * the whole block while it is in cache.
+     */
+    public void forward(final float[] input,
+                        final int inputOffset,
+                        final int count,
+                        final float[] output,
+                        final int outputOffset) {
+        for (int j = 0; j < outputSize; j++) {
+            final int row = j * inputSize;
+            final float bias = biases[j];
+            for (int b = 0; b < count; b++) {
+                output[outputOffset + b * outputSize + j] = activation.apply(
+                        bias + dot(weights, row, input, inputOffset + b * inputSize, inputSize),
+                        activationParameter);
+            }
+        }
+    }
+
+    /**
+     * Forward pass for images {@code [start, start + count)} of a sparse matrix; only their stored pixels
+     * are multiplied.
+     */
+    public void forward(final SparseImageMatrix input,
+                        final int start,
+                        final int count,
+                        final float[] output,
+                        final int outputOffset) {
+        if (input.imageSize() != inputSize) {
+            throw new IllegalArgumentException(
+                    format("Images have %d pixels, layer expects %d inputs", input.imageSize(), inputSize));
+        }
+        final char[] indexes = input.indexes();
+        final float[] values = input.values();
+        for (int j = 0; j < outputSize; j++) {
+            final int row = j * inputSize;
+            final float bias = biases[j];
+            for (int b = 0; b < count; b++) {
+                output[outputOffset + b * outputSize + j] = activation.apply(
+                        bias + sparseDot(weights, row, indexes, values, input.start(start + b), input.end(start + b)),
+                        activationParameter);
+            }
+        }
+    }
+
+    /**
+     * Dot product of the dense vector at {@code a[aOffset]} with the sparse entries {@code [from, to)}.
+     */
+    static float sparseDot(final float[] a,
+                           final int aOffset,
+                           final char[] indexes,
+                           final float[] values,
+                           final int from,
+                           final int to) {
+        float s0 = 0f;
+        float s1 = 0f;
+        float s2 = 0f;
+        float s3 = 0f;
+        int k = from;
+        for (; k + 3 < to; k += 4) {
+            s0 += a[aOffset + indexes[k]] * values[k];
+            s1 += a[aOffset + indexes[k + 1]] * values[k + 1];
+            s2 += a[aOffset + indexes[k + 2]] * values[k + 2];
+            s3 += a[aOffset + indexes[k + 3]] * values[k + 3];
+        }
+        for (; k < to; k++) {
+            s0 += a[aOffset + indexes[k]] * values[k];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    static float dot(final float[] a, final int aOffset, final float[] b, final int bOffset, final int length) {
+        float s0 = 0f;
+        float s1 = 0f;
+        float s2 = 0f;
+        float s3 = 0f;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+}
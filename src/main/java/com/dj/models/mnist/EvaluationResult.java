@@ -0,0 +1,98 @@
+package com.dj.models.mnist;
+
+/**
+ * Outcome of scoring a model on a labelled data set: overall and per-class accuracy plus the confusion
+ * matrix, rows being the expected class and columns the predicted one.
+ */
+public class EvaluationResult {
+
+    private final int numberOfClasses;
+
+    private final int[] confusion;
+
+    private int total;
+
+    private int correct;
+
+    public EvaluationResult(final int numberOfClasses) {
+        this.numberOfClasses = numberOfClasses;
+        this.confusion = new int[numberOfClasses * numberOfClasses];
+    }
+
+    public void add(final int expected, final int predicted) {
+        confusion[expected * numberOfClasses + predicted]++;
+        total++;
+        if (expected == predicted) {
+            correct++;
+        }
+    }
+
+    public EvaluationResult merge(final EvaluationResult other) {
+        for (int i = 0; i < confusion.length; i++) {
+            confusion[i] += other.confusion[i];
+        }
+        total += other.total;
+        correct += other.correct;
+        return this;
+    }
+
+    public int numberOfClasses() {
+        return numberOfClasses;
+    }
+
+    public int total() {
+        return total;
+    }
+
+    public int correct() {
+        return correct;
+    }
+
+    public double accuracy() {
+        return total == 0 ? 0. : (double) correct / total;
+    }
+
+    /**
+     * Share of misclassified images, what {@link MnistTrainer#calculateError} reports.
+     */
+    public double errorRate() {
+        return total == 0 ? 0. : 1. - accuracy();
+    }
+
+    public int confusion(final int expected, final int predicted) {
+        return confusion[expected * numberOfClasses + predicted];
+    }
+
+    public int[][] confusionMatrix() {
+        final int[][] matrix = new int[numberOfClasses][numberOfClasses];
+        for (int expected = 0; expected < numberOfClasses; expected++) {
+            System.arraycopy(confusion, expected * numberOfClasses, matrix[expected], 0, numberOfClasses);
+        }
+        return matrix;
+    }
+
+    /**
+     * Recall of one class, {@link Double#NaN} when the data set has no image of that class.
+     */
+    public double classAccuracy(final int expected) {
+        int count = 0;
+        for (int predicted = 0; predicted < numberOfClasses; predicted++) {
+            count += confusion(expected, predicted);
+        }
+        return count == 0 ? Double.NaN : (double) confusion(expected, expected) / count;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder(String.format(
+                "accuracy %.4f (%d of %d)%n", accuracy(), correct, total));
+        for (int expected = 0; expected < numberOfClasses; expected++) {
+            result.append(String.format("%2d |", expected));
+            for (int predicted = 0; predicted < numberOfClasses; predicted++) {
+                result.append(String.format(" %5d", confusion(expected, predicted)));
+            }
+            result.append(String.format(" | %.4f%n", classAccuracy(expected)));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,113 @@
+package com.dj.models.mnist;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends a snapshot of a {@link MetricsRegistry} to a file at a fixed rate, as CSV (a header line
+ * whenever the set of metrics changes, then one row per snapshot) or as JSON lines. Every row starts
+ * with the wall clock time in milliseconds. A last snapshot is written on {@link #close()}.
+ */
+public class FileMetricsReporter implements Closeable {
+
+    public enum Format {
+        CSV,
+        JSON
+    }
+
+    private final MetricsRegistry registry;
+
+    private final File file;
+
+    private final Format format;
+
+    private final ScheduledExecutorService scheduler;
+
+    private List<String> columns = new ArrayList<>();
+
+    private FileMetricsReporter(final MetricsRegistry registry, final File file, final Format format) {
+        this.registry = registry;
+        this.file = file;
+        this.format = format;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "mnist-metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static FileMetricsReporter start(final MetricsRegistry registry,
+                                            final File file,
+                                            final Format format,
+                                            final long period,
+                                            final TimeUnit unit) {
+        final FileMetricsReporter reporter = new FileMetricsReporter(registry, file, format);
+        reporter.scheduler.scheduleAtFixedRate(reporter::reportQuietly, period, period, unit);
+        return reporter;
+    }
+
+    /**
+     * Appends one snapshot now.
+     */
+    public synchronized void report() throws IOException {
+        final Map<String, Number> snapshot = registry.snapshot();
+        final StringBuilder out = new StringBuilder();
+        final long now = System.currentTimeMillis();
+        if (format == Format.JSON) {
+            out.append("{\"timestamp\":").append(now);
+            snapshot.forEach((name, value) -> out.append(",\"").append(name).append("\":").append(format(value, "null")));
+            out.append("}\n");
+        } else {
+            final List<String> names = new ArrayList<>(snapshot.keySet());
+            if (!names.equals(columns)) {
+                columns = names;
+                out.append("timestamp");
+                names.forEach(name -> out.append(',').append(name));
+                out.append('\n');
+            }
+            out.append(now);
+            snapshot.values().forEach(value -> out.append(',').append(format(value, "")));
+            out.append('\n');
+        }
+        Files.write(file.toPath(), out.toString().getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reportQuietly();
+    }
+
+    private void reportQuietly() {
+        try {
+            report();
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String format(final Number value, final String missing) {
+        if (value instanceof Double || value instanceof Float) {
+            final double d = value.doubleValue();
+            return Double.isFinite(d) ? String.format(Locale.ROOT, "%.3f", d) : missing;
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.activation.ActivationFunction;
+import com.dj.core.model.graph.ConnectedNeuron;
+import com.dj.core.model.graph.Context;
+import com.dj.core.model.graph.InputNeuron;
+import com.dj.core.model.graph.Neuron;
+import com.dj.core.serializer.ModelWrapper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Copy of the weights of a neuron graph at their full {@code double} precision, together with the
+ * activation functions of its neurons. Unlike a {@link CompiledModel} it can be taken of any layered graph,
+ * whatever its activation functions, and restoring it reproduces the graph exactly.
+ */
+final class GraphSnapshot {
+
+    private static final class Layer {
+
+        private final int inputSize;
+
+        private final int outputSize;
+
+        /**
+         * Row-major like {@link DenseLayer}: row {@code j} holds the incoming weights of neuron {@code j}.
+         */
+        private final double[] weights;
+
+        private final double[] biases;
+
+        private final ActivationFunction[] activationFunctions;
+
+        private Layer(final int inputSize, final int outputSize) {
+            this.inputSize = inputSize;
+            this.outputSize = outputSize;
+            this.weights = new double[inputSize * outputSize];
+            this.biases = new double[outputSize];
+            this.activationFunctions = new ActivationFunction[outputSize];
+        }
+    }
+
+    private final int inputSize;
+
+    private final List<Layer> layers;
+
+    private GraphSnapshot(final int inputSize, final List<Layer> layers) {
+        this.inputSize = inputSize;
+        this.layers = layers;
+    }
+
+    static GraphSnapshot of(final ModelWrapper modelWrapper) {
+        return of(modelWrapper.getInputLayer(), modelWrapper.getOutputLayer());
+    }
+
+    static GraphSnapshot of(final List<Neuron> inputLayer, final List<Neuron> outputLayer) {
+        final List<List<Neuron>> graph = ModelCompiler.layers(inputLayer, outputLayer);
+        final List<Layer> layers = new ArrayList<>(graph.size() - 1);
+        for (int l = 1; l < graph.size(); l++) {
+            final List<Neuron> previous = graph.get(l - 1);
+            final List<Neuron> neurons = graph.get(l);
+            final Layer layer = new Layer(previous.size(), neurons.size());
+            for (int j = 0; j < layer.outputSize; j++) {
+                final ModelCompiler.NeuronState neuron = ModelCompiler.state(neurons.get(j));
+                for (int i = 0; i < layer.inputSize; i++) {
+                    layer.weights[j * layer.inputSize + i] = neuron.weight(previous.get(i));
+                }
+                layer.biases[j] = neuron.bias();
+                layer.activationFunctions[j] = neuron.activationFunction();
+            }
+            layers.add(layer);
+        }
+        return new GraphSnapshot(inputLayer.size(), layers);
+    }
+
+    /**
+     * Copies the weights back into a graph of the same topology, e.g. the one they were taken from.
+     */
+    void restore(final List<Neuron> inputLayer, final List<Neuron> outputLayer) {
+        final List<List<Neuron>> graph = ModelCompiler.layers(inputLayer, outputLayer);
+        if (graph.size() != layers.size() + 1) {
+            throw new IllegalArgumentException(
+                    format("The snapshot has %d layers, the graph %d", layers.size(), graph.size() - 1));
+        }
+        for (int l = 0; l < layers.size(); l++) {
+            final Layer layer = layers.get(l);
+            final List<Neuron> previous = graph.get(l);
+            final List<Neuron> neurons = graph.get(l + 1);
+            if (previous.size() != layer.inputSize || neurons.size() != layer.outputSize) {
+                throw new IllegalArgumentException(format("Layer %d of the snapshot is %dx%d, the graph has %dx%d",
+                        l, layer.inputSize, layer.outputSize, previous.size(), neurons.size()));
+            }
+            for (int j = 0; j < layer.outputSize; j++) {
+                final ModelCompiler.NeuronState neuron = ModelCompiler.state(neurons.get(j));
+                for (int i = 0; i < layer.inputSize; i++) {
+                    neuron.setWeight(previous.get(i), layer.weights[j * layer.inputSize + i]);
+                }
+                neuron.setBias(layer.biases[j]);
+            }
+        }
+    }
+
+    /**
+     * Builds a new graph with these weights, sharing the activation functions of the original.
+     */
+    ModelWrapper toModelWrapper(final Context context) {
+        final List<Neuron> inputLayer = new ArrayList<>(inputSize);
+        for (int i = 0; i < inputSize; i++) {
+            inputLayer.add(new InputNeuron());
+        }
+        List<Neuron> previous = inputLayer;
+        for (final Layer layer : layers) {
+            final List<Neuron> neurons = new ArrayList<>(layer.outputSize);
+            for (int j = 0; j < layer.outputSize; j++) {
+                final Neuron neuron = new ConnectedNeuron.Builder()
+                        .activationFunction(layer.activationFunctions[j])
+                        .context(context)
+                        .build();
+                ModelCompiler.state(neuron).setBias(layer.biases[j]);
+                neurons.add(neuron);
+            }
+            for (int i = 0; i < layer.inputSize; i++) {
+                for (int j = 0; j < layer.outputSize; j++) {
+                    previous.get(i).connect(neurons.get(j), layer.weights[j * layer.inputSize + i]);
+                }
+            }
+            previous = neurons;
+        }
+        return new ModelWrapper.Builder().inputLayer(inputLayer).outputLayer(previous).context(context).build();
+    }
+
+    /**
+     * The weights rounded to {@code float}.
+     *
+     * @throws UnsupportedOperationException when a layer uses an activation function that has no
+     *                                       {@link Activation} counterpart, or several different ones
+     */
+    CompiledModel compile() {
+        final List<DenseLayer> compiled = new ArrayList<>(layers.size());
+        for (final Layer layer : layers) {
+            final float[] weights = new float[layer.weights.length];
+            for (int w = 0; w < weights.length; w++) {
+                weights[w] = (float) layer.weights[w];
+            }
+            final float[] biases = new float[layer.outputSize];
+            Activation activation = null;
+            float activationParameter = 0f;
+            for (int j = 0; j < layer.outputSize; j++) {
+                biases[j] = (float) layer.biases[j];
+                final Activation neuronActivation = ModelCompiler.toActivation(layer.activationFunctions[j]);
+                final float neuronParameter = ModelCompiler.activationParameter(layer.activationFunctions[j]);
+                if (activation != null
+                        && (activation != neuronActivation || activationParameter != neuronParameter)) {
+                    throw new UnsupportedOperationException(
+                            "Neurons of one layer use different activation functions");
+                }
+                activation = neuronActivation;
+                activationParameter = neuronParameter;
+            }
+            compiled.add(new DenseLayer(layer.inputSize, layer.outputSize, weights, biases, activation,
+                    activationParameter));
+        }
+        return new CompiledModel(compiled);
+    }
+}
@@ -0,0 +1,779 @@
+package com.dj.models.mnist;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+
+/**
+ * Trains many randomly drawn configurations of a {@link SearchSpace} concurrently and keeps the best one,
+ * scheduled with asynchronous successive halving (ASHA, Li et al.) so that poor configurations stop early.
+ * <p>
+ * Every trial starts with {@code minEpochs} epochs and is then evaluated on the validation set. Trials
+ * advance in rungs of {@code reductionFactor} times more epochs, up to {@code maxEpochs}; whenever a worker
+ * is free it continues a trial in the top {@code 1 / reductionFactor} of its rung, highest rung first, and
+ * only starts a new trial when there is none. Trials that are never promoted cost {@code minEpochs}
+ * epochs instead of {@code maxEpochs}. A trial is continued where it stopped, not retrained.
+ * <p>
+ * All trials read the same training and validation data; mostly-zero images are shared in sparse form.
+ * Every evaluation is appended as a line to the results file, a CSV with the columns
+ * {@value #RESULTS_HEADER}.
+ */
+public class HyperparameterSweep {
+
+    public static final int DEFAULT_REDUCTION_FACTOR = 3;
+
+    static final String RESULTS_HEADER =
+            "trial,rung,epochs,hidden,batch_size,learning_rate,loss,error_rate,cpu_ms";
+
+    private final SearchSpace space;
+
+    private final int trials;
+
+    private final int minEpochs;
+
+    private final int maxEpochs;
+
+    private final int reductionFactor;
+
+    private final int parallelism;
+
+    private final long seed;
+
+    private final BatchTrainer.LossFunction loss;
+
+    private final File resultsFile;
+
+    private HyperparameterSweep(final Builder builder) {
+        this.space = builder.space;
+        this.trials = builder.trials;
+        this.minEpochs = builder.minEpochs;
+        this.maxEpochs = builder.maxEpochs;
+        this.reductionFactor = builder.reductionFactor;
+        this.parallelism = builder.parallelism;
+        this.seed = builder.seed;
+        this.loss = builder.loss;
+        this.resultsFile = builder.resultsFile;
+    }
+
+    public static class Builder {
+
+        private SearchSpace space;
+
+        private int trials = 27;
+
+        private int minEpochs = 1;
+
+        private int maxEpochs = 27;
+
+        private int reductionFactor = DEFAULT_REDUCTION_FACTOR;
+
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+
+        private long seed;
+
+        private BatchTrainer.LossFunction loss = BatchTrainer.LossFunction.QUADRATIC;
+
+        private File resultsFile;
+
+        public Builder space(final SearchSpace space) {
+            this.space = space;
+            return this;
+        }
+
+        /**
+         * Number of configurations drawn from the search space.
+         */
+        public Builder trials(final int trials) {
+            this.trials = trials;
+            return this;
+        }
+
+        /**
+         * Epochs of the first rung and of the last one; rungs in between grow by the reduction factor.
+         */
+        public Builder epochs(final int minEpochs, final int maxEpochs) {
+            this.minEpochs = minEpochs;
+            this.maxEpochs = maxEpochs;
+            return this;
+        }
+
+        /**
+         * One in {@code reductionFactor} trials of a rung is continued to the next.
+         */
+        public Builder reductionFactor(final int reductionFactor) {
+            this.reductionFactor = reductionFactor;
+            return this;
+        }
+
+        /**
+         * Trials trained at the same time, one thread each.
+         */
+        public Builder parallelism(final int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * Seed of the configurations drawn; trial {@code i} also initializes and shuffles with
+         * {@code seed + i}.
+         */
+        public Builder seed(final long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder loss(final BatchTrainer.LossFunction loss) {
+            this.loss = loss;
+            return this;
+        }
+
+        /**
+         * CSV file the evaluations are written to as they happen, none by default.
+         */
+        public Builder resultsFile(final File resultsFile) {
+            this.resultsFile = resultsFile;
+            return this;
+        }
+
+        public HyperparameterSweep build() {
+            if (space == null || loss == null) {
+                throw new IllegalArgumentException("A search space and a loss are required");
+            }
+            if (trials < 1 || minEpochs < 1 || maxEpochs < minEpochs || reductionFactor < 2 || parallelism < 1) {
+                throw new IllegalArgumentException(
+                        "Trials, epochs and parallelism must be positive and the reduction factor at least 2");
+            }
+            return new HyperparameterSweep(this);
+        }
+    }
+
+    /**
+     * The configurations a sweep draws from: the layers of a base {@link ModelSpec} with every hidden layer
+     * resized to one of the hidden sizes, a learning rate drawn log-uniformly and one of the batch sizes.
+     */
+    public static class SearchSpace {
+
+        private final ModelSpec base;
+
+        private final double minLearningRate;
+
+        private final double maxLearningRate;
+
+        private final int[] hiddenSizes;
+
+        private final int[] batchSizes;
+
+        private SearchSpace(final Builder builder) {
+            this.base = builder.base;
+            this.minLearningRate = builder.minLearningRate;
+            this.maxLearningRate = builder.maxLearningRate;
+            this.hiddenSizes = builder.hiddenSizes;
+            this.batchSizes = builder.batchSizes;
+        }
+
+        public static class Builder {
+
+            private ModelSpec base = ModelSpec.preset(ModelSpec.BASELINE);
+
+            private double minLearningRate = 1e-4;
+
+            private double maxLearningRate = 1e-2;
+
+            private int[] hiddenSizes;
+
+            private int[] batchSizes = {BatchTrainer.DEFAULT_BATCH_SIZE};
+
+            /**
+             * Activations, initializations and output layer of every trial, the baseline preset by default.
+             */
+            public Builder base(final ModelSpec base) {
+                this.base = base;
+                return this;
+            }
+
+            public Builder learningRate(final double min, final double max) {
+                this.minLearningRate = min;
+                this.maxLearningRate = max;
+                return this;
+            }
+
+            /**
+             * Sizes of the hidden layers, those of the base spec by default.
+             */
+            public Builder hiddenSizes(final int... hiddenSizes) {
+                this.hiddenSizes = hiddenSizes.clone();
+                return this;
+            }
+
+            public Builder batchSizes(final int... batchSizes) {
+                this.batchSizes = batchSizes.clone();
+                return this;
+            }
+
+            public SearchSpace build() {
+                if (base == null || !(minLearningRate > 0) || maxLearningRate < minLearningRate) {
+                    throw new IllegalArgumentException("A base spec and a positive learning rate range are required");
+                }
+                if (hiddenSizes != null && (hiddenSizes.length == 0 || Arrays.stream(hiddenSizes).min().getAsInt() < 1)
+                        || batchSizes.length == 0 || Arrays.stream(batchSizes).min().getAsInt() < 1) {
+                    throw new IllegalArgumentException("Hidden and batch sizes must be positive");
+                }
+                return new SearchSpace(this);
+            }
+        }
+
+        /**
+         * A configuration drawn with {@code random}, the model initialized with {@code seed}.
+         */
+        Configuration sample(final Random random, final String name, final long seed) {
+            final double learningRate = Math.exp(Math.log(minLearningRate)
+                    + random.nextDouble() * (Math.log(maxLearningRate) - Math.log(minLearningRate)));
+            final int hidden = hiddenSizes == null ? -1 : hiddenSizes[random.nextInt(hiddenSizes.length)];
+            final int batchSize = batchSizes[random.nextInt(batchSizes.length)];
+            final ModelSpec.Builder spec = new ModelSpec.Builder()
+                    .name(name)
+                    .inputSize(base.getInputSize())
+                    .loss(base.getLoss())
+                    .learningRate(learningRate)
+                    .seed(seed);
+            final List<ModelSpec.LayerSpec> layers = base.getLayers();
+            for (int l = 0; l < layers.size(); l++) {
+                final ModelSpec.LayerSpec layer = layers.get(l);
+                spec.layer(hidden > 0 && l < layers.size() - 1 ? hidden : layer.getSize(),
+                        layer.getActivation(), layer.getActivationParameter(), layer.getInitialization());
+            }
+            return new Configuration(spec.build(), batchSize);
+        }
+    }
+
+    /**
+     * A model spec, which includes the learning rate, and the mini-batch size it is trained with.
+     */
+    public static class Configuration {
+
+        private final ModelSpec spec;
+
+        private final int batchSize;
+
+        Configuration(final ModelSpec spec, final int batchSize) {
+            this.spec = spec;
+            this.batchSize = batchSize;
+        }
+
+        public ModelSpec getSpec() {
+            return spec;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public double getLearningRate() {
+            return spec.getLearningRate();
+        }
+
+        /**
+         * Sizes of the hidden layers, e.g. {@code "128"} or {@code "256x64"}.
+         */
+        public String getHiddenSizes() {
+            final List<ModelSpec.LayerSpec> layers = spec.getLayers();
+            final StringBuilder sizes = new StringBuilder();
+            for (int l = 0; l < layers.size() - 1; l++) {
+                sizes.append(l == 0 ? "" : "x").append(layers.get(l).getSize());
+            }
+            return sizes.toString();
+        }
+
+        @Override
+        public String toString() {
+            return format(Locale.ROOT, "hidden %s, batch size %d, learning rate %.6g",
+                    getHiddenSizes(), batchSize, getLearningRate());
+        }
+    }
+
+    /**
+     * One evaluation of a trial at the end of a rung.
+     */
+    public static class Evaluation {
+
+        private final int trial;
+
+        private final int rung;
+
+        private final int epochs;
+
+        private final Configuration configuration;
+
+        private final double loss;
+
+        private final double errorRate;
+
+        private final long cpuMillis;
+
+        private Evaluation(final int trial,
+                           final int rung,
+                           final int epochs,
+                           final Configuration configuration,
+                           final double loss,
+                           final double errorRate,
+                           final long cpuMillis) {
+            this.trial = trial;
+            this.rung = rung;
+            this.epochs = epochs;
+            this.configuration = configuration;
+            this.loss = loss;
+            this.errorRate = errorRate;
+            this.cpuMillis = cpuMillis;
+        }
+
+        public int getTrial() {
+            return trial;
+        }
+
+        public int getRung() {
+            return rung;
+        }
+
+        /**
+         * Epochs the trial was trained for in total.
+         */
+        public int getEpochs() {
+            return epochs;
+        }
+
+        public Configuration getConfiguration() {
+            return configuration;
+        }
+
+        /**
+         * Mean training loss per image of the last epoch.
+         */
+        public double getLoss() {
+            return loss;
+        }
+
+        public double getErrorRate() {
+            return errorRate;
+        }
+
+        /**
+         * CPU time spent on the trial in this rung, training and evaluation.
+         */
+        public long getCpuMillis() {
+            return cpuMillis;
+        }
+
+        String toCsv() {
+            return format(Locale.ROOT, "%d,%d,%d,%s,%d,%.6g,%.6g,%.6f,%d", trial, rung, epochs,
+                    configuration.getHiddenSizes(), configuration.getBatchSize(), configuration.getLearningRate(),
+                    loss, errorRate, cpuMillis);
+        }
+
+        @Override
+        public String toString() {
+            return format(Locale.ROOT, "trial %d, %d epochs, %s: error rate %.4f",
+                    trial, epochs, configuration, errorRate);
+        }
+    }
+
+    public static class Result {
+
+        private final List<Evaluation> evaluations;
+
+        private final Evaluation best;
+
+        private final CompiledModel bestModel;
+
+        private final long epochsTrained;
+
+        private Result(final List<Evaluation> evaluations,
+                       final Evaluation best,
+                       final CompiledModel bestModel,
+                       final long epochsTrained) {
+            this.evaluations = Collections.unmodifiableList(evaluations);
+            this.best = best;
+            this.bestModel = bestModel;
+            this.epochsTrained = epochsTrained;
+        }
+
+        /**
+         * All evaluations in the order they finished.
+         */
+        public List<Evaluation> getEvaluations() {
+            return evaluations;
+        }
+
+        /**
+         * Lowest validation error among the trials trained the longest.
+         */
+        public Evaluation getBest() {
+            return best;
+        }
+
+        public CompiledModel getBestModel() {
+            return bestModel;
+        }
+
+        /**
+         * Epochs trained over all trials, against {@code trials * maxEpochs} without early stopping.
+         */
+        public long getEpochsTrained() {
+            return epochsTrained;
+        }
+
+        public long getCpuMillis() {
+            return evaluations.stream().mapToLong(Evaluation::getCpuMillis).sum();
+        }
+
+        @Override
+        public String toString() {
+            return format("%d evaluations, %d epochs, %d ms CPU, best %s",
+                    evaluations.size(), epochsTrained, getCpuMillis(), best);
+        }
+    }
+
+    /**
+     * Runs the sweep on the calling thread and {@code parallelism - 1} others.
+     */
+    public Result run(final ImageMatrix trainImages,
+                      final LabelVector trainLabels,
+                      final ImageMatrix validationImages,
+                      final LabelVector validationLabels) {
+        if (trainImages.size() != trainLabels.size() || validationImages.size() != validationLabels.size()) {
+            throw new IllegalArgumentException("Images and labels differ in size");
+        }
+        final Data data = new Data(trainImages, trainLabels, validationImages, validationLabels);
+        final Scheduler scheduler = new Scheduler();
+        writeResults(RESULTS_HEADER, false);
+        final AtomicInteger threads = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            final Thread thread = new Thread(runnable, "mnist-sweep-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final List<Callable<Void>> workers = new ArrayList<>(parallelism);
+            for (int w = 0; w < parallelism; w++) {
+                workers.add(() -> {
+                    Job job;
+                    while ((job = scheduler.next()) != null) {
+                        Evaluation evaluation = null;
+                        try {
+                            evaluation = train(job, data);
+                        } finally {
+                            scheduler.finish(job, evaluation);
+                        }
+                        writeResults(evaluation.toCsv(), true);
+                    }
+                    return null;
+                });
+            }
+            for (final Future<Void> worker : executor.invokeAll(workers)) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while sweeping", e);
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Sweep trial failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return scheduler.result();
+    }
+
+    private Evaluation train(final Job job, final Data data) {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final boolean cpuTime = threadBean.isCurrentThreadCpuTimeSupported();
+        final long start = cpuTime ? threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+        final Trial trial = job.trial;
+        final int size = data.trainLabels.size();
+        final int batchSize = Math.max(1, Math.min(trial.configuration.batchSize, size));
+        final BatchTrainer.Network network = data.trainSparse != null
+                ? BatchTrainer.network(trial.model, batchSize, data.trainSparse, data.trainLabels)
+                : BatchTrainer.network(trial.model, batchSize, data.trainImages, data.trainLabels);
+        final float rate = (float) trial.configuration.getLearningRate();
+        final int target = epochs(job.rung);
+        double sum = 0;
+        for (int epoch = trial.epochs; epoch < target; epoch++) {
+            final int[] order = DataParallelTrainer.order(size, trial.seed, epoch);
+            sum = 0;
+            for (int from = 0; from < size; from += batchSize) {
+                sum += network.step(order, from, Math.min(batchSize, size - from), loss, rate);
+            }
+        }
+        network.export();
+        trial.epochs = target;
+        final double errorRate = data.errorRate(trial.model);
+        final long elapsed = (cpuTime ? threadBean.getCurrentThreadCpuTime() : System.nanoTime()) - start;
+        return new Evaluation(trial.id, job.rung, target, trial.configuration, sum / Math.max(1, size), errorRate,
+                elapsed / 1_000_000);
+    }
+
+    /**
+     * Epochs a trial has been trained for once it completed {@code rung}.
+     */
+    int epochs(final int rung) {
+        long epochs = minEpochs;
+        for (int r = 0; r < rung && epochs < maxEpochs; r++) {
+            epochs *= reductionFactor;
+        }
+        return (int) Math.min(epochs, maxEpochs);
+    }
+
+    /**
+     * Index of the rung trained for {@code maxEpochs}.
+     */
+    int topRung() {
+        int rung = 0;
+        while (epochs(rung) < maxEpochs) {
+            rung++;
+        }
+        return rung;
+    }
+
+    private synchronized void writeResults(final String line, final boolean append) {
+        if (resultsFile == null) {
+            return;
+        }
+        try {
+            Files.write(resultsFile.toPath(), Collections.singletonList(line), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to write sweep results to " + resultsFile, e);
+        }
+    }
+
+    /**
+     * The data every trial reads, never written after construction.
+     */
+    private static class Data {
+
+        private final ImageMatrix trainImages;
+
+        private final SparseImageMatrix trainSparse;
+
+        private final LabelVector trainLabels;
+
+        private final ImageMatrix validationImages;
+
+        private final SparseImageMatrix validationSparse;
+
+        private final LabelVector validationLabels;
+
+        private final ParallelEvaluator evaluator = new ParallelEvaluator();
+
+        private Data(final ImageMatrix trainImages,
+                     final LabelVector trainLabels,
+                     final ImageMatrix validationImages,
+                     final LabelVector validationLabels) {
+            this.trainSparse = SparseImageMatrix.ifSparse(trainImages);
+            this.trainImages = trainSparse == null ? trainImages : null;
+            this.trainLabels = trainLabels;
+            this.validationSparse = SparseImageMatrix.ifSparse(validationImages);
+            this.validationImages = validationSparse == null ? validationImages : null;
+            this.validationLabels = validationLabels;
+        }
+
+        private double errorRate(final CompiledModel model) {
+            return evaluator.evaluate(model, validationImages, validationSparse, validationLabels).errorRate();
+        }
+    }
+
+    /**
+     * A configuration being trained; paused between rungs with its weights kept.
+     */
+    private static class Trial {
+
+        private final int id;
+
+        private final Configuration configuration;
+
+        private final long seed;
+
+        private final CompiledModel model;
+
+        private int epochs;
+
+        /**
+         * Highest rung the trial was scheduled for.
+         */
+        private int rung;
+
+        private Trial(final int id, final Configuration configuration, final long seed) {
+            this.id = id;
+            this.configuration = configuration;
+            this.seed = seed;
+            this.model = configuration.getSpec().initialize();
+        }
+    }
+
+    private static class Job {
+
+        private final Trial trial;
+
+        private final int rung;
+
+        private Job(final Trial trial, final int rung) {
+            this.trial = trial;
+            this.rung = rung;
+        }
+    }
+
+    /**
+     * The ASHA bookkeeping, shared by the worker threads: the evaluations of every rung and the trials
+     * running.
+     */
+    private class Scheduler {
+
+        private final Random random = new Random(seed);
+
+        private final List<List<Evaluation>> rungs = new ArrayList<>();
+
+        private final List<Trial> started = new ArrayList<>();
+
+        private final List<Evaluation> evaluations = new ArrayList<>();
+
+        private long epochsTrained;
+
+        private int running;
+
+        private boolean failed;
+
+        private Scheduler() {
+            for (int rung = 0; rung <= topRung(); rung++) {
+                rungs.add(new ArrayList<>());
+            }
+        }
+
+        /**
+         * The next job, waiting while only running trials could still produce one; null when the sweep is
+         * over.
+         */
+        private synchronized Job next() throws InterruptedException {
+            while (!failed) {
+                for (int rung = rungs.size() - 2; rung >= 0; rung--) {
+                    final Trial promoted = promotable(rung);
+                    if (promoted != null) {
+                        promoted.rung = rung + 1;
+                        running++;
+                        return new Job(promoted, rung + 1);
+                    }
+                }
+                if (started.size() < trials) {
+                    final int id = started.size();
+                    final Trial trial = new Trial(id, space.sample(random, "trial-" + id, seed + id), seed + id);
+                    started.add(trial);
+                    running++;
+                    return new Job(trial, 0);
+                }
+                if (running == 0) {
+                    return null;
+                }
+                wait();
+            }
+            return null;
+        }
+
+        /**
+         * The best trial among the top {@code 1 / reductionFactor} of the rung that is not yet promoted.
+         */
+        private Trial promotable(final int rung) {
+            final List<Evaluation> ranked = new ArrayList<>(rungs.get(rung));
+            ranked.sort(Comparator.comparingDouble(Evaluation::getErrorRate).thenComparingInt(Evaluation::getTrial));
+            for (final Evaluation evaluation : ranked.subList(0, ranked.size() / reductionFactor)) {
+                final Trial trial = started.get(evaluation.getTrial());
+                if (trial.rung == rung) {
+                    return trial;
+                }
+            }
+            return null;
+        }
+
+        private synchronized void finish(final Job job, final Evaluation evaluation) {
+            running--;
+            if (evaluation == null) {
+                failed = true;
+            } else {
+                rungs.get(job.rung).add(evaluation);
+                evaluations.add(evaluation);
+                epochsTrained += evaluation.getEpochs()
+                        - (job.rung == 0 ? 0 : epochs(job.rung - 1));
+            }
+            notifyAll();
+        }
+
+        private synchronized Result result() {
+            Evaluation best = null;
+            for (int rung = rungs.size() - 1; rung >= 0 && best == null; rung--) {
+                best = rungs.get(rung).stream()
+                        .min(Comparator.comparingDouble(Evaluation::getErrorRate)
+                                .thenComparingInt(Evaluation::getTrial))
+                        .orElse(null);
+            }
+            return new Result(new ArrayList<>(evaluations), best,
+                    best == null ? null : started.get(best.getTrial()).model, epochsTrained);
+        }
+    }
+
+    /**
+     * Sweeps hidden sizes, batch sizes and learning rates of the baseline preset on MNIst, holding out the
+     * last 10000 training images for validation. Arguments: optionally the number of trials, the results
+     * file and the file the best model is written to.
+     */
+    public static void main(final String[] args) {
+        final int trials = args.length > 0 ? Integer.parseInt(args[0]) : 27;
+        final File resultsFile = new File(args.length > 1 ? args[1] : "/tmp/mnist_sweep.csv");
+        final File modelFile = new File(args.length > 2 ? args[2] : "/tmp/mnist_sweep_best.djm");
+        MnistDownloader.downloadMnist();
+        final ImageMatrix images = MnistTrainer.loadImageMatrix(MnistDownloader.MNIST_TRAIN_SET_IMAGES_FILE.toString());
+        final LabelVector labels = MnistTrainer.loadLabelVector(MnistDownloader.MNIST_TRAIN_SET_LABELS_FILE.toString());
+        final int split = Math.max(0, images.size() - 10_000);
+        final Result result = new Builder()
+                .space(new SearchSpace.Builder()
+                        .hiddenSizes(10, 32, 64, 128, 256)
+                        .batchSizes(16, 32, 64, 128)
+                        .learningRate(1e-4, 3e-2)
+                        .build())
+                .trials(trials)
+                .epochs(1, 27)
+                .resultsFile(resultsFile)
+                .build()
+                .run(slice(images, 0, split), slice(labels, 0, split),
+                        slice(images, split, images.size()), slice(labels, split, labels.size()));
+        ModelFile.write(result.getBestModel(), modelFile);
+        System.out.println(result);
+        System.out.printf("Results written to %s, best model to %s%n", resultsFile, modelFile);
+    }
+
+    private static ImageMatrix slice(final ImageMatrix images, final int from, final int to) {
+        return ImageMatrix.wrap(Arrays.copyOfRange(images.data(), images.offset(from), images.offset(to)),
+                to - from, images.imageSize());
+    }
+
+    private static LabelVector slice(final LabelVector labels, final int from, final int to) {
+        return LabelVector.wrap(Arrays.copyOfRange(labels.data(), from, to));
+    }
+}
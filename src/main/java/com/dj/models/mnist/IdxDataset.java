@@ -0,0 +1,180 @@
+package com.dj.models.mnist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static java.lang.String.format;
+
+/**
+ * Read-only view over an IDX file (the format MNIst is distributed in) that is memory-mapped
+ * instead of being copied on heap. Records are addressed by index and served either as byte
+ * views or copied into caller-supplied buffers, so reading an image does not allocate.
+ */
+public class IdxDataset {
+
+    private static final int HEADER_PREFIX_SIZE = 4;
+
+    private static final int DIMENSION_SIZE = 4;
+
+    private static final int UNSIGNED_BYTE_TYPE = 0x08;
+
+    private final ByteBuffer data;
+
+    private final int magicNumber;
+
+    private final int[] dimensions;
+
+    private final int size;
+
+    private final int recordSize;
+
+    private final int headerSize;
+
+    private IdxDataset(final ByteBuffer data) {
+        this.data = data;
+        this.magicNumber = data.getInt(0);
+        if (data.get(0) != 0 || data.get(1) != 0) {
+            throw new RuntimeException(format("Not an IDX file, magic number %d", magicNumber));
+        }
+        if (data.get(2) != UNSIGNED_BYTE_TYPE) {
+            throw new RuntimeException(format("Unsupported IDX data type 0x%02x", data.get(2)));
+        }
+        final int numberOfDimensions = data.get(3);
+        if (numberOfDimensions < 1) {
+            throw new RuntimeException("IDX file has no dimensions");
+        }
+        this.headerSize = HEADER_PREFIX_SIZE + DIMENSION_SIZE * numberOfDimensions;
+        if (data.capacity() < headerSize) {
+            throw new RuntimeException("IDX file is shorter than its header");
+        }
+        this.dimensions = new int[numberOfDimensions];
+        long recordSize = 1;
+        for (int i = 0; i < numberOfDimensions; i++) {
+            dimensions[i] = data.getInt(HEADER_PREFIX_SIZE + DIMENSION_SIZE * i);
+            if (i > 0) {
+                recordSize *= dimensions[i];
+            }
+        }
+        this.size = dimensions[0];
+        this.recordSize = (int) recordSize;
+        final long expectedLength = headerSize + (long) size * recordSize;
+        if (data.capacity() != expectedLength) {
+            throw new RuntimeException(
+                    format("IDX file is %d bytes long, header describes %d bytes", data.capacity(), expectedLength));
+        }
+    }
+
+    public static IdxDataset open(final String path) {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r");
+             FileChannel channel = file.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new RuntimeException(format("IDX file %s is too large to be mapped", path));
+            }
+            // The mapping stays valid after the channel is closed.
+            return new IdxDataset(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to map IDX file " + path, e);
+        }
+    }
+
+    public static IdxDataset open(final File file) {
+        return open(file.toString());
+    }
+
+    public static IdxDataset openImages(final String path) {
+        final IdxDataset dataset = open(path);
+        MnistReader.assertMagicNumber(MnistReader.IMAGE_FILE_MAGIC_NUMBER, dataset.magicNumber);
+        return dataset;
+    }
+
+    public static IdxDataset openLabels(final String path) {
+        final IdxDataset dataset = open(path);
+        MnistReader.assertMagicNumber(MnistReader.LABEL_FILE_MAGIC_NUMBER, dataset.magicNumber);
+        return dataset;
+    }
+
+    /**
+     * Wraps an IDX image that is already in memory, e.g. one produced by a converter or a test.
+     */
+    public static IdxDataset wrap(final ByteBuffer buffer) {
+        return new IdxDataset(buffer.slice().asReadOnlyBuffer());
+    }
+
+    public int getMagicNumber() {
+        return magicNumber;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int recordSize() {
+        return recordSize;
+    }
+
+    public int dimension(final int index) {
+        return dimensions[index];
+    }
+
+    public int numberOfDimensions() {
+        return dimensions.length;
+    }
+
+    public int getUnsigned(final int record, final int offset) {
+        return data.get(position(record) + offset) & 0xFF; // To unsigned
+    }
+
+    public int getLabel(final int index) {
+        return getUnsigned(index, 0);
+    }
+
+    /**
+     * Returns a read-only view of one record. Only the small view object is allocated, the bytes
+     * themselves stay in the mapping.
+     */
+    public ByteBuffer record(final int index) {
+        final ByteBuffer view = data.duplicate();
+        final int position = position(index);
+        view.position(position).limit(position + recordSize);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    public void copyRecord(final int index, final byte[] destination, final int destinationOffset) {
+        final int position = position(index);
+        for (int i = 0; i < recordSize; i++) {
+            destination[destinationOffset + i] = data.get(position + i);
+        }
+    }
+
+    public void copyRecord(final int index, final float[] destination, final int destinationOffset) {
+        copyRecord(index, destination, destinationOffset, 1f);
+    }
+
+    public void copyRecord(final int index,
+                           final float[] destination,
+                           final int destinationOffset,
+                           final float scale) {
+        final int position = position(index);
+        for (int i = 0; i < recordSize; i++) {
+            destination[destinationOffset + i] = (data.get(position + i) & 0xFF) * scale;
+        }
+    }
+
+    public void copyRecord(final int index, final double[] destination, final int destinationOffset) {
+        final int position = position(index);
+        for (int i = 0; i < recordSize; i++) {
+            destination[destinationOffset + i] = data.get(position + i) & 0xFF;
+        }
+    }
+
+    private int position(final int record) {
+        if (record < 0 || record >= size) {
+            throw new IndexOutOfBoundsException(format("Record %d is out of [0, %d)", record, size));
+        }
+        return headerSize + record * recordSize;
+    }
+}
@@ -0,0 +1,206 @@
+package com.dj.models.mnist;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+
+import static java.lang.String.format;
+
+/**
+ * Sequential reader for IDX data that decodes records straight from the stream, gzip compressed or
+ * not, into caller-supplied buffers. Unlike {@link IdxDataset} it never needs the decompressed file on
+ * disk or the whole data set in memory, which suits one-pass jobs such as scoring or export.
+ */
+public class IdxStreamReader implements Closeable {
+
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int UNSIGNED_BYTE_TYPE = 0x08;
+
+    private final DataInputStream input;
+
+    private final int magicNumber;
+
+    private final int[] dimensions;
+
+    private final int recordSize;
+
+    private int position;
+
+    private IdxStreamReader(final InputStream stream) throws IOException {
+        this.input = new DataInputStream(stream);
+        this.magicNumber = input.readInt();
+        if ((magicNumber >>> 16) != 0 || ((magicNumber >> 8) & 0xFF) != UNSIGNED_BYTE_TYPE) {
+            throw new RuntimeException(format("Not an IDX file of unsigned bytes, magic number %d", magicNumber));
+        }
+        final int numberOfDimensions = magicNumber & 0xFF;
+        if (numberOfDimensions < 1) {
+            throw new RuntimeException("IDX file has no dimensions");
+        }
+        this.dimensions = new int[numberOfDimensions];
+        int recordSize = 1;
+        for (int i = 0; i < numberOfDimensions; i++) {
+            dimensions[i] = input.readInt();
+            if (i > 0) {
+                recordSize *= dimensions[i];
+            }
+        }
+        this.recordSize = recordSize;
+    }
+
+    /**
+     * Opens an IDX file, decompressing it on the fly when it starts with the gzip magic bytes.
+     */
+    public static IdxStreamReader open(final File file) {
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            return new IdxStreamReader(decompressIfGzipped(stream));
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(stream);
+            throw new RuntimeException("Failure to open IDX file " + file, e);
+        }
+    }
+
+    /**
+     * Reads IDX data from {@code stream}, decompressing it on the fly when it starts with the gzip magic
+     * bytes. The stream is closed along with the reader.
+     */
+    public static IdxStreamReader open(final InputStream stream) {
+        try {
+            return new IdxStreamReader(decompressIfGzipped(stream));
+        } catch (IOException e) {
+            throw new RuntimeException("Failure to read IDX header", e);
+        }
+    }
+
+    public static IdxStreamReader openImages(final File file) {
+        final IdxStreamReader reader = open(file);
+        assertMagicNumber(reader, MnistReader.IMAGE_FILE_MAGIC_NUMBER);
+        return reader;
+    }
+
+    public static IdxStreamReader openLabels(final File file) {
+        final IdxStreamReader reader = open(file);
+        assertMagicNumber(reader, MnistReader.LABEL_FILE_MAGIC_NUMBER);
+        return reader;
+    }
+
+    /**
+     * Streams matching image and label files in order through {@code consumer} using one reusable
+     * batch buffer.
+     *
+     * @return number of images read
+     */
+    public static int readBatches(final File imagesFile,
+                                  final File labelsFile,
+                                  final int batchSize,
+                                  final ImageBatchConsumer consumer) {
+        try (IdxStreamReader images = openImages(imagesFile);
+             IdxStreamReader labels = openLabels(labelsFile)) {
+            if (images.size() != labels.size()) {
+                throw new RuntimeException(
+                        format("%d images but %d labels", images.size(), labels.size()));
+            }
+            final byte[] pixels = new byte[batchSize * images.recordSize()];
+            final byte[] labelBatch = new byte[batchSize];
+            int read;
+            while ((read = images.read(pixels, batchSize)) > 0) {
+                labels.read(labelBatch, read);
+                consumer.accept(pixels, labelBatch, read, images.position() - read);
+            }
+            return images.size();
+        }
+    }
+
+    public int getMagicNumber() {
+        return magicNumber;
+    }
+
+    public int size() {
+        return dimensions[0];
+    }
+
+    public int recordSize() {
+        return recordSize;
+    }
+
+    public int dimension(final int index) {
+        return dimensions[index];
+    }
+
+    /**
+     * @return index of the next record to be read
+     */
+    public int position() {
+        return position;
+    }
+
+    public int remaining() {
+        return size() - position;
+    }
+
+    /**
+     * Reads up to {@code maxRecords} records into the beginning of {@code buffer}.
+     *
+     * @return number of records read, 0 once all records have been consumed
+     */
+    public int read(final byte[] buffer, final int maxRecords) {
+        final int records = Math.min(maxRecords, remaining());
+        if (buffer.length < records * recordSize) {
+            throw new IllegalArgumentException("Buffer is too small for " + records + " records");
+        }
+        try {
+            input.readFully(buffer, 0, records * recordSize);
+        } catch (IOException e) {
+            throw new RuntimeException(format("IDX stream ended at record %d of %d", position, size()), e);
+        }
+        position += records;
+        return records;
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(input);
+    }
+
+    private static InputStream decompressIfGzipped(final InputStream stream) throws IOException {
+        final PushbackInputStream pushback = new PushbackInputStream(
+                new BufferedInputStream(stream, STREAM_BUFFER_SIZE), 2);
+        final byte[] head = new byte[2];
+        final int read = pushback.readNBytes(head, 0, head.length);
+        pushback.unread(head, 0, read);
+        if (read == head.length && ((head[0] & 0xFF) | ((head[1] & 0xFF) << 8)) == GZIP_MAGIC) {
+            return new BufferedInputStream(new GZIPInputStream(pushback, STREAM_BUFFER_SIZE), STREAM_BUFFER_SIZE);
+        }
+        return pushback;
+    }
+
+    private static void assertMagicNumber(final IdxStreamReader reader, final int expectedMagicNumber) {
+        try {
+            MnistReader.assertMagicNumber(expectedMagicNumber, reader.getMagicNumber());
+        } catch (RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // nothing left to release
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.dj.models.mnist;
+
+/**
+ * Receives images and labels batch by batch from the streaming readers. The arrays are reused for the
+ * next batch, so a consumer that keeps the data has to copy it.
+ */
+@FunctionalInterface
+public interface ImageBatchConsumer {
+
+    /**
+     * @param pixels    {@code batchSize} images of 784 unsigned pixel values each
+     * @param labels    {@code batchSize} labels, all zero when the source has no labels
+     * @param batchSize number of images in this batch
+     * @param firstRow  index of the first image of this batch in the source
+     */
+    void accept(byte[] pixels, byte[] labels, int batchSize, int firstRow);
+}
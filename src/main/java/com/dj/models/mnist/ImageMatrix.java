@@ -0,0 +1,155 @@
+package com.dj.models.mnist;
+
+import static java.lang.String.format;
+
+/**
+ * Images stored as one contiguous row-major {@code float} array, one row of {@link #imageSize()}
+ * pixels per image. Loading a data set costs a single allocation instead of one array per image and row.
+ */
+public class ImageMatrix {
+
+    private final float[] data;
+
+    private final int size;
+
+    private final int imageSize;
+
+    private ImageMatrix(final float[] data, final int size, final int imageSize) {
+        if (data.length != size * imageSize) {
+            throw new IllegalArgumentException(
+                    format("%d values do not make %d images of %d pixels", data.length, size, imageSize));
+        }
+        this.data = data;
+        this.size = size;
+        this.imageSize = imageSize;
+    }
+
+    public static ImageMatrix allocate(final int size, final int imageSize) {
+        return new ImageMatrix(new float[size * imageSize], size, imageSize);
+    }
+
+    public static ImageMatrix wrap(final float[] data, final int size, final int imageSize) {
+        return new ImageMatrix(data, size, imageSize);
+    }
+
+    /**
+     * Copies raw pixel values (0 - 255) out of a mapped IDX image file.
+     */
+    public static ImageMatrix fromIdx(final IdxDataset images) {
+        final ImageMatrix matrix = allocate(images.size(), images.recordSize());
+        for (int i = 0; i < images.size(); i++) {
+            images.copyRecord(i, matrix.data, i * matrix.imageSize);
+        }
+        return matrix;
+    }
+
+    public static ImageMatrix fromIdx(final String path) {
+        return fromIdx(IdxDataset.openImages(path));
+    }
+
+    public static ImageMatrix fromRows(final double[][] rows) {
+        final int imageSize = rows.length == 0 ? 0 : rows[0].length;
+        final ImageMatrix matrix = allocate(rows.length, imageSize);
+        for (int i = 0; i < rows.length; i++) {
+            final int offset = i * imageSize;
+            for (int p = 0; p < imageSize; p++) {
+                matrix.data[offset + p] = (float) rows[i][p];
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * The backing array; image {@code i} starts at {@link #offset(int) offset(i)}.
+     */
+    public float[] data() {
+        return data;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int imageSize() {
+        return imageSize;
+    }
+
+    public int offset(final int index) {
+        return index * imageSize;
+    }
+
+    public float get(final int index, final int pixel) {
+        return data[index * imageSize + pixel];
+    }
+
+    public void set(final int index, final int pixel, final float value) {
+        data[index * imageSize + pixel] = value;
+    }
+
+    public void copyImage(final int index, final float[] destination, final int destinationOffset) {
+        System.arraycopy(data, index * imageSize, destination, destinationOffset, imageSize);
+    }
+
+    /**
+     * Fraction of the pixels that are not zero.
+     */
+    public double density() {
+        if (data.length == 0) {
+            return 0.;
+        }
+        long nonZeros = 0;
+        for (final float value : data) {
+            if (value != 0f) {
+                nonZeros++;
+            }
+        }
+        return (double) nonZeros / data.length;
+    }
+
+    /**
+     * Min-max scales all pixels into [0, 1] in place.
+     */
+    public ImageMatrix normalize() {
+        if (data.length == 0) {
+            return this;
+        }
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (final float value : data) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        if (max == min) {
+            return this;
+        }
+        final float scale = 1f / (max - min);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (data[i] - min) * scale;
+        }
+        return this;
+    }
+
+    /**
+     * Multiplies all pixels by {@code factor} in place, e.g. {@code 1 / 255f} for raw MNIst pixels.
+     */
+    public ImageMatrix scale(final float factor) {
+        for (int i = 0; i < data.length; i++) {
+            data[i] *= factor;
+        }
+        return this;
+    }
+
+    /**
+     * One {@code double[]} per image, the layout {@code com.dj.core} optimizers consume.
+     */
+    public double[][] toRows() {
+        final double[][] rows = new double[size][imageSize];
+        for (int i = 0; i < size; i++) {
+            final int offset = i * imageSize;
+            for (int p = 0; p < imageSize; p++) {
+                rows[i][p] = data[offset + p];
+            }
+        }
+        return rows;
+    }
+}
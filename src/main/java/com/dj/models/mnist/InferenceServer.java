@@ -0,0 +1,511 @@
+package com.dj.models.mnist;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * Embeddable HTTP server answering predictions of a {@link CompiledModel}. Concurrent requests are
+ * collected into micro-batches for up to {@code batchWindowMicros} and run on a fixed pool of workers,
+ * each with its own {@link CompiledModel.Workspace}. Once {@code maxPendingRequests} are in flight new
+ * requests are turned away with {@code 429 Too Many Requests} instead of queueing without bound.
+ * <p>
+ * {@code POST /predict} takes one image, either {@code inputSize} raw pixel bytes
+ * ({@code application/octet-stream}) or comma separated pixel values 0-255 as in the Kaggle test set,
+ * and answers {@code {"label":7,"probabilities":[...]}} with the activations of the output layer.
+ * {@code GET /metrics} reports request counts and latency percentiles in microseconds.
+ * <p>
+ * The model may be replaced while serving, see {@link Builder#models(Supplier)}; each batch runs entirely
+ * on the model it read first.
+ */
+public class InferenceServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 8080;
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = CompiledModel.DEFAULT_BLOCK_SIZE;
+
+    public static final long DEFAULT_BATCH_WINDOW_MICROS = 1000;
+
+    public static final int DEFAULT_MAX_PENDING_REQUESTS = 1024;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final int HTTP_INTERNAL_ERROR = 500;
+
+    private static final float PIXEL_SCALE = 1f / 255f;
+
+    private static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    private final Supplier<CompiledModel> models;
+
+    private final int inputSize;
+
+    private final int port;
+
+    private final int maxBatchSize;
+
+    private final long batchWindowNanos;
+
+    private final int workers;
+
+    private final int maxPendingRequests;
+
+    private final boolean tcpNoDelay;
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final ThreadLocal<CompiledModel.Workspace> workspaces;
+
+    private final ThreadLocal<float[]> inputBuffers;
+
+    private HttpServer server;
+
+    private ExecutorService handlerPool;
+
+    private ExecutorService workerPool;
+
+    private Thread batcher;
+
+    private volatile boolean running;
+
+    private InferenceServer(final Builder builder) {
+        final CompiledModel model = builder.models != null ? builder.models.get() : builder.model;
+        this.models = builder.models != null ? builder.models : () -> model;
+        this.inputSize = model.inputSize();
+        this.port = builder.port;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.batchWindowNanos = TimeUnit.MICROSECONDS.toNanos(builder.batchWindowMicros);
+        this.workers = builder.workers;
+        this.maxPendingRequests = builder.maxPendingRequests;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.workspaces = ThreadLocal.withInitial(() -> model.newWorkspace(maxBatchSize));
+        this.inputBuffers = ThreadLocal.withInitial(() -> new float[maxBatchSize * inputSize]);
+    }
+
+    public static class Builder {
+
+        private CompiledModel model;
+
+        private Supplier<CompiledModel> models;
+
+        private int port = DEFAULT_PORT;
+
+        private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+        private long batchWindowMicros = DEFAULT_BATCH_WINDOW_MICROS;
+
+        private int workers = Runtime.getRuntime().availableProcessors();
+
+        private int maxPendingRequests = DEFAULT_MAX_PENDING_REQUESTS;
+
+        private boolean tcpNoDelay;
+
+        public Builder model(final CompiledModel model) {
+            this.model = model;
+            return this;
+        }
+
+        /**
+         * Where every batch takes the model from, e.g. {@link OnlineLearner#currentModel()}. Later models
+         * must take the input size of the first and be no wider, batches given any other model are answered
+         * with a 500.
+         */
+        public Builder models(final Supplier<CompiledModel> models) {
+            this.models = models;
+            return this;
+        }
+
+        /**
+         * Port to listen on, 0 picks a free one (see {@link InferenceServer#getPort()}).
+         */
+        public Builder port(final int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder maxBatchSize(final int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * How long the first request of a batch waits for others to join it.
+         */
+        public Builder batchWindowMicros(final long batchWindowMicros) {
+            this.batchWindowMicros = batchWindowMicros;
+            return this;
+        }
+
+        public Builder workers(final int workers) {
+            this.workers = workers;
+            return this;
+        }
+
+        /**
+         * Requests accepted but not answered yet above which new requests get a 429.
+         */
+        public Builder maxPendingRequests(final int maxPendingRequests) {
+            this.maxPendingRequests = maxPendingRequests;
+            return this;
+        }
+
+        /**
+         * Disables Nagle's algorithm on the server's connections. Response headers and body go out as
+         * separate writes, so without it the body can wait for the client's delayed ACK, some 40 ms per
+         * request. The JDK server only offers this as the JVM-wide system property
+         * {@code sun.net.httpserver.nodelay}, read once before its first use: {@link #start()} sets it unless
+         * it is already set, which affects every {@code HttpServer} of the JVM and has no effect when one was
+         * started before.
+         */
+        public Builder tcpNoDelay(final boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public InferenceServer build() {
+            if (model == null && models == null) {
+                throw new IllegalArgumentException("A model is required");
+            }
+            if (maxBatchSize < 1 || workers < 1 || maxPendingRequests < 1 || batchWindowMicros < 0) {
+                throw new IllegalArgumentException("Batch size, workers and pending requests must be positive");
+            }
+            return new InferenceServer(this);
+        }
+    }
+
+    /**
+     * Serves a model file written by {@link ModelFile}: {@code InferenceServer <model file> [port]}.
+     */
+    public static void main(final String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: InferenceServer <model file> [port]");
+            System.exit(1);
+        }
+        final InferenceServer server = new Builder()
+                .model(ModelFile.read(args[0]))
+                .port(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT)
+                .tcpNoDelay(true)
+                .build()
+                .start();
+        System.out.printf("Serving %s on port %d\n", args[0], server.getPort());
+    }
+
+    public InferenceServer start() {
+        if (tcpNoDelay && System.getProperty(NO_DELAY_PROPERTY) == null) {
+            System.setProperty(NO_DELAY_PROPERTY, "true");
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to start the inference server on port " + port, e);
+        }
+        running = true;
+        handlerPool = Executors.newFixedThreadPool(Math.max(2, workers), threads("mnist-inference-http"));
+        workerPool = Executors.newFixedThreadPool(workers, threads("mnist-inference-worker"));
+        batcher = threads("mnist-inference-batcher").newThread(this::collectBatches);
+        batcher.start();
+        server.createContext("/predict", this::handlePredict);
+        server.createContext("/metrics", this::handleMetrics);
+        server.setExecutor(handlerPool);
+        server.start();
+        return this;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Requests accepted and not answered yet.
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * Time from receiving a request to sending its answer.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (server != null) {
+            server.stop(0);
+        }
+        if (batcher != null) {
+            batcher.interrupt();
+        }
+        if (handlerPool != null) {
+            handlerPool.shutdownNow();
+        }
+        if (workerPool != null) {
+            workerPool.shutdownNow();
+        }
+    }
+
+    private static final class Request {
+
+        private final HttpExchange exchange;
+
+        private final float[] image;
+
+        private final long received;
+
+        private Request(final HttpExchange exchange, final float[] image, final long received) {
+            this.exchange = exchange;
+            this.image = image;
+            this.received = received;
+        }
+    }
+
+    private void handlePredict(final HttpExchange exchange) throws IOException {
+        final long received = System.nanoTime();
+        requests.incrementAndGet();
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "{\"error\":\"POST an image\"}");
+            return;
+        }
+        if (pending.incrementAndGet() > maxPendingRequests) {
+            pending.decrementAndGet();
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, HTTP_TOO_MANY_REQUESTS, "{\"error\":\"overloaded\"}");
+            return;
+        }
+        final float[] image;
+        try {
+            image = parseImage(exchange);
+        } catch (IllegalArgumentException e) {
+            pending.decrementAndGet();
+            respond(exchange, 400, format("{\"error\":\"%s\"}", escape(e.getMessage())));
+            return;
+        } catch (IOException | RuntimeException e) {
+            // e.g. the client aborted mid-body, nobody is left to answer
+            pending.decrementAndGet();
+            throw e;
+        }
+        // Answered by a worker once the batch ran.
+        queue.add(new Request(exchange, image, received));
+    }
+
+    private void handleMetrics(final HttpExchange exchange) throws IOException {
+        respond(exchange, 200, format(Locale.ROOT,
+                "{\"requests\":%d,\"rejected\":%d,\"pending\":%d,\"batches\":%d,"
+                        + "\"latencyMicros\":{\"count\":%d,\"mean\":%.1f,\"p50\":%d,\"p99\":%d,\"max\":%d}}",
+                requests.get(), rejected.get(), pending.get(), batches.get(),
+                latency.count(), latency.meanMicros(), latency.percentileMicros(50), latency.percentileMicros(99),
+                latency.maxMicros()));
+    }
+
+    private float[] parseImage(final HttpExchange exchange) throws IOException {
+        final byte[] body = readBody(exchange.getRequestBody());
+        final float[] image = new float[inputSize];
+        final String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith("application/octet-stream")) {
+            if (body.length != image.length) {
+                throw new IllegalArgumentException(format("expected %d pixels, got %d", image.length, body.length));
+            }
+            for (int i = 0; i < image.length; i++) {
+                image[i] = (body[i] & 0xFF) * PIXEL_SCALE;
+            }
+            return image;
+        }
+        int pixel = 0;
+        int value = 0;
+        boolean digits = false;
+        for (int i = 0; i <= body.length; i++) {
+            final int c = i < body.length ? body[i] : ',';
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (value > 255) {
+                    throw new IllegalArgumentException(format("expected %d pixel values 0-255", image.length));
+                }
+                digits = true;
+            } else if (c == ',' || c == '\n') {
+                if (!digits) {
+                    continue;
+                }
+                if (pixel == image.length) {
+                    throw new IllegalArgumentException(format("expected %d pixel values 0-255", image.length));
+                }
+                image[pixel++] = value * PIXEL_SCALE;
+                value = 0;
+                digits = false;
+            } else if (c != ' ' && c != '\r') {
+                throw new IllegalArgumentException("unexpected character in pixel values");
+            }
+        }
+        if (pixel != image.length) {
+            throw new IllegalArgumentException(format("expected %d pixels, got %d", image.length, pixel));
+        }
+        return image;
+    }
+
+    private void collectBatches() {
+        while (running) {
+            final List<Request> batch = new ArrayList<>(maxBatchSize);
+            try {
+                final Request first = queue.take();
+                batch.add(first);
+                final long deadline = first.received + batchWindowNanos;
+                while (batch.size() < maxBatchSize) {
+                    final Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            batches.incrementAndGet();
+            workerPool.execute(() -> predict(batch));
+        }
+    }
+
+    /**
+     * Answers every request of the batch, with a 500 for all those left when the model fails.
+     */
+    private void predict(final List<Request> batch) {
+        int answered = 0;
+        try {
+            final long start = System.nanoTime();
+            final CompiledModel model = models.get();
+            if (model.inputSize() != inputSize) {
+                throw new IllegalStateException(
+                        format("Serving %d pixel images, the model expects %d inputs", inputSize, model.inputSize()));
+            }
+            final int outputSize = model.outputSize();
+            final float[] inputs = inputBuffers.get();
+            for (int i = 0; i < batch.size(); i++) {
+                System.arraycopy(batch.get(i).image, 0, inputs, i * inputSize, inputSize);
+            }
+            final float[] outputs = model.forward(inputs, 0, batch.size(), workspaces.get());
+            Metrics.registry().timer(Metrics.INFERENCE_BATCH_TIME).recordSince(start);
+            Metrics.registry().counter(Metrics.INFERENCE_IMAGES).increment(batch.size());
+            while (answered < batch.size()) {
+                final int offset = answered * outputSize;
+                final StringBuilder json = new StringBuilder(32 + 12 * outputSize)
+                        .append("{\"label\":")
+                        .append(CompiledModel.argMax(outputs, offset, outputSize))
+                        .append(",\"probabilities\":[");
+                for (int j = 0; j < outputSize; j++) {
+                    json.append(j > 0 ? "," : "").append(outputs[offset + j]);
+                }
+                json.append("]}");
+                answer(batch.get(answered++), 200, json.toString());
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            while (answered < batch.size()) {
+                answer(batch.get(answered++), HTTP_INTERNAL_ERROR, "{\"error\":\"prediction failed\"}");
+            }
+        }
+    }
+
+    private void answer(final Request request, final int status, final String body) {
+        try {
+            respond(request.exchange, status, body);
+        } catch (IOException e) {
+            // The client went away, nothing left to answer.
+        } finally {
+            pending.decrementAndGet();
+            latency.record(System.nanoTime() - request.received, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * {@code value} as the contents of a JSON string.
+     */
+    static String escape(final String value) {
+        final String text = String.valueOf(value);
+        final StringBuilder escaped = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < ' ') {
+                escaped.append(format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static byte[] readBody(final InputStream input) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    private static ThreadFactory threads(final String name) {
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,108 @@
+package com.dj.models.mnist;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * Publishes a {@link MetricsRegistry} as one read-only MBean whose attributes are the entries of its
+ * {@link MetricsRegistry#snapshot() snapshot}, e.g. for JConsole or a JMX scraper.
+ */
+public class JmxMetricsExporter implements DynamicMBean, Closeable {
+
+    public static final String DEFAULT_OBJECT_NAME = "com.dj.models:type=Metrics";
+
+    private final MetricsRegistry registry;
+
+    private final MBeanServer server;
+
+    private final ObjectName objectName;
+
+    private JmxMetricsExporter(final MetricsRegistry registry, final MBeanServer server, final ObjectName objectName) {
+        this.registry = registry;
+        this.server = server;
+        this.objectName = objectName;
+    }
+
+    public static JmxMetricsExporter register(final MetricsRegistry registry) {
+        return register(registry, DEFAULT_OBJECT_NAME);
+    }
+
+    public static JmxMetricsExporter register(final MetricsRegistry registry, final String objectName) {
+        try {
+            final JmxMetricsExporter exporter = new JmxMetricsExporter(
+                    registry, ManagementFactory.getPlatformMBeanServer(), new ObjectName(objectName));
+            exporter.server.registerMBean(exporter, exporter.objectName);
+            return exporter;
+        } catch (JMException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to register metrics MBean " + objectName, e);
+        }
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        final Number value = registry.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes) {
+        final Map<String, Number> snapshot = registry.snapshot();
+        final AttributeList list = new AttributeList();
+        for (final String attribute : attributes) {
+            if (snapshot.containsKey(attribute)) {
+                list.add(new Attribute(attribute, snapshot.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature) {
+        throw new UnsupportedOperationException("Metrics have no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final Map<String, Number> snapshot = registry.snapshot();
+        final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (final Map.Entry<String, Number> entry : snapshot.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    entry.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Model zoo metrics", attributes, null, null, null);
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            // already gone
+        }
+    }
+}
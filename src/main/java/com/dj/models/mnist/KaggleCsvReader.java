@@ -0,0 +1,335 @@
+package com.dj.models.mnist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static java.lang.String.format;
+
+/**
+ * Streaming reader for the Kaggle "Digit Recognizer" CSV files (train.csv with a leading label column,
+ * test.csv without). Rows are parsed byte by byte straight into fixed-size batches, so memory stays
+ * bounded by the batch size no matter how large the file is.
+ */
+public class KaggleCsvReader {
+
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    public static final int IMAGE_SIZE = 784;
+
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private static final int IDX_IMAGES_HEADER_SIZE = 16;
+
+    private static final int IDX_LABELS_HEADER_SIZE = 8;
+
+    private final InputStream input;
+
+    private final boolean labelled;
+
+    private final int columns;
+
+    private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+
+    private int bufferPosition;
+
+    private int bufferLimit;
+
+    /**
+     * Physical line number of the next character, blank lines and the header included.
+     */
+    private int line = 1;
+
+    private KaggleCsvReader(final InputStream input, final boolean labelled) {
+        this.input = input;
+        this.labelled = labelled;
+        this.columns = labelled ? IMAGE_SIZE + 1 : IMAGE_SIZE;
+    }
+
+    public static int read(final String path,
+                           final boolean labelled,
+                           final int batchSize,
+                           final ImageBatchConsumer consumer) {
+        try (InputStream input = new FileInputStream(path)) {
+            return read(input, labelled, batchSize, consumer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("CSV parsing failed", e);
+        }
+    }
+
+    /**
+     * Parses the whole stream, header line included, and returns the number of rows read.
+     */
+    public static int read(final InputStream input,
+                           final boolean labelled,
+                           final int batchSize,
+                           final ImageBatchConsumer consumer) throws IOException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        return new KaggleCsvReader(input, labelled).readRows(batchSize, consumer);
+    }
+
+    /**
+     * Counts data rows (the header excluded) without parsing them, so callers can preallocate.
+     */
+    public static int countRows(final String path) {
+        try (InputStream input = new FileInputStream(path)) {
+            final byte[] buffer = new byte[READ_BUFFER_SIZE];
+            int lines = 0;
+            int read;
+            byte last = '\n';
+            while ((read = input.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+                last = buffer[read - 1];
+            }
+            if (last != '\n') {
+                lines++;
+            }
+            return Math.max(0, lines - 1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("CSV parsing failed", e);
+        }
+    }
+
+    /**
+     * Converts a Kaggle CSV file into IDX image and label files, the format {@link IdxDataset} maps.
+     * Files are written to temporary siblings and renamed into place once complete.
+     *
+     * @param labelsFile destination of the labels, ignored for unlabelled files
+     * @return number of converted rows
+     */
+    public static int convertToIdx(final String path,
+                                   final boolean labelled,
+                                   final File imagesFile,
+                                   final File labelsFile) {
+        final File imagesTmp = new File(imagesFile.getPath() + ".tmp");
+        final File labelsTmp = labelled ? new File(labelsFile.getPath() + ".tmp") : null;
+        try (RandomAccessFile images = new RandomAccessFile(imagesTmp, "rw");
+             RandomAccessFile labels = labelled ? new RandomAccessFile(labelsTmp, "rw") : null) {
+            images.setLength(0);
+            final FileChannel imagesChannel = images.getChannel();
+            final FileChannel labelsChannel = labelled ? labels.getChannel() : null;
+            imagesChannel.position(IDX_IMAGES_HEADER_SIZE);
+            if (labelled) {
+                labels.setLength(0);
+                labelsChannel.position(IDX_LABELS_HEADER_SIZE);
+            }
+            final int rows = read(path, labelled, DEFAULT_BATCH_SIZE, (pixels, batchLabels, batchSize, firstRow) -> {
+                try {
+                    writeFully(imagesChannel, ByteBuffer.wrap(pixels, 0, batchSize * IMAGE_SIZE));
+                    if (labelled) {
+                        writeFully(labelsChannel, ByteBuffer.wrap(batchLabels, 0, batchSize));
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("Writing IDX file failed", e);
+                }
+            });
+            final ByteBuffer imagesHeader = ByteBuffer.allocate(IDX_IMAGES_HEADER_SIZE);
+            imagesHeader.putInt(MnistReader.IMAGE_FILE_MAGIC_NUMBER).putInt(rows).putInt(28).putInt(28).flip();
+            imagesChannel.position(0);
+            writeFully(imagesChannel, imagesHeader);
+            if (labelled) {
+                final ByteBuffer labelsHeader = ByteBuffer.allocate(IDX_LABELS_HEADER_SIZE);
+                labelsHeader.putInt(MnistReader.LABEL_FILE_MAGIC_NUMBER).putInt(rows).flip();
+                labelsChannel.position(0);
+                writeFully(labelsChannel, labelsHeader);
+            }
+            images.getFD().sync();
+            if (labelled) {
+                labels.getFD().sync();
+            }
+        } catch (IOException e) {
+            deleteQuietly(imagesTmp, labelsTmp);
+            e.printStackTrace();
+            throw new RuntimeException("Converting CSV to IDX failed", e);
+        } catch (RuntimeException e) {
+            deleteQuietly(imagesTmp, labelsTmp);
+            throw e;
+        }
+        try {
+            Files.move(imagesTmp.toPath(), imagesFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (labelled) {
+                Files.move(labelsTmp.toPath(), labelsFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException e) {
+            deleteQuietly(imagesTmp, labelsTmp);
+            e.printStackTrace();
+            throw new RuntimeException("Converting CSV to IDX failed", e);
+        }
+        return IdxDataset.open(imagesFile).size();
+    }
+
+    /**
+     * Converts the CSV file unless IDX files newer than it already exist, so only the first run pays for
+     * text parsing.
+     */
+    public static void convertToIdxIfNeeded(final String path,
+                                            final boolean labelled,
+                                            final File imagesFile,
+                                            final File labelsFile) {
+        final long csvModified = new File(path).lastModified();
+        if (isUpToDate(imagesFile, csvModified) && (!labelled || isUpToDate(labelsFile, csvModified))) {
+            return;
+        }
+        convertToIdx(path, labelled, imagesFile, labelsFile);
+    }
+
+    private static boolean isUpToDate(final File idxFile, final long csvModified) {
+        if (!idxFile.exists() || idxFile.lastModified() < csvModified) {
+            return false;
+        }
+        try {
+            IdxDataset.open(idxFile);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Removes partially written IDX files so a failed conversion leaves no temporary files behind.
+     */
+    private static void deleteQuietly(final File... files) {
+        for (final File file : files) {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file.toPath());
+                } catch (IOException ignored) {
+                    // best effort, the next conversion truncates it anyway
+                }
+            }
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private int readRows(final int batchSize, final ImageBatchConsumer consumer) throws IOException {
+        final byte[] pixels = new byte[batchSize * IMAGE_SIZE];
+        final byte[] labels = new byte[batchSize];
+        skipLine();
+        int rows = 0;
+        int inBatch = 0;
+        while (readRow(pixels, inBatch * IMAGE_SIZE, labels, inBatch)) {
+            rows++;
+            inBatch++;
+            if (inBatch == batchSize) {
+                consumer.accept(pixels, labels, inBatch, rows - inBatch);
+                inBatch = 0;
+            }
+        }
+        if (inBatch > 0) {
+            consumer.accept(pixels, labels, inBatch, rows - inBatch);
+        }
+        return rows;
+    }
+
+    /**
+     * Parses one row into the batch buffers, returns false at the end of the input. Spaces, tabs and carriage
+     * returns are accepted around a value, like {@link String#trim()} would drop them, but not inside one.
+     */
+    private boolean readRow(final byte[] pixels,
+                            final int pixelOffset,
+                            final byte[] labels,
+                            final int labelIndex) throws IOException {
+        int column = 0;
+        int value = 0;
+        boolean digits = false;
+        boolean padded = false;
+        while (true) {
+            final int c = next();
+            if (c >= '0' && c <= '9') {
+                if (digits && padded) {
+                    throw new RuntimeException(format("Whitespace inside a value in line %d, column %d", line,
+                            column + 1));
+                }
+                value = value * 10 + (c - '0');
+                if (value > 255) {
+                    throw new RuntimeException(format("Value out of range in line %d, column %d", line, column + 1));
+                }
+                digits = true;
+            } else if (c == ',' || c == '\n' || c < 0) {
+                if (c != ',' && column == 0 && !digits) {
+                    if (c < 0) {
+                        return false;
+                    }
+                    line++;
+                    padded = false;
+                    continue; // blank line
+                }
+                if (!digits) {
+                    throw new RuntimeException(format("Empty value in line %d, column %d", line, column + 1));
+                }
+                if (column >= columns) {
+                    throw new RuntimeException(format("Line %d has more than %d columns", line, columns));
+                }
+                if (labelled && column == 0) {
+                    if (value > 9) {
+                        throw new RuntimeException(format("Label %d in line %d is not a digit", value, line));
+                    }
+                    labels[labelIndex] = (byte) value;
+                } else {
+                    pixels[pixelOffset + column - (labelled ? 1 : 0)] = (byte) value;
+                }
+                column++;
+                value = 0;
+                digits = false;
+                padded = false;
+                if (c != ',') {
+                    if (column != columns) {
+                        throw new RuntimeException(
+                                format("Line %d has %d columns, expected %d", line, column, columns));
+                    }
+                    if (c == '\n') {
+                        line++;
+                    }
+                    return true;
+                }
+            } else if (c == ' ' || c == '\t' || c == '\r') {
+                padded = digits;
+            } else {
+                throw new RuntimeException(format("Unexpected character '%c' in line %d", (char) c, line));
+            }
+        }
+    }
+
+    private void skipLine() throws IOException {
+        int c;
+        do {
+            c = next();
+        } while (c >= 0 && c != '\n');
+        if (c == '\n') {
+            line++;
+        }
+    }
+
+    private int next() throws IOException {
+        if (bufferPosition == bufferLimit) {
+            bufferLimit = input.read(buffer, 0, buffer.length);
+            bufferPosition = 0;
+            if (bufferLimit <= 0) {
+                bufferLimit = 0;
+                return -1;
+            }
+        }
+        return buffer[bufferPosition++] & 0xFF;
+    }
+}
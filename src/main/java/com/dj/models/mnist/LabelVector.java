@@ -0,0 +1,76 @@
+package com.dj.models.mnist;
+
+/**
+ * Digit labels stored as one byte each instead of one-hot {@code double[10]} rows.
+ */
+public class LabelVector {
+
+    public static final int NUMBER_OF_CLASSES = 10;
+
+    private final byte[] labels;
+
+    private LabelVector(final byte[] labels) {
+        this.labels = labels;
+    }
+
+    public static LabelVector allocate(final int size) {
+        return new LabelVector(new byte[size]);
+    }
+
+    public static LabelVector wrap(final byte[] labels) {
+        return new LabelVector(labels);
+    }
+
+    public static LabelVector fromIdx(final IdxDataset labels) {
+        final LabelVector vector = allocate(labels.size());
+        for (int i = 0; i < labels.size(); i++) {
+            vector.labels[i] = (byte) labels.getLabel(i);
+        }
+        return vector;
+    }
+
+    public static LabelVector fromIdx(final String path) {
+        return fromIdx(IdxDataset.openLabels(path));
+    }
+
+    /**
+     * Converts one-hot rows as produced by {@link MnistTrainer#convertLabel(int)}.
+     */
+    public static LabelVector fromOneHot(final double[][] rows) {
+        final LabelVector vector = allocate(rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            int label = 0;
+            for (int c = 1; c < rows[i].length; c++) {
+                if (rows[i][c] > rows[i][label]) {
+                    label = c;
+                }
+            }
+            vector.labels[i] = (byte) label;
+        }
+        return vector;
+    }
+
+    public byte[] data() {
+        return labels;
+    }
+
+    public int size() {
+        return labels.length;
+    }
+
+    public int get(final int index) {
+        return labels[index];
+    }
+
+    public void set(final int index, final int label) {
+        labels[index] = (byte) label;
+    }
+
+    public double[][] toOneHotRows() {
+        final double[][] rows = new double[labels.length][];
+        for (int i = 0; i < labels.length; i++) {
+            rows[i] = MnistTrainer.convertLabel(labels[i]);
+        }
+        return rows;
+    }
+}
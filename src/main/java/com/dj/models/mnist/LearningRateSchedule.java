@@ -0,0 +1,38 @@
+package com.dj.models.mnist;
+
+/**
+ * Learning rate to train an epoch with, see {@link TrainingControl}.
+ */
+public interface LearningRateSchedule {
+
+    /**
+     * @param epoch number of epochs completed so far, 0 for the first epoch
+     */
+    double learningRate(int epoch);
+
+    static LearningRateSchedule constant(final double learningRate) {
+        return epoch -> learningRate;
+    }
+
+    /**
+     * Multiplies the rate by {@code factor} every {@code epochs} epochs.
+     */
+    static LearningRateSchedule step(final double initial, final int epochs, final double factor) {
+        if (epochs < 1) {
+            throw new IllegalArgumentException("Step length must be positive");
+        }
+        return epoch -> initial * Math.pow(factor, epoch / epochs);
+    }
+
+    static LearningRateSchedule exponential(final double initial, final double gamma) {
+        return epoch -> initial * Math.pow(gamma, epoch);
+    }
+
+    /**
+     * Cosine annealing from {@code initial} down to {@code minimum} over {@code epochs} epochs.
+     */
+    static LearningRateSchedule cosine(final double initial, final double minimum, final int epochs) {
+        return epoch -> minimum
+                + (initial - minimum) * (1. + Math.cos(Math.PI * Math.min(epoch, epochs) / epochs)) / 2.;
+    }
+}
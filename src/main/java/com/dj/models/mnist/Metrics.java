@@ -0,0 +1,145 @@
+package com.dj.models.mnist;
+
+import java.io.Closeable;
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The registry the pipeline reports to and the names it reports under. Nothing is recorded until a
+ * registry is installed, e.g. {@code Metrics.install(new DefaultMetricsRegistry())} followed by a
+ * {@link JmxMetricsExporter} or {@link FileMetricsReporter}.
+ */
+public final class Metrics {
+
+    /**
+     * File that {@link #installFromSystemProperties()} reports to, as CSV when it ends in {@code .csv} and
+     * as JSON lines otherwise.
+     */
+    public static final String FILE_PROPERTY = "dj.metrics.file";
+
+    /**
+     * Set to {@code true} to have {@link #installFromSystemProperties()} publish the metrics over JMX.
+     */
+    public static final String JMX_PROPERTY = "dj.metrics.jmx";
+
+    public static final long REPORT_PERIOD_SECONDS = 10;
+
+    public static final String DOWNLOAD_BYTES = "download.bytes";
+
+    public static final String DOWNLOAD_TIME = "download.time";
+
+    public static final String DECODE_TIME = "decode.time";
+
+    public static final String DECODED_IMAGES = "decode.images";
+
+    public static final String TRAIN_EPOCH_TIME = "train.epoch.time";
+
+    public static final String TRAIN_IMAGES = "train.images";
+
+    public static final String TRAIN_IMAGES_PER_SECOND = "train.imagesPerSecond";
+
+    /**
+     * From the start of training on a {@link MnistDataLoader} to the end of the first mini-batch update.
+     */
+    public static final String TRAIN_FIRST_STEP_TIME = "train.firstStep.time";
+
+    public static final String INFERENCE_BATCH_TIME = "inference.batch.time";
+
+    public static final String INFERENCE_IMAGES = "inference.images";
+
+    public static final String EVALUATION_TIME = "evaluation.time";
+
+    public static final String CHECKPOINT_TIME = "checkpoint.time";
+
+    public static final String CHECKPOINTS_DROPPED = "checkpoint.dropped";
+
+    public static final String ONLINE_PUBLISHED_VERSIONS = "online.published";
+
+    public static final String ONLINE_REJECTED_VERSIONS = "online.rejected";
+
+    /**
+     * Sinks started by {@link #installFromSystemProperties()}; closing stops them and uninstalls the
+     * registry.
+     */
+    public interface Installation extends Closeable {
+
+        @Override
+        void close();
+    }
+
+    private static volatile MetricsRegistry registry = MetricsRegistry.noop();
+
+    private Metrics() { }
+
+    public static MetricsRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * Makes {@code newRegistry} the registry of the pipeline and adds the JVM gauges to it.
+     */
+    public static void install(final MetricsRegistry newRegistry) {
+        registerJvmGauges(newRegistry);
+        registry = newRegistry;
+    }
+
+    public static void uninstall() {
+        registry = MetricsRegistry.noop();
+    }
+
+    /**
+     * Installs a {@link DefaultMetricsRegistry} with the sinks configured by {@value #FILE_PROPERTY} and
+     * {@value #JMX_PROPERTY}; does nothing when neither is set or a registry is already installed, so a
+     * caller's registry is neither replaced nor uninstalled.
+     */
+    public static Installation installFromSystemProperties() {
+        final String file = System.getProperty(FILE_PROPERTY);
+        final boolean jmx = Boolean.getBoolean(JMX_PROPERTY);
+        if (registry != MetricsRegistry.noop() || (file == null || file.isEmpty()) && !jmx) {
+            return () -> { };
+        }
+        final MetricsRegistry newRegistry = new DefaultMetricsRegistry();
+        final FileMetricsReporter reporter = file == null || file.isEmpty()
+                ? null
+                : FileMetricsReporter.start(newRegistry, new File(file),
+                        file.endsWith(".csv") ? FileMetricsReporter.Format.CSV : FileMetricsReporter.Format.JSON,
+                        REPORT_PERIOD_SECONDS, TimeUnit.SECONDS);
+        final JmxMetricsExporter exporter = jmx ? JmxMetricsExporter.register(newRegistry) : null;
+        install(newRegistry);
+        return () -> {
+            if (reporter != null) {
+                reporter.close();
+            }
+            if (exporter != null) {
+                exporter.close();
+            }
+            uninstall();
+        };
+    }
+
+    /**
+     * Heap usage and garbage collection totals, summed over all collectors.
+     */
+    public static void registerJvmGauges(final MetricsRegistry registry) {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        registry.gauge("jvm.heap.used", () -> memory.getHeapMemoryUsage().getUsed());
+        registry.gauge("jvm.heap.committed", () -> memory.getHeapMemoryUsage().getCommitted());
+        registry.gauge("jvm.gc.count", () -> {
+            long count = 0;
+            for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, collector.getCollectionCount());
+            }
+            return count;
+        });
+        registry.gauge("jvm.gc.timeMillis", () -> {
+            long time = 0;
+            for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                time += Math.max(0, collector.getCollectionTime());
+            }
+            return time;
+        });
+    }
+}
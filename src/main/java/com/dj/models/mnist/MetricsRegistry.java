@@ -0,0 +1,59 @@
+package com.dj.models.mnist;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Named counters, timers and gauges of the model zoo pipeline. Metrics are created on first use and
+ * then shared; {@link #noop()} hands out empty implementations so instrumentation costs next to
+ * nothing when nobody listens. See {@link Metrics} for the registry the pipeline reports to.
+ */
+public interface MetricsRegistry {
+
+    interface Counter {
+
+        void increment(long delta);
+
+        default void increment() {
+            increment(1);
+        }
+    }
+
+    interface Timer {
+
+        void record(long duration, TimeUnit unit);
+
+        /**
+         * Records the time elapsed since {@code startNanos}, a value of {@link System#nanoTime()}.
+         */
+        default void recordSince(final long startNanos) {
+            record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    Counter counter(String name);
+
+    Timer timer(String name);
+
+    /**
+     * Registers a value that is read whenever a snapshot is taken, replacing an earlier gauge of the
+     * same name.
+     */
+    void gauge(String name, DoubleSupplier value);
+
+    /**
+     * False for registries that drop everything, so callers can skip preparing expensive values.
+     */
+    boolean isEnabled();
+
+    /**
+     * Current values by name, sorted. Timers contribute {@code .count}, {@code .mean}, {@code .p50},
+     * {@code .p99} and {@code .max} entries in microseconds.
+     */
+    Map<String, Number> snapshot();
+
+    static MetricsRegistry noop() {
+        return NoopMetricsRegistry.INSTANCE;
+    }
+}
@@ -0,0 +1,505 @@
+package com.dj.models.mnist;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static java.lang.String.format;
+
+/**
+ * Serves shuffled mini-batches of a memory-mapped IDX data set, or of images and labels already in memory
+ * such as the normalized matrices {@link MnistTrainer} caches. Records are decoded or copied, and optionally
+ * distorted by an {@link Augmenter}, on background worker threads that keep the next {@code prefetch}
+ * batches ready in a fixed pool of reusable {@link Batch} buffers, so neither the first step nor the
+ * steady state waits for the whole data set. Worker {@code w} of {@code n} prepares every n-th batch and
+ * batches are handed out in order.
+ * <p>
+ * Every epoch visits the records in a permutation derived from the seed and the epoch number only;
+ * shard {@code i} of {@code n} takes every n-th record of that permutation, so processes that share a
+ * seed split each epoch without overlap. Augmentation draws from one {@link Random} per worker, re-seeded
+ * from the seed, the epoch and the batch index before every batch, so it does not depend on the number
+ * of workers either.
+ */
+public class MnistDataLoader {
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    public static final int DEFAULT_PREFETCH = 2;
+
+    /**
+     * One mini-batch. Instances are recycled: a batch is only valid until the next call to
+     * {@link BatchIterator#hasNext()} or {@link BatchIterator#next()}.
+     */
+    public static class Batch {
+
+        private final ImageMatrix images;
+
+        private final LabelVector labels;
+
+        private final int[] indexes;
+
+        private int size;
+
+        private int epoch;
+
+        private int index;
+
+        private BlockingQueue<Batch> home;
+
+        private Batch(final int batchSize, final int imageSize) {
+            this.images = ImageMatrix.allocate(batchSize, imageSize);
+            this.labels = LabelVector.allocate(batchSize);
+            this.indexes = new int[batchSize];
+        }
+
+        /**
+         * Images of the batch; only the first {@link #size()} rows are filled.
+         */
+        public ImageMatrix images() {
+            return images;
+        }
+
+        /**
+         * Labels of the batch; only the first {@link #size()} entries are filled.
+         */
+        public LabelVector labels() {
+            return labels;
+        }
+
+        /**
+         * Position of row {@code i} in the underlying data set.
+         */
+        public int recordIndex(final int i) {
+            return indexes[i];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int epoch() {
+            return epoch;
+        }
+
+        /**
+         * Index of this batch within its epoch.
+         */
+        public int index() {
+            return index;
+        }
+    }
+
+    private final IdxDataset images;
+
+    private final IdxDataset labels;
+
+    private final ImageMatrix imageMatrix;
+
+    private final LabelVector labelVector;
+
+    private final int batchSize;
+
+    private final int prefetch;
+
+    private final boolean dropLast;
+
+    private final boolean shuffle;
+
+    private final long seed;
+
+    private final int shardIndex;
+
+    private final int numShards;
+
+    private final float scale;
+
+    private final Augmenter augmenter;
+
+    private final int workers;
+
+    private MnistDataLoader(final Builder builder) {
+        this.images = builder.images;
+        this.labels = builder.labels;
+        this.imageMatrix = builder.imageMatrix;
+        this.labelVector = builder.labelVector;
+        this.batchSize = builder.batchSize;
+        this.prefetch = builder.prefetch;
+        this.dropLast = builder.dropLast;
+        this.shuffle = builder.shuffle;
+        this.seed = builder.seed;
+        this.shardIndex = builder.shardIndex;
+        this.numShards = builder.numShards;
+        this.scale = builder.scale;
+        this.augmenter = builder.augmenter;
+        this.workers = builder.workers;
+    }
+
+    public static class Builder {
+
+        private IdxDataset images;
+
+        private IdxDataset labels;
+
+        private ImageMatrix imageMatrix;
+
+        private LabelVector labelVector;
+
+        private int batchSize = DEFAULT_BATCH_SIZE;
+
+        private int prefetch = DEFAULT_PREFETCH;
+
+        private boolean dropLast;
+
+        private boolean shuffle = true;
+
+        private long seed;
+
+        private int shardIndex;
+
+        private int numShards = 1;
+
+        private float scale = 1f / 255f;
+
+        private Augmenter augmenter;
+
+        private int workers = 1;
+
+        public Builder images(final IdxDataset images) {
+            this.images = images;
+            return this;
+        }
+
+        public Builder labels(final IdxDataset labels) {
+            this.labels = labels;
+            return this;
+        }
+
+        /**
+         * Images already in memory, copied as they are; {@link #scale(float)} only applies to IDX images.
+         */
+        public Builder images(final ImageMatrix images) {
+            this.imageMatrix = images;
+            return this;
+        }
+
+        public Builder labels(final LabelVector labels) {
+            this.labelVector = labels;
+            return this;
+        }
+
+        public Builder batchSize(final int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Number of batches decoded ahead of the consumer.
+         */
+        public Builder prefetch(final int prefetch) {
+            this.prefetch = prefetch;
+            return this;
+        }
+
+        /**
+         * Skip the last batch of an epoch when it is smaller than the batch size.
+         */
+        public Builder dropLast(final boolean dropLast) {
+            this.dropLast = dropLast;
+            return this;
+        }
+
+        public Builder shuffle(final boolean shuffle) {
+            this.shuffle = shuffle;
+            return this;
+        }
+
+        public Builder seed(final long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder shard(final int shardIndex, final int numShards) {
+            this.shardIndex = shardIndex;
+            this.numShards = numShards;
+            return this;
+        }
+
+        /**
+         * Factor applied to the raw pixel bytes, {@code 1/255} by default.
+         */
+        public Builder scale(final float scale) {
+            this.scale = scale;
+            return this;
+        }
+
+        /**
+         * Distorts every image after it was decoded and scaled.
+         */
+        public Builder augmenter(final Augmenter augmenter) {
+            this.augmenter = augmenter;
+            return this;
+        }
+
+        /**
+         * Number of threads decoding and augmenting batches.
+         */
+        public Builder workers(final int workers) {
+            this.workers = workers;
+            return this;
+        }
+
+        public MnistDataLoader build() {
+            if ((images == null) == (imageMatrix == null) || (labels == null) == (labelVector == null)) {
+                throw new IllegalArgumentException("Exactly one source of images and one of labels is required");
+            }
+            final int size = images != null ? images.size() : imageMatrix.size();
+            final int labelCount = labels != null ? labels.size() : labelVector.size();
+            if (size != labelCount) {
+                throw new IllegalArgumentException(format("%d images but %d labels", size, labelCount));
+            }
+            if (batchSize < 1 || prefetch < 1 || workers < 1) {
+                throw new IllegalArgumentException("Batch size, prefetch depth and workers must be positive");
+            }
+            final int imageSize = images != null ? images.recordSize() : imageMatrix.imageSize();
+            if (augmenter != null && augmenter.imageSize() != imageSize) {
+                throw new IllegalArgumentException(format("Augmenter expects %d pixels, images have %d",
+                        augmenter.imageSize(), imageSize));
+            }
+            if (numShards < 1 || shardIndex < 0 || shardIndex >= numShards) {
+                throw new IllegalArgumentException(format("Invalid shard %d of %d", shardIndex, numShards));
+            }
+            return new MnistDataLoader(this);
+        }
+    }
+
+    /**
+     * Number of records this shard sees per epoch, before dropping an incomplete last batch.
+     */
+    public int shardSize() {
+        final int size = size();
+        return size / numShards + (shardIndex < size % numShards ? 1 : 0);
+    }
+
+    public int numberOfBatches() {
+        final int shardSize = shardSize();
+        return dropLast ? shardSize / batchSize : (shardSize + batchSize - 1) / batchSize;
+    }
+
+    public int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Pixels per image.
+     */
+    public int imageSize() {
+        return images != null ? images.recordSize() : imageMatrix.imageSize();
+    }
+
+    private int size() {
+        return images != null ? images.size() : imageMatrix.size();
+    }
+
+    /**
+     * Record indexes of this shard in the order they are served in {@code epoch}.
+     */
+    public int[] order(final int epoch) {
+        final int size = size();
+        final int[] permutation = new int[size];
+        for (int i = 0; i < size; i++) {
+            permutation[i] = i;
+        }
+        if (shuffle) {
+            final Random random = new Random(seed * 31 + epoch);
+            for (int i = size - 1; i > 0; i--) {
+                final int j = random.nextInt(i + 1);
+                final int swap = permutation[i];
+                permutation[i] = permutation[j];
+                permutation[j] = swap;
+            }
+        }
+        final int[] shard = new int[shardSize()];
+        for (int i = 0; i < shard.length; i++) {
+            shard[i] = permutation[shardIndex + i * numShards];
+        }
+        return shard;
+    }
+
+    /**
+     * Starts decoding {@code epoch} in the background. The iterator must be closed when it is abandoned
+     * before the end of the epoch.
+     */
+    public BatchIterator epoch(final int epoch) {
+        return new BatchIterator(epoch);
+    }
+
+    /**
+     * Batches of one epoch. Asking for the next batch hands the previously returned one back to the
+     * worker that prepared it, which reuses its buffers.
+     */
+    public class BatchIterator implements Iterator<Batch>, Closeable {
+
+        private final Batch failed = new Batch(0, 0);
+
+        private final Worker[] pool = new Worker[workers];
+
+        private final int[] order;
+
+        private final int batches;
+
+        private volatile RuntimeException failure;
+
+        private int nextIndex;
+
+        private Batch current;
+
+        private Batch next;
+
+        private BatchIterator(final int epoch) {
+            this.order = order(epoch);
+            this.batches = numberOfBatches();
+            final int buffers = (prefetch + workers - 1) / workers + 1;
+            for (int w = 0; w < workers; w++) {
+                pool[w] = new Worker(epoch, w, buffers);
+            }
+            for (final Worker worker : pool) {
+                worker.thread.start();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                if (current != null) {
+                    current.home.add(current);
+                    current = null;
+                }
+                if (nextIndex == batches) {
+                    return false;
+                }
+                try {
+                    next = pool[nextIndex % workers].ready.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for a batch", e);
+                }
+                if (next != failed) {
+                    nextIndex++;
+                }
+            }
+            if (next == failed) {
+                // kept, so every later call fails too instead of waiting for a batch that never comes
+                throw new RuntimeException("Decoding batches failed", failure);
+            }
+            return true;
+        }
+
+        @Override
+        public Batch next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = null;
+            return current;
+        }
+
+        /**
+         * Stops the worker threads; batches already returned stay readable.
+         */
+        @Override
+        public void close() {
+            for (final Worker worker : pool) {
+                worker.thread.interrupt();
+            }
+            for (final Worker worker : pool) {
+                try {
+                    worker.thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        /**
+         * Prepares batches {@code index}, {@code index + workers}, ... into its own buffers.
+         */
+        private class Worker implements Runnable {
+
+            private final int epoch;
+
+            private final int index;
+
+            private final BlockingQueue<Batch> free;
+
+            private final BlockingQueue<Batch> ready;
+
+            private final Thread thread;
+
+            private final Random random = new Random();
+
+            private final Augmenter.Workspace workspace;
+
+            private Worker(final int epoch, final int index, final int buffers) {
+                this.epoch = epoch;
+                this.index = index;
+                this.free = new ArrayBlockingQueue<>(buffers);
+                this.ready = new ArrayBlockingQueue<>(buffers + 1);
+                for (int i = 0; i < buffers; i++) {
+                    final Batch batch = new Batch(batchSize, imageSize());
+                    batch.home = free;
+                    free.add(batch);
+                }
+                this.workspace = augmenter == null ? null : augmenter.newWorkspace();
+                this.thread = new Thread(this, "mnist-data-loader-" + index);
+                this.thread.setDaemon(true);
+            }
+
+            @Override
+            public void run() {
+                try {
+                    for (int b = index; b < batches; b += workers) {
+                        final Batch batch = free.take();
+                        final long start = System.nanoTime();
+                        decode(batch, b);
+                        Metrics.registry().timer(Metrics.DECODE_TIME).recordSince(start);
+                        Metrics.registry().counter(Metrics.DECODED_IMAGES).increment(batch.size);
+                        ready.put(batch);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    failure = e;
+                    ready.add(failed);
+                }
+            }
+
+            private void decode(final Batch batch, final int b) {
+                final int from = b * batchSize;
+                batch.size = Math.min(batchSize, order.length - from);
+                batch.epoch = epoch;
+                batch.index = b;
+                final float[] pixels = batch.images.data();
+                if (augmenter != null) {
+                    random.setSeed(((seed * 31 + epoch) * 1_000_003L) ^ b);
+                }
+                for (int i = 0; i < batch.size; i++) {
+                    final int record = order[from + i];
+                    batch.indexes[i] = record;
+                    if (imageMatrix != null) {
+                        imageMatrix.copyImage(record, pixels, batch.images.offset(i));
+                    } else {
+                        images.copyRecord(record, pixels, batch.images.offset(i), scale);
+                    }
+                    batch.labels.set(i, labelVector != null ? labelVector.get(record) : labels.getLabel(record));
+                    if (augmenter != null) {
+                        augmenter.augment(pixels, batch.images.offset(i), random, workspace);
+                    }
+                }
+            }
+        }
+    }
+}
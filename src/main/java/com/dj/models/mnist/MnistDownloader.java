@@ -1,36 +1,40 @@
 package com.dj.models.mnist;
 
-import org.apache.commons.io.FileUtils;
-
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 
+import static java.lang.String.format;
+
 public abstract class MnistDownloader {
 
-    private static final String HTTP_PROTOCOL = "http";
-    private static final String YANN_LECUN_HOST_NAME = "yann.lecun.com";
-    private static final String MNIST_TRAIN_SET_IMAGES = "/exdb/mnist/train-images-idx3-ubyte.gz";
-    private static final String MNIST_TRAIN_SET_LABELS = "/exdb/mnist/train-labels-idx1-ubyte.gz";
-    private static final String MNIST_TEST_SET_IMAGES = "/exdb/mnist/t10k-images-idx3-ubyte.gz";
-    private static final String MNIST_TEST_SET_LABELS = "/exdb/mnist/t10k-labels-idx1-ubyte.gz";
     private static final String TMP_DIR_PATH = System.getProperty("java.io.tmpdir");
-    
-    private static final File MNIST_TRAIN_SET_IMAGES_ZIP_FILE
-            = Paths.get(TMP_DIR_PATH, "train-images.gz").toFile();
-    private static final File MNIST_TRAIN_SET_LABELS_ZIP_FILE
-            = Paths.get(TMP_DIR_PATH, "train-labels.gz").toFile();
-    private static final File MNIST_TEST_SET_IMAGES_ZIP_FILE
-            = Paths.get(TMP_DIR_PATH, "test-images.gz").toFile();
-    private static final File MNIST_TEST_SET_LABELS_ZIP_FILE
-            = Paths.get(TMP_DIR_PATH, "test-labels.gz").toFile();
-    
+
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+
+    private static final String PARTIAL_SUFFIX = ".part";
+
     public static final File MNIST_TRAIN_SET_IMAGES_FILE
             = Paths.get(TMP_DIR_PATH, "train-images").toFile();
     public static final File MNIST_TRAIN_SET_LABELS_FILE
@@ -40,73 +44,322 @@ public abstract class MnistDownloader {
     public static final File MNIST_TEST_SET_LABELS_FILE
             = Paths.get(TMP_DIR_PATH, "test-labels").toFile();
 
+    public static final File MNIST_TRAIN_SET_IMAGES_ZIP_FILE
+            = Paths.get(TMP_DIR_PATH, "train-images.gz").toFile();
+    public static final File MNIST_TRAIN_SET_LABELS_ZIP_FILE
+            = Paths.get(TMP_DIR_PATH, "train-labels.gz").toFile();
+    public static final File MNIST_TEST_SET_IMAGES_ZIP_FILE
+            = Paths.get(TMP_DIR_PATH, "test-images.gz").toFile();
+    public static final File MNIST_TEST_SET_LABELS_ZIP_FILE
+            = Paths.get(TMP_DIR_PATH, "test-labels.gz").toFile();
+
+    /**
+     * The four files of the data set with the size and SHA-256 of the published archives.
+     */
+    private enum DataFile {
+        TRAIN_IMAGES("train-images-idx3-ubyte.gz", MNIST_TRAIN_SET_IMAGES_FILE.getName(),
+                9912422L, "440fcabf73cc546fa21475e81ea370265605f56be210a4024d2ca8f203523609"),
+        TRAIN_LABELS("train-labels-idx1-ubyte.gz", MNIST_TRAIN_SET_LABELS_FILE.getName(),
+                28881L, "3552534a0a558bbed6aed32b30c495cca23d567ec52cac8be1a0730e8010255c"),
+        TEST_IMAGES("t10k-images-idx3-ubyte.gz", MNIST_TEST_SET_IMAGES_FILE.getName(),
+                1648877L, "8d422c7b0a1c1c79245a5bcf07fe86e33eeafee792b84584aec276f5a2dbc4e6"),
+        TEST_LABELS("t10k-labels-idx1-ubyte.gz", MNIST_TEST_SET_LABELS_FILE.getName(),
+                4542L, "f7ae60f92e00ec6debd23a6088c31dbd2371eca3ffa0defaefb259924204aec6");
+
+        private final String remoteName;
+
+        private final String localName;
+
+        private final long size;
+
+        private final String sha256;
+
+        DataFile(final String remoteName, final String localName, final long size, final String sha256) {
+            this.remoteName = remoteName;
+            this.localName = localName;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+
+        private File file(final File directory) {
+            return new File(directory, localName);
+        }
+
+        private File zipFile(final File directory) {
+            return new File(directory, localName + ".gz");
+        }
+
+        private Path partialFile(final File directory) {
+            return Paths.get(directory.getPath(), localName + ".gz" + PARTIAL_SUFFIX);
+        }
+    }
+
     private MnistDownloader() { }
 
     public static void downloadMnist() {
-        if (MNIST_TRAIN_SET_IMAGES_FILE.exists() &&
-                MNIST_TRAIN_SET_LABELS_FILE.exists() &&
-                MNIST_TEST_SET_IMAGES_FILE.exists() &&
-                MNIST_TEST_SET_LABELS_FILE.exists()) {
+        downloadMnist(MnistSource.defaultSource());
+    }
+
+    public static void downloadMnist(final MnistSource source) {
+        downloadMnist(source, new File(TMP_DIR_PATH), true);
+    }
+
+    /**
+     * Fetches and decompresses the four files concurrently. Every file is written to a temporary
+     * file and renamed into place only once it is complete, so an interrupted run never leaves a file
+     * that is taken as cached; an interrupted download is resumed from where it stopped.
+     *
+     * @param directory       where archives and decompressed files are stored, files are named like
+     *                        {@link #MNIST_TRAIN_SET_IMAGES_FILE} and friends
+     * @param verifyChecksums check size and SHA-256 of the archives against the published data set,
+     *                        disable for stand-in data served from a local mirror
+     */
+    public static void downloadMnist(final MnistSource source, final File directory, final boolean verifyChecksums) {
+        downloadMnist(source, directory, verifyChecksums, true);
+    }
+
+    /**
+     * Fetches only the compressed archives ({@link #MNIST_TRAIN_SET_IMAGES_ZIP_FILE} and friends), for jobs
+     * that read them through {@link IdxStreamReader} and never need the decompressed copies on disk.
+     */
+    public static void downloadMnistArchives() {
+        downloadMnist(MnistSource.defaultSource(), new File(TMP_DIR_PATH), true, false);
+    }
+
+    public static void downloadMnist(final MnistSource source,
+                                     final File directory,
+                                     final boolean verifyChecksums,
+                                     final boolean decompress) {
+        if (Stream.of(DataFile.values())
+                .allMatch(dataFile -> isCached(directory, dataFile, verifyChecksums, decompress))) {
             return;
         }
-        final URL trainSetImages;
-        final URL trainSetLabels;
-        final URL testSetImages;
-        final URL testSetLabels;
-        try {
-            trainSetImages = new URL(HTTP_PROTOCOL, YANN_LECUN_HOST_NAME, MNIST_TRAIN_SET_IMAGES);
-            trainSetLabels= new URL(HTTP_PROTOCOL, YANN_LECUN_HOST_NAME, MNIST_TRAIN_SET_LABELS);
-            testSetImages = new URL(HTTP_PROTOCOL, YANN_LECUN_HOST_NAME, MNIST_TEST_SET_IMAGES);
-            testSetLabels= new URL(HTTP_PROTOCOL, YANN_LECUN_HOST_NAME, MNIST_TEST_SET_LABELS);
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Failure to create URLs that are required to download MNIst DataSet", e);
-        }
+        final ExecutorService executor = Executors.newFixedThreadPool(DataFile.values().length);
         try {
-            FileUtils.copyURLToFile(trainSetImages, MNIST_TRAIN_SET_IMAGES_ZIP_FILE);
-            FileUtils.copyURLToFile(trainSetLabels, MNIST_TRAIN_SET_LABELS_ZIP_FILE);
-            FileUtils.copyURLToFile(testSetImages, MNIST_TEST_SET_IMAGES_ZIP_FILE);
-            FileUtils.copyURLToFile(testSetLabels, MNIST_TEST_SET_LABELS_ZIP_FILE);
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Failure to download MNIst DataSet", e);
+            final List<Future<?>> downloads = new ArrayList<>();
+            for (final DataFile dataFile : DataFile.values()) {
+                downloads.add(executor.submit(() -> fetch(source, directory, dataFile, verifyChecksums, decompress)));
+            }
+            for (final Future<?> download : downloads) {
+                download.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Download of MNIst DataSet was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Failure to download MNIst DataSet", e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
-
-        unZipFile(MNIST_TRAIN_SET_IMAGES_ZIP_FILE, MNIST_TRAIN_SET_IMAGES_FILE);
-        unZipFile(MNIST_TRAIN_SET_LABELS_ZIP_FILE, MNIST_TRAIN_SET_LABELS_FILE);
-        unZipFile(MNIST_TEST_SET_IMAGES_ZIP_FILE, MNIST_TEST_SET_IMAGES_FILE);
-        unZipFile(MNIST_TEST_SET_LABELS_ZIP_FILE, MNIST_TEST_SET_LABELS_FILE);
     }
 
     public static void clearDownloadedFiles() {
-        removeFilesIfExist(
-                MNIST_TRAIN_SET_IMAGES_ZIP_FILE,
-                MNIST_TRAIN_SET_LABELS_ZIP_FILE,
-                MNIST_TEST_SET_IMAGES_ZIP_FILE,
-                MNIST_TEST_SET_LABELS_ZIP_FILE,
-                MNIST_TRAIN_SET_IMAGES_FILE,
-                MNIST_TRAIN_SET_LABELS_FILE,
-                MNIST_TEST_SET_IMAGES_FILE,
-                MNIST_TEST_SET_LABELS_FILE);
+        clearDownloadedFiles(new File(TMP_DIR_PATH));
+    }
+
+    public static void clearDownloadedFiles(final File directory) {
+        for (final DataFile dataFile : DataFile.values()) {
+            removeFilesIfExist(
+                    dataFile.zipFile(directory),
+                    dataFile.file(directory),
+                    dataFile.partialFile(directory).toFile());
+        }
     }
 
     private static void removeFilesIfExist(final File... files) {
        Stream.of(files).filter(File::exists).forEach(File::delete);
     }
 
-    private static void unZipFile(final File fileToUnzip, final File dest) {
-        final byte[] buffer = new byte[1024];
+    private static void fetch(final MnistSource source,
+                              final File directory,
+                              final DataFile dataFile,
+                              final boolean verifyChecksums,
+                              final boolean decompress) {
+        final File file = dataFile.file(directory);
+        final File zipFile = dataFile.zipFile(directory);
+        if (isCached(directory, dataFile, verifyChecksums, decompress)) {
+            return;
+        }
+        if (!isCached(directory, dataFile, verifyChecksums, false)) {
+            download(source, directory, dataFile, verifyChecksums);
+        }
+        if (!decompress) {
+            return;
+        }
+        try {
+            unZipFile(zipFile, file);
+        } catch (RuntimeException e) {
+            if (verifyChecksums) {
+                throw e;
+            }
+            // Nothing to verify a cached archive against but its own CRC, fetch it again.
+            zipFile.delete();
+            download(source, directory, dataFile, false);
+            unZipFile(zipFile, file);
+        }
+    }
+
+    private static boolean isCached(final File directory,
+                                    final DataFile dataFile,
+                                    final boolean verifyChecksums,
+                                    final boolean decompress) {
+        if (decompress) {
+            return isUnzipped(dataFile.file(directory));
+        }
+        final File zipFile = dataFile.zipFile(directory);
+        // Archives only ever appear under their final name once complete.
+        return zipFile.exists() && (!verifyChecksums || matchesChecksum(dataFile, zipFile));
+    }
+
+    private static boolean isUnzipped(final File file) {
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            IdxDataset.open(file);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
 
-        try(GZIPInputStream src = new GZIPInputStream(new FileInputStream(fileToUnzip));
-            FileOutputStream dst = new FileOutputStream(dest)) {
+    private static boolean matchesChecksum(final DataFile dataFile, final File zipFile) {
+        try {
+            return zipFile.length() == dataFile.size && dataFile.sha256.equals(hexSha256(zipFile.toPath()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-            int len;
-            while ((len = src.read(buffer)) > 0) {
-                dst.write(buffer, 0, len);
+    private static void download(final MnistSource source,
+                                 final File directory,
+                                 final DataFile dataFile,
+                                 final boolean verifyChecksums) {
+        final Path partial = dataFile.partialFile(directory);
+        try {
+            final MessageDigest digest = sha256();
+            long offset = 0;
+            if (Files.exists(partial)) {
+                offset = updateDigest(digest, partial);
+                if (verifyChecksums && offset > dataFile.size) {
+                    Files.delete(partial);
+                    digest.reset();
+                    offset = 0;
+                }
+            }
+            if (!verifyChecksums || offset < dataFile.size) {
+                final long start = System.nanoTime();
+                final long bytes = append(source.open(dataFile.remoteName, offset), partial, digest);
+                Metrics.registry().counter(Metrics.DOWNLOAD_BYTES).increment(bytes);
+                Metrics.registry().timer(Metrics.DOWNLOAD_TIME).recordSince(start);
+            }
+            if (verifyChecksums) {
+                final long size = Files.size(partial);
+                final String sha256 = toHex(digest.digest());
+                if (size != dataFile.size || !dataFile.sha256.equals(sha256)) {
+                    Files.delete(partial);
+                    throw new RuntimeException(format(
+                            "Downloaded %s is corrupted: %d bytes with SHA-256 %s, expected %d bytes with SHA-256 %s",
+                            dataFile.remoteName, size, sha256, dataFile.size, dataFile.sha256));
+                }
             }
+            Files.move(partial, dataFile.zipFile(directory).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to download MNIst DataSet", e);
+        }
+    }
+
+    private static long append(final InputStream source, final Path partial, final MessageDigest digest)
+            throws IOException {
+        try (InputStream input = source;
+             ReadableByteChannel in = Channels.newChannel(input);
+             FileChannel out = FileChannel.open(partial,
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+            long bytes = 0;
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                bytes += buffer.remaining();
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+            out.force(false);
+            return bytes;
+        }
+    }
+
+    private static void unZipFile(final File fileToUnzip, final File dest) {
+        final Path tmp = Paths.get(dest.getPath() + ".tmp");
+        try (InputStream src = new GZIPInputStream(
+                new BufferedInputStream(new FileInputStream(fileToUnzip), IO_BUFFER_SIZE), IO_BUFFER_SIZE);
+             ReadableByteChannel in = Channels.newChannel(src);
+             FileChannel dst = FileChannel.open(tmp,
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    dst.write(buffer);
+                }
+                buffer.clear();
+            }
+            dst.force(false);
         } catch(IOException e) {
             e.printStackTrace();
+            tmp.toFile().delete();
+            throw new RuntimeException("Unzip process have failed", e);
+        }
+        try {
+            IdxDataset.open(tmp.toFile());
+            Files.move(tmp, dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            tmp.toFile().delete();
             throw new RuntimeException("Unzip process have failed", e);
         }
     }
+
+    private static long updateDigest(final MessageDigest digest, final Path file) throws IOException {
+        long size = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+            int read;
+            while ((read = channel.read(buffer)) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+                size += read;
+            }
+        }
+        return size;
+    }
+
+    private static String hexSha256(final Path file) throws IOException {
+        final MessageDigest digest = sha256();
+        updateDigest(digest, file);
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
 }
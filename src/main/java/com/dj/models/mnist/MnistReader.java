@@ -2,10 +2,8 @@ package com.dj.models.mnist;
 
 import static java.lang.String.format;
 
-import java.io.ByteArrayOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -17,32 +15,27 @@ public class MnistReader {
 	public static final int IMAGE_FILE_MAGIC_NUMBER = 2051;
 
 	public static int[] getLabels(String infile) {
+		IdxDataset dataset = IdxDataset.openLabels(infile);
 
-		ByteBuffer bb = loadFileToByteBuffer(infile);
-
-		assertMagicNumber(LABEL_FILE_MAGIC_NUMBER, bb.getInt());
-
-		int numLabels = bb.getInt();
+		int numLabels = dataset.size();
 		int[] labels = new int[numLabels];
 
 		for (int i = 0; i < numLabels; ++i)
-			labels[i] = bb.get() & 0xFF; // To unsigned
+			labels[i] = dataset.getLabel(i);
 
 		return labels;
 	}
 
 	public static List<int[][]> getImages(String infile) {
-		ByteBuffer bb = loadFileToByteBuffer(infile);
-
-		assertMagicNumber(IMAGE_FILE_MAGIC_NUMBER, bb.getInt());
+		IdxDataset dataset = IdxDataset.openImages(infile);
 
-		int numImages = bb.getInt();
-		int numRows = bb.getInt();
-		int numColumns = bb.getInt();
-		List<int[][]> images = new ArrayList<>();
+		int numImages = dataset.size();
+		int numRows = dataset.dimension(1);
+		int numColumns = dataset.dimension(2);
+		List<int[][]> images = new ArrayList<>(numImages);
 
 		for (int i = 0; i < numImages; i++)
-			images.add(readImage(numRows, numColumns, bb));
+			images.add(readImage(numRows, numColumns, dataset.record(i)));
 
 		return images;
 	}
@@ -85,19 +78,10 @@ public class MnistReader {
 	}
 
 	public static byte[] loadFile(String infile) {
-		try {
-			RandomAccessFile f = new RandomAccessFile(infile, "r");
-			FileChannel chan = f.getChannel();
-			long fileSize = chan.size();
-			ByteBuffer bb = ByteBuffer.allocate((int) fileSize);
-			chan.read(bb);
-			bb.flip();
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			for (int i = 0; i < fileSize; i++)
-				baos.write(bb.get());
-			chan.close();
-			f.close();
-			return baos.toByteArray();
+		try (RandomAccessFile f = new RandomAccessFile(infile, "r")) {
+			byte[] content = new byte[(int) f.length()];
+			f.readFully(content);
+			return content;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -0,0 +1,98 @@
+package com.dj.models.mnist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Where {@link MnistDownloader} fetches the compressed MNIst files from: a base URL (http or
+ * {@code file://}), a local mirror directory or a classpath location. The source can be overridden
+ * without code changes through the {@value #SOURCE_PROPERTY} system property, which takes a base URL
+ * or a {@code classpath:} prefix.
+ */
+public interface MnistSource {
+
+    String SOURCE_PROPERTY = "dj.mnist.source";
+
+    String YANN_LECUN_BASE_URL = "http://yann.lecun.com/exdb/mnist/";
+
+    /**
+     * Opens the file with the given name (e.g. {@code train-images-idx3-ubyte.gz}) positioned at
+     * {@code offset}, so interrupted downloads can be resumed.
+     */
+    InputStream open(String fileName, long offset) throws IOException;
+
+    static MnistSource defaultSource() {
+        final String configured = System.getProperty(SOURCE_PROPERTY);
+        if (configured == null || configured.isEmpty()) {
+            return url(YANN_LECUN_BASE_URL);
+        }
+        if (configured.startsWith("classpath:")) {
+            return classpath(configured.substring("classpath:".length()));
+        }
+        return url(configured);
+    }
+
+    static MnistSource url(final String baseUrl) {
+        final URL base;
+        try {
+            base = new URL(baseUrl.endsWith("/") ? baseUrl : baseUrl + "/");
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to create URLs that are required to download MNIst DataSet", e);
+        }
+        return (fileName, offset) -> {
+            final URLConnection connection = new URL(base, fileName).openConnection();
+            if (offset > 0 && connection instanceof HttpURLConnection) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                final InputStream stream = connection.getInputStream();
+                if (((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+                    return stream;
+                }
+                // The server ignored the range request and sends the whole file.
+                return skip(stream, offset);
+            }
+            return skip(connection.getInputStream(), offset);
+        };
+    }
+
+    static MnistSource directory(final File directory) {
+        return (fileName, offset) -> skip(new FileInputStream(new File(directory, fileName)), offset);
+    }
+
+    static MnistSource classpath(final String resourcePrefix) {
+        final String prefix = resourcePrefix.isEmpty() || resourcePrefix.endsWith("/")
+                ? resourcePrefix
+                : resourcePrefix + "/";
+        return (fileName, offset) -> {
+            final InputStream stream = MnistSource.class.getClassLoader().getResourceAsStream(prefix + fileName);
+            if (stream == null) {
+                throw new FileNotFoundException("classpath:" + prefix + fileName);
+            }
+            return skip(stream, offset);
+        };
+    }
+
+    private static InputStream skip(final InputStream stream, final long offset) throws IOException {
+        long remaining = offset;
+        while (remaining > 0) {
+            final long skipped = stream.skip(remaining);
+            if (skipped <= 0) {
+                if (stream.read() < 0) {
+                    stream.close();
+                    throw new IOException("Source is shorter than the already downloaded part");
+                }
+                remaining--;
+            } else {
+                remaining -= skipped;
+            }
+        }
+        return stream;
+    }
+}
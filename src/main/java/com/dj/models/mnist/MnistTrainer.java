@@ -2,201 +2,318 @@ package com.dj.models.mnist;
 
 
 import com.dj.core.helpers.NormalizationHelper;
-import com.dj.core.model.activation.LeakyRelu;
-import com.dj.core.model.activation.Sigmoid;
-import com.dj.core.model.graph.ConnectedNeuron;
 import com.dj.core.model.graph.Context;
-import com.dj.core.model.graph.InputNeuron;
 import com.dj.core.model.graph.Neuron;
 import com.dj.core.model.loss.Loss;
-import com.dj.core.model.loss.QuadraticLoss;
-import com.dj.core.optimizer.Optimizer;
-import com.dj.core.optimizer.OptimizerProgressListener;
 import com.dj.core.optimizer.SGDOptimizer;
 import com.dj.core.serializer.ModelWrapper;
 import com.dj.core.serializer.SerializerHelper;
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
+import com.google.common.util.concurrent.AtomicDouble;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.nio.charset.Charset;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.file.Paths;
 import java.util.List;
-import java.util.Random;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MnistTrainer {
 
-    private static final int INDEX_OF_KAGGLE_IMAGES = 0;
+    private static final String TMP_DIR_PATH = System.getProperty("java.io.tmpdir");
 
-    private static final int INDEX_OF_KAGGLE_LABELS = 1;
+    private static final File OUTPUT_DIRECTORY = new File("/tmp");
+
+    private static final File KAGGLE_TRAIN_SET_IMAGES_FILE = Paths.get(TMP_DIR_PATH, "kaggle-train-images").toFile();
+
+    private static final File KAGGLE_TRAIN_SET_LABELS_FILE = Paths.get(TMP_DIR_PATH, "kaggle-train-labels").toFile();
+
+    private static final File KAGGLE_TEST_SET_IMAGES_FILE = Paths.get(TMP_DIR_PATH, "kaggle-test-images").toFile();
+
+    /**
+     * Cache keys of the preprocessing below; bump them whenever it changes.
+     */
+    private static final String IMAGES_PREPROCESSING = "idx-images/NormalizationHelper.normalize/v1";
+
+    private static final String LABELS_PREPROCESSING = "idx-labels/v1";
+
+    private static SparseImageMatrix kaggleTestImages;
 
     public static void downloadDataAndTrainMnistNN(final boolean debug) {
         final ModelWrapper modelWrapper = createTheModel(debug);
         downloadDataAndTrainMnistNN(modelWrapper);
     }
 
-    public static void downloadDataAndTrainMnistNN(final ModelWrapper modelWrapper) {
-        System.out.println("Downloading MNIst images");
-        MnistDownloader.downloadMnist();
-        System.out.println("done\n");
-
-        System.out.println("loading training data in memory");
-        final double[][] trainLabels = loadLabels(MnistDownloader.MNIST_TRAIN_SET_LABELS_FILE.toString());
-
-        final double[][] trainImages = loadImages(MnistDownloader.MNIST_TRAIN_SET_IMAGES_FILE.toString());
-        System.out.println("done\n");
+    /**
+     * Trains a new model of the given shape, see {@link ModelSpec#preset(String)} for the bundled ones.
+     */
+    public static void downloadDataAndTrainMnistNN(final ModelSpec spec, final boolean debug) {
+        downloadDataAndTrainMnistNN(spec.createModel(debug), spec.getLoss(), defaultTrainingControl());
+    }
 
-        System.out.println("loading testing data in memory");
-        final double[][] testLabels = loadLabels(MnistDownloader.MNIST_TEST_SET_LABELS_FILE.toString());
+    public static void downloadDataAndTrainMnistNN(final ModelWrapper modelWrapper) {
+        downloadDataAndTrainMnistNN(modelWrapper, defaultTrainingControl());
+    }
 
-        final double[][] testImages = loadImages(MnistDownloader.MNIST_TEST_SET_IMAGES_FILE.toString());
-        System.out.println("done\n");
-        trainMnistNN(modelWrapper, trainLabels, trainImages, testLabels, testImages);
+    public static void downloadDataAndTrainMnistNN(final ModelWrapper modelWrapper, final TrainingControl control) {
+        downloadDataAndTrainMnistNN(modelWrapper, BatchTrainer.LossFunction.QUADRATIC, control);
     }
 
-    public static void trainMnistNNOnKaggleData(final boolean debug) {
-        final ModelWrapper modelWrapper = createTheModel(debug);
+    private static void downloadDataAndTrainMnistNN(final ModelWrapper modelWrapper,
+                                                    final BatchTrainer.LossFunction loss,
+                                                    final TrainingControl control) {
+        final Metrics.Installation metrics = Metrics.installFromSystemProperties();
+        try {
+            System.out.println("Downloading MNIst images");
+            MnistDownloader.downloadMnist();
+            System.out.println("done\n");
 
-        System.out.println("Downloading MNIst images");
-        MnistDownloader.downloadMnist();
-        System.out.println("done\n");
+            System.out.println("loading training data in memory");
+            final LabelVector trainLabels = loadLabelVector(MnistDownloader.MNIST_TRAIN_SET_LABELS_FILE.toString());
 
-        System.out.println("Preparing training data");
-        final String path = MnistTrainer.class.getClassLoader()
-                .getResource("com/dj/models/mnist/train.csv")
-                .getPath();
-        final double[][][] kaggleData = readKaggleDataTraining(path);
-        final double[][] trainImages = kaggleData[INDEX_OF_KAGGLE_IMAGES];
-        final double[][] trainLabels = kaggleData[INDEX_OF_KAGGLE_LABELS];
-        System.out.println("done");
+            final ImageMatrix trainImages = loadImageMatrix(MnistDownloader.MNIST_TRAIN_SET_IMAGES_FILE.toString());
+            System.out.println("done\n");
 
-        System.out.println("Loading testing data");
-        final double[][] testLabels = loadLabels(MnistDownloader.MNIST_TEST_SET_LABELS_FILE.toString());
+            System.out.println("loading testing data in memory");
+            final LabelVector testLabels = loadLabelVector(MnistDownloader.MNIST_TEST_SET_LABELS_FILE.toString());
 
-        final double[][] testImages = loadImages(MnistDownloader.MNIST_TEST_SET_IMAGES_FILE.toString());
-        System.out.println("done\n");
-        trainMnistNN(modelWrapper, trainLabels, trainImages, testLabels, testImages);
-        SerializerHelper.serializeToFile(modelWrapper, "/tmp/mnist_kaggle.dj");
+            final ImageMatrix testImages = loadImageMatrix(MnistDownloader.MNIST_TEST_SET_IMAGES_FILE.toString());
+            System.out.println("done\n");
+            trainMnistNN(modelWrapper, loss, control, trainLabels, trainImages, testLabels, testImages,
+                    OUTPUT_DIRECTORY, true);
+        } finally {
+            metrics.close();
+        }
     }
 
-    private static double[][][] readKaggleDataTraining(final String path) {
-        final File csvData = new File(path);
-        final CSVParser parser;
-        final List<CSVRecord> records;
+    public static void trainMnistNNOnKaggleData(final boolean debug) {
+        final ModelWrapper modelWrapper = createTheModel(debug);
+
+        final Metrics.Installation metrics = Metrics.installFromSystemProperties();
         try {
-            parser = CSVParser.parse(csvData, Charset.defaultCharset(), CSVFormat.EXCEL.withHeader());
-            records= parser.getRecords();
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("CSV parsing failed", e);
+            System.out.println("Downloading MNIst images");
+            MnistDownloader.downloadMnist();
+            System.out.println("done\n");
+
+            System.out.println("Preparing training data");
+            final String path = MnistTrainer.class.getClassLoader()
+                    .getResource("com/dj/models/mnist/train.csv")
+                    .getPath();
+            KaggleCsvReader.convertToIdxIfNeeded(path, true, KAGGLE_TRAIN_SET_IMAGES_FILE,
+                    KAGGLE_TRAIN_SET_LABELS_FILE);
+            final ImageMatrix trainImages = loadImageMatrix(KAGGLE_TRAIN_SET_IMAGES_FILE.toString());
+            final LabelVector trainLabels = loadLabelVector(KAGGLE_TRAIN_SET_LABELS_FILE.toString());
+            System.out.println("done");
+
+            System.out.println("Loading testing data");
+            final LabelVector testLabels = loadLabelVector(MnistDownloader.MNIST_TEST_SET_LABELS_FILE.toString());
+
+            final ImageMatrix testImages = loadImageMatrix(MnistDownloader.MNIST_TEST_SET_IMAGES_FILE.toString());
+            System.out.println("done\n");
+            trainMnistNN(modelWrapper, BatchTrainer.LossFunction.QUADRATIC, defaultTrainingControl(),
+                    trainLabels, trainImages, testLabels, testImages, OUTPUT_DIRECTORY, true);
+        } finally {
+            metrics.close();
         }
+        SerializerHelper.serializeToFile(modelWrapper, "/tmp/mnist_kaggle.dj");
+    }
 
-        final double[][] trainImages = new double[records.size()][784];
-        final double[][] trainLabels = new double[records.size()][10];
-        IntStream.range(0, records.size()).forEach(imageIndex ->
-                IntStream.range(0, 784).forEach(pixelIndex -> {
-                    trainImages[imageIndex][pixelIndex] = Integer.parseInt(records.get(imageIndex).get(pixelIndex + 1));
-                    final int label = Integer.parseInt(records.get(imageIndex).get(0));
-                    trainLabels[imageIndex][label] = 1.;
-                })
-        );
-        final double[][][] result = new double[2][][];
-        result[INDEX_OF_KAGGLE_IMAGES] = NormalizationHelper.normalize(trainImages);
-        result[INDEX_OF_KAGGLE_LABELS] = trainLabels;
-        return result;
+    private static void prepareSubmissionData(final CompiledModel model, final String outpuPath) {
+        new SubmissionWriter().write(model, kaggleTestImages(), new File(outpuPath));
     }
 
-    private static void prepareSubmissionData(final ModelWrapper modelWrapper, final String outpuPath) {
-        final String path = MnistTrainer.class.getClassLoader()
-                .getResource("com/dj/models/mnist/test.csv")
-                .getPath();
-        final double[][] testImages = readKaggleTestData(path);
-
-        final StringBuilder outputResult = new StringBuilder();
-        outputResult.append("ImageId,Label\n");
-        IntStream.range(0, testImages.length).forEach(imageIndex -> {
-            final double[] image = testImages[imageIndex];
-            IntStream.range(0, image.length).forEach(pixelIndex -> {
-                modelWrapper.getInputLayer().get(pixelIndex).forwardSignalReceived(null, image[pixelIndex]);
-            });
-            int answer = 0;
-            double probability = -1.;
-            for (int i = 0; i < 10; i++) {
-                final double actualValue = (modelWrapper.getOutputLayer().get(i)).getForwardResult();
-                if (actualValue > probability) {
-                    probability = actualValue;
-                    answer = i;
-                }
-            }
-            outputResult.append(String.format("%d,%d\n", imageIndex + 1, answer));
-        });
-        try(BufferedWriter kaggleResultWriter = new BufferedWriter(new FileWriter(new File(outpuPath)))) {
-            kaggleResultWriter.write(outputResult.toString());
-            kaggleResultWriter.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("writing Kaggle result failed", e);
+    /**
+     * Kaggle test images, parsed and normalized on first use only since every checkpoint writes a
+     * submission, and kept in sparse form for as long as training runs.
+     */
+    private static synchronized SparseImageMatrix kaggleTestImages() {
+        if (kaggleTestImages == null) {
+            final String path = MnistTrainer.class.getClassLoader()
+                    .getResource("com/dj/models/mnist/test.csv")
+                    .getPath();
+            KaggleCsvReader.convertToIdxIfNeeded(path, false, KAGGLE_TEST_SET_IMAGES_FILE, null);
+            kaggleTestImages = SparseImageMatrix.fromDense(loadImageMatrix(KAGGLE_TEST_SET_IMAGES_FILE.toString()));
         }
+        return kaggleTestImages;
+    }
+
+    /**
+     * Up to 500 epochs, stopping once the test error did not improve for 20 epochs and keeping the best
+     * weights.
+     */
+    public static TrainingControl defaultTrainingControl() {
+        return new TrainingControl.Builder()
+                .maxEpochs(TrainingControl.DEFAULT_MAX_EPOCHS)
+                .patience(20)
+                .restoreBest(true)
+                .build();
     }
 
-    private static double[][] readKaggleTestData(final String path) {
-        final File csvData = new File(path);
-        final CSVParser parser;
-        final List<CSVRecord> records;
+    /**
+     * Trains on data already in memory, e.g. a few hundred images for a run that ends in seconds, and writes
+     * the model and its checkpoints to {@code outputDirectory}. Images are normalized as by
+     * {@link #loadImageMatrix(String)}; no Kaggle submissions are written.
+     */
+    public static TrainingControl.Result trainMnistNN(final ModelWrapper modelWrapper,
+                                                      final TrainingControl control,
+                                                      final ImageMatrix trainImages,
+                                                      final LabelVector trainLabels,
+                                                      final ImageMatrix testImages,
+                                                      final LabelVector testLabels,
+                                                      final File outputDirectory) {
+        final Metrics.Installation metrics = Metrics.installFromSystemProperties();
         try {
-            parser = CSVParser.parse(csvData, Charset.defaultCharset(), CSVFormat.EXCEL.withHeader());
-            records= parser.getRecords();
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("CSV parsing failed", e);
+            return trainMnistNN(modelWrapper, BatchTrainer.LossFunction.QUADRATIC, control, trainLabels, trainImages,
+                    testLabels, testImages, outputDirectory, false);
+        } finally {
+            metrics.close();
         }
-
-        final double[][] testImages = new double[records.size()][784];
-        IntStream.range(0, records.size()).forEach(imageIndex ->
-                IntStream.range(0, 784).forEach(pixelIndex -> {
-                    testImages[imageIndex][pixelIndex] = Integer.parseInt(records.get(imageIndex).get(pixelIndex));
-                })
-        );
-        return NormalizationHelper.normalize(testImages);
     }
 
-    private static void trainMnistNN(final ModelWrapper modelWrapper,
-                                    final double[][] trainLabels,
-                                    final double[][] trainImages,
-                                    final double[][] testLabels,
-                                    final double[][] testImages) {
+    private static TrainingControl.Result trainMnistNN(final ModelWrapper modelWrapper,
+                                                       final BatchTrainer.LossFunction loss,
+                                                       final TrainingControl control,
+                                                       final LabelVector trainLabels,
+                                                       final ImageMatrix trainImages,
+                                                       final LabelVector testLabels,
+                                                       final ImageMatrix testImages,
+                                                       final File outputDirectory,
+                                                       final boolean kaggleSubmissions) {
         List<Neuron> inputLayer = modelWrapper.getInputLayer();
         List<Neuron> outputLayer
                 = modelWrapper.getOutputLayer();
         Context context = modelWrapper.getContext();
-        final Loss loss = new QuadraticLoss();
-        final Optimizer optimizer
-                = new SGDOptimizer(loss, 500, new OptimizerProgressListener() {
-            @Override
-            public void onProgress(final double v, final int i, final int i1) {
-                final double updatedLoss = calculateError(inputLayer, outputLayer, testImages, testLabels);
-                System.out.printf(
-                        "LOSS: %5f, CorrectLoss: %10f,Epoch: %d of %d\n",
-                        v,
-                        updatedLoss,
-                        i,
-                        i1);
-                SerializerHelper.serializeToFile(modelWrapper, String.format("/tmp/mnist_model_checkpoint_%d.dj", i));
-                prepareSubmissionData(modelWrapper, String.format("/tmp/submission_checkpoint_%d.csv", i));
-            }
-        }, 2.);
-        optimizer.train(context, inputLayer, outputLayer, trainImages, trainLabels, testImages, testLabels);
+        final AtomicLong epochStart = new AtomicLong(System.nanoTime());
+        final AtomicDouble imagesPerSecond = new AtomicDouble();
+        Metrics.registry().gauge(Metrics.TRAIN_IMAGES_PER_SECOND, imagesPerSecond::get);
+        final CheckpointManager checkpoints = new CheckpointManager.Builder()
+                .modelFilePattern(new File(outputDirectory, "mnist_model_checkpoint_%d.dj").toString())
+                .context(context)
+                .evaluationData(testImages, testLabels)
+                .listener(checkpoint -> {
+                    System.out.printf("CorrectLoss: %10f, Epoch: %d\n", checkpoint.getError(), checkpoint.getEpoch());
+                    if (kaggleSubmissions && checkpoint.getModel() != null) {
+                        final File submission = new File(outputDirectory,
+                                String.format("submission_checkpoint_%d.csv", checkpoint.getEpoch()));
+                        prepareSubmissionData(checkpoint.getModel(), submission.toString());
+                        checkpoint.attach(submission);
+                    }
+                })
+                .keepLast(3)
+                .keepBest(2)
+                .build();
+        final boolean compilable = compilable(modelWrapper);
+        final TrainingControl.Result result;
+        try {
+            result = control.train(modelWrapper,
+                    trainer(loss, compilable, control.getMaxEpochs(), trainImages, trainLabels, testImages, testLabels),
+                    testImages, testLabels,
+                    (epoch, epochLoss, snapshot, error) -> {
+                        System.out.printf("LOSS: %5f, Epoch: %d of %d\n", epochLoss, epoch, control.getMaxEpochs());
+                        final long now = System.nanoTime();
+                        final long epochTime = now - epochStart.getAndSet(now);
+                        Metrics.registry().timer(Metrics.TRAIN_EPOCH_TIME).record(epochTime, TimeUnit.NANOSECONDS);
+                        Metrics.registry().counter(Metrics.TRAIN_IMAGES).increment(trainImages.size());
+                        imagesPerSecond.set(trainImages.size() * 1e9 / Math.max(1, epochTime));
+                        checkpoints.submit(epoch, epochLoss, modelWrapper);
+                    });
+        } finally {
+            checkpoints.close();
+        }
+        System.out.println(result);
 
         final ModelWrapper model = new ModelWrapper.Builder().inputLayer(inputLayer).outputLayer(outputLayer).build();
-        SerializerHelper.serializeToFile(model, "/tmp/mnist.dj");
+        SerializerHelper.serializeToFile(model, new File(outputDirectory, "mnist.dj").toString());
+        try {
+            ModelFile.exportModel(model, new File(outputDirectory, "mnist.djm"));
+        } catch (UnsupportedOperationException e) {
+            System.out.println("Not exporting " + new File(outputDirectory, "mnist.djm") + ": " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * A {@link BatchTrainer} fed by a {@link MnistDataLoader}, or a {@link DataParallelTrainer} when the
+     * system property {@code dj.train.workers} is set ({@code dj.train.hogwild=true} selects its asynchronous
+     * mode). With {@code dj.train.engine=matrix} the {@link BatchTrainer} trains on the whole matrices, in
+     * sparse form, instead; {@link DataParallelTrainer} only trains the quadratic loss, other losses use
+     * the {@link BatchTrainer}. The per-neuron {@link SGDOptimizer} is used for graphs that can not be
+     * compiled or with {@code dj.train.engine=graph}; it trains at the learning rate of the context rather
+     * than the schedule, and is the only one that takes the images as rows.
+     * {@code dj.train.batchSize} sets the mini-batch size of the others; {@code dj.train.augment=true}
+     * distorts the images the loader serves, see {@link #augmenter()}.
+     */
+    private static TrainingControl.Trainer trainer(final BatchTrainer.LossFunction loss,
+                                                   final boolean compilable,
+                                                   final int epochs,
+                                                   final ImageMatrix trainImages,
+                                                   final LabelVector trainLabels,
+                                                   final ImageMatrix testImages,
+                                                   final LabelVector testLabels) {
+        if (!compilable || "graph".equals(System.getProperty("dj.train.engine"))) {
+            final Loss graphLoss = loss.create();
+            return (modelWrapper, learningRate, listener) -> new SGDOptimizer(graphLoss, epochs, listener, 2.)
+                    .train(modelWrapper.getContext(), modelWrapper.getInputLayer(), modelWrapper.getOutputLayer(),
+                            trainImages.toRows(), trainLabels.toOneHotRows(),
+                            testImages.toRows(), testLabels.toOneHotRows());
+        }
+        final int workers = loss == BatchTrainer.LossFunction.QUADRATIC ? Integer.getInteger("dj.train.workers", 0) : 0;
+        final boolean loader = workers < 1 && !"matrix".equals(System.getProperty("dj.train.engine"));
+        if (!loader && Boolean.getBoolean("dj.train.augment")) {
+            System.out.println("Not augmenting: only the data loader path distorts images");
+        }
+        if (loader) {
+            return (modelWrapper, learningRate, listener) -> new BatchTrainer.Builder()
+                    .epochs(epochs)
+                    .loss(loss)
+                    .listener(listener)
+                    .build()
+                    .train(modelWrapper.getInputLayer(), modelWrapper.getOutputLayer(), new MnistDataLoader.Builder()
+                            .images(trainImages)
+                            .labels(trainLabels)
+                            .batchSize(Integer.getInteger("dj.train.batchSize", BatchTrainer.DEFAULT_BATCH_SIZE))
+                            .augmenter(augmenter())
+                            .build(), learningRate);
+        }
+        if (workers < 1) {
+            return (modelWrapper, learningRate, listener) -> new BatchTrainer.Builder()
+                    .batchSize(Integer.getInteger("dj.train.batchSize", BatchTrainer.DEFAULT_BATCH_SIZE))
+                    .epochs(epochs)
+                    .loss(loss)
+                    .listener(listener)
+                    .build()
+                    .train(modelWrapper.getInputLayer(), modelWrapper.getOutputLayer(), trainImages, trainLabels,
+                            learningRate);
+        }
+        return (modelWrapper, learningRate, listener) -> new DataParallelTrainer.Builder()
+                .workers(workers)
+                .batchSize(Integer.getInteger("dj.train.batchSize", DataParallelTrainer.DEFAULT_BATCH_SIZE))
+                .epochs(epochs)
+                .listener(listener)
+                .mode(Boolean.getBoolean("dj.train.hogwild")
+                        ? DataParallelTrainer.Mode.HOGWILD
+                        : DataParallelTrainer.Mode.SYNCHRONOUS)
+                .build()
+                .train(modelWrapper.getInputLayer(), modelWrapper.getOutputLayer(), trainImages, trainLabels,
+                        learningRate);
+    }
+
+    /**
+     * Shifts of up to 2 pixels and rotations of up to 10 degrees with {@code dj.train.augment=true}, null
+     * otherwise. Both only move pixels, so they work on normalized images whose background is zero.
+     */
+    private static Augmenter augmenter() {
+        return Boolean.getBoolean("dj.train.augment")
+                ? new Augmenter.Builder().maxShift(2f).maxRotation(10f).build()
+                : null;
+    }
+
+    private static boolean compilable(final ModelWrapper modelWrapper) {
+        try {
+            ModelCompiler.compile(modelWrapper);
+            return true;
+        } catch (UnsupportedOperationException e) {
+            System.out.println("Training the graph itself: " + e.getMessage());
+            return false;
+        }
     }
 
     public static double[] convertLabel(final int label) {
@@ -206,10 +323,14 @@ public class MnistTrainer {
     }
 
     public static double[] convertImageToTheInput(final int[][] image) {
-        return Arrays.stream(image)
-                .flatMapToInt(row -> Arrays.stream(row))
-                .mapToDouble(pixel -> pixel)
-                .toArray();
+        final int columns = image.length == 0 ? 0 : image[0].length;
+        final double[] input = new double[image.length * columns];
+        for (int row = 0; row < image.length; row++) {
+            for (int column = 0; column < columns; column++) {
+                input[row * columns + column] = image[row][column];
+            }
+        }
+        return input;
     }
 
     public static double calculateError(
@@ -217,7 +338,23 @@ public class MnistTrainer {
             final List<Neuron> outputLayer,
             final double[][] images,
             final double[][] labels) {
-        List<Double> errors = new ArrayList<>(images.length);
+        final CompiledModel model;
+        try {
+            model = ModelCompiler.compile(inputLayer, outputLayer);
+        } catch (UnsupportedOperationException e) {
+            return calculateErrorOnGraph(inputLayer, outputLayer, images, labels);
+        }
+        return new ParallelEvaluator()
+                .evaluate(model, ImageMatrix.fromRows(images), LabelVector.fromOneHot(labels))
+                .errorRate();
+    }
+
+    static double calculateErrorOnGraph(
+            final List<Neuron> inputLayer,
+            final List<Neuron> outputLayer,
+            final double[][] images,
+            final double[][] labels) {
+        int errors = 0;
         for (int imageIndex = 0; imageIndex < images.length; imageIndex++) {
             final double[] image = images[imageIndex];
             for (int i = 0; i < image.length; i++) {
@@ -225,78 +362,75 @@ public class MnistTrainer {
             }
             int answer = 0;
             double probability = -1.;
-            int expectedValue = -1;
             for (int i = 0; i < 10; i++) {
                 final double actualValue = (outputLayer.get(i)).getForwardResult();
                 if (actualValue > probability) {
                     probability = actualValue;
                     answer = i;
                 }
-                if (labels[imageIndex][i] > 0) expectedValue = i;
             }
-            if (answer == expectedValue) {
-                errors.add(0.);
-            } else {
-                errors.add(1.);
+            if (answer != expectedValue(labels[imageIndex])) {
+                errors++;
             }
         }
-        return errors.stream().mapToDouble(i -> i).average().getAsDouble();
+        return (double) errors / images.length;
     }
 
-    private static double[][] loadLabels(final String path) {
-        final int[] trainLabelsRaw = MnistReader.getLabels(path);
-        final double[][] trainLabels = new double[trainLabelsRaw.length][];
-        IntStream.range(0, trainLabels.length).forEach(i -> trainLabels[i] = convertLabel(trainLabelsRaw[i]));
-        return trainLabels;
+    private static int expectedValue(final double[] label) {
+        for (int i = 0; i < label.length; i++) {
+            if (label[i] > 0) {
+                return i;
+            }
+        }
+        return -1;
     }
 
-    private static double[][] loadImages(final String path) {
-        final List<int[][]> trainImagesRaw = MnistReader.getImages(path);
-        final double[][] trainImages = new double[trainImagesRaw.size()][];
-        IntStream.range(0, trainImagesRaw.size())
-                .forEach(i -> trainImages[i] = convertImageToTheInput(trainImagesRaw.get(i)));
-        return NormalizationHelper.normalize(trainImages);
+    static double[][] loadLabels(final String path) {
+        return loadLabelVector(path).toOneHotRows();
     }
 
-    private static ModelWrapper createTheModel(final boolean debug) {
-        final Random random = new Random();
-        final double learningRate = 0.0005;
-        final Context context = new Context(learningRate, debug);
+    static LabelVector loadLabelVector(final String path) {
+        return DatasetCache.fromSystemProperties()
+                .labels(new File(path), LABELS_PREPROCESSING, () -> LabelVector.fromIdx(path));
+    }
 
-        System.out.println("Creating network");
-        List<Neuron> inputLayer = createLayer(InputNeuron::new, 784);
-        List<Neuron> hiddenLayer
-                = createLayer(() ->
-                        new ConnectedNeuron
-                                .Builder()
-                                .activationFunction(new LeakyRelu())
-                                .context(context)
-                                .build(),
-                10);
-        List<Neuron> outputLayer
-                = createLayer(() ->
-                        new ConnectedNeuron
-                                .Builder()
-                                .activationFunction(new Sigmoid(true))
-                                .context(context)
-                                .build(),
-                10);
-
-        inputLayer.stream().forEach(inputNeuron -> {
-            hiddenLayer.stream().forEach(hiddenNeuron -> {
-                inputNeuron.connect(hiddenNeuron, (random.nextDouble() * 2. - 1.) * Math.sqrt(2. / 784.));
-            });
-        });
-
-        hiddenLayer.stream().forEach(hiddenNeuron -> outputLayer.stream().forEach(outputNeuron -> {
-            hiddenNeuron.connect(outputNeuron, (random.nextDouble() * 2. - 1.) / 10.);
-        }));
-        System.out.println("done\n");
-        return new ModelWrapper.Builder().inputLayer(inputLayer).outputLayer(outputLayer).context(context).build();
+    /**
+     * {@link #loadImageMatrix(String)} as one row per image, the layout {@code com.dj.core} optimizers take.
+     */
+    static double[][] loadImages(final String path) {
+        return loadImageMatrix(path).toRows();
+    }
+
+    /**
+     * Normalized images of an IDX file, preprocessed once and then served from the {@link DatasetCache}.
+     */
+    static ImageMatrix loadImageMatrix(final String path) {
+        return DatasetCache.fromSystemProperties()
+                .images(new File(path), IMAGES_PREPROCESSING, () -> normalizeImages(path));
+    }
+
+    /**
+     * Normalizes the pixels with {@link NormalizationHelper}, as the bundled models were trained. It takes
+     * one row per image, so the rows only exist on a cache miss.
+     */
+    private static ImageMatrix normalizeImages(final String path) {
+        final long start = System.nanoTime();
+        final IdxDataset images = IdxDataset.openImages(path);
+        final double[][] rows = new double[images.size()][images.recordSize()];
+        for (int i = 0; i < rows.length; i++) {
+            images.copyRecord(i, rows[i], 0);
+        }
+        final ImageMatrix normalized = ImageMatrix.fromRows(NormalizationHelper.normalize(rows));
+        Metrics.registry().timer(Metrics.DECODE_TIME).recordSince(start);
+        Metrics.registry().counter(Metrics.DECODED_IMAGES).increment(rows.length);
+        return normalized;
     }
 
-    private static List<Neuron> createLayer(final Supplier<Neuron> neuronSupplier, final int layerSize) {
-        return IntStream.range(0, layerSize).mapToObj(i -> neuronSupplier.get()).collect(Collectors.toList());
+    private static ModelWrapper createTheModel(final boolean debug) {
+        System.out.println("Creating network");
+        final ModelWrapper modelWrapper = ModelSpec.preset(ModelSpec.BASELINE).createModel(debug);
+        System.out.println("done\n");
+        return modelWrapper;
     }
 
 }
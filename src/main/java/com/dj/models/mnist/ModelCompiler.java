@@ -0,0 +1,410 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.activation.ActivationFunction;
+import com.dj.core.model.activation.LeakyRelu;
+import com.dj.core.model.activation.Sigmoid;
+import com.dj.core.model.graph.ConnectedNeuron;
+import com.dj.core.model.graph.Context;
+import com.dj.core.model.graph.InputNeuron;
+import com.dj.core.model.graph.Neuron;
+import com.dj.core.serializer.ModelWrapper;
+import com.google.common.util.concurrent.AtomicDouble;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.String.format;
+
+/**
+ * Flattens a {@link ModelWrapper} neuron graph into a {@link CompiledModel}. The weights are copied, so
+ * the compiled model is a snapshot that does not change when the graph is trained further.
+ * <p>
+ * {@code com.dj.core} neurons keep their connections private, so they are read through the fields
+ * that also make up the serialized form of a model: {@code connections} of an {@code InputNeuron},
+ * {@code forwardConnections}, {@code backwardConnections} (a 1xN weight matrix),
+ * {@code neuronIndexes} (source neuron to weight column) and {@code bias} of a {@code ConnectedNeuron}.
+ * They are looked up once, against the {@value #CORE_VERSION} layout of {@code com.dj.core}; any other
+ * layout fails the first use of this class with an {@link IllegalStateException} naming what is missing.
+ * Nothing is ever written into the private fields of {@code com.dj.core} classes other than neurons.
+ */
+public final class ModelCompiler {
+
+    /**
+     * Version of {@code com.dj.core} whose private fields this class reads, the one declared in pom.xml.
+     */
+    public static final String CORE_VERSION = "0.02";
+
+    private static final String[] FORWARD_CONNECTIONS_FIELDS = {"forwardConnections", "connections"};
+
+    private static final String BACKWARD_CONNECTIONS_FIELD = "backwardConnections";
+
+    private static final String NEURON_INDEXES_FIELD = "neuronIndexes";
+
+    private static final String BIAS_FIELD = "bias";
+
+    private static final String ACTIVATION_FUNCTION_FIELD = "activationFunction";
+
+    private static final String LEAKY_RELU_SLOPE_FIELD = "m";
+
+    private static final String SIGMOID_LIMIT_FIELD = "enforceLimit";
+
+    private static final String LEARNING_RATE_FIELD = "learningRate";
+
+    /**
+     * Inputs the bounded sigmoid of the core is compared with the logistic function at, out to where both
+     * saturate.
+     */
+    private static final double[] SIGMOID_PROBES = {-800., -60., -30., -17., -5., -1., 0., 1., 5., 17., 30., 60., 800.};
+
+    private static final double SIGMOID_TOLERANCE = 1e-6;
+
+    /**
+     * Why this core can not be used, null when all fields read here have the expected types.
+     */
+    private static final String CORE_MISMATCH = checkCore();
+
+    /**
+     * Why {@code Sigmoid(true)} can not be compiled, computed on first use; null when the core's bounded
+     * sigmoid is the logistic function {@link Activation#SIGMOID} computes.
+     */
+    private static final class BoundedSigmoid {
+
+        private static final String MISMATCH = checkBoundedSigmoid();
+    }
+
+    private ModelCompiler() { }
+
+    public static CompiledModel compile(final ModelWrapper modelWrapper) {
+        return compile(modelWrapper.getInputLayer(), modelWrapper.getOutputLayer());
+    }
+
+    /**
+     * @throws IllegalStateException when the {@code com.dj.core} on the class path is not laid out like
+     *                               {@value #CORE_VERSION}
+     */
+    static void requireSupportedCore() {
+        if (CORE_MISMATCH != null) {
+            throw new IllegalStateException(CORE_MISMATCH);
+        }
+    }
+
+    private static String checkCore() {
+        final Object[][] expected = {
+                {InputNeuron.class, Collection.class, FORWARD_CONNECTIONS_FIELDS[1]},
+                {ConnectedNeuron.class, Collection.class, FORWARD_CONNECTIONS_FIELDS[0]},
+                {ConnectedNeuron.class, RealMatrix.class, BACKWARD_CONNECTIONS_FIELD},
+                {ConnectedNeuron.class, Map.class, NEURON_INDEXES_FIELD},
+                {ConnectedNeuron.class, AtomicDouble.class, BIAS_FIELD},
+                {ConnectedNeuron.class, ActivationFunction.class, ACTIVATION_FUNCTION_FIELD},
+                {LeakyRelu.class, double.class, LEAKY_RELU_SLOPE_FIELD},
+                {Sigmoid.class, boolean.class, SIGMOID_LIMIT_FIELD},
+                {Context.class, double.class, LEARNING_RATE_FIELD},
+        };
+        for (final Object[] entry : expected) {
+            final Class<?> owner = (Class<?>) entry[0];
+            final Class<?> type = (Class<?>) entry[1];
+            final String name = (String) entry[2];
+            final Field field;
+            try {
+                field = field(owner, name);
+            } catch (IllegalStateException | SecurityException e) {
+                return e.getMessage();
+            }
+            if (!type.isAssignableFrom(field.getType())) {
+                return format("%s.%s is a %s instead of a %s, expected com.dj.core %s", owner.getName(), name,
+                        field.getType().getName(), type.getName(), CORE_VERSION);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs {@code Sigmoid(true)} through a one neuron graph, so only its public behaviour is relied on.
+     */
+    private static String checkBoundedSigmoid() {
+        requireSupportedCore();
+        final InputNeuron input = new InputNeuron();
+        final Neuron neuron = new ConnectedNeuron.Builder()
+                .activationFunction(new Sigmoid(true))
+                .context(new Context(0., false))
+                .build();
+        input.connect(neuron, 1.);
+        state(neuron).setBias(0.);
+        for (final double x : SIGMOID_PROBES) {
+            input.forwardSignalReceived(null, x);
+            final double expected = Activation.SIGMOID.apply((float) x, 0f);
+            if (!(Math.abs(neuron.getForwardResult() - expected) <= SIGMOID_TOLERANCE)) {
+                return format("Sigmoid(true) of this com.dj.core returns %s for %s, the logistic function %s",
+                        neuron.getForwardResult(), x, expected);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @throws UnsupportedOperationException when the graph uses an activation function that has no
+     *                                       {@link Activation} counterpart, e.g. a {@code Sigmoid(true)} that
+     *                                       computes anything but the logistic function
+     */
+    public static CompiledModel compile(final List<Neuron> inputLayer, final List<Neuron> outputLayer) {
+        return GraphSnapshot.of(inputLayer, outputLayer).compile();
+    }
+
+    /**
+     * The layers of a graph from {@code inputLayer} to {@code outputLayer}, both included.
+     */
+    static List<List<Neuron>> layers(final List<Neuron> inputLayer, final List<Neuron> outputLayer) {
+        requireSupportedCore();
+        final List<List<Neuron>> layers = new ArrayList<>();
+        layers.add(inputLayer);
+        List<Neuron> previous = inputLayer;
+        while (previous != outputLayer) {
+            List<Neuron> next = nextLayer(previous);
+            if (next.isEmpty()) {
+                throw new IllegalStateException("Output layer is not reachable from the input layer");
+            }
+            if (sameNeurons(next, outputLayer)) {
+                next = outputLayer;
+            }
+            layers.add(next);
+            previous = next;
+        }
+        return layers;
+    }
+
+    /**
+     * Reads and writes the private state of a {@code ConnectedNeuron}.
+     */
+    static final class NeuronState {
+
+        private final RealMatrix backwardConnections;
+
+        private final Map<Neuron, Integer> neuronIndexes;
+
+        private final AtomicDouble bias;
+
+        private final ActivationFunction activationFunction;
+
+        private NeuronState(final Neuron neuron) {
+            this.backwardConnections = readField(neuron, BACKWARD_CONNECTIONS_FIELD);
+            this.neuronIndexes = readField(neuron, NEURON_INDEXES_FIELD);
+            this.bias = readField(neuron, BIAS_FIELD);
+            this.activationFunction = readField(neuron, ACTIVATION_FUNCTION_FIELD);
+        }
+
+        /**
+         * Weight of the connection from {@code source}, 0 when there is none.
+         */
+        double weight(final Neuron source) {
+            final Integer column = neuronIndexes.get(source);
+            return column == null ? 0. : backwardConnections.getEntry(0, column);
+        }
+
+        /**
+         * Sets the weight of an existing connection from {@code source}; missing connections are not added.
+         */
+        void setWeight(final Neuron source, final double weight) {
+            final Integer column = neuronIndexes.get(source);
+            if (column != null) {
+                backwardConnections.setEntry(0, column, weight);
+            }
+        }
+
+        double bias() {
+            return bias.get();
+        }
+
+        void setBias(final double value) {
+            bias.set(value);
+        }
+
+        ActivationFunction activationFunction() {
+            return activationFunction;
+        }
+    }
+
+    static NeuronState state(final Neuron neuron) {
+        return new NeuronState(neuron);
+    }
+
+    static Activation toActivation(final ActivationFunction function) {
+        if (function instanceof LeakyRelu) {
+            return Activation.LEAKY_RELU;
+        }
+        if (function instanceof Sigmoid) {
+            if ((boolean) readField(function, SIGMOID_LIMIT_FIELD) && BoundedSigmoid.MISMATCH != null) {
+                throw new UnsupportedOperationException(BoundedSigmoid.MISMATCH);
+            }
+            return Activation.SIGMOID;
+        }
+        throw new UnsupportedOperationException(
+                format("Activation function %s can not be compiled", function.getClass().getName()));
+    }
+
+    static float activationParameter(final ActivationFunction function) {
+        if (function instanceof LeakyRelu) {
+            return (float) (double) readField(function, LEAKY_RELU_SLOPE_FIELD);
+        }
+        if (function instanceof Sigmoid) {
+            return (boolean) readField(function, SIGMOID_LIMIT_FIELD) ? 1f : 0f;
+        }
+        return 0f;
+    }
+
+    /**
+     * Builds a new neuron graph carrying the weights of {@code model}, e.g. to persist it with
+     * {@code SerializerHelper} or to keep training it with {@code com.dj.core} optimizers.
+     */
+    public static ModelWrapper toModelWrapper(final CompiledModel model, final Context context) {
+        requireSupportedCore();
+        final List<Neuron> inputLayer = new ArrayList<>(model.inputSize());
+        for (int i = 0; i < model.inputSize(); i++) {
+            inputLayer.add(new InputNeuron());
+        }
+        List<Neuron> previous = inputLayer;
+        for (final DenseLayer layer : model.layers()) {
+            final List<Neuron> neurons = new ArrayList<>(layer.outputSize());
+            for (int j = 0; j < layer.outputSize(); j++) {
+                final Neuron neuron = new ConnectedNeuron.Builder()
+                        .activationFunction(toActivationFunction(layer.activation(), layer.activationParameter()))
+                        .context(context)
+                        .build();
+                state(neuron).setBias(layer.biases()[j]);
+                neurons.add(neuron);
+            }
+            for (int i = 0; i < layer.inputSize(); i++) {
+                for (int j = 0; j < layer.outputSize(); j++) {
+                    previous.get(i).connect(neurons.get(j), layer.weight(j, i));
+                }
+            }
+            previous = neurons;
+        }
+        return new ModelWrapper.Builder().inputLayer(inputLayer).outputLayer(previous).context(context).build();
+    }
+
+    /**
+     * Copies the weights of {@code model} back into an existing graph of the same topology, e.g. to roll
+     * a graph back to the best checkpoint seen during training.
+     */
+    public static void restore(final CompiledModel model, final List<Neuron> inputLayer, final List<Neuron> outputLayer) {
+        requireSupportedCore();
+        List<Neuron> previous = inputLayer;
+        for (int l = 0; l < model.layers().size(); l++) {
+            final DenseLayer layer = model.layers().get(l);
+            final List<Neuron> next = l == model.layers().size() - 1 ? outputLayer : nextLayer(previous);
+            if (next.size() != layer.outputSize() || previous.size() != layer.inputSize()) {
+                throw new IllegalArgumentException(format("Layer %d of the model is %dx%d, the graph has %dx%d",
+                        l, layer.inputSize(), layer.outputSize(), previous.size(), next.size()));
+            }
+            for (int j = 0; j < layer.outputSize(); j++) {
+                final NeuronState neuron = state(next.get(j));
+                for (int i = 0; i < layer.inputSize(); i++) {
+                    neuron.setWeight(previous.get(i), layer.weight(j, i));
+                }
+                neuron.setBias(layer.biases()[j]);
+            }
+            previous = next;
+        }
+    }
+
+    /**
+     * The learning rate a {@link Context} was created with; trainers keep any other rate to themselves.
+     */
+    public static double getLearningRate(final Context context) {
+        requireSupportedCore();
+        return readField(context, LEARNING_RATE_FIELD);
+    }
+
+    /**
+     * @throws UnsupportedOperationException for a leaky ReLU slope other than the fixed one of
+     *                                       {@code com.dj.core}
+     */
+    private static ActivationFunction toActivationFunction(final Activation activation, final float parameter) {
+        switch (activation) {
+            case LEAKY_RELU:
+                final LeakyRelu leakyRelu = new LeakyRelu();
+                if (activationParameter(leakyRelu) != parameter) {
+                    throw new UnsupportedOperationException(format("com.dj.core LeakyRelu has a fixed slope of %s, "
+                            + "the model uses %s", activationParameter(leakyRelu), parameter));
+                }
+                return leakyRelu;
+            case SIGMOID:
+                return new Sigmoid(parameter != 0f);
+            default:
+                throw new UnsupportedOperationException(
+                        format("Activation %s has no com.dj.core counterpart", activation));
+        }
+    }
+
+    private static List<Neuron> nextLayer(final List<Neuron> layer) {
+        final Set<Neuron> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        final List<Neuron> next = new ArrayList<>();
+        for (final Neuron neuron : layer) {
+            final Collection<Neuron> connections = readField(neuron, FORWARD_CONNECTIONS_FIELDS);
+            for (final Neuron connected : connections) {
+                if (seen.add(connected)) {
+                    next.add(connected);
+                }
+            }
+        }
+        return next;
+    }
+
+    private static boolean sameNeurons(final List<Neuron> layer, final List<Neuron> other) {
+        if (layer.size() != other.size()) {
+            return false;
+        }
+        final Set<Neuron> neurons = Collections.newSetFromMap(new IdentityHashMap<>());
+        neurons.addAll(layer);
+        for (final Neuron neuron : other) {
+            if (!neurons.contains(neuron)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T readField(final Object target, final String... names) {
+        try {
+            return (T) field(target.getClass(), names).get(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failure to read " + names[0] + " of " + target.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * Writes a private field, for tests that need graphs the public {@code com.dj.core} API can not build.
+     */
+    static void writeField(final Object target, final String name, final Object value) {
+        try {
+            field(target.getClass(), name).set(target, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failure to write " + name + " of " + target.getClass().getName(), e);
+        }
+    }
+
+    private static Field field(final Class<?> type, final String... names) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            for (final String name : names) {
+                try {
+                    final Field field = current.getDeclaredField(name);
+                    field.setAccessible(true);
+                    return field;
+                } catch (NoSuchFieldException e) {
+                    // try the next name or the super class
+                }
+            }
+        }
+        throw new IllegalStateException(
+                format("%s has no field %s, expected com.dj.core %s", type.getName(), String.join("/", names),
+                        CORE_VERSION));
+    }
+}
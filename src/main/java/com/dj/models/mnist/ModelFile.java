@@ -0,0 +1,188 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.serializer.ModelWrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Compact binary form of a {@link CompiledModel}, loaded by memory-mapping the file and copying the
+ * weight blocks straight into the layers, without building a neuron graph.
+ * <p>
+ * Layout, all values little-endian:
+ * <pre>
+ * int   magic number {@value #MAGIC_NUMBER}
+ * int   format version
+ * int   size in bytes of one weight value, 4 (float32)
+ * int   number of layers
+ * per layer: int input size, int output size, int {@link Activation} id, float activation parameter
+ * per layer: input size * output size weights (row-major, one row per output), output size biases
+ * </pre>
+ */
+public final class ModelFile {
+
+    public static final int MAGIC_NUMBER = 0x464D4A44; // "DJMF" in little-endian order
+
+    public static final int VERSION = 1;
+
+    private static final int FLOAT_SIZE = Float.BYTES;
+
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    private static final int LAYER_HEADER_SIZE = 4 * Integer.BYTES;
+
+    private ModelFile() { }
+
+    /**
+     * Writes {@code model} to a temporary sibling of {@code file} and renames it into place once complete.
+     */
+    public static void write(final CompiledModel model, final File file) {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile output = new RandomAccessFile(tmp, "rw")) {
+            output.setLength(0);
+            final ByteBuffer buffer = encode(model);
+            final FileChannel channel = output.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            output.getFD().sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to write model file " + file, e);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to write model file " + file, e);
+        }
+    }
+
+    /**
+     * The model in this format, ready to be read from position 0, e.g. to send it over the network.
+     */
+    public static ByteBuffer encode(final CompiledModel model) {
+        final ByteBuffer buffer = ByteBuffer.allocate(fileSize(model)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC_NUMBER).putInt(VERSION).putInt(FLOAT_SIZE).putInt(model.layers().size());
+        for (final DenseLayer layer : model.layers()) {
+            buffer.putInt(layer.inputSize())
+                    .putInt(layer.outputSize())
+                    .putInt(layer.activation().getId())
+                    .putFloat(layer.activationParameter());
+        }
+        for (final DenseLayer layer : model.layers()) {
+            final FloatBuffer floats = buffer.asFloatBuffer();
+            floats.put(layer.weights()).put(layer.biases());
+            buffer.position(buffer.position() + floats.position() * FLOAT_SIZE);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static CompiledModel read(final String path) {
+        return read(new File(path));
+    }
+
+    public static CompiledModel read(final File file) {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = input.getChannel();
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to read model file " + file, e);
+        }
+    }
+
+    /**
+     * Decodes a model from {@code buffer}, which must hold exactly one model file.
+     */
+    public static CompiledModel read(final ByteBuffer buffer) {
+        final ByteBuffer input = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (input.remaining() < HEADER_SIZE) {
+            throw new RuntimeException("Model file is too short for its header");
+        }
+        final int magicNumber = input.getInt();
+        if (magicNumber != MAGIC_NUMBER) {
+            throw new RuntimeException(format("Not a model file, magic number %d", magicNumber));
+        }
+        final int version = input.getInt();
+        if (version != VERSION) {
+            throw new RuntimeException(format("Unsupported model file version %d, expected %d", version, VERSION));
+        }
+        final int valueSize = input.getInt();
+        if (valueSize != FLOAT_SIZE) {
+            throw new RuntimeException(format("Unsupported weight size of %d bytes", valueSize));
+        }
+        final int numberOfLayers = input.getInt();
+        if (numberOfLayers < 1 || input.remaining() < (long) numberOfLayers * LAYER_HEADER_SIZE) {
+            throw new RuntimeException(format("Model file is too short for %d layers", numberOfLayers));
+        }
+        final int[][] shapes = new int[numberOfLayers][];
+        final float[] parameters = new float[numberOfLayers];
+        long values = 0;
+        for (int i = 0; i < numberOfLayers; i++) {
+            shapes[i] = new int[] {input.getInt(), input.getInt(), input.getInt()};
+            parameters[i] = input.getFloat();
+            if (shapes[i][0] < 1 || shapes[i][1] < 1) {
+                throw new RuntimeException(format("Layer %d has invalid shape %dx%d", i, shapes[i][0], shapes[i][1]));
+            }
+            values += (long) shapes[i][0] * shapes[i][1] + shapes[i][1];
+        }
+        if (input.remaining() != values * FLOAT_SIZE) {
+            throw new RuntimeException(format("Model file has %d bytes of weights, expected %d",
+                    input.remaining(), values * FLOAT_SIZE));
+        }
+        final List<DenseLayer> layers = new ArrayList<>(numberOfLayers);
+        final FloatBuffer floats = input.asFloatBuffer();
+        for (int i = 0; i < numberOfLayers; i++) {
+            final float[] weights = new float[shapes[i][0] * shapes[i][1]];
+            final float[] biases = new float[shapes[i][1]];
+            floats.get(weights).get(biases);
+            layers.add(new DenseLayer(
+                    shapes[i][0], shapes[i][1], weights, biases, Activation.forId(shapes[i][2]), parameters[i]));
+        }
+        return new CompiledModel(layers);
+    }
+
+    /**
+     * Writes the weights of a neuron graph, see {@link ModelCompiler#compile(ModelWrapper)} for the graphs
+     * that are supported.
+     */
+    public static void exportModel(final ModelWrapper modelWrapper, final File file) {
+        write(ModelCompiler.compile(modelWrapper), file);
+    }
+
+    /**
+     * Reads a model file back into a trainable neuron graph.
+     */
+    public static ModelWrapper importModel(final File file, final Context context) {
+        return ModelCompiler.toModelWrapper(read(file), context);
+    }
+
+    /**
+     * Size in bytes of {@code model} in this format: the raw weights plus {@value #HEADER_SIZE} bytes and
+     * {@value #LAYER_HEADER_SIZE} bytes per layer.
+     */
+    public static int fileSize(final CompiledModel model) {
+        long size = HEADER_SIZE + (long) model.layers().size() * LAYER_HEADER_SIZE;
+        for (final DenseLayer layer : model.layers()) {
+            size += ((long) layer.weights().length + layer.biases().length) * FLOAT_SIZE;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Model is too large for a single model file");
+        }
+        return (int) size;
+    }
+}
@@ -0,0 +1,49 @@
+package com.dj.models.mnist;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry that drops everything, its metrics are stateless singletons.
+ */
+final class NoopMetricsRegistry implements MetricsRegistry {
+
+    static final NoopMetricsRegistry INSTANCE = new NoopMetricsRegistry();
+
+    private static final Counter COUNTER = delta -> { };
+
+    private static final Timer TIMER = new Timer() {
+        @Override
+        public void record(final long duration, final TimeUnit unit) { }
+
+        @Override
+        public void recordSince(final long startNanos) { }
+    };
+
+    private NoopMetricsRegistry() { }
+
+    @Override
+    public Counter counter(final String name) {
+        return COUNTER;
+    }
+
+    @Override
+    public Timer timer(final String name) {
+        return TIMER;
+    }
+
+    @Override
+    public void gauge(final String name, final DoubleSupplier value) { }
+
+    @Override
+    public boolean isEnabled() {
+        return false;
+    }
+
+    @Override
+    public Map<String, Number> snapshot() {
+        return Collections.emptyMap();
+    }
+}
@@ -0,0 +1,573 @@
+package com.dj.models.mnist;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.String.format;
+
+/**
+ * Keeps training a model that is already serving. Newly labelled images are queued with
+ * {@link #submit(float[], int)} and trained in mini-batches on a background thread, on a private copy of
+ * the weights. Every {@code publishInterval} images the copy is evaluated on a held-out guard set and,
+ * unless its error rate is more than {@code maxErrorIncrease} above that of the serving version, published
+ * as a new {@link ModelVersion}; a rejected candidate is discarded and training resumes from the serving
+ * weights.
+ * <p>
+ * Versions are published read-copy-update style: a published model is never written again, and
+ * {@link #current()} is a single read of an {@link AtomicReference}, so readers neither lock nor see
+ * half-updated weights. The last {@code maxHistory} versions are kept for {@link #rollback(long)}; an
+ * {@link InferenceServer} follows the current version with {@code .models(learner::currentModel)}.
+ */
+public class OnlineLearner implements Closeable {
+
+    public static final int DEFAULT_PUBLISH_INTERVAL = 1000;
+
+    public static final int DEFAULT_MAX_HISTORY = 5;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+
+    /**
+     * An immutable published model; its weights must not be written.
+     */
+    public static class ModelVersion {
+
+        private final long version;
+
+        private final CompiledModel model;
+
+        private final double errorRate;
+
+        private final long imagesTrained;
+
+        private ModelVersion(final long version,
+                             final CompiledModel model,
+                             final double errorRate,
+                             final long imagesTrained) {
+            this.version = version;
+            this.model = model;
+            this.errorRate = errorRate;
+            this.imagesTrained = imagesTrained;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public CompiledModel getModel() {
+            return model;
+        }
+
+        /**
+         * Error rate on the guard set.
+         */
+        public double getErrorRate() {
+            return errorRate;
+        }
+
+        /**
+         * Images trained online before this version was published.
+         */
+        public long getImagesTrained() {
+            return imagesTrained;
+        }
+
+        @Override
+        public String toString() {
+            return format(Locale.ROOT, "version %d, error rate %.4f after %d images", version, errorRate,
+                    imagesTrained);
+        }
+    }
+
+    private final int batchSize;
+
+    private final float learningRate;
+
+    private final BatchTrainer.LossFunction loss;
+
+    private final int publishInterval;
+
+    private final double maxErrorIncrease;
+
+    private final int maxHistory;
+
+    private final ImageMatrix guardImages;
+
+    private final SparseImageMatrix guardSparse;
+
+    private final LabelVector guardLabels;
+
+    private final ParallelEvaluator evaluator = new ParallelEvaluator();
+
+    private final BlockingQueue<Example> queue;
+
+    private final AtomicReference<ModelVersion> current = new AtomicReference<>();
+
+    private final AtomicReference<ModelVersion> resetTo = new AtomicReference<>();
+
+    private final AtomicLong nextVersion = new AtomicLong();
+
+    private final AtomicLong queued = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong rejectedVersions = new AtomicLong();
+
+    private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+    private final Deque<ModelVersion> history = new ArrayDeque<>();
+
+    private final CompiledModel training;
+
+    private final ImageMatrix batchImages;
+
+    private final LabelVector batchLabels;
+
+    private final BatchTrainer.Network network;
+
+    private final int[] order;
+
+    private final Thread thread;
+
+    private long imagesTrained;
+
+    private long imagesSincePublish;
+
+    private volatile boolean running;
+
+    private OnlineLearner(final Builder builder) {
+        this.batchSize = builder.batchSize;
+        this.learningRate = (float) builder.learningRate;
+        this.loss = builder.loss;
+        this.publishInterval = builder.publishInterval;
+        this.maxErrorIncrease = builder.maxErrorIncrease;
+        this.maxHistory = builder.maxHistory;
+        this.guardSparse = SparseImageMatrix.ifSparse(builder.guardImages);
+        this.guardImages = guardSparse == null ? builder.guardImages : null;
+        this.guardLabels = builder.guardLabels;
+        this.queue = new ArrayBlockingQueue<>(builder.queueCapacity);
+        final CompiledModel initial = builder.model.copy();
+        final ModelVersion first = new ModelVersion(nextVersion.getAndIncrement(), initial, errorRate(initial), 0);
+        history.addLast(first);
+        current.set(first);
+        this.training = initial.copy();
+        this.batchImages = ImageMatrix.allocate(batchSize, initial.inputSize());
+        this.batchLabels = LabelVector.allocate(batchSize);
+        this.network = BatchTrainer.stagingNetwork(training, batchImages, batchLabels);
+        this.order = new int[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            order[i] = i;
+        }
+        this.thread = new Thread(this::learn, "mnist-online-learner");
+        this.thread.setDaemon(true);
+    }
+
+    public static class Builder {
+
+        private CompiledModel model;
+
+        private ImageMatrix guardImages;
+
+        private LabelVector guardLabels;
+
+        private int batchSize = BatchTrainer.DEFAULT_BATCH_SIZE;
+
+        private double learningRate = 0.0005;
+
+        private BatchTrainer.LossFunction loss = BatchTrainer.LossFunction.QUADRATIC;
+
+        private int publishInterval = DEFAULT_PUBLISH_INTERVAL;
+
+        private double maxErrorIncrease;
+
+        private int maxHistory = DEFAULT_MAX_HISTORY;
+
+        private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+        /**
+         * The serving model, published as version 0; the learner works on copies.
+         */
+        public Builder model(final CompiledModel model) {
+            this.model = model;
+            return this;
+        }
+
+        /**
+         * Held-out images every candidate version is evaluated on, e.g. a slice of the MNIst test set that
+         * is never trained on.
+         */
+        public Builder guard(final ImageMatrix images, final LabelVector labels) {
+            this.guardImages = images;
+            this.guardLabels = labels;
+            return this;
+        }
+
+        public Builder batchSize(final int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder learningRate(final double learningRate) {
+            this.learningRate = learningRate;
+            return this;
+        }
+
+        public Builder loss(final BatchTrainer.LossFunction loss) {
+            this.loss = loss;
+            return this;
+        }
+
+        /**
+         * Images trained between two attempts to publish.
+         */
+        public Builder publishInterval(final int publishInterval) {
+            this.publishInterval = publishInterval;
+            return this;
+        }
+
+        /**
+         * How much higher than the serving version's the guard error rate of a candidate may be, 0 (the
+         * default) to only publish versions at least as good.
+         */
+        public Builder maxErrorIncrease(final double maxErrorIncrease) {
+            this.maxErrorIncrease = maxErrorIncrease;
+            return this;
+        }
+
+        /**
+         * Published versions kept for rollback, the current one included.
+         */
+        public Builder maxHistory(final int maxHistory) {
+            this.maxHistory = maxHistory;
+            return this;
+        }
+
+        /**
+         * Images waiting to be trained; {@link #submit(float[], int)} drops images beyond it.
+         */
+        public Builder queueCapacity(final int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public OnlineLearner build() {
+            if (model == null || guardImages == null || guardLabels == null || loss == null) {
+                throw new IllegalArgumentException("A model, guard images and labels and a loss are required");
+            }
+            if (guardImages.size() != guardLabels.size() || guardImages.imageSize() != model.inputSize()) {
+                throw new IllegalArgumentException("Guard images and labels do not fit the model");
+            }
+            if (batchSize < 1 || publishInterval < 1 || maxHistory < 1 || queueCapacity < 1
+                    || !(learningRate > 0) || maxErrorIncrease < 0) {
+                throw new IllegalArgumentException(
+                        "Batch size, publish interval, history, queue capacity and learning rate must be positive");
+            }
+            return new OnlineLearner(this);
+        }
+    }
+
+    private static final class Example {
+
+        private final float[] image;
+
+        private final int label;
+
+        private Example(final float[] image, final int label) {
+            this.image = image;
+            this.label = label;
+        }
+    }
+
+    public OnlineLearner start() {
+        running = true;
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Queues a labelled image, normalized like the training data; the array must not be changed afterwards.
+     *
+     * @return false if the queue was full and the image dropped
+     * @throws IllegalStateException if training failed, see {@link #getFailure()}
+     */
+    public boolean submit(final float[] image, final int label) {
+        checkNotFailed();
+        if (image.length != batchImages.imageSize() || label < 0 || label >= LabelVector.NUMBER_OF_CLASSES) {
+            throw new IllegalArgumentException(format("Expected %d pixels and a label 0-%d, got %d pixels, label %d",
+                    batchImages.imageSize(), LabelVector.NUMBER_OF_CLASSES - 1, image.length, label));
+        }
+        queued.incrementAndGet();
+        if (!queue.offer(new Example(image, label))) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The serving version; lock-free, a reader keeps using the version it got for as long as it likes.
+     */
+    public ModelVersion current() {
+        return current.get();
+    }
+
+    public CompiledModel currentModel() {
+        return current.get().getModel();
+    }
+
+    /**
+     * The versions that can be rolled back to, oldest first.
+     */
+    public synchronized List<ModelVersion> versions() {
+        return new ArrayList<>(history);
+    }
+
+    /**
+     * Serves {@code version} again and continues training from its weights, dropping updates not yet
+     * published.
+     *
+     * @throws IllegalArgumentException if the version is no longer kept
+     */
+    public synchronized ModelVersion rollback(final long version) {
+        for (final ModelVersion kept : history) {
+            if (kept.getVersion() == version) {
+                current.set(kept);
+                resetTo.set(kept);
+                return kept;
+            }
+        }
+        throw new IllegalArgumentException(format("Version %d is not kept, see versions()", version));
+    }
+
+    /**
+     * Rolls back to the version published before the current one.
+     */
+    public synchronized ModelVersion rollback() {
+        ModelVersion previous = null;
+        for (final ModelVersion kept : history) {
+            if (kept == current.get()) {
+                break;
+            }
+            previous = kept;
+        }
+        if (previous == null) {
+            throw new IllegalStateException("No earlier version to roll back to");
+        }
+        return rollback(previous.getVersion());
+    }
+
+    /**
+     * Waits until every queued image was trained.
+     *
+     * @return false if the timeout elapsed first
+     * @throws IllegalStateException if training failed, see {@link #getFailure()}
+     */
+    public synchronized boolean awaitIdle(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (queued.get() > 0 && running) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        checkNotFailed();
+        return queued.get() == 0;
+    }
+
+    /**
+     * The exception that stopped training, null while the learner is healthy. The serving version stays
+     * available after a failure, but no image is trained any more.
+     */
+    public RuntimeException getFailure() {
+        return failure.get();
+    }
+
+    public synchronized long getImagesTrained() {
+        return imagesTrained;
+    }
+
+    /**
+     * Images turned away because the queue was full.
+     */
+    public long getDroppedImages() {
+        return dropped.get();
+    }
+
+    /**
+     * Candidates the accuracy guard did not publish.
+     */
+    public long getRejectedVersions() {
+        return rejectedVersions.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void learn() {
+        final List<Example> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                train(batch);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                failure.set(e);
+                running = false;
+            } finally {
+                queued.addAndGet(-batch.size());
+                batch.clear();
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void checkNotFailed() {
+        final RuntimeException e = failure.get();
+        if (e != null) {
+            throw new IllegalStateException("Online training failed", e);
+        }
+    }
+
+    private void train(final List<Example> batch) {
+        final ModelVersion reset = resetTo.getAndSet(null);
+        if (reset != null) {
+            restore(reset);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            final Example example = batch.get(i);
+            System.arraycopy(example.image, 0, batchImages.data(), batchImages.offset(i), example.image.length);
+            batchLabels.set(i, example.label);
+        }
+        network.step(order, 0, batch.size(), loss, learningRate);
+        synchronized (this) {
+            imagesTrained += batch.size();
+        }
+        imagesSincePublish += batch.size();
+        if (imagesSincePublish >= publishInterval) {
+            imagesSincePublish = 0;
+            tryPublish();
+        }
+    }
+
+    /**
+     * Publishes the trained weights if they pass the guard, otherwise goes back to the serving weights.
+     */
+    private void tryPublish() {
+        final ModelVersion serving = current.get();
+        network.export();
+        final CompiledModel candidate = training.copy();
+        final double errorRate = errorRate(candidate);
+        if (errorRate > serving.getErrorRate() + maxErrorIncrease) {
+            rejectedVersions.incrementAndGet();
+            Metrics.registry().counter(Metrics.ONLINE_REJECTED_VERSIONS).increment(1);
+            restore(serving);
+            return;
+        }
+        synchronized (this) {
+            // a rollback since reading the serving version wins, its reset is applied before the next batch
+            if (current.get() == serving) {
+                publish(new ModelVersion(nextVersion.getAndIncrement(), candidate, errorRate, imagesTrained));
+            }
+        }
+    }
+
+    private synchronized void publish(final ModelVersion version) {
+        history.addLast(version);
+        while (history.size() > maxHistory) {
+            history.removeFirst();
+        }
+        current.set(version);
+        Metrics.registry().counter(Metrics.ONLINE_PUBLISHED_VERSIONS).increment(1);
+    }
+
+    /**
+     * Continues training from the weights of {@code version}.
+     */
+    private void restore(final ModelVersion version) {
+        final List<DenseLayer> source = version.getModel().layers();
+        final List<DenseLayer> target = training.layers();
+        for (int l = 0; l < target.size(); l++) {
+            System.arraycopy(source.get(l).weights(), 0, target.get(l).weights(), 0, source.get(l).weights().length);
+            System.arraycopy(source.get(l).biases(), 0, target.get(l).biases(), 0, source.get(l).biases().length);
+        }
+        network.importWeights();
+        imagesSincePublish = 0;
+    }
+
+    /**
+     * Serves a model file while it learns from the MNIst test set, whose last {@code 2000} images are held
+     * out as the guard: {@code OnlineLearner <model file> [port]}.
+     */
+    public static void main(final String[] args) throws InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: OnlineLearner <model file> [port]");
+            System.exit(1);
+        }
+        MnistDownloader.downloadMnist();
+        final ImageMatrix images = MnistTrainer.loadImageMatrix(MnistDownloader.MNIST_TEST_SET_IMAGES_FILE.toString());
+        final LabelVector labels = MnistTrainer.loadLabelVector(MnistDownloader.MNIST_TEST_SET_LABELS_FILE.toString());
+        final int split = Math.max(0, images.size() - 2000);
+        final ImageMatrix guardImages = ImageMatrix.allocate(images.size() - split, images.imageSize());
+        final LabelVector guardLabels = LabelVector.allocate(images.size() - split);
+        for (int i = split; i < images.size(); i++) {
+            images.copyImage(i, guardImages.data(), guardImages.offset(i - split));
+            guardLabels.set(i - split, labels.get(i));
+        }
+        try (OnlineLearner learner = new Builder()
+                .model(ModelFile.read(args[0]))
+                .guard(guardImages, guardLabels)
+                .build()
+                .start();
+             InferenceServer server = new InferenceServer.Builder()
+                     .models(learner::currentModel)
+                     .port(args.length > 1 ? Integer.parseInt(args[1]) : InferenceServer.DEFAULT_PORT)
+                     .build()
+                     .start()) {
+            System.out.printf("Serving %s on port %d, %s%n", args[0], server.getPort(), learner.current());
+            for (int i = 0; i < split; i++) {
+                final float[] image = new float[images.imageSize()];
+                images.copyImage(i, image, 0);
+                while (!learner.submit(image, labels.get(i))) {
+                    learner.awaitIdle(1, TimeUnit.SECONDS);
+                }
+            }
+            learner.awaitIdle(1, TimeUnit.MINUTES);
+            for (final ModelVersion version : learner.versions()) {
+                System.out.println(version);
+            }
+            System.out.printf("%d candidates rejected by the guard%n", learner.getRejectedVersions());
+        }
+    }
+
+    private double errorRate(final CompiledModel model) {
+        return evaluator.evaluate(model, guardImages, guardSparse, guardLabels).errorRate();
+    }
+}
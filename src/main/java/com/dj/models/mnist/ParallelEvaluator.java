@@ -0,0 +1,125 @@
+package com.dj.models.mnist;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static java.lang.String.format;
+
+/**
+ * Scores a {@link CompiledModel} on a labelled data set by splitting it across a {@link ForkJoinPool}.
+ * The compiled model is stateless, so every task only needs its own workspace and counters. Mostly-zero
+ * images are evaluated through their {@link SparseImageMatrix} form.
+ */
+public class ParallelEvaluator {
+
+    private static final int DEFAULT_SPLIT_THRESHOLD = 512;
+
+    private final ForkJoinPool pool;
+
+    private final int splitThreshold;
+
+    public ParallelEvaluator() {
+        this(ForkJoinPool.commonPool(), DEFAULT_SPLIT_THRESHOLD);
+    }
+
+    public ParallelEvaluator(final ForkJoinPool pool, final int splitThreshold) {
+        this.pool = pool;
+        this.splitThreshold = splitThreshold;
+    }
+
+    /**
+     * Scans the density of {@code images} and evaluates their sparse form when they are mostly zero; callers
+     * scoring the same images repeatedly should build that form once, see
+     * {@link #evaluate(CompiledModel, ImageMatrix, SparseImageMatrix, LabelVector)}.
+     */
+    public EvaluationResult evaluate(final CompiledModel model, final ImageMatrix images, final LabelVector labels) {
+        final SparseImageMatrix sparse = images.imageSize() == model.inputSize()
+                ? SparseImageMatrix.ifSparse(images)
+                : null;
+        return evaluate(model, sparse == null ? images : null, sparse, labels);
+    }
+
+    public EvaluationResult evaluate(final CompiledModel model,
+                                     final SparseImageMatrix images,
+                                     final LabelVector labels) {
+        return evaluate(model, null, images, labels);
+    }
+
+    /**
+     * Evaluates {@code sparse} when it is not null and {@code images} as they are otherwise, without
+     * scanning or copying either; e.g. for a validation set scored every epoch, with {@code sparse} built
+     * once by {@link SparseImageMatrix#ifSparse(ImageMatrix)}.
+     */
+    public EvaluationResult evaluate(final CompiledModel model,
+                                     final ImageMatrix images,
+                                     final SparseImageMatrix sparse,
+                                     final LabelVector labels) {
+        final int size = sparse != null ? sparse.size() : images.size();
+        if (size != labels.size()) {
+            throw new IllegalArgumentException(format("%d images but %d labels", size, labels.size()));
+        }
+        final long start = System.nanoTime();
+        final EvaluationResult result = pool.invoke(
+                new EvaluationTask(model, sparse == null ? images : null, sparse, labels, 0, size));
+        Metrics.registry().timer(Metrics.EVALUATION_TIME).recordSince(start);
+        return result;
+    }
+
+    private class EvaluationTask extends RecursiveTask<EvaluationResult> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CompiledModel model;
+
+        private final ImageMatrix images;
+
+        private final SparseImageMatrix sparse;
+
+        private final LabelVector labels;
+
+        private final int from;
+
+        private final int to;
+
+        /**
+         * Evaluates {@code sparse} when it is set, {@code images} otherwise.
+         */
+        private EvaluationTask(final CompiledModel model,
+                               final ImageMatrix images,
+                               final SparseImageMatrix sparse,
+                               final LabelVector labels,
+                               final int from,
+                               final int to) {
+            this.model = model;
+            this.images = images;
+            this.sparse = sparse;
+            this.labels = labels;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected EvaluationResult compute() {
+            if (to - from > splitThreshold) {
+                final int middle = (from + to) >>> 1;
+                final EvaluationTask left = new EvaluationTask(model, images, sparse, labels, from, middle);
+                left.fork();
+                final EvaluationResult right = new EvaluationTask(model, images, sparse, labels, middle, to).compute();
+                return right.merge(left.join());
+            }
+            final EvaluationResult result = new EvaluationResult(model.outputSize());
+            final CompiledModel.Workspace workspace = model.newWorkspace();
+            final int outputSize = model.outputSize();
+            for (int start = from; start < to; start += CompiledModel.DEFAULT_BLOCK_SIZE) {
+                final int count = Math.min(CompiledModel.DEFAULT_BLOCK_SIZE, to - start);
+                final float[] outputs = sparse != null
+                        ? model.forward(sparse, start, count, workspace)
+                        : model.forward(images.data(), images.offset(start), count, workspace);
+                for (int b = 0; b < count; b++) {
+                    result.add(labels.get(start + b), CompiledModel.argMax(outputs, b * outputSize, outputSize));
+                }
+            }
+            return result;
+        }
+    }
+}
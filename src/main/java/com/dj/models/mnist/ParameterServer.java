@@ -0,0 +1,667 @@
+package com.dj.models.mnist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.String.format;
+
+/**
+ * Holds the weights of a model while {@link ParameterServerWorker} processes, possibly on other machines,
+ * train it over TCP. The training set is split into {@code shards}; every worker that connects is given a
+ * free shard, the training settings and the current weights, then repeatedly sends the change one
+ * mini-batch made to its copy of the weights and receives the merged weights back.
+ * <p>
+ * In {@link Mode#SYNCHRONOUS} mode updates are merged in rounds: the changes of all connected workers are
+ * summed and applied at once, and every worker waits for the end of the round. In
+ * {@link Mode#BOUNDED_STALENESS} mode every change is applied as it arrives, and a worker is only held
+ * back when it is more than {@code staleness} steps ahead of the slowest connected worker.
+ * <p>
+ * A worker is considered failed when its connection breaks or it stays silent for the failure timeout. Its
+ * shard is then released, the others carry on without it, and the next worker to connect resumes the shard
+ * at the step it had reached. Training is complete once every shard finished its epochs.
+ * <p>
+ * The protocol is big-endian binary over one connection per worker. The worker opens with int
+ * {@value #MAGIC_NUMBER} and int protocol version; the server answers with a byte status and, when
+ * welcome, int shard, int shards, int first step, int epochs, int batch size, float learning rate, long
+ * seed, int {@link BatchTrainer.LossFunction} ordinal, long version and the model as a length-prefixed
+ * {@link ModelFile}. Then every step is byte {@value #STEP}, double summed loss, int images and the float32
+ * changes of all weights and biases in {@link ModelFile} order, answered by long version and the merged
+ * float32 values; a finished worker sends byte {@value #DONE}.
+ */
+public class ParameterServer implements Closeable {
+
+    public static final int MAGIC_NUMBER = 0x53504A44; // "SPJD" on the wire, which is big-endian
+
+    public static final int PROTOCOL_VERSION = 1;
+
+    public static final int DEFAULT_STALENESS = 3;
+
+    public static final long DEFAULT_FAILURE_TIMEOUT_MILLIS = 30_000;
+
+    static final byte WELCOME = 1;
+
+    static final byte REJECTED = 2;
+
+    static final byte STEP = 1;
+
+    static final byte DONE = 2;
+
+    public enum Mode {
+        SYNCHRONOUS,
+        BOUNDED_STALENESS
+    }
+
+    private final CompiledModel model;
+
+    private final float[] weights;
+
+    private final float[] pending;
+
+    private final int shards;
+
+    private final int epochs;
+
+    private final int batchSize;
+
+    private final double learningRate;
+
+    private final long seed;
+
+    private final BatchTrainer.LossFunction loss;
+
+    private final Mode mode;
+
+    private final int staleness;
+
+    private final long failureTimeoutMillis;
+
+    private final InetAddress bindAddress;
+
+    private final int requestedPort;
+
+    private final int[] progress;
+
+    private final BitSet finished;
+
+    private final BitSet claimedBefore;
+
+    private final Set<Integer> live = new HashSet<>();
+
+    private final Set<Integer> submitted = new HashSet<>();
+
+    private final Set<Socket> connections = Collections.synchronizedSet(new HashSet<>());
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    private ServerSocket serverSocket;
+
+    private long version;
+
+    private int failures;
+
+    private int rejoins;
+
+    private double lossSum;
+
+    private long lossImages;
+
+    private long firstUpdateNanos;
+
+    private long completionNanos;
+
+    private boolean closed;
+
+    private ParameterServer(final Builder builder) {
+        this.model = builder.model.copy();
+        final int values = (int) model.numberOfParameters();
+        this.weights = new float[values];
+        this.pending = new float[values];
+        copyWeights(model, weights);
+        this.shards = builder.shards;
+        this.epochs = builder.epochs;
+        this.batchSize = builder.batchSize;
+        this.learningRate = builder.learningRate;
+        this.seed = builder.seed;
+        this.loss = builder.loss;
+        this.mode = builder.mode;
+        this.staleness = builder.staleness;
+        this.failureTimeoutMillis = builder.failureTimeoutMillis;
+        this.bindAddress = builder.bindAddress;
+        this.requestedPort = builder.port;
+        this.progress = new int[shards];
+        this.finished = new BitSet(shards);
+        this.claimedBefore = new BitSet(shards);
+    }
+
+    public static class Builder {
+
+        private CompiledModel model;
+
+        private int shards = 1;
+
+        private int epochs = 1;
+
+        private int batchSize = BatchTrainer.DEFAULT_BATCH_SIZE;
+
+        private double learningRate = 0.0005;
+
+        private long seed;
+
+        private BatchTrainer.LossFunction loss = BatchTrainer.LossFunction.QUADRATIC;
+
+        private Mode mode = Mode.SYNCHRONOUS;
+
+        private int staleness = DEFAULT_STALENESS;
+
+        private long failureTimeoutMillis = DEFAULT_FAILURE_TIMEOUT_MILLIS;
+
+        private InetAddress bindAddress;
+
+        private int port;
+
+        /**
+         * Initial weights and shape; the server trains a copy.
+         */
+        public Builder model(final CompiledModel model) {
+            this.model = model;
+            return this;
+        }
+
+        /**
+         * Number of parts the training set is split into, at most one worker training each.
+         */
+        public Builder shards(final int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * Passes every worker makes over its shard.
+         */
+        public Builder epochs(final int epochs) {
+            this.epochs = epochs;
+            return this;
+        }
+
+        public Builder batchSize(final int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        public Builder learningRate(final double learningRate) {
+            this.learningRate = learningRate;
+            return this;
+        }
+
+        public Builder seed(final long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder loss(final BatchTrainer.LossFunction loss) {
+            this.loss = loss;
+            return this;
+        }
+
+        public Builder mode(final Mode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Steps a worker may run ahead of the slowest one in {@link Mode#BOUNDED_STALENESS} mode.
+         */
+        public Builder staleness(final int staleness) {
+            this.staleness = staleness;
+            return this;
+        }
+
+        public Builder failureTimeout(final long timeout, final TimeUnit unit) {
+            this.failureTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Address to listen on, all interfaces by default.
+         */
+        public Builder bindAddress(final InetAddress bindAddress) {
+            this.bindAddress = bindAddress;
+            return this;
+        }
+
+        /**
+         * Port to listen on, 0 (the default) for any free one, see {@link #getPort()}.
+         */
+        public Builder port(final int port) {
+            this.port = port;
+            return this;
+        }
+
+        public ParameterServer build() {
+            if (model == null || mode == null || loss == null) {
+                throw new IllegalArgumentException("A model, a mode and a loss are required");
+            }
+            if (shards < 1 || epochs < 1 || batchSize < 1 || staleness < 0 || failureTimeoutMillis < 1) {
+                throw new IllegalArgumentException(
+                        "Shards, epochs, batch size and failure timeout must be positive, staleness not negative");
+            }
+            if (model.numberOfParameters() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Model is too large for a parameter server");
+            }
+            return new ParameterServer(this);
+        }
+    }
+
+    /**
+     * Starts listening; workers are served on their own daemon threads.
+     */
+    public ParameterServer start() {
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(new InetSocketAddress(bindAddress, requestedPort));
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to listen on port " + requestedPort, e);
+        }
+        thread(this::acceptConnections, "parameter-server-accept").start();
+        return this;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Waits until every shard finished its epochs.
+     *
+     * @return false if the timeout elapsed or the server was closed first
+     */
+    public synchronized boolean awaitCompletion(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isComplete() && !closed) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return isComplete();
+    }
+
+    public synchronized boolean isComplete() {
+        return finished.cardinality() == shards;
+    }
+
+    /**
+     * A copy of the model with the current weights.
+     */
+    public synchronized CompiledModel snapshot() {
+        final CompiledModel snapshot = model.copy();
+        setWeights(weights, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Number of times the weights changed: rounds in synchronous mode, single updates otherwise.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized int getLiveWorkers() {
+        return live.size();
+    }
+
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Workers that took over a shard another worker had started.
+     */
+    public synchronized int getRejoins() {
+        return rejoins;
+    }
+
+    /**
+     * Time from the first update to the completion of the last shard, or to now while training.
+     */
+    public synchronized long getTrainingMillis() {
+        if (firstUpdateNanos == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis((completionNanos != 0 ? completionNanos : System.nanoTime())
+                - firstUpdateNanos);
+    }
+
+    /**
+     * Mean loss per image reported by the workers since the previous call.
+     */
+    public synchronized double takeMeanLoss() {
+        final double mean = lossImages == 0 ? Double.NaN : lossSum / lossImages;
+        lossSum = 0;
+        lossImages = 0;
+        return mean;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (connections) {
+            for (final Socket socket : connections) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            connections.add(socket);
+            thread(() -> serve(socket), "parameter-server-worker-" + threads.incrementAndGet()).start();
+        }
+    }
+
+    private void serve(final Socket socket) {
+        int shard = -1;
+        boolean done = false;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, failureTimeoutMillis));
+            final DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            final int magicNumber = input.readInt();
+            final int protocolVersion = input.readInt();
+            if (magicNumber != MAGIC_NUMBER || protocolVersion != PROTOCOL_VERSION) {
+                throw new IOException(format("Unsupported client, magic number %d, protocol %d",
+                        magicNumber, protocolVersion));
+            }
+            final byte[] modelFile;
+            final long welcomeVersion;
+            final int firstStep;
+            synchronized (this) {
+                shard = claimShard();
+                if (shard < 0) {
+                    output.writeByte(REJECTED);
+                    output.flush();
+                    return;
+                }
+                firstStep = progress[shard];
+                welcomeVersion = version;
+                final CompiledModel current = model.copy();
+                setWeights(weights, current);
+                final ByteBuffer encoded = ModelFile.encode(current);
+                modelFile = new byte[encoded.remaining()];
+                encoded.get(modelFile);
+            }
+            output.writeByte(WELCOME);
+            output.writeInt(shard);
+            output.writeInt(shards);
+            output.writeInt(firstStep);
+            output.writeInt(epochs);
+            output.writeInt(batchSize);
+            output.writeFloat((float) learningRate);
+            output.writeLong(seed);
+            output.writeInt(loss.ordinal());
+            output.writeLong(welcomeVersion);
+            output.writeInt(modelFile.length);
+            output.write(modelFile);
+            output.flush();
+            final float[] values = new float[weights.length];
+            final byte[] scratch = new byte[weights.length * Float.BYTES];
+            while (true) {
+                final byte message = input.readByte();
+                if (message == DONE) {
+                    done = true;
+                    return;
+                }
+                if (message != STEP) {
+                    throw new IOException("Unknown message " + message);
+                }
+                final double stepLoss = input.readDouble();
+                final int images = input.readInt();
+                readFloats(input, values, scratch);
+                final long merged = step(shard, values, stepLoss, images);
+                output.writeLong(merged);
+                writeFloats(output, values, scratch);
+                output.flush();
+            }
+        } catch (SocketTimeoutException e) {
+            System.err.printf("Worker of shard %d timed out%n", shard);
+        } catch (EOFException | SocketException e) {
+            System.err.printf("Worker of shard %d disconnected%n", shard);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(socket);
+            connections.remove(socket);
+            if (shard >= 0) {
+                release(shard, done);
+            }
+        }
+    }
+
+    /**
+     * The lowest shard nobody trains that still has steps to run, or -1.
+     */
+    private int claimShard() {
+        for (int shard = 0; shard < shards; shard++) {
+            if (!finished.get(shard) && !live.contains(shard)) {
+                if (claimedBefore.get(shard)) {
+                    rejoins++;
+                }
+                claimedBefore.set(shard);
+                live.add(shard);
+                return shard;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void release(final int shard, final boolean done) {
+        live.remove(shard);
+        if (done) {
+            finished.set(shard);
+            if (isComplete()) {
+                completionNanos = System.nanoTime();
+            }
+        } else if (!closed) {
+            failures++;
+        }
+        if (mode == Mode.SYNCHRONOUS) {
+            completeRoundIfReady();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Merges the change a worker made and waits until it may continue.
+     *
+     * @param values the change on input, the merged weights on output
+     * @return the version of the merged weights
+     */
+    private synchronized long step(final int shard, final float[] values, final double stepLoss, final int images) {
+        if (firstUpdateNanos == 0) {
+            firstUpdateNanos = System.nanoTime();
+        }
+        lossSum += stepLoss;
+        lossImages += images;
+        progress[shard]++;
+        if (mode == Mode.SYNCHRONOUS) {
+            add(values, pending);
+            submitted.add(shard);
+            final long round = version;
+            completeRoundIfReady();
+            while (version == round && !closed) {
+                waitUninterruptibly();
+            }
+        } else {
+            add(values, weights);
+            version++;
+            notifyAll();
+            while (!closed && progress[shard] > slowestProgress() + staleness) {
+                waitUninterruptibly();
+            }
+        }
+        System.arraycopy(weights, 0, values, 0, weights.length);
+        return version;
+    }
+
+    /**
+     * Applies the summed changes once every connected worker contributed to the round.
+     */
+    private void completeRoundIfReady() {
+        if (!submitted.isEmpty() && submitted.containsAll(live)) {
+            add(pending, weights);
+            Arrays.fill(pending, 0f);
+            submitted.clear();
+            version++;
+            notifyAll();
+        }
+    }
+
+    private int slowestProgress() {
+        int slowest = Integer.MAX_VALUE;
+        for (final int shard : live) {
+            slowest = Math.min(slowest, progress[shard]);
+        }
+        return slowest;
+    }
+
+    private void waitUninterruptibly() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while merging updates", e);
+        }
+    }
+
+    private static void add(final float[] source, final float[] target) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += source[i];
+        }
+    }
+
+    private static Thread thread(final Runnable runnable, final String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void closeQuietly(final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Copies all weights and biases of {@code model}, layer by layer, into {@code values}.
+     */
+    static void copyWeights(final CompiledModel model, final float[] values) {
+        int position = 0;
+        for (final DenseLayer layer : model.layers()) {
+            System.arraycopy(layer.weights(), 0, values, position, layer.weights().length);
+            position += layer.weights().length;
+            System.arraycopy(layer.biases(), 0, values, position, layer.biases().length);
+            position += layer.biases().length;
+        }
+    }
+
+    /**
+     * The reverse of {@link #copyWeights(CompiledModel, float[])}.
+     */
+    static void setWeights(final float[] values, final CompiledModel model) {
+        int position = 0;
+        for (final DenseLayer layer : model.layers()) {
+            System.arraycopy(values, position, layer.weights(), 0, layer.weights().length);
+            position += layer.weights().length;
+            System.arraycopy(values, position, layer.biases(), 0, layer.biases().length);
+            position += layer.biases().length;
+        }
+    }
+
+    static void writeFloats(final DataOutputStream output, final float[] values, final byte[] scratch)
+            throws IOException {
+        ByteBuffer.wrap(scratch).asFloatBuffer().put(values);
+        output.write(scratch, 0, values.length * Float.BYTES);
+    }
+
+    static void readFloats(final DataInputStream input, final float[] values, final byte[] scratch)
+            throws IOException {
+        input.readFully(scratch, 0, values.length * Float.BYTES);
+        ByteBuffer.wrap(scratch).asFloatBuffer().get(values);
+    }
+
+    /**
+     * Serves a model of a bundled {@link ModelSpec} preset until all shards are trained and writes it to
+     * a model file. Arguments: port, number of shards, epochs, optionally the preset name, the mode and the
+     * output file.
+     */
+    public static void main(final String[] args) throws InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: ParameterServer <port> <shards> <epochs> [preset] [mode] [output.djm]");
+            System.exit(1);
+        }
+        final ModelSpec spec = ModelSpec.preset(args.length > 3 ? args[3] : ModelSpec.BASELINE);
+        final File output = new File(args.length > 5 ? args[5] : "/tmp/mnist_distributed.djm");
+        try (ParameterServer server = new Builder()
+                .model(spec.initialize())
+                .learningRate(spec.getLearningRate())
+                .port(Integer.parseInt(args[0]))
+                .shards(Integer.parseInt(args[1]))
+                .epochs(Integer.parseInt(args[2]))
+                .mode(args.length > 4 ? Mode.valueOf(args[4].toUpperCase(Locale.ROOT)) : Mode.SYNCHRONOUS)
+                .build()
+                .start()) {
+            System.out.printf("Parameter server listening on port %d%n", server.getPort());
+            while (!server.awaitCompletion(10, TimeUnit.SECONDS)) {
+                System.out.printf("Version %d, %d workers, loss %f%n",
+                        server.getVersion(), server.getLiveWorkers(), server.takeMeanLoss());
+            }
+            ModelFile.write(server.snapshot(), output);
+            System.out.printf("Trained in %d ms, model written to %s%n", server.getTrainingMillis(), output);
+        }
+    }
+}
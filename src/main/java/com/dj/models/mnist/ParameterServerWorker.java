@@ -0,0 +1,236 @@
+package com.dj.models.mnist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Trains one shard of a data set for a {@link ParameterServer}: it takes every {@code shards}-th image
+ * starting at its shard number, runs {@link BatchTrainer} mini-batches on them and after each one
+ * exchanges the change it made for the merged weights of all workers.
+ * <p>
+ * Every worker is given the whole data set and selects its shard itself once the server assigned one, so
+ * a worker that replaces a failed one needs no further setup. Run it in its own JVM with {@link #main} or
+ * {@link #launch}, or on a thread with {@link #run()}.
+ */
+public class ParameterServerWorker {
+
+    private final String host;
+
+    private final int port;
+
+    private final ImageMatrix images;
+
+    private final LabelVector labels;
+
+    private final int maxSteps;
+
+    private ParameterServerWorker(final Builder builder) {
+        this.host = builder.host;
+        this.port = builder.port;
+        this.images = builder.images;
+        this.labels = builder.labels;
+        this.maxSteps = builder.maxSteps;
+    }
+
+    public static class Builder {
+
+        private String host = "localhost";
+
+        private int port;
+
+        private ImageMatrix images;
+
+        private LabelVector labels;
+
+        private int maxSteps = Integer.MAX_VALUE;
+
+        public Builder server(final String host, final int port) {
+            this.host = host;
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * The whole training set, already normalized.
+         */
+        public Builder data(final ImageMatrix images, final LabelVector labels) {
+            this.images = images;
+            this.labels = labels;
+            return this;
+        }
+
+        /**
+         * Makes the worker disconnect without finishing after this many steps, for failure testing.
+         */
+        Builder maxSteps(final int maxSteps) {
+            this.maxSteps = maxSteps;
+            return this;
+        }
+
+        public ParameterServerWorker build() {
+            if (host == null || port < 1 || images == null || labels == null) {
+                throw new IllegalArgumentException("A server address and training data are required");
+            }
+            if (images.size() != labels.size()) {
+                throw new IllegalArgumentException(
+                        format("%d images but %d labels", images.size(), labels.size()));
+            }
+            return new ParameterServerWorker(this);
+        }
+    }
+
+    /**
+     * Connects, trains the assigned shard to the end and disconnects.
+     *
+     * @return the shard trained, or -1 when the server had none left
+     */
+    public int run() {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            final DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            output.writeInt(ParameterServer.MAGIC_NUMBER);
+            output.writeInt(ParameterServer.PROTOCOL_VERSION);
+            output.flush();
+            if (input.readByte() != ParameterServer.WELCOME) {
+                return -1;
+            }
+            final int shard = input.readInt();
+            final int shards = input.readInt();
+            final int firstStep = input.readInt();
+            final int epochs = input.readInt();
+            final int batchSize = input.readInt();
+            final float rate = input.readFloat();
+            final long seed = input.readLong();
+            final BatchTrainer.LossFunction loss = BatchTrainer.LossFunction.values()[input.readInt()];
+            input.readLong();
+            final byte[] modelFile = new byte[input.readInt()];
+            input.readFully(modelFile);
+            final CompiledModel model = ModelFile.read(ByteBuffer.wrap(modelFile));
+            train(input, output, model, shard, shards, firstStep, epochs, batchSize, rate, seed, loss);
+            return shard;
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException(format("Failure to train with the parameter server at %s:%d", host, port), e);
+        }
+    }
+
+    private void train(final DataInputStream input,
+                       final DataOutputStream output,
+                       final CompiledModel model,
+                       final int shard,
+                       final int shards,
+                       final int firstStep,
+                       final int epochs,
+                       final int batchSize,
+                       final float rate,
+                       final long seed,
+                       final BatchTrainer.LossFunction loss) throws IOException {
+        final List<Integer> records = new ArrayList<>();
+        for (int i = shard; i < images.size(); i += shards) {
+            records.add(i);
+        }
+        final int size = records.size();
+        final int stepsPerEpoch = (size + batchSize - 1) / batchSize;
+        final int lastStep = (int) Math.min((long) stepsPerEpoch * epochs, Integer.MAX_VALUE);
+        if (firstStep < lastStep) {
+            final BatchTrainer.Network network = BatchTrainer.network(model, Math.min(batchSize, size),
+                    shardImages(records), shardLabels(records));
+            final float[] merged = new float[(int) model.numberOfParameters()];
+            final float[] values = new float[merged.length];
+            final byte[] scratch = new byte[merged.length * Float.BYTES];
+            ParameterServer.copyWeights(model, merged);
+            int[] order = null;
+            int orderEpoch = -1;
+            for (int step = firstStep; step < lastStep; step++) {
+                if (step - firstStep == maxSteps) {
+                    return;
+                }
+                final int epoch = step / stepsPerEpoch;
+                if (epoch != orderEpoch) {
+                    order = DataParallelTrainer.order(size, seed + shard, epoch);
+                    orderEpoch = epoch;
+                }
+                final int from = (step % stepsPerEpoch) * batchSize;
+                final int count = Math.min(batchSize, size - from);
+                final double stepLoss = network.step(order, from, count, loss, rate);
+                network.export();
+                ParameterServer.copyWeights(model, values);
+                for (int i = 0; i < values.length; i++) {
+                    values[i] -= merged[i];
+                }
+                output.writeByte(ParameterServer.STEP);
+                output.writeDouble(stepLoss);
+                output.writeInt(count);
+                ParameterServer.writeFloats(output, values, scratch);
+                output.flush();
+                input.readLong();
+                ParameterServer.readFloats(input, merged, scratch);
+                ParameterServer.setWeights(merged, model);
+                network.importWeights();
+            }
+        }
+        output.writeByte(ParameterServer.DONE);
+        output.flush();
+    }
+
+    private ImageMatrix shardImages(final List<Integer> records) {
+        final ImageMatrix shard = ImageMatrix.allocate(records.size(), images.imageSize());
+        for (int i = 0; i < records.size(); i++) {
+            images.copyImage(records.get(i), shard.data(), shard.offset(i));
+        }
+        return shard;
+    }
+
+    private LabelVector shardLabels(final List<Integer> records) {
+        final LabelVector shard = LabelVector.allocate(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            shard.set(i, labels.get(records.get(i)));
+        }
+        return shard;
+    }
+
+    /**
+     * Starts a worker in a new JVM with the class path of this one, its output going to this one's.
+     */
+    public static Process launch(final String host, final int port, final File images, final File labels) {
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        try {
+            return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ParameterServerWorker.class.getName(), host, Integer.toString(port),
+                    images.getPath(), labels.getPath())
+                    .inheritIO()
+                    .start();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Failure to start a worker process", e);
+        }
+    }
+
+    /**
+     * Arguments: server host, server port, IDX images file and IDX labels file. Images are min-max scaled
+     * into [0, 1].
+     */
+    public static void main(final String[] args) {
+        if (args.length != 4) {
+            System.err.println("Usage: ParameterServerWorker <host> <port> <images.idx> <labels.idx>");
+            System.exit(1);
+        }
+        final int shard = new Builder()
+                .server(args[0], Integer.parseInt(args[1]))
+                .data(ImageMatrix.fromIdx(args[2]).normalize(), LabelVector.fromIdx(args[3]))
+                .build()
+                .run();
+        System.out.println(shard < 0 ? "No shard left to train" : "Trained shard " + shard);
+    }
+}
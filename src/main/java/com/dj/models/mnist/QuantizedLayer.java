@@ -0,0 +1,163 @@
+package com.dj.models.mnist;
+
+import static java.lang.String.format;
+
+/**
+ * Fully connected layer with int8 weights, one symmetric scale per output row, and an int8 input
+ * quantized with a fixed scale found during calibration. Products are accumulated in 32-bit integers
+ * and only the sum is converted back to float, where the bias and the activation are applied.
+ */
+public class QuantizedLayer {
+
+    static final int MAX_QUANTIZED = 127;
+
+    private final int inputSize;
+
+    private final int outputSize;
+
+    private final byte[] weights;
+
+    private final float[] weightScales;
+
+    private final float[] biases;
+
+    private final float inputScale;
+
+    private final float inverseInputScale;
+
+    private final float[] outputScales;
+
+    private final Activation activation;
+
+    private final float activationParameter;
+
+    public QuantizedLayer(final int inputSize,
+                          final int outputSize,
+                          final byte[] weights,
+                          final float[] weightScales,
+                          final float[] biases,
+                          final float inputScale,
+                          final Activation activation,
+                          final float activationParameter) {
+        if (weights.length != inputSize * outputSize || weightScales.length != outputSize || biases.length != outputSize) {
+            throw new IllegalArgumentException(
+                    format("Layer %dx%d needs %d weights and %d scales and biases, got %d, %d and %d", inputSize,
+                            outputSize, inputSize * outputSize, outputSize, weights.length, weightScales.length,
+                            biases.length));
+        }
+        if (!(inputScale > 0f)) {
+            throw new IllegalArgumentException("Input scale must be positive, got " + inputScale);
+        }
+        this.inputSize = inputSize;
+        this.outputSize = outputSize;
+        this.weights = weights;
+        this.weightScales = weightScales;
+        this.biases = biases;
+        this.inputScale = inputScale;
+        this.inverseInputScale = 1f / inputScale;
+        this.outputScales = new float[outputSize];
+        for (int j = 0; j < outputSize; j++) {
+            outputScales[j] = weightScales[j] * inputScale;
+        }
+        this.activation = activation;
+        this.activationParameter = activationParameter;
+    }
+
+    /**
+     * Quantizes {@code layer} for inputs whose magnitude stays within {@code inputRange}.
+     */
+    public static QuantizedLayer quantize(final DenseLayer layer, final float inputRange) {
+        final int inputSize = layer.inputSize();
+        final byte[] weights = new byte[layer.weights().length];
+        final float[] scales = new float[layer.outputSize()];
+        for (int j = 0; j < layer.outputSize(); j++) {
+            float max = 0f;
+            for (int i = 0; i < inputSize; i++) {
+                max = Math.max(max, Math.abs(layer.weight(j, i)));
+            }
+            scales[j] = max > 0f ? max / MAX_QUANTIZED : 1f;
+            for (int i = 0; i < inputSize; i++) {
+                weights[j * inputSize + i] = quantize(layer.weight(j, i), scales[j]);
+            }
+        }
+        return new QuantizedLayer(inputSize, layer.outputSize(), weights, scales, layer.biases().clone(),
+                inputRange > 0f ? inputRange / MAX_QUANTIZED : 1f, layer.activation(), layer.activationParameter());
+    }
+
+    public int inputSize() {
+        return inputSize;
+    }
+
+    public int outputSize() {
+        return outputSize;
+    }
+
+    public byte[] weights() {
+        return weights;
+    }
+
+    public float[] weightScales() {
+        return weightScales;
+    }
+
+    public float[] biases() {
+        return biases;
+    }
+
+    public float inputScale() {
+        return inputScale;
+    }
+
+    public Activation activation() {
+        return activation;
+    }
+
+    public float activationParameter() {
+        return activationParameter;
+    }
+
+    /**
+     * Bytes taken by weights, scales and biases.
+     */
+    public long sizeInBytes() {
+        return weights.length + (long) (weightScales.length + biases.length + 1) * Float.BYTES;
+    }
+
+    /**
+     * Quantizes {@link #inputSize()} float inputs with the calibrated input scale, saturating at +/-127.
+     */
+    public void quantizeInput(final float[] input, final int offset, final byte[] target) {
+        for (int i = 0; i < inputSize; i++) {
+            final int quantized = Math.round(input[offset + i] * inverseInputScale);
+            target[i] = (byte) Math.max(-MAX_QUANTIZED, Math.min(MAX_QUANTIZED, quantized));
+        }
+    }
+
+    /**
+     * {@code output = activation(scale * (weights . input) + biases)} for one quantized input vector.
+     */
+    public void forward(final byte[] input, final float[] output, final int outputOffset) {
+        for (int j = 0; j < outputSize; j++) {
+            output[outputOffset + j] = activation.apply(
+                    dot(weights, j * inputSize, input, inputSize) * outputScales[j] + biases[j],
+                    activationParameter);
+        }
+    }
+
+    static byte quantize(final float value, final float scale) {
+        final int quantized = Math.round(value / scale);
+        return (byte) Math.max(-MAX_QUANTIZED, Math.min(MAX_QUANTIZED, quantized));
+    }
+
+    /**
+     * Integer sums are associative, so unlike {@link DenseLayer#dot} this plain loop needs no manual
+     * unrolling: C2 vectorizes it as it is, and splitting it into several accumulators defeats that.
+     */
+    static int dot(final byte[] weights, final int offset, final byte[] input, final int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += weights[offset + i] * input[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,200 @@
+package com.dj.models.mnist;
+
+import com.dj.core.serializer.ModelWrapper;
+import com.dj.core.serializer.SerializerHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Post-training int8 quantization. Weights get one symmetric scale per output neuron; the input range
+ * of every layer is calibrated by running the float model over a sample of images and taking the largest
+ * magnitude seen. {@link #compare} reports what the quantization costs in accuracy.
+ */
+public final class Quantizer {
+
+    public static final int DEFAULT_CALIBRATION_SIZE = 1000;
+
+    /**
+     * Highest acceptable error rate of a deployed model, the threshold {@code TestMnistModel} checks.
+     */
+    public static final double MAX_ERROR = .2;
+
+    private Quantizer() { }
+
+    /**
+     * Float and quantized scores of one model on the same data.
+     */
+    public static class Report {
+
+        private final EvaluationResult floatResult;
+
+        private final EvaluationResult quantizedResult;
+
+        private final double agreement;
+
+        private final long floatBytes;
+
+        private final long quantizedBytes;
+
+        private final long parameters;
+
+        private Report(final EvaluationResult floatResult,
+                       final EvaluationResult quantizedResult,
+                       final double agreement,
+                       final long floatBytes,
+                       final long quantizedBytes,
+                       final long parameters) {
+            this.floatResult = floatResult;
+            this.quantizedResult = quantizedResult;
+            this.agreement = agreement;
+            this.floatBytes = floatBytes;
+            this.quantizedBytes = quantizedBytes;
+            this.parameters = parameters;
+        }
+
+        public double floatError() {
+            return floatResult.errorRate();
+        }
+
+        public double quantizedError() {
+            return quantizedResult.errorRate();
+        }
+
+        /**
+         * Accuracy lost by quantizing, negative when the quantized model happens to do better.
+         */
+        public double accuracyDelta() {
+            return quantizedError() - floatError();
+        }
+
+        /**
+         * Share of images both models assign the same label.
+         */
+        public double agreement() {
+            return agreement;
+        }
+
+        public long floatBytes() {
+            return floatBytes;
+        }
+
+        public long quantizedBytes() {
+            return quantizedBytes;
+        }
+
+        /**
+         * Size of the {@code double} weights held by the neuron graph over the size of the quantized model.
+         */
+        public double compressionOverDoubles() {
+            return (double) parameters * Double.BYTES / quantizedBytes;
+        }
+
+        public boolean withinErrorThreshold() {
+            return quantizedError() < MAX_ERROR;
+        }
+
+        @Override
+        public String toString() {
+            return format("float error %.4f, int8 error %.4f (delta %+.4f), agreement %.4f, "
+                            + "%d -> %d bytes (%.1fx smaller than float32, %.1fx smaller than double)",
+                    floatError(), quantizedError(), accuracyDelta(), agreement, floatBytes, quantizedBytes,
+                    (double) floatBytes / quantizedBytes, compressionOverDoubles());
+        }
+    }
+
+    public static QuantizedModel quantize(final ModelWrapper modelWrapper, final ImageMatrix calibration) {
+        return quantize(ModelCompiler.compile(modelWrapper), calibration);
+    }
+
+    public static QuantizedModel quantize(final CompiledModel model, final ImageMatrix calibration) {
+        final float[] ranges = calibrate(model, calibration);
+        final List<QuantizedLayer> layers = new ArrayList<>(model.layers().size());
+        for (int l = 0; l < model.layers().size(); l++) {
+            layers.add(QuantizedLayer.quantize(model.layers().get(l), ranges[l]));
+        }
+        return new QuantizedModel(layers);
+    }
+
+    /**
+     * The first {@link #DEFAULT_CALIBRATION_SIZE} images, enough to find the ranges of every layer.
+     */
+    public static ImageMatrix calibrationSample(final ImageMatrix images) {
+        final int calibrationSize = Math.min(DEFAULT_CALIBRATION_SIZE, images.size());
+        return ImageMatrix.wrap(Arrays.copyOf(images.data(), calibrationSize * images.imageSize()),
+                calibrationSize, images.imageSize());
+    }
+
+    /**
+     * Largest input magnitude of every layer over the calibration images.
+     */
+    public static float[] calibrate(final CompiledModel model, final ImageMatrix images) {
+        if (images.size() == 0 || images.imageSize() != model.inputSize()) {
+            throw new IllegalArgumentException(format("Calibration needs images of %d pixels", model.inputSize()));
+        }
+        final List<DenseLayer> layers = model.layers();
+        final float[] ranges = new float[layers.size()];
+        final float[][] outputs = new float[layers.size()][];
+        for (int l = 0; l < layers.size(); l++) {
+            outputs[l] = new float[layers.get(l).outputSize()];
+        }
+        for (int i = 0; i < images.size(); i++) {
+            float[] input = images.data();
+            int offset = images.offset(i);
+            for (int l = 0; l < layers.size(); l++) {
+                final DenseLayer layer = layers.get(l);
+                for (int p = 0; p < layer.inputSize(); p++) {
+                    ranges[l] = Math.max(ranges[l], Math.abs(input[offset + p]));
+                }
+                layer.forward(input, offset, outputs[l], 0);
+                input = outputs[l];
+                offset = 0;
+            }
+        }
+        return ranges;
+    }
+
+    public static Report compare(final CompiledModel model,
+                                 final QuantizedModel quantized,
+                                 final ImageMatrix images,
+                                 final LabelVector labels) {
+        final int[] expected = model.predict(images);
+        final int[] actual = quantized.predict(images);
+        final EvaluationResult floatResult = new EvaluationResult(model.outputSize());
+        final EvaluationResult quantizedResult = new EvaluationResult(quantized.outputSize());
+        int same = 0;
+        for (int i = 0; i < expected.length; i++) {
+            floatResult.add(labels.get(i), expected[i]);
+            quantizedResult.add(labels.get(i), actual[i]);
+            if (expected[i] == actual[i]) {
+                same++;
+            }
+        }
+        return new Report(floatResult, quantizedResult, expected.length == 0 ? 1. : (double) same / expected.length,
+                ModelFile.fileSize(model), quantized.sizeInBytes(), model.numberOfParameters());
+    }
+
+    /**
+     * Quantizes a serialized neuron graph (the bundled {@code mnist.dj} by default), calibrating on the
+     * first test images, and reports the accuracy on the whole MNIST test set.
+     */
+    public static void main(final String[] args) {
+        final String path = args.length > 0
+                ? args[0]
+                : Quantizer.class.getClassLoader().getResource("com/dj/models/mnist/mnist.dj").getPath();
+        final CompiledModel model = ModelCompiler.compile(SerializerHelper.deserializeFromFile(path));
+        MnistDownloader.downloadMnist();
+        final ImageMatrix images = ImageMatrix.fromRows(
+                MnistTrainer.loadImages(MnistDownloader.MNIST_TEST_SET_IMAGES_FILE.toString()));
+        final LabelVector labels = LabelVector.fromOneHot(
+                MnistTrainer.loadLabels(MnistDownloader.MNIST_TEST_SET_LABELS_FILE.toString()));
+        final Report report = compare(model, quantize(model, calibrationSample(images)), images, labels);
+        System.out.println(report);
+        if (!report.withinErrorThreshold()) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.dj.models.mnist;
+
+import java.util.Arrays;
+
+import static java.lang.String.format;
+
+/**
+ * Images in compressed sparse row form: for every image only its non-zero pixels, as ascending pixel
+ * indexes and their values. Image {@code i} owns the entries {@code [start(i), end(i))} of
+ * {@link #indexes()} and {@link #values()}.
+ * <p>
+ * About 80% of MNIst pixels are exactly zero. A stored pixel takes six bytes (a 16 bit index and a
+ * float) against four bytes for every pixel of an {@link ImageMatrix}, so a data set shrinks around three
+ * times, and the first layer of a model only multiplies the stored pixels, see
+ * {@link DenseLayer#forward(SparseImageMatrix, int, int, float[], int)}. Below
+ * {@value #DEFAULT_DENSITY_THRESHOLD} non-zero pixels per pixel the sparse kernels are the faster ones;
+ * {@link #ifSparse(ImageMatrix)} picks the representation.
+ */
+public class SparseImageMatrix {
+
+    public static final double DEFAULT_DENSITY_THRESHOLD = 0.5;
+
+    /**
+     * Largest image size whose pixel indexes fit into a {@code char}.
+     */
+    public static final int MAX_IMAGE_SIZE = Character.MAX_VALUE + 1;
+
+    private final int size;
+
+    private final int imageSize;
+
+    private final int[] starts;
+
+    private final char[] indexes;
+
+    private final float[] values;
+
+    private SparseImageMatrix(final int size,
+                              final int imageSize,
+                              final int[] starts,
+                              final char[] indexes,
+                              final float[] values) {
+        this.size = size;
+        this.imageSize = imageSize;
+        this.starts = starts;
+        this.indexes = indexes;
+        this.values = values;
+    }
+
+    public static SparseImageMatrix fromDense(final ImageMatrix images) {
+        final Appender appender = new Appender(images.size(), images.imageSize());
+        final float[] data = images.data();
+        for (int i = 0; i < images.size(); i++) {
+            final int offset = images.offset(i);
+            for (int p = 0; p < images.imageSize(); p++) {
+                appender.add(p, data[offset + p]);
+            }
+            appender.endImage();
+        }
+        return appender.build();
+    }
+
+    /**
+     * Raw pixel values (0 - 255) of a mapped IDX image file, read record by record without a dense copy
+     * of the data set.
+     */
+    public static SparseImageMatrix fromIdx(final IdxDataset images) {
+        final Appender appender = new Appender(images.size(), images.recordSize());
+        final byte[] record = new byte[images.recordSize()];
+        for (int i = 0; i < images.size(); i++) {
+            images.copyRecord(i, record, 0);
+            for (int p = 0; p < record.length; p++) {
+                appender.add(p, record[p] & 0xFF);
+            }
+            appender.endImage();
+        }
+        return appender.build();
+    }
+
+    public static SparseImageMatrix fromIdx(final String path) {
+        return fromIdx(IdxDataset.openImages(path));
+    }
+
+    public static SparseImageMatrix fromRows(final double[][] rows) {
+        final Appender appender = new Appender(rows.length, rows.length == 0 ? 0 : rows[0].length);
+        for (final double[] row : rows) {
+            for (int p = 0; p < row.length; p++) {
+                appender.add(p, (float) row[p]);
+            }
+            appender.endImage();
+        }
+        return appender.build();
+    }
+
+    /**
+     * The sparse form of {@code images} when at most {@value #DEFAULT_DENSITY_THRESHOLD} of their pixels
+     * are non-zero, null otherwise.
+     */
+    public static SparseImageMatrix ifSparse(final ImageMatrix images) {
+        return ifSparse(images, DEFAULT_DENSITY_THRESHOLD);
+    }
+
+    public static SparseImageMatrix ifSparse(final ImageMatrix images, final double threshold) {
+        if (images.imageSize() > MAX_IMAGE_SIZE || images.size() == 0 || images.density() > threshold) {
+            return null;
+        }
+        return fromDense(images);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int imageSize() {
+        return imageSize;
+    }
+
+    /**
+     * Position of the first stored pixel of image {@code index}.
+     */
+    public int start(final int index) {
+        return starts[index];
+    }
+
+    /**
+     * Position after the last stored pixel of image {@code index}.
+     */
+    public int end(final int index) {
+        return starts[index + 1];
+    }
+
+    public char[] indexes() {
+        return indexes;
+    }
+
+    public float[] values() {
+        return values;
+    }
+
+    public int nonZeros() {
+        return starts[size];
+    }
+
+    /**
+     * Fraction of the pixels that are stored.
+     */
+    public double density() {
+        return size == 0 || imageSize == 0 ? 0. : (double) nonZeros() / ((long) size * imageSize);
+    }
+
+    public long sizeInBytes() {
+        return (long) starts.length * Integer.BYTES + (long) nonZeros() * (Character.BYTES + Float.BYTES);
+    }
+
+    public float get(final int index, final int pixel) {
+        final int position = Arrays.binarySearch(indexes, starts[index], starts[index + 1], (char) pixel);
+        return position < 0 ? 0f : values[position];
+    }
+
+    /**
+     * Writes image {@code index} densely into {@code destination}, zeros included.
+     */
+    public void copyImage(final int index, final float[] destination, final int destinationOffset) {
+        Arrays.fill(destination, destinationOffset, destinationOffset + imageSize, 0f);
+        for (int k = starts[index]; k < starts[index + 1]; k++) {
+            destination[destinationOffset + indexes[k]] = values[k];
+        }
+    }
+
+    public ImageMatrix toDense() {
+        final ImageMatrix dense = ImageMatrix.allocate(size, imageSize);
+        for (int i = 0; i < size; i++) {
+            copyImage(i, dense.data(), dense.offset(i));
+        }
+        return dense;
+    }
+
+    /**
+     * Multiplies all pixels by {@code factor} in place, e.g. {@code 1 / 255f} for raw MNIst pixels.
+     */
+    public SparseImageMatrix scale(final float factor) {
+        for (int k = 0; k < nonZeros(); k++) {
+            values[k] *= factor;
+        }
+        return this;
+    }
+
+    /**
+     * Collects the non-zero pixels image by image into arrays that grow as needed.
+     */
+    private static class Appender {
+
+        private final int size;
+
+        private final int imageSize;
+
+        private final int[] starts;
+
+        private char[] indexes;
+
+        private float[] values;
+
+        private int images;
+
+        private int count;
+
+        private Appender(final int size, final int imageSize) {
+            if (imageSize > MAX_IMAGE_SIZE) {
+                throw new IllegalArgumentException(
+                        format("Images of %d pixels are larger than the %d supported", imageSize, MAX_IMAGE_SIZE));
+            }
+            this.size = size;
+            this.imageSize = imageSize;
+            this.starts = new int[size + 1];
+            final int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(16L, (long) size * imageSize / 4));
+            this.indexes = new char[capacity];
+            this.values = new float[capacity];
+        }
+
+        private void add(final int pixel, final float value) {
+            if (value == 0f) {
+                return;
+            }
+            if (count == values.length) {
+                final int capacity = (int) Math.min(Integer.MAX_VALUE - 8, 2L * count);
+                if (capacity == count) {
+                    throw new IllegalArgumentException("Too many non-zero pixels for a sparse matrix");
+                }
+                indexes = Arrays.copyOf(indexes, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            indexes[count] = (char) pixel;
+            values[count++] = value;
+        }
+
+        private void endImage() {
+            starts[++images] = count;
+        }
+
+        private SparseImageMatrix build() {
+            return new SparseImageMatrix(size, imageSize, starts,
+                    Arrays.copyOf(indexes, count), Arrays.copyOf(values, count));
+        }
+    }
+}
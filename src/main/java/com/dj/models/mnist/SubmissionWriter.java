@@ -0,0 +1,232 @@
+package com.dj.models.mnist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Writes a Kaggle "Digit Recognizer" submission ({@code ImageId,Label} rows) for already loaded test
+ * images. Images are predicted chunk by chunk on a {@link ForkJoinPool}; while one chunk is formatted
+ * and written the next one is predicted. Rows are formatted digit by digit into one direct buffer that
+ * is flushed to a {@link FileChannel}, so memory use is bounded by the chunk and buffer sizes. Mostly-zero
+ * images are predicted through their {@link SparseImageMatrix} form.
+ */
+public class SubmissionWriter {
+
+    public static final String HEADER = "ImageId,Label\n";
+
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final int SPLIT_THRESHOLD = 256;
+
+    private static final int MAX_DIGITS = 10;
+
+    private final ForkJoinPool pool;
+
+    private final int chunkSize;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final byte[] digits = new byte[MAX_DIGITS];
+
+    public SubmissionWriter() {
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public SubmissionWriter(final ForkJoinPool pool, final int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Predicts every image and writes the submission to a temporary sibling of {@code output}, which is
+     * renamed into place once complete.
+     */
+    public void write(final CompiledModel model, final ImageMatrix images, final File output) {
+        final SparseImageMatrix sparse = sparseForm(model, images);
+        write(model, sparse == null ? images : null, sparse, output);
+    }
+
+    public void write(final CompiledModel model, final SparseImageMatrix images, final File output) {
+        write(model, null, images, output);
+    }
+
+    /**
+     * Writes the submission to {@code channel} from its current position, leaving it open.
+     */
+    public void write(final CompiledModel model,
+                      final ImageMatrix images,
+                      final FileChannel channel) throws IOException {
+        final SparseImageMatrix sparse = sparseForm(model, images);
+        write(model, sparse == null ? images : null, sparse, channel);
+    }
+
+    public void write(final CompiledModel model,
+                      final SparseImageMatrix images,
+                      final FileChannel channel) throws IOException {
+        write(model, null, images, channel);
+    }
+
+    private static SparseImageMatrix sparseForm(final CompiledModel model, final ImageMatrix images) {
+        return images.imageSize() == model.inputSize() ? SparseImageMatrix.ifSparse(images) : null;
+    }
+
+    private void write(final CompiledModel model,
+                       final ImageMatrix images,
+                       final SparseImageMatrix sparse,
+                       final File output) {
+        final File tmp = new File(output.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(model, images, sparse, channel);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("writing Kaggle result failed", e);
+        }
+        try {
+            Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("writing Kaggle result failed", e);
+        }
+    }
+
+    /**
+     * Writes the predictions of {@code sparse} when it is set, of {@code images} otherwise.
+     */
+    private synchronized void write(final CompiledModel model,
+                                    final ImageMatrix images,
+                                    final SparseImageMatrix sparse,
+                                    final FileChannel channel) throws IOException {
+        buffer.clear();
+        for (int i = 0; i < HEADER.length(); i++) {
+            buffer.put((byte) HEADER.charAt(i));
+        }
+        final int size = sparse != null ? sparse.size() : images.size();
+        int[] current = new int[Math.min(chunkSize, size)];
+        int[] next = new int[current.length];
+        ForkJoinTask<Void> pending = size == 0
+                ? null
+                : pool.submit(new PredictionTask(model, images, sparse, 0, current.length, current));
+        for (int from = 0; from < size; from += chunkSize) {
+            final int to = Math.min(size, from + chunkSize);
+            pending.join();
+            pending = to < size
+                    ? pool.submit(new PredictionTask(model, images, sparse, to, Math.min(size, to + chunkSize), next))
+                    : null;
+            for (int i = from; i < to; i++) {
+                if (buffer.remaining() < 2 * MAX_DIGITS + 2) {
+                    flush(channel);
+                }
+                putInt(i + 1);
+                buffer.put((byte) ',');
+                putInt(current[i - from]);
+                buffer.put((byte) '\n');
+            }
+            final int[] swap = current;
+            current = next;
+            next = swap;
+        }
+        flush(channel);
+    }
+
+    private void putInt(final int value) {
+        int remaining = value;
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining > 0);
+        while (length > 0) {
+            buffer.put(digits[--length]);
+        }
+    }
+
+    private void flush(final FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Predicts images {@code [from, to)} into {@code predictions[0, to - from)}.
+     */
+    private static class PredictionTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CompiledModel model;
+
+        private final ImageMatrix images;
+
+        private final SparseImageMatrix sparse;
+
+        private final int from;
+
+        private final int to;
+
+        private final int[] predictions;
+
+        private final int base;
+
+        private PredictionTask(final CompiledModel model,
+                               final ImageMatrix images,
+                               final SparseImageMatrix sparse,
+                               final int from,
+                               final int to,
+                               final int[] predictions) {
+            this(model, images, sparse, from, to, predictions, from);
+        }
+
+        private PredictionTask(final CompiledModel model,
+                               final ImageMatrix images,
+                               final SparseImageMatrix sparse,
+                               final int from,
+                               final int to,
+                               final int[] predictions,
+                               final int base) {
+            this.model = model;
+            this.images = images;
+            this.sparse = sparse;
+            this.from = from;
+            this.to = to;
+            this.predictions = predictions;
+            this.base = base;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new PredictionTask(model, images, sparse, from, middle, predictions, base),
+                        new PredictionTask(model, images, sparse, middle, to, predictions, base));
+                return;
+            }
+            final CompiledModel.Workspace workspace = model.newWorkspace();
+            final int outputSize = model.outputSize();
+            for (int start = from; start < to; start += CompiledModel.DEFAULT_BLOCK_SIZE) {
+                final int count = Math.min(CompiledModel.DEFAULT_BLOCK_SIZE, to - start);
+                final float[] outputs = sparse != null
+                        ? model.forward(sparse, start, count, workspace)
+                        : model.forward(images.data(), images.offset(start), count, workspace);
+                for (int b = 0; b < count; b++) {
+                    predictions[start - base + b] = CompiledModel.argMax(outputs, b * outputSize, outputSize);
+                }
+            }
+        }
+    }
+}
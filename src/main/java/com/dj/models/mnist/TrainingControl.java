@@ -0,0 +1,393 @@
+package com.dj.models.mnist;
+
+import com.dj.core.optimizer.Optimizer;
+import com.dj.core.optimizer.OptimizerProgressListener;
+import com.dj.core.serializer.ModelWrapper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Decides when training of a {@link ModelWrapper} stops: after a maximum number of epochs, once a wall
+ * clock budget is spent, when the validation error did not improve for {@code patience} epochs or once
+ * a target accuracy is reached. The {@link Trainer} is handed the learning rate of every epoch; after every
+ * epoch the graph is compiled and scored on the validation data, graphs that can not be compiled are
+ * scored by running the graph itself. When training stops the graph is rolled back to the exact weights
+ * of the epoch with the lowest validation error.
+ * <p>
+ * Trainers and {@code com.dj.core} optimizers have no way to be stopped, so the progress listener ends
+ * training by throwing; conditions are checked between epochs only.
+ */
+public class TrainingControl {
+
+    public static final int DEFAULT_MAX_EPOCHS = 500;
+
+    public enum StopReason {
+        MAX_EPOCHS,
+        TIME_BUDGET,
+        NO_IMPROVEMENT,
+        TARGET_ACCURACY,
+        /**
+         * The optimizer returned on its own before any other condition was met.
+         */
+        OPTIMIZER_FINISHED
+    }
+
+    /**
+     * Trains the graph of a model for one {@link TrainingControl#train} run.
+     */
+    public interface Trainer {
+
+        /**
+         * Trains epoch {@code e} at {@code learningRate.learningRate(e)}, for up to {@link #getMaxEpochs()}
+         * epochs, and reports every epoch to {@code progress}, which ends training by throwing.
+         */
+        void train(ModelWrapper modelWrapper, LearningRateSchedule learningRate, OptimizerProgressListener progress);
+    }
+
+    /**
+     * Notified after every epoch, before the stop conditions are checked.
+     */
+    public interface EpochListener {
+
+        /**
+         * @param model snapshot of the weights after this epoch, must not be modified; null when the graph
+         *              can not be compiled
+         */
+        void onEpoch(int epoch, double loss, CompiledModel model, double validationError);
+    }
+
+    public static class Result {
+
+        private final StopReason stopReason;
+
+        private final int epochs;
+
+        private final int bestEpoch;
+
+        private final double bestError;
+
+        private final CompiledModel bestModel;
+
+        private final long elapsedMillis;
+
+        private Result(final StopReason stopReason,
+                       final int epochs,
+                       final int bestEpoch,
+                       final double bestError,
+                       final CompiledModel bestModel,
+                       final long elapsedMillis) {
+            this.stopReason = stopReason;
+            this.epochs = epochs;
+            this.bestEpoch = bestEpoch;
+            this.bestError = bestError;
+            this.bestModel = bestModel;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public StopReason getStopReason() {
+            return stopReason;
+        }
+
+        public int getEpochs() {
+            return epochs;
+        }
+
+        /**
+         * Index of the epoch with the lowest validation error, -1 when no epoch completed.
+         */
+        public int getBestEpoch() {
+            return bestEpoch;
+        }
+
+        public double getBestError() {
+            return bestError;
+        }
+
+        /**
+         * Weights of the best epoch, null when no epoch completed or the graph can not be compiled.
+         */
+        public CompiledModel getBestModel() {
+            return bestModel;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Stopped by %s after %d epochs in %d ms, best error %.4f in epoch %d",
+                    stopReason, epochs, elapsedMillis, bestError, bestEpoch);
+        }
+    }
+
+    private final int maxEpochs;
+
+    private final long timeBudgetNanos;
+
+    private final int patience;
+
+    private final double minDelta;
+
+    private final double targetAccuracy;
+
+    private final LearningRateSchedule learningRateSchedule;
+
+    private final boolean restoreBest;
+
+    private final ParallelEvaluator evaluator;
+
+    private TrainingControl(final Builder builder) {
+        this.maxEpochs = builder.maxEpochs;
+        this.timeBudgetNanos = builder.timeBudgetNanos;
+        this.patience = builder.patience;
+        this.minDelta = builder.minDelta;
+        this.targetAccuracy = builder.targetAccuracy;
+        this.learningRateSchedule = builder.learningRateSchedule;
+        this.restoreBest = builder.restoreBest;
+        this.evaluator = builder.evaluator;
+    }
+
+    public static class Builder {
+
+        private int maxEpochs = DEFAULT_MAX_EPOCHS;
+
+        private long timeBudgetNanos = Long.MAX_VALUE;
+
+        private int patience;
+
+        private double minDelta;
+
+        private double targetAccuracy = Double.NaN;
+
+        private LearningRateSchedule learningRateSchedule;
+
+        private boolean restoreBest = true;
+
+        private ParallelEvaluator evaluator = new ParallelEvaluator();
+
+        public Builder maxEpochs(final int maxEpochs) {
+            this.maxEpochs = maxEpochs;
+            return this;
+        }
+
+        /**
+         * Stops after the first epoch that ends past the budget.
+         */
+        public Builder timeBudget(final long duration, final TimeUnit unit) {
+            this.timeBudgetNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Stops once the validation error did not improve for this many epochs, 0 (the default) disables
+         * early stopping.
+         */
+        public Builder patience(final int patience) {
+            this.patience = patience;
+            return this;
+        }
+
+        /**
+         * Smallest drop of the validation error that counts as an improvement.
+         */
+        public Builder minDelta(final double minDelta) {
+            this.minDelta = minDelta;
+            return this;
+        }
+
+        public Builder targetAccuracy(final double targetAccuracy) {
+            this.targetAccuracy = targetAccuracy;
+            return this;
+        }
+
+        /**
+         * Learning rate the trainer is handed for every epoch; by default the rate the model's context was
+         * created with.
+         */
+        public Builder learningRateSchedule(final LearningRateSchedule learningRateSchedule) {
+            this.learningRateSchedule = learningRateSchedule;
+            return this;
+        }
+
+        public Builder restoreBest(final boolean restoreBest) {
+            this.restoreBest = restoreBest;
+            return this;
+        }
+
+        public Builder evaluator(final ParallelEvaluator evaluator) {
+            this.evaluator = evaluator;
+            return this;
+        }
+
+        public TrainingControl build() {
+            if (maxEpochs < 1 || patience < 0 || timeBudgetNanos <= 0) {
+                throw new IllegalArgumentException("Epochs and time budget must be positive, patience not negative");
+            }
+            return new TrainingControl(this);
+        }
+    }
+
+    public int getMaxEpochs() {
+        return maxEpochs;
+    }
+
+    /**
+     * Trains {@code modelWrapper} with the optimizer built by {@code optimizerFactory}, which has to
+     * report every epoch to the listener it is given and should run for {@link #getMaxEpochs()} epochs.
+     * {@code com.dj.core} optimizers train at the learning rate of the context, so no schedule may be set.
+     *
+     * @throws IllegalStateException when a learning rate schedule is set
+     */
+    public Result train(final ModelWrapper modelWrapper,
+                        final Function<OptimizerProgressListener, Optimizer> optimizerFactory,
+                        final double[][] trainImages,
+                        final double[][] trainLabels,
+                        final double[][] validationImages,
+                        final double[][] validationLabels,
+                        final EpochListener listener) {
+        if (learningRateSchedule != null) {
+            throw new IllegalStateException("com.dj.core optimizers ignore learning rate schedules, use a Trainer");
+        }
+        return train(modelWrapper, (wrapper, learningRate, progress) -> optimizerFactory.apply(progress)
+                        .train(wrapper.getContext(), wrapper.getInputLayer(), wrapper.getOutputLayer(),
+                                trainImages, trainLabels, validationImages, validationLabels),
+                ImageMatrix.fromRows(validationImages), LabelVector.fromOneHot(validationLabels), listener);
+    }
+
+    /**
+     * Trains {@code modelWrapper} with {@code trainer}, which should run for {@link #getMaxEpochs()} epochs.
+     */
+    public Result train(final ModelWrapper modelWrapper,
+                        final Trainer trainer,
+                        final ImageMatrix validationImages,
+                        final LabelVector validationLabels,
+                        final EpochListener listener) {
+        final LearningRateSchedule learningRate = learningRateSchedule != null ? learningRateSchedule
+                : LearningRateSchedule.constant(ModelCompiler.getLearningRate(modelWrapper.getContext()));
+        final Progress progress = new Progress(modelWrapper, validationImages, validationLabels, listener);
+        try {
+            trainer.train(modelWrapper, learningRate, progress);
+            progress.stopReason = StopReason.OPTIMIZER_FINISHED;
+        } catch (StopTraining e) {
+            // a stop condition was met, progress knows which
+        }
+        if (restoreBest && progress.bestWeights != null) {
+            progress.bestWeights.restore(modelWrapper.getInputLayer(), modelWrapper.getOutputLayer());
+        }
+        return new Result(progress.stopReason, progress.epochs, progress.bestEpoch, progress.bestError,
+                progress.bestModel, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - progress.start));
+    }
+
+    private static class StopTraining extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private StopTraining() {
+            super("Training stopped", null, false, false);
+        }
+    }
+
+    private class Progress implements OptimizerProgressListener {
+
+        private final ModelWrapper modelWrapper;
+
+        private final ImageMatrix dense;
+
+        /**
+         * Validation images, built once per training run: the sparse form when the images are mostly
+         * zero, otherwise the dense one.
+         */
+        private final ImageMatrix images;
+
+        private final SparseImageMatrix sparse;
+
+        private final LabelVector labels;
+
+        /**
+         * Validation data as rows for graphs that can not be compiled, built on first use.
+         */
+        private double[][] graphImages;
+
+        private double[][] graphLabels;
+
+        private final EpochListener listener;
+
+        private final long start = System.nanoTime();
+
+        private int epochs;
+
+        private int bestEpoch = -1;
+
+        private double bestError = Double.POSITIVE_INFINITY;
+
+        private CompiledModel bestModel;
+
+        private GraphSnapshot bestWeights;
+
+        private StopReason stopReason;
+
+        private Progress(final ModelWrapper modelWrapper,
+                         final ImageMatrix images,
+                         final LabelVector labels,
+                         final EpochListener listener) {
+            this.modelWrapper = modelWrapper;
+            this.dense = images;
+            this.sparse = SparseImageMatrix.ifSparse(images);
+            this.images = sparse == null ? images : null;
+            this.labels = labels;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onProgress(final double loss, final int epoch, final int totalEpochs) {
+            final int completed = epochs++;
+            final GraphSnapshot weights = GraphSnapshot.of(modelWrapper);
+            CompiledModel model;
+            try {
+                model = weights.compile();
+            } catch (UnsupportedOperationException e) {
+                model = null;
+            }
+            final double error = model != null
+                    ? evaluator.evaluate(model, images, sparse, labels).errorRate()
+                    : errorOnGraph();
+            if (listener != null) {
+                listener.onEpoch(completed, loss, model, error);
+            }
+            if (error < bestError - minDelta || bestWeights == null) {
+                bestError = error;
+                bestEpoch = completed;
+                bestModel = model;
+                bestWeights = weights;
+            }
+            if (!Double.isNaN(targetAccuracy) && 1. - error >= targetAccuracy) {
+                stop(StopReason.TARGET_ACCURACY);
+            }
+            if (patience > 0 && completed - bestEpoch >= patience) {
+                stop(StopReason.NO_IMPROVEMENT);
+            }
+            if (System.nanoTime() - start >= timeBudgetNanos) {
+                stop(StopReason.TIME_BUDGET);
+            }
+            if (epochs >= maxEpochs) {
+                stop(StopReason.MAX_EPOCHS);
+            }
+        }
+
+        private double errorOnGraph() {
+            if (graphImages == null) {
+                graphImages = dense.toRows();
+                graphLabels = labels.toOneHotRows();
+            }
+            return MnistTrainer.calculateErrorOnGraph(modelWrapper.getInputLayer(), modelWrapper.getOutputLayer(),
+                    graphImages, graphLabels);
+        }
+
+        private void stop(final StopReason reason) {
+            stopReason = reason;
+            throw new StopTraining();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.dj.models.mnist;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AugmenterTest {
+
+    @Test
+    public void testWithoutDistortionsTheImageIsUnchanged() {
+        final float[] image = image();
+        final float[] augmented = image.clone();
+        final Augmenter augmenter = new Augmenter.Builder().build();
+
+        augmenter.augment(augmented, 0, new Random(1), augmenter.newWorkspace());
+
+        assertArrayEquals(image, augmented, 0f);
+    }
+
+    @Test
+    public void testSameRandomStateGivesTheSameDistortion() {
+        final Augmenter augmenter = new Augmenter.Builder()
+                .maxShift(2f)
+                .maxRotation(15f)
+                .elastic(34f, 4f)
+                .noise(0.05f)
+                .build();
+        final Augmenter.Workspace workspace = augmenter.newWorkspace();
+        final float[] first = augment(augmenter, 3, workspace);
+
+        assertArrayEquals(first, augment(augmenter, 3, augmenter.newWorkspace()), 0f);
+        assertFalse(Arrays.equals(first, augment(augmenter, 4, workspace)));
+        assertFalse(Arrays.equals(first, image()));
+        for (final float pixel : first) {
+            assertTrue(pixel >= 0f && pixel <= 1f);
+        }
+    }
+
+    @Test
+    public void testSmallDistortionsKeepTheInk() {
+        final Augmenter augmenter = new Augmenter.Builder().maxShift(1f).maxRotation(10f).elastic(8f, 4f).build();
+        final double ink = sum(image());
+
+        for (int seed = 0; seed < 20; seed++) {
+            assertEquals(ink, sum(augment(augmenter, seed, augmenter.newWorkspace())), ink * 0.15);
+        }
+    }
+
+    @Test
+    public void testAugmentsAnImageInsideALargerBuffer() {
+        final Augmenter augmenter = new Augmenter.Builder().maxShift(2f).noise(0.1f).build();
+        final float[] buffer = new float[3 * MnistFixtures.IMAGE_SIZE];
+        System.arraycopy(image(), 0, buffer, MnistFixtures.IMAGE_SIZE, MnistFixtures.IMAGE_SIZE);
+
+        augmenter.augment(buffer, MnistFixtures.IMAGE_SIZE, new Random(3), augmenter.newWorkspace());
+
+        assertArrayEquals(augment(augmenter, 3, augmenter.newWorkspace()),
+                Arrays.copyOfRange(buffer, MnistFixtures.IMAGE_SIZE, 2 * MnistFixtures.IMAGE_SIZE), 0f);
+        assertEquals(0., sum(Arrays.copyOf(buffer, MnistFixtures.IMAGE_SIZE)), 0.);
+        assertEquals(0., sum(Arrays.copyOfRange(buffer, 2 * MnistFixtures.IMAGE_SIZE, buffer.length)), 0.);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeStrengths() {
+        new Augmenter.Builder().noise(-1f).build();
+    }
+
+    private static float[] augment(final Augmenter augmenter, final long seed, final Augmenter.Workspace workspace) {
+        final float[] image = image();
+        augmenter.augment(image, 0, new Random(seed), workspace);
+        return image;
+    }
+
+    private static float[] image() {
+        return MnistFixtures.imageMatrix(MnistFixtures.separableImages(1, 1)).data();
+    }
+
+    private static double sum(final float[] values) {
+        double sum = 0;
+        for (final float value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
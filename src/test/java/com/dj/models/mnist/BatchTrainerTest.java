@@ -0,0 +1,190 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.serializer.ModelWrapper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchTrainerTest {
+
+    private static final int COUNT = 200;
+
+    private final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.separableImages(COUNT, 5));
+
+    private final LabelVector labels = MnistFixtures.labels(COUNT);
+
+    @Test
+    public void testMatchesPerImageBackPropagation() {
+        final CompiledModel batched = MnistFixtures.randomModel(1, 16);
+        final CompiledModel perImage = MnistFixtures.randomModel(1, 16);
+
+        final double batchedLoss = trainer(BatchTrainer.LossFunction.QUADRATIC).epochs(2).build()
+                .train(batched, images, labels);
+        final double perImageLoss = new DataParallelTrainer.Builder()
+                .workers(1)
+                .batchSize(16)
+                .epochs(2)
+                .learningRate(0.01)
+                .seed(42)
+                .build()
+                .train(perImage, images, labels);
+
+        assertEquals(perImageLoss, batchedLoss, 1e-4);
+        for (int l = 0; l < batched.layers().size(); l++) {
+            assertArrayEquals(perImage.layers().get(l).weights(), batched.layers().get(l).weights(), 1e-4f);
+            assertArrayEquals(perImage.layers().get(l).biases(), batched.layers().get(l).biases(), 1e-4f);
+        }
+    }
+
+    @Test
+    public void testSparseAndDenseInputsTrainTheSameWeights() {
+        final CompiledModel sparse = MnistFixtures.randomModel(1, 16);
+        final CompiledModel dense = MnistFixtures.randomModel(1, 16);
+
+        trainer(BatchTrainer.LossFunction.QUADRATIC).build().train(sparse, SparseImageMatrix.fromDense(images), labels);
+        trainer(BatchTrainer.LossFunction.QUADRATIC).sparseThreshold(0).build().train(dense, images, labels);
+
+        for (int l = 0; l < sparse.layers().size(); l++) {
+            assertArrayEquals(dense.layers().get(l).weights(), sparse.layers().get(l).weights(), 1e-5f);
+            assertArrayEquals(dense.layers().get(l).biases(), sparse.layers().get(l).biases(), 1e-5f);
+        }
+    }
+
+    @Test
+    public void testQuadraticLossLearnsSeparableImages() {
+        assertLearns(BatchTrainer.LossFunction.QUADRATIC);
+    }
+
+    @Test
+    public void testCrossEntropyLearnsSeparableImages() {
+        assertLearns(BatchTrainer.LossFunction.CROSS_ENTROPY);
+    }
+
+    @Test
+    public void testSoftmaxCrossEntropyOnLinearOutputs() {
+        final DenseLayer hidden = MnistFixtures.randomModel(2, 16).layers().get(0);
+        final DenseLayer output = MnistFixtures.randomModel(2, 16).layers().get(1);
+        final CompiledModel model = new CompiledModel(List.of(hidden, new DenseLayer(16, 10,
+                output.weights(), output.biases(), Activation.LINEAR, 0f)));
+        final double before = errorRate(model);
+
+        trainer(BatchTrainer.LossFunction.CROSS_ENTROPY).learningRate(0.002).build().train(model, images, labels);
+
+        assertTrue(errorRate(model) < before);
+        assertTrue(errorRate(model) < 0.2);
+    }
+
+    @Test
+    public void testTrainsANeuronGraphAsOptimizer() {
+        final CompiledModel initial = MnistFixtures.randomModel(1, 8);
+        final ModelWrapper modelWrapper = ModelCompiler.toModelWrapper(initial, new Context(0.01, false));
+        final double[][] rows = new double[COUNT][MnistFixtures.IMAGE_SIZE];
+        final double[][] oneHot = new double[COUNT][];
+        for (int i = 0; i < COUNT; i++) {
+            for (int p = 0; p < MnistFixtures.IMAGE_SIZE; p++) {
+                rows[i][p] = images.get(i, p);
+            }
+            oneHot[i] = MnistTrainer.convertLabel(labels.get(i));
+        }
+        final List<Double> errors = new ArrayList<>();
+
+        new BatchTrainer.Builder()
+                .batchSize(16)
+                .epochs(5)
+                .listener((loss, epoch, epochs) -> errors.add(errorRate(ModelCompiler.compile(modelWrapper))))
+                .build()
+                .train(modelWrapper.getContext(), modelWrapper.getInputLayer(), modelWrapper.getOutputLayer(),
+                        rows, oneHot, rows, oneHot);
+
+        assertEquals(5, errors.size());
+        assertTrue(errors.get(4) < errorRate(initial));
+    }
+
+    @Test
+    public void testTrainsANeuronGraphAtTheScheduledRates() {
+        final CompiledModel reference = MnistFixtures.randomModel(1, 8);
+        final ModelWrapper modelWrapper = ModelCompiler.toModelWrapper(reference, new Context(0.5, false));
+
+        trainer(BatchTrainer.LossFunction.QUADRATIC).epochs(1).build().train(reference, images, labels);
+        trainer(BatchTrainer.LossFunction.QUADRATIC).epochs(2).build()
+                .train(modelWrapper.getInputLayer(), modelWrapper.getOutputLayer(), images, labels,
+                        epoch -> epoch == 0 ? 0.01 : 0.);
+
+        // the graph may hand hidden neurons back in another order, so compare what the models compute
+        final CompiledModel trained = ModelCompiler.compile(modelWrapper);
+        final CompiledModel.Workspace referenceWorkspace = reference.newWorkspace();
+        final CompiledModel.Workspace trainedWorkspace = trained.newWorkspace();
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(reference.forward(images.data(), images.offset(i), referenceWorkspace),
+                    trained.forward(images.data(), images.offset(i), trainedWorkspace), 1e-5f);
+        }
+        assertEquals(0.5, ModelCompiler.getLearningRate(modelWrapper.getContext()), 0.);
+    }
+
+    @Test
+    public void testLearnsFromADataLoader() {
+        final CompiledModel model = MnistFixtures.randomModel(1, 16);
+        final double before = errorRate(model);
+        final DefaultMetricsRegistry registry = new DefaultMetricsRegistry();
+        final List<Double> losses = new ArrayList<>();
+        Metrics.install(registry);
+        try {
+            trainer(BatchTrainer.LossFunction.QUADRATIC)
+                    .listener((value, epoch, epochs) -> losses.add(value))
+                    .build()
+                    .train(model, new MnistDataLoader.Builder()
+                            .images(images)
+                            .labels(labels)
+                            .batchSize(16)
+                            .seed(42)
+                            .workers(2)
+                            .build());
+        } finally {
+            Metrics.uninstall();
+        }
+
+        assertEquals(10, losses.size());
+        assertTrue(losses.get(9) < losses.get(0));
+        assertTrue(errorRate(model) < before);
+        assertTrue(errorRate(model) < 0.2);
+        assertEquals(1L, registry.snapshot().get(Metrics.TRAIN_FIRST_STEP_TIME + ".count").longValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMismatchedData() {
+        trainer(BatchTrainer.LossFunction.QUADRATIC).build()
+                .train(MnistFixtures.randomModel(1, 8), images, MnistFixtures.labels(COUNT - 1));
+    }
+
+    private void assertLearns(final BatchTrainer.LossFunction loss) {
+        final CompiledModel model = MnistFixtures.randomModel(1, 16);
+        final double before = errorRate(model);
+        final List<Double> losses = new ArrayList<>();
+
+        trainer(loss).listener((value, epoch, epochs) -> losses.add(value)).build().train(model, images, labels);
+
+        assertEquals(10, losses.size());
+        assertTrue(losses.get(9) < losses.get(0));
+        assertTrue(errorRate(model) < before);
+        assertTrue(errorRate(model) < 0.2);
+    }
+
+    private static BatchTrainer.Builder trainer(final BatchTrainer.LossFunction loss) {
+        return new BatchTrainer.Builder()
+                .batchSize(16)
+                .epochs(10)
+                .learningRate(0.01)
+                .seed(42)
+                .loss(loss);
+    }
+
+    private double errorRate(final CompiledModel model) {
+        return new ParallelEvaluator().evaluate(model, images, labels).errorRate();
+    }
+}
@@ -0,0 +1,184 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.model.graph.Neuron;
+import com.dj.core.serializer.ModelWrapper;
+import com.dj.core.serializer.SerializerHelper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLastAndBestCheckpointsAreRetained() {
+        final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.images(300));
+        final LabelVector labels = MnistFixtures.labels(300);
+        final Map<Integer, Double> errors = new ConcurrentHashMap<>();
+        final String pattern = new File(folder.getRoot(), "checkpoint_%d.dj").toString();
+
+        final CheckpointManager manager = new CheckpointManager.Builder()
+                .modelFilePattern(pattern)
+                .context(new Context(0.0005, false))
+                .evaluationData(images, labels)
+                .listener(checkpoint -> errors.put(checkpoint.getEpoch(), checkpoint.getError()))
+                .queueCapacity(10)
+                .overflowPolicy(CheckpointManager.OverflowPolicy.DROP_NEWEST)
+                .keepLast(2)
+                .keepBest(1)
+                .build();
+        for (int epoch = 0; epoch < 6; epoch++) {
+            assertTrue(manager.submit(epoch, 1. / (epoch + 1), MnistFixtures.randomModel(epoch, 8)));
+        }
+        manager.close();
+
+        assertEquals(6, errors.size());
+        final int bestEpoch = errors.entrySet().stream()
+                .min(Map.Entry.comparingByValue())
+                .get()
+                .getKey();
+        assertEquals(errors.get(bestEpoch), manager.getBest().getError(), 0.);
+        final List<CheckpointManager.Checkpoint> retained = manager.getRetained();
+        assertTrue(retained.size() <= 3);
+        for (int epoch = 0; epoch < 6; epoch++) {
+            final boolean kept = epoch >= 4 || epoch == bestEpoch;
+            assertEquals(kept, new File(String.format(pattern, epoch)).exists());
+        }
+
+        final ModelWrapper restored = SerializerHelper.deserializeFromFile(String.format(pattern, 5));
+        final CompiledModel expected = MnistFixtures.randomModel(5, 8);
+        assertEquals(
+                new ParallelEvaluator().evaluate(expected, images, labels).correct(),
+                new ParallelEvaluator().evaluate(ModelCompiler.compile(restored), images, labels).correct());
+    }
+
+    @Test
+    public void testGraphCheckpointsKeepFullPrecision() {
+        final ModelWrapper modelWrapper = ModelCompiler.toModelWrapper(MnistFixtures.randomModel(2, 8),
+                new Context(0.0005, false));
+        final Neuron output = modelWrapper.getOutputLayer().get(0);
+        // hidden neurons come out of hash sets in any order, so they all get the same weight
+        for (final Neuron hidden : hiddenLayer(modelWrapper)) {
+            ModelCompiler.state(output).setWeight(hidden, 0.1);
+        }
+        ModelCompiler.state(output).setBias(1. / 3);
+        final String pattern = new File(folder.getRoot(), "checkpoint_%d.dj").toString();
+
+        final CheckpointManager manager = new CheckpointManager.Builder()
+                .modelFilePattern(pattern)
+                .context(modelWrapper.getContext())
+                .build();
+        assertTrue(manager.submit(0, 1., modelWrapper));
+        manager.close();
+
+        final ModelWrapper restored = SerializerHelper.deserializeFromFile(String.format(pattern, 0));
+        final Neuron restoredOutput = restored.getOutputLayer().get(0);
+        for (final Neuron hidden : hiddenLayer(restored)) {
+            assertEquals(0.1, ModelCompiler.state(restoredOutput).weight(hidden), 0.);
+        }
+        assertEquals(1. / 3, ModelCompiler.state(restoredOutput).bias(), 0.);
+    }
+
+    @Test
+    public void testUncompilableGraphsAreCheckpointedWithoutEvaluation() {
+        final String pattern = new File(folder.getRoot(), "checkpoint_%d.dj").toString();
+        final CheckpointManager manager = new CheckpointManager.Builder()
+                .modelFilePattern(pattern)
+                .context(new Context(0.0005, false))
+                .evaluationData(MnistFixtures.imageMatrix(MnistFixtures.images(10)), MnistFixtures.labels(10))
+                .build();
+
+        assertTrue(manager.submit(0, 1., MnistFixtures.uncompilableModel(3, 4)));
+        manager.close();
+
+        final CheckpointManager.Checkpoint checkpoint = manager.getBest();
+        assertNull(checkpoint.getModel());
+        assertTrue(Double.isNaN(checkpoint.getError()));
+        assertTrue(new File(String.format(pattern, 0)).exists());
+    }
+
+    @Test
+    public void testFullQueueDropsCheckpoints() throws Exception {
+        final CountDownLatch processing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CheckpointManager manager = new CheckpointManager.Builder()
+                .listener(checkpoint -> {
+                    processing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                })
+                .queueCapacity(1)
+                .overflowPolicy(CheckpointManager.OverflowPolicy.DROP_NEWEST)
+                .build();
+        final CompiledModel model = MnistFixtures.randomModel(1, 4);
+
+        assertTrue(manager.submit(0, 1., model));
+        processing.await();
+        assertTrue(manager.submit(1, 1., model));
+        assertFalse(manager.submit(2, 1., model));
+        release.countDown();
+        manager.close();
+
+        assertEquals(1, manager.getDroppedCount());
+        assertEquals(1, manager.getBest().getEpoch());
+    }
+
+    @Test
+    public void testCoalesceKeepsOnlyTheNewestPendingCheckpoint() throws Exception {
+        final CountDownLatch processing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> epochs = new ArrayList<>();
+        final CheckpointManager manager = new CheckpointManager.Builder()
+                .listener(checkpoint -> {
+                    epochs.add(checkpoint.getEpoch());
+                    processing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                })
+                .queueCapacity(1)
+                .build();
+        final CompiledModel model = MnistFixtures.randomModel(1, 4);
+
+        assertTrue(manager.submit(0, 1., model));
+        processing.await();
+        for (int epoch = 1; epoch <= 3; epoch++) {
+            assertTrue(manager.submit(epoch, 1., model));
+        }
+        release.countDown();
+        manager.close();
+
+        assertEquals(2, manager.getDroppedCount());
+        assertEquals(Arrays.asList(0, 3), epochs);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCoalesceRejectsALargerQueue() {
+        new CheckpointManager.Builder().queueCapacity(3).build();
+    }
+
+    private static List<Neuron> hiddenLayer(final ModelWrapper modelWrapper) {
+        return ModelCompiler.layers(modelWrapper.getInputLayer(), modelWrapper.getOutputLayer()).get(1);
+    }
+}
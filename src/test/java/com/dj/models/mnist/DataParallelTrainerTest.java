@@ -0,0 +1,124 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.serializer.ModelWrapper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DataParallelTrainerTest {
+
+    private static final int COUNT = 200;
+
+    private final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.separableImages(COUNT, 5));
+
+    private final LabelVector labels = MnistFixtures.labels(COUNT);
+
+    @Test
+    public void testSynchronousTrainingLearnsSeparableImages() {
+        final CompiledModel model = MnistFixtures.randomModel(1, 16);
+        final double before = errorRate(model);
+        final List<Double> losses = new ArrayList<>();
+
+        trainer(3, DataParallelTrainer.Mode.SYNCHRONOUS)
+                .listener((loss, epoch, epochs) -> losses.add(loss))
+                .build()
+                .train(model, images, labels);
+
+        assertEquals(10, losses.size());
+        assertTrue(losses.get(9) < losses.get(0));
+        assertTrue(errorRate(model) < before);
+        assertTrue(errorRate(model) < 0.2);
+    }
+
+    @Test
+    public void testSameSeedAndWorkersGiveIdenticalWeights() {
+        final CompiledModel first = MnistFixtures.randomModel(1, 16);
+        final CompiledModel second = MnistFixtures.randomModel(1, 16);
+
+        trainer(4, DataParallelTrainer.Mode.SYNCHRONOUS).build().train(first, images, labels);
+        trainer(4, DataParallelTrainer.Mode.SYNCHRONOUS).build().train(second, images, labels);
+
+        for (int l = 0; l < first.layers().size(); l++) {
+            assertArrayEquals(first.layers().get(l).weights(), second.layers().get(l).weights(), 0f);
+            assertArrayEquals(first.layers().get(l).biases(), second.layers().get(l).biases(), 0f);
+        }
+    }
+
+    @Test
+    public void testWorkerCountOnlyChangesRounding() {
+        final CompiledModel single = MnistFixtures.randomModel(1, 16);
+        final CompiledModel parallel = MnistFixtures.randomModel(1, 16);
+
+        trainer(1, DataParallelTrainer.Mode.SYNCHRONOUS).epochs(2).build().train(single, images, labels);
+        trainer(5, DataParallelTrainer.Mode.SYNCHRONOUS).epochs(2).build().train(parallel, images, labels);
+
+        for (int l = 0; l < single.layers().size(); l++) {
+            assertArrayEquals(single.layers().get(l).weights(), parallel.layers().get(l).weights(), 1e-4f);
+            assertArrayEquals(single.layers().get(l).biases(), parallel.layers().get(l).biases(), 1e-4f);
+        }
+    }
+
+    @Test
+    public void testHogwildTrainingLearnsSeparableImages() {
+        final CompiledModel model = MnistFixtures.randomModel(1, 16);
+        final double before = errorRate(model);
+
+        trainer(3, DataParallelTrainer.Mode.HOGWILD).build().train(model, images, labels);
+
+        assertTrue(errorRate(model) < before);
+        assertTrue(errorRate(model) < 0.2);
+    }
+
+    @Test
+    public void testTrainsANeuronGraphAsOptimizer() {
+        final CompiledModel initial = MnistFixtures.randomModel(1, 8);
+        final ModelWrapper modelWrapper = ModelCompiler.toModelWrapper(initial, new Context(0.01, false));
+        final double[][] rows = new double[COUNT][MnistFixtures.IMAGE_SIZE];
+        final double[][] oneHot = new double[COUNT][];
+        for (int i = 0; i < COUNT; i++) {
+            for (int p = 0; p < MnistFixtures.IMAGE_SIZE; p++) {
+                rows[i][p] = images.get(i, p);
+            }
+            oneHot[i] = MnistTrainer.convertLabel(labels.get(i));
+        }
+        final List<Double> errors = new ArrayList<>();
+
+        new DataParallelTrainer.Builder()
+                .workers(2)
+                .batchSize(16)
+                .epochs(5)
+                .listener((loss, epoch, epochs) -> errors.add(errorRate(ModelCompiler.compile(modelWrapper))))
+                .build()
+                .train(modelWrapper.getContext(), modelWrapper.getInputLayer(), modelWrapper.getOutputLayer(),
+                        rows, oneHot, rows, oneHot);
+
+        assertEquals(5, errors.size());
+        assertTrue(errors.get(4) < errorRate(initial));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMismatchedData() {
+        trainer(2, DataParallelTrainer.Mode.SYNCHRONOUS).build()
+                .train(MnistFixtures.randomModel(1, 8), images, MnistFixtures.labels(COUNT - 1));
+    }
+
+    private static DataParallelTrainer.Builder trainer(final int workers, final DataParallelTrainer.Mode mode) {
+        return new DataParallelTrainer.Builder()
+                .workers(workers)
+                .batchSize(16)
+                .epochs(10)
+                .learningRate(0.01)
+                .seed(42)
+                .mode(mode);
+    }
+
+    private double errorRate(final CompiledModel model) {
+        return new ParallelEvaluator().evaluate(model, images, labels).errorRate();
+    }
+}
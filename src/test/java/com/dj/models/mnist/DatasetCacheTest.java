@@ -0,0 +1,114 @@
+package com.dj.models.mnist;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DatasetCacheTest {
+
+    private static final int COUNT = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File images;
+
+    private File labels;
+
+    private File directory;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        images = MnistFixtures.writeImages(folder.newFile("images.idx"), COUNT);
+        labels = MnistFixtures.writeLabels(folder.newFile("labels.idx"), COUNT);
+        directory = new File(folder.getRoot(), "cache");
+    }
+
+    @Test
+    public void testSecondLoadIsServedFromTheCache() {
+        final DatasetCache cache = new DatasetCache.Builder().directory(directory).build();
+
+        final ImageMatrix first = cache.images(images, "scaled", this::loadImages);
+        final ImageMatrix second = cache.images(images, "scaled", this::loadImages);
+
+        assertEquals(1, loads.get());
+        assertEquals(COUNT, second.size());
+        assertEquals(MnistFixtures.IMAGE_SIZE, second.imageSize());
+        assertArrayEquals(first.data(), second.data(), 0f);
+
+        final LabelVector cachedLabels = cache.labels(labels, "labels", () -> LabelVector.fromIdx(labels.getPath()));
+        final LabelVector again = cache.labels(labels, "labels", () -> {
+            throw new AssertionError("labels should come from the cache");
+        });
+        assertArrayEquals(cachedLabels.data(), again.data());
+        assertEquals(MnistFixtures.label(3), again.get(3));
+    }
+
+    @Test
+    public void testChangedSourceOrPreprocessingMissesTheCache() throws IOException {
+        final DatasetCache cache = new DatasetCache.Builder().directory(directory).build();
+        cache.images(images, "scaled", this::loadImages);
+
+        cache.images(images, "scaled-v2", this::loadImages);
+        assertEquals(2, loads.get());
+
+        MnistFixtures.writeImages(images, COUNT - 1);
+        final ImageMatrix changed = cache.images(images, "scaled", this::loadImages);
+        assertEquals(3, loads.get());
+        assertEquals(COUNT - 1, changed.size());
+        assertNotEquals(cache.entryFor(images, "scaled"), cache.entryFor(labels, "scaled"));
+    }
+
+    @Test
+    public void testCorruptEntriesAreRebuilt() throws IOException {
+        final DatasetCache cache = new DatasetCache.Builder().directory(directory).build();
+        final ImageMatrix expected = cache.images(images, "scaled", this::loadImages);
+        try (RandomAccessFile entry = new RandomAccessFile(cache.entryFor(images, "scaled"), "rw")) {
+            entry.setLength(entry.length() - 4);
+        }
+
+        final ImageMatrix rebuilt = cache.images(images, "scaled", this::loadImages);
+
+        assertEquals(2, loads.get());
+        assertArrayEquals(expected.data(), rebuilt.data(), 0f);
+        assertEquals(expected.data().length * 4L + 20, cache.entryFor(images, "scaled").length());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvicted() {
+        final long entrySize = 20 + COUNT * MnistFixtures.IMAGE_SIZE * 4L;
+        final DatasetCache cache = new DatasetCache.Builder().directory(directory).maxBytes(2 * entrySize).build();
+        cache.images(images, "a", this::loadImages);
+        cache.images(images, "b", this::loadImages);
+        assertTrue(cache.entryFor(images, "a").setLastModified(System.currentTimeMillis() - 60_000));
+        assertTrue(cache.entryFor(images, "b").setLastModified(System.currentTimeMillis() - 30_000));
+        cache.images(images, "a", this::loadImages);
+
+        cache.images(images, "c", this::loadImages);
+
+        assertEquals(3, loads.get());
+        assertTrue(cache.entryFor(images, "a").exists());
+        assertFalse(cache.entryFor(images, "b").exists());
+        assertTrue(cache.entryFor(images, "c").exists());
+        assertEquals(2 * entrySize, cache.sizeInBytes());
+    }
+
+    private ImageMatrix loadImages() {
+        loads.incrementAndGet();
+        return ImageMatrix.fromIdx(images.getPath()).scale(1f / 255f);
+    }
+}
@@ -0,0 +1,159 @@
+package com.dj.models.mnist;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Trains with {@link ParameterServerWorker}s in their own JVMs, as they would run on separate machines.
+ */
+public class DistributedTrainingTest {
+
+    private static final int COUNT = 600;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Process> processes = new ArrayList<>();
+
+    private File imagesFile;
+
+    private File labelsFile;
+
+    private ImageMatrix images;
+
+    private LabelVector labels;
+
+    @Before
+    public void writeData() throws Exception {
+        final byte[][] data = MnistFixtures.separableImages(COUNT, 5);
+        imagesFile = MnistFixtures.writeImages(folder.newFile("images.idx"), data);
+        labelsFile = MnistFixtures.writeLabels(folder.newFile("labels.idx"), COUNT);
+        images = ImageMatrix.fromIdx(imagesFile.getPath()).normalize();
+        labels = LabelVector.fromIdx(labelsFile.getPath());
+    }
+
+    @After
+    public void killWorkers() {
+        for (final Process process : processes) {
+            process.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void testSynchronousTrainingInSeparateProcesses() throws Exception {
+        final CompiledModel initial = MnistFixtures.randomModel(1, 16);
+        try (ParameterServer server = server(initial, ParameterServer.Mode.SYNCHRONOUS, 3, 5).build().start()) {
+            for (int w = 0; w < 3; w++) {
+                launch(server);
+            }
+
+            assertTrue(server.awaitCompletion(2, TimeUnit.MINUTES));
+            assertWorkersExited();
+            assertEquals(0, server.getFailures());
+            assertTrue(errorRate(server.snapshot()) < errorRate(initial));
+            assertTrue(errorRate(server.snapshot()) < 0.2);
+        }
+    }
+
+    @Test
+    public void testKilledWorkerIsReplaced() throws Exception {
+        try (ParameterServer server = server(MnistFixtures.randomModel(1, 16),
+                ParameterServer.Mode.BOUNDED_STALENESS, 2, 200).build().start()) {
+            final Process victim = launch(server);
+            launch(server);
+            final long deadline = System.currentTimeMillis() + 60_000;
+            while (server.getVersion() < 50 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(server.getVersion() >= 50);
+            victim.destroyForcibly().waitFor();
+            processes.remove(victim);
+            while (server.getFailures() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, server.getFailures());
+            launch(server);
+
+            assertTrue(server.awaitCompletion(2, TimeUnit.MINUTES));
+            assertWorkersExited();
+            assertEquals(1, server.getRejoins());
+            assertTrue(errorRate(server.snapshot()) < 0.2);
+        }
+    }
+
+    /**
+     * Needs a core per worker; synchronous rounds over four shards take a quarter of the steps of one, and
+     * large mini-batches keep the exchange of weights small against the computation.
+     */
+    @Test
+    public void testWorkersSpeedUpTraining() throws Exception {
+        final int workers = 4;
+        assumeTrue(Runtime.getRuntime().availableProcessors() >= workers + 1);
+
+        final long single = trainingMillis(1);
+        final long parallel = trainingMillis(workers);
+
+        assertTrue(format(single, parallel), single > parallel * workers * 0.6);
+    }
+
+    private long trainingMillis(final int workers) throws Exception {
+        try (ParameterServer server = server(MnistFixtures.randomModel(1, 256),
+                ParameterServer.Mode.SYNCHRONOUS, workers, 20).batchSize(100).build().start()) {
+            for (int w = 0; w < workers; w++) {
+                launch(server);
+            }
+            assertTrue(server.awaitCompletion(5, TimeUnit.MINUTES));
+            assertWorkersExited();
+            return server.getTrainingMillis();
+        }
+    }
+
+    private static ParameterServer.Builder server(final CompiledModel model,
+                                                  final ParameterServer.Mode mode,
+                                                  final int shards,
+                                                  final int epochs) {
+        return new ParameterServer.Builder()
+                .model(model)
+                .shards(shards)
+                .epochs(epochs)
+                .batchSize(16)
+                .learningRate(0.01)
+                .seed(42)
+                .mode(mode)
+                .failureTimeout(1, TimeUnit.MINUTES);
+    }
+
+    private Process launch(final ParameterServer server) {
+        final Process process = ParameterServerWorker.launch("localhost", server.getPort(), imagesFile, labelsFile);
+        processes.add(process);
+        return process;
+    }
+
+    private void assertWorkersExited() throws InterruptedException {
+        for (final Process process : processes) {
+            assertTrue(process.waitFor(1, TimeUnit.MINUTES));
+            assertEquals(0, process.exitValue());
+        }
+        processes.clear();
+    }
+
+    private double errorRate(final CompiledModel model) {
+        return new ParallelEvaluator().evaluate(model, images, labels).errorRate();
+    }
+
+    private static String format(final long single, final long parallel) {
+        return String.format("One worker took %d ms, several %d ms", single, parallel);
+    }
+}
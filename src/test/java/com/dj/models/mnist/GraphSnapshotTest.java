@@ -0,0 +1,57 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.model.graph.Neuron;
+import com.dj.core.serializer.ModelWrapper;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class GraphSnapshotTest {
+
+    @Test
+    public void testRestoreBringsBackTheExactWeights() {
+        final ModelWrapper modelWrapper = ModelCompiler.toModelWrapper(MnistFixtures.randomModel(1, 8),
+                new Context(0.0005, false));
+        final Neuron output = modelWrapper.getOutputLayer().get(3);
+        ModelCompiler.state(output).setBias(0.1);
+        final GraphSnapshot snapshot = GraphSnapshot.of(modelWrapper);
+        final CompiledModel expected = ModelCompiler.compile(modelWrapper);
+
+        ModelCompiler.restore(MnistFixtures.randomModel(2, 8), modelWrapper.getInputLayer(),
+                modelWrapper.getOutputLayer());
+        snapshot.restore(modelWrapper.getInputLayer(), modelWrapper.getOutputLayer());
+
+        assertEquals(0.1, ModelCompiler.state(output).bias(), 0.);
+        assertSameWeights(expected, ModelCompiler.compile(modelWrapper));
+        assertSameWeights(expected, snapshot.compile());
+    }
+
+    @Test
+    public void testCopiesGraphsThatCanNotBeCompiled() {
+        final ModelWrapper modelWrapper = MnistFixtures.uncompilableModel(4, 8);
+
+        final ModelWrapper copy = GraphSnapshot.of(modelWrapper).toModelWrapper(modelWrapper.getContext());
+
+        final List<List<Neuron>> layers = ModelCompiler.layers(copy.getInputLayer(), copy.getOutputLayer());
+        assertEquals(3, layers.size());
+        assertEquals(MnistFixtures.IMAGE_SIZE, layers.get(0).size());
+        assertEquals(8, layers.get(1).size());
+        assertEquals(10, layers.get(2).size());
+        for (int j = 0; j < 10; j++) {
+            assertEquals(ModelCompiler.state(modelWrapper.getOutputLayer().get(j)).bias(),
+                    ModelCompiler.state(copy.getOutputLayer().get(j)).bias(), 0.);
+        }
+    }
+
+    private static void assertSameWeights(final CompiledModel expected, final CompiledModel actual) {
+        assertEquals(expected.layers().size(), actual.layers().size());
+        for (int l = 0; l < expected.layers().size(); l++) {
+            assertArrayEquals(expected.layers().get(l).weights(), actual.layers().get(l).weights(), 0f);
+            assertArrayEquals(expected.layers().get(l).biases(), actual.layers().get(l).biases(), 0f);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.dj.models.mnist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HyperparameterSweepTest {
+
+    private static final int COUNT = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.separableImages(COUNT, 5));
+
+    private final ImageMatrix validationImages = MnistFixtures.imageMatrix(MnistFixtures.separableImages(100, 6));
+
+    private final LabelVector labels = MnistFixtures.labels(COUNT);
+
+    private final LabelVector validationLabels = MnistFixtures.labels(100);
+
+    @Test
+    public void testPromotesOnlyTheBestTrials() throws Exception {
+        final File resultsFile = folder.newFile("sweep.csv");
+
+        final HyperparameterSweep.Result result = sweep(1).resultsFile(resultsFile).build()
+                .run(images, labels, validationImages, validationLabels);
+
+        final List<HyperparameterSweep.Evaluation> evaluations = result.getEvaluations();
+        assertEquals(9, count(evaluations, 0));
+        assertEquals(3, count(evaluations, 1));
+        assertEquals(1, count(evaluations, 2));
+        // 3 epochs for every trial, 6 more for three of them and another 18 for the best, against 9 * 27
+        assertEquals(9 * 3 + 3 * 6 + 18, result.getEpochsTrained());
+        assertEquals(27, result.getBest().getEpochs());
+
+        final List<String> lines = Files.readAllLines(resultsFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(HyperparameterSweep.RESULTS_HEADER, lines.get(0));
+        assertEquals(evaluations.size() + 1, lines.size());
+        assertEquals(evaluations.stream().map(HyperparameterSweep.Evaluation::toCsv).collect(Collectors.toList()),
+                lines.subList(1, lines.size()));
+    }
+
+    @Test
+    public void testBestModelLearnsTheValidationSet() {
+        final HyperparameterSweep.Result result = sweep(1).build()
+                .run(images, labels, validationImages, validationLabels);
+
+        final CompiledModel best = result.getBestModel();
+        assertEquals(result.getBest().getErrorRate(),
+                new ParallelEvaluator().evaluate(best, validationImages, validationLabels).errorRate(), 1e-9);
+        assertTrue(result.getBest().getErrorRate() < 0.2);
+    }
+
+    @Test
+    public void testConcurrentTrialsDrawTheSameConfigurations() {
+        final HyperparameterSweep.Result sequential = sweep(1).build()
+                .run(images, labels, validationImages, validationLabels);
+        final HyperparameterSweep.Result concurrent = sweep(3).build()
+                .run(images, labels, validationImages, validationLabels);
+
+        assertEquals(9, count(concurrent.getEvaluations(), 0));
+        assertTrue(count(concurrent.getEvaluations(), 1) >= 3);
+        assertTrue(count(concurrent.getEvaluations(), 2) >= 1);
+        for (final HyperparameterSweep.Evaluation evaluation : concurrent.getEvaluations()) {
+            if (evaluation.getRung() == 0) {
+                final HyperparameterSweep.Evaluation expected = sequential.getEvaluations().stream()
+                        .filter(e -> e.getRung() == 0 && e.getTrial() == evaluation.getTrial())
+                        .findFirst()
+                        .get();
+                assertEquals(expected.getConfiguration().toString(), evaluation.getConfiguration().toString());
+                assertEquals(expected.getErrorRate(), evaluation.getErrorRate(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testRungEpochsGrowByTheReductionFactor() {
+        final HyperparameterSweep sweep = sweep(1).epochs(2, 20).build();
+
+        assertEquals(2, sweep.epochs(0));
+        assertEquals(6, sweep.epochs(1));
+        assertEquals(18, sweep.epochs(2));
+        assertEquals(20, sweep.epochs(3));
+        assertEquals(3, sweep.topRung());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsAReductionFactorOfOne() {
+        sweep(1).reductionFactor(1).build();
+    }
+
+    private static HyperparameterSweep.Builder sweep(final int parallelism) {
+        return new HyperparameterSweep.Builder()
+                .space(new HyperparameterSweep.SearchSpace.Builder()
+                        .hiddenSizes(8, 16, 32)
+                        .batchSizes(8, 16)
+                        .learningRate(5e-3, 3e-2)
+                        .build())
+                .trials(9)
+                .epochs(3, 27)
+                .parallelism(parallelism)
+                .seed(7);
+    }
+
+    private static long count(final List<HyperparameterSweep.Evaluation> evaluations, final int rung) {
+        return evaluations.stream().filter(evaluation -> evaluation.getRung() == rung).count();
+    }
+}
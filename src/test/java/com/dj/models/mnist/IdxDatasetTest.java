@@ -0,0 +1,83 @@
+package com.dj.models.mnist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class IdxDatasetTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testImagesAreServedFromTheMapping() throws Exception {
+        final File file = MnistFixtures.writeImages(folder.newFile("images"), 25);
+        final IdxDataset dataset = IdxDataset.openImages(file.toString());
+
+        assertEquals(25, dataset.size());
+        assertEquals(28, dataset.dimension(1));
+        assertEquals(28, dataset.dimension(2));
+        assertEquals(MnistFixtures.IMAGE_SIZE, dataset.recordSize());
+
+        final byte[] bytes = new byte[MnistFixtures.IMAGE_SIZE];
+        final float[] floats = new float[MnistFixtures.IMAGE_SIZE + 3];
+        dataset.copyRecord(7, bytes, 0);
+        dataset.copyRecord(7, floats, 3, 1f / 255f);
+        final ByteBuffer view = dataset.record(7);
+        for (int p = 0; p < MnistFixtures.IMAGE_SIZE; p++) {
+            final int expected = MnistFixtures.pixel(7, p);
+            assertEquals(expected, dataset.getUnsigned(7, p));
+            assertEquals(expected, bytes[p] & 0xFF);
+            assertEquals(expected, view.get(p) & 0xFF);
+            assertEquals(expected / 255f, floats[p + 3], 1e-6);
+        }
+    }
+
+    @Test
+    public void testMatchesMnistReader() throws Exception {
+        final File images = MnistFixtures.writeImages(folder.newFile("images"), 12);
+        final File labels = MnistFixtures.writeLabels(folder.newFile("labels"), 12);
+
+        final List<int[][]> expectedImages = MnistReader.getImages(images.toString());
+        final IdxDataset imageDataset = IdxDataset.openImages(images.toString());
+        for (int i = 0; i < expectedImages.size(); i++) {
+            final int[][] image = expectedImages.get(i);
+            for (int row = 0; row < 28; row++) {
+                for (int column = 0; column < 28; column++) {
+                    assertEquals(image[row][column], imageDataset.getUnsigned(i, row * 28 + column));
+                }
+            }
+        }
+
+        final IdxDataset labelDataset = IdxDataset.openLabels(labels.toString());
+        final int[] expectedLabels = MnistReader.getLabels(labels.toString());
+        final int[] actualLabels = new int[labelDataset.size()];
+        for (int i = 0; i < actualLabels.length; i++) {
+            actualLabels[i] = labelDataset.getLabel(i);
+        }
+        assertArrayEquals(expectedLabels, actualLabels);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testWrongFileTypeIsRejected() throws Exception {
+        final File labels = MnistFixtures.writeLabels(folder.newFile("labels"), 5);
+        IdxDataset.openImages(labels.toString());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testTruncatedFileIsRejected() throws Exception {
+        final File images = MnistFixtures.writeImages(folder.newFile("images"), 5);
+        try (RandomAccessFile file = new RandomAccessFile(images, "rw")) {
+            file.setLength(file.length() - 100);
+        }
+        IdxDataset.open(images);
+    }
+}
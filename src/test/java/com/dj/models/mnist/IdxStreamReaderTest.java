@@ -0,0 +1,113 @@
+package com.dj.models.mnist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class IdxStreamReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBatchesAreDecodedFromTheArchive() throws Exception {
+        final File images = gzip(MnistFixtures.writeImages(folder.newFile(), 23));
+        final File labels = gzip(MnistFixtures.writeLabels(folder.newFile(), 23));
+        final List<Integer> batchSizes = new ArrayList<>();
+
+        final int read = IdxStreamReader.readBatches(images, labels, 10, (pixels, batchLabels, batchSize, firstRow) -> {
+            batchSizes.add(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                assertEquals(MnistFixtures.label(firstRow + i), batchLabels[i]);
+                for (int p = 0; p < MnistFixtures.IMAGE_SIZE; p++) {
+                    assertEquals(MnistFixtures.pixel(firstRow + i, p), pixels[i * MnistFixtures.IMAGE_SIZE + p] & 0xFF);
+                }
+            }
+        });
+
+        assertEquals(23, read);
+        assertEquals(List.of(10, 10, 3), batchSizes);
+    }
+
+    @Test
+    public void testUncompressedFilesAreReadToo() throws Exception {
+        final File images = MnistFixtures.writeImages(folder.newFile(), 4);
+        try (IdxStreamReader reader = IdxStreamReader.openImages(images)) {
+            assertEquals(4, reader.size());
+            assertEquals(28, reader.dimension(1));
+            final byte[] buffer = new byte[3 * reader.recordSize()];
+            assertEquals(3, reader.read(buffer, 3));
+            assertEquals(1, reader.read(buffer, 3));
+            assertEquals(MnistFixtures.pixel(3, 100), buffer[100] & 0xFF);
+            assertEquals(0, reader.read(buffer, 3));
+        }
+    }
+
+    @Test
+    public void testArchivesOnlyDownload() throws Exception {
+        final File mirror = folder.newFolder("mirror");
+        copy(gzip(MnistFixtures.writeImages(folder.newFile(), 5)), new File(mirror, "train-images-idx3-ubyte.gz"));
+        copy(gzip(MnistFixtures.writeLabels(folder.newFile(), 5)), new File(mirror, "train-labels-idx1-ubyte.gz"));
+        copy(gzip(MnistFixtures.writeImages(folder.newFile(), 2)), new File(mirror, "t10k-images-idx3-ubyte.gz"));
+        copy(gzip(MnistFixtures.writeLabels(folder.newFile(), 2)), new File(mirror, "t10k-labels-idx1-ubyte.gz"));
+        final File target = folder.newFolder("target");
+
+        MnistDownloader.downloadMnist(MnistSource.directory(mirror), target, false, false);
+
+        assertFalse(new File(target, "test-images").exists());
+        try (IdxStreamReader reader = IdxStreamReader.openImages(new File(target, "test-images.gz"))) {
+            assertEquals(2, reader.size());
+        }
+    }
+
+    @Test
+    public void testCompressedStreamsAreDecodedToo() throws Exception {
+        final File images = gzip(MnistFixtures.writeImages(folder.newFile(), 3));
+        try (IdxStreamReader reader = IdxStreamReader.open(new FileInputStream(images))) {
+            assertEquals(MnistReader.IMAGE_FILE_MAGIC_NUMBER, reader.getMagicNumber());
+            assertEquals(3, reader.size());
+            final byte[] buffer = new byte[3 * reader.recordSize()];
+            assertEquals(3, reader.read(buffer, 3));
+            assertEquals(MnistFixtures.pixel(2, 100), buffer[2 * reader.recordSize() + 100] & 0xFF);
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testTruncatedStreamIsReported() throws Exception {
+        final File images = MnistFixtures.writeImages(folder.newFile(), 4);
+        try (RandomAccessFile file = new RandomAccessFile(images, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+        try (IdxStreamReader reader = IdxStreamReader.openImages(images)) {
+            reader.read(new byte[4 * reader.recordSize()], 4);
+        }
+    }
+
+    private File gzip(final File source) throws IOException {
+        final File destination = new File(source.getPath() + ".gz");
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(destination))) {
+            in.transferTo(out);
+        }
+        return destination;
+    }
+
+    private static void copy(final File source, final File destination) throws IOException {
+        Files.copy(source.toPath(), destination.toPath());
+    }
+}
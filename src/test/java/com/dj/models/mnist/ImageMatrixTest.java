@@ -0,0 +1,61 @@
+package com.dj.models.mnist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ImageMatrixTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLoadFromIdx() throws Exception {
+        final File images = MnistFixtures.writeImages(folder.newFile(), 9);
+        final File labels = MnistFixtures.writeLabels(folder.newFile(), 9);
+
+        final ImageMatrix matrix = ImageMatrix.fromIdx(images.toString());
+        final LabelVector vector = LabelVector.fromIdx(labels.toString());
+
+        assertEquals(9, matrix.size());
+        assertEquals(MnistFixtures.IMAGE_SIZE, matrix.imageSize());
+        assertEquals(9 * MnistFixtures.IMAGE_SIZE, matrix.data().length);
+        final List<int[][]> expected = MnistReader.getImages(images.toString());
+        for (int i = 0; i < 9; i++) {
+            final double[] row = MnistTrainer.convertImageToTheInput(expected.get(i));
+            for (int p = 0; p < row.length; p++) {
+                assertEquals(row[p], matrix.get(i, p), 0.);
+            }
+            assertEquals(MnistFixtures.label(i), vector.get(i));
+            assertArrayEquals(MnistTrainer.convertLabel(MnistFixtures.label(i)), vector.toOneHotRows()[i], 0.);
+        }
+    }
+
+    @Test
+    public void testNormalizeInPlace() {
+        final ImageMatrix matrix = ImageMatrix.wrap(new float[] {0f, 51f, 255f, 102f}, 2, 2);
+        final float[] data = matrix.data();
+
+        matrix.normalize();
+
+        assertArrayEquals(new float[] {0f, .2f, 1f, .4f}, data, 1e-6f);
+        assertEquals(.4f, matrix.get(1, 1), 1e-6f);
+    }
+
+    @Test
+    public void testRowConversionsRoundTrip() {
+        final double[][] rows = {{1., 2., 3.}, {4., 5., 6.}};
+        assertArrayEquals(rows, ImageMatrix.fromRows(rows).toRows());
+
+        final double[][] oneHot = {MnistTrainer.convertLabel(3), MnistTrainer.convertLabel(9)};
+        final LabelVector labels = LabelVector.fromOneHot(oneHot);
+        assertEquals(3, labels.get(0));
+        assertEquals(9, labels.get(1));
+    }
+}
@@ -0,0 +1,306 @@
+package com.dj.models.mnist;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InferenceServerTest {
+
+    private static final int IMAGES = 64;
+
+    @Test
+    public void testPredictionsMatchTheModel() throws Exception {
+        final CompiledModel model = MnistFixtures.randomModel(11, 16);
+        final byte[][] images = MnistFixtures.images(IMAGES);
+        final int[] expected = model.predict(MnistFixtures.imageMatrix(images));
+
+        try (InferenceServer server = new InferenceServer.Builder().model(model).port(0).workers(2).build().start()) {
+            final ExecutorService clients = Executors.newFixedThreadPool(8);
+            final List<Future<Response>> responses = new ArrayList<>();
+            for (int i = 0; i < IMAGES; i++) {
+                final int image = i;
+                responses.add(clients.submit(() -> image % 2 == 0
+                        ? post(server, "application/octet-stream", images[image])
+                        : post(server, "text/csv", csv(images[image]))));
+            }
+            for (int i = 0; i < IMAGES; i++) {
+                final Response response = responses.get(i).get();
+                assertEquals(200, response.status);
+                assertTrue(response.body, response.body.startsWith("{\"label\":" + expected[i] + ",\"probabilities\":["));
+            }
+            clients.shutdown();
+
+            assertEquals(IMAGES, server.getLatency().count());
+            assertTrue(server.getBatchCount() <= IMAGES);
+            assertEquals(0, server.getPendingCount());
+            final Response metrics = get(server, "/metrics");
+            assertEquals(200, metrics.status);
+            assertTrue(metrics.body, metrics.body.contains("\"p99\":"));
+            assertEquals(400, post(server, "text/csv", "1,2,3".getBytes(StandardCharsets.US_ASCII)).status);
+        }
+    }
+
+    @Test
+    public void testOverflowingPixelValueIsRejected() throws Exception {
+        final CompiledModel model = MnistFixtures.randomModel(3, 4);
+        final byte[] csv = csv(MnistFixtures.images(1)[0]);
+        final byte[] overflowing = ("4294967297" + new String(csv, StandardCharsets.US_ASCII).substring(1))
+                .getBytes(StandardCharsets.US_ASCII);
+
+        try (InferenceServer server = new InferenceServer.Builder().model(model).port(0).workers(1).build().start()) {
+            assertEquals(400, post(server, "text/csv", overflowing).status);
+            assertEquals(200, post(server, "text/csv", csv).status);
+        }
+    }
+
+    @Test
+    public void testAbortedRequestBodyFreesItsSlot() throws Exception {
+        final CompiledModel model = MnistFixtures.randomModel(3, 4);
+        final byte[] image = MnistFixtures.images(1)[0];
+
+        try (InferenceServer server = new InferenceServer.Builder()
+                .model(model)
+                .port(0)
+                .workers(1)
+                .maxPendingRequests(1)
+                .build()
+                .start()) {
+            try (Socket socket = new Socket("localhost", server.getPort())) {
+                final OutputStream out = socket.getOutputStream();
+                out.write(("POST /predict HTTP/1.1\r\nHost: localhost\r\n"
+                        + "Content-Type: application/octet-stream\r\nContent-Length: " + image.length + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.write(image, 0, image.length / 2);
+                out.flush();
+                final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (server.getPendingCount() == 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(1, server.getPendingCount());
+            }
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (server.getPendingCount() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(0, server.getPendingCount());
+            assertEquals(200, post(server, "application/octet-stream", image).status);
+            assertEquals(0, server.getRejectedCount());
+        }
+    }
+
+    @Test
+    public void testErrorMessagesAreEscaped() {
+        assertEquals("a \\\"b\\\" \\\\ \\u000a", InferenceServer.escape("a \"b\" \\ \n"));
+    }
+
+    @Test
+    public void testFailingModelAnswersEveryRequest() throws Exception {
+        final CompiledModel model = new CompiledModel(MnistFixtures.randomModel(3, 4).layers()) {
+            @Override
+            public float[] forward(final float[] input, final int offset, final int count, final Workspace workspace) {
+                throw new IllegalStateException("broken model");
+            }
+        };
+        final byte[] image = MnistFixtures.images(1)[0];
+
+        try (InferenceServer server = new InferenceServer.Builder()
+                .model(model)
+                .port(0)
+                .workers(1)
+                .maxPendingRequests(2)
+                .build()
+                .start()) {
+            for (int i = 0; i < 5; i++) {
+                assertEquals(500, post(server, "application/octet-stream", image).status);
+            }
+            // more failed requests than may be pending, so none was left pending
+            assertEquals(0, server.getRejectedCount());
+        }
+    }
+
+    @Test
+    public void testModelsOfAnotherShapeAreNotServed() throws Exception {
+        final AtomicReference<CompiledModel> model = new AtomicReference<>(MnistFixtures.randomModel(1, 16));
+        final byte[] image = MnistFixtures.images(1)[0];
+
+        try (InferenceServer server = new InferenceServer.Builder()
+                .models(model::get)
+                .port(0)
+                .workers(1)
+                .build()
+                .start()) {
+            assertEquals(200, post(server, "application/octet-stream", image).status);
+            model.set(MnistFixtures.randomModel(2, 2 * MnistFixtures.IMAGE_SIZE));
+            assertEquals(500, post(server, "application/octet-stream", image).status);
+            model.set(new CompiledModel(Collections.singletonList(
+                    new DenseLayer(10, 10, new float[100], new float[10], Activation.SIGMOID, 0f))));
+            assertEquals(500, post(server, "application/octet-stream", image).status);
+            model.set(MnistFixtures.randomModel(3, 8));
+            assertEquals(200, post(server, "application/octet-stream", image).status);
+            assertEquals(0, server.getRejectedCount());
+        }
+    }
+
+    @Test
+    public void testOverloadIsRejected() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CompiledModel model = new CompiledModel(MnistFixtures.randomModel(3, 4).layers()) {
+            @Override
+            public float[] forward(final float[] input, final int offset, final int count, final Workspace workspace) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.forward(input, offset, count, workspace);
+            }
+        };
+        final byte[] image = MnistFixtures.images(1)[0];
+
+        try (InferenceServer server = new InferenceServer.Builder()
+                .model(model)
+                .port(0)
+                .workers(1)
+                .maxBatchSize(1)
+                .maxPendingRequests(2)
+                .build()
+                .start()) {
+            final ExecutorService clients = Executors.newFixedThreadPool(2);
+            final Future<Response> first = clients.submit(() -> post(server, "application/octet-stream", image));
+            final Future<Response> second = clients.submit(() -> post(server, "application/octet-stream", image));
+            while (server.getPendingCount() < 2) {
+                Thread.sleep(5);
+            }
+
+            assertEquals(429, post(server, "application/octet-stream", image).status);
+            release.countDown();
+            assertEquals(200, first.get().status);
+            assertEquals(200, second.get().status);
+            assertEquals(1, server.getRejectedCount());
+            clients.shutdown();
+        }
+    }
+
+    /**
+     * Load generator: the same number of concurrent clients against one worker and against one worker
+     * per core. Concurrent requests have to share batches; throughput is printed, it only grows on
+     * machines with more than one core.
+     */
+    @Test
+    public void testLoad() throws Exception {
+        final CompiledModel model = MnistFixtures.randomModel(5, 128);
+        final byte[] image = MnistFixtures.images(1)[0];
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for (final int workers : new int[] {1, cores}) {
+            try (InferenceServer server = new InferenceServer.Builder()
+                    .model(model)
+                    .port(0)
+                    .workers(workers)
+                    .tcpNoDelay(true)
+                    .build()
+                    .start()) {
+                final int clients = 4 * cores;
+                final int requestsPerClient = 100;
+                final ExecutorService pool = Executors.newFixedThreadPool(clients);
+                final List<Future<Integer>> results = new ArrayList<>();
+                final long start = System.nanoTime();
+                for (int c = 0; c < clients; c++) {
+                    results.add(pool.submit(() -> {
+                        int ok = 0;
+                        for (int r = 0; r < requestsPerClient; r++) {
+                            ok += post(server, "application/octet-stream", image).status == 200 ? 1 : 0;
+                        }
+                        return ok;
+                    }));
+                }
+                int ok = 0;
+                for (final Future<Integer> result : results) {
+                    ok += result.get();
+                }
+                final double seconds = (System.nanoTime() - start) / 1e9;
+                pool.shutdown();
+                pool.awaitTermination(10, TimeUnit.SECONDS);
+
+                assertEquals(clients * requestsPerClient, ok);
+                assertTrue(server.getBatchCount() + " batches", server.getBatchCount() < ok);
+                System.out.printf("%d workers: %.0f requests/s, p50 %dus, p99 %dus, %d batches\n",
+                        workers, ok / seconds, server.getLatency().percentileMicros(50),
+                        server.getLatency().percentileMicros(99), server.getBatchCount());
+            }
+        }
+    }
+
+    static final class Response {
+
+        final int status;
+
+        final String body;
+
+        private Response(final int status, final String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    static Response post(final InferenceServer server,
+                         final String contentType,
+                         final byte[] body) throws IOException {
+        final HttpURLConnection connection = connect(server, "/predict");
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", contentType);
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        return read(connection);
+    }
+
+    private static Response get(final InferenceServer server, final String path) throws IOException {
+        return read(connect(server, path));
+    }
+
+    private static HttpURLConnection connect(final InferenceServer server, final String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+    }
+
+    private static Response read(final HttpURLConnection connection) throws IOException {
+        final int status = connection.getResponseCode();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int read;
+            while (in != null && (read = in.read(buffer)) > 0) {
+                body.write(buffer, 0, read);
+            }
+            return new Response(status, body.toString(StandardCharsets.UTF_8.name()));
+        }
+    }
+
+    private static byte[] csv(final byte[] image) {
+        final StringBuilder csv = new StringBuilder();
+        for (int p = 0; p < image.length; p++) {
+            csv.append(p > 0 ? "," : "").append(image[p] & 0xFF);
+        }
+        return csv.append('\n').toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,169 @@
+package com.dj.models.mnist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KaggleCsvReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRowsAreParsedInBatches() throws Exception {
+        final String csv = csv(7, true);
+        final List<Integer> batchSizes = new ArrayList<>();
+        final int rows = KaggleCsvReader.read(
+                new ByteArrayInputStream(csv.getBytes(StandardCharsets.US_ASCII)),
+                true,
+                3,
+                (pixels, labels, batchSize, firstRow) -> {
+                    batchSizes.add(batchSize);
+                    for (int i = 0; i < batchSize; i++) {
+                        assertEquals(MnistFixtures.label(firstRow + i), labels[i]);
+                        for (int p = 0; p < KaggleCsvReader.IMAGE_SIZE; p++) {
+                            assertEquals(MnistFixtures.pixel(firstRow + i, p),
+                                    pixels[i * KaggleCsvReader.IMAGE_SIZE + p] & 0xFF);
+                        }
+                    }
+                });
+        assertEquals(7, rows);
+        assertEquals(List.of(3, 3, 1), batchSizes);
+    }
+
+    @Test
+    public void testConvertToIdx() throws Exception {
+        final File csv = write(csv(11, true));
+        final File images = new File(folder.getRoot(), "images");
+        final File labels = new File(folder.getRoot(), "labels");
+        assertEquals(11, KaggleCsvReader.countRows(csv.toString()));
+        assertEquals(11, KaggleCsvReader.convertToIdx(csv.toString(), true, images, labels));
+
+        final IdxDataset imageDataset = IdxDataset.openImages(images.toString());
+        final IdxDataset labelDataset = IdxDataset.openLabels(labels.toString());
+        assertEquals(11, imageDataset.size());
+        assertEquals(11, labelDataset.size());
+        for (int i = 0; i < 11; i++) {
+            assertEquals(MnistFixtures.label(i), labelDataset.getLabel(i));
+            for (int p = 0; p < KaggleCsvReader.IMAGE_SIZE; p++) {
+                assertEquals(MnistFixtures.pixel(i, p), imageDataset.getUnsigned(i, p));
+            }
+        }
+
+        final long converted = images.lastModified();
+        KaggleCsvReader.convertToIdxIfNeeded(csv.toString(), true, images, labels);
+        assertEquals(converted, images.lastModified());
+    }
+
+    @Test
+    public void testUnlabelledRowsWithoutTrailingNewline() throws Exception {
+        final String csv = csv(2, false);
+        final int rows = KaggleCsvReader.read(
+                new ByteArrayInputStream(csv.substring(0, csv.length() - 1).getBytes(StandardCharsets.US_ASCII)),
+                false,
+                10,
+                (pixels, labels, batchSize, firstRow) -> assertEquals(2, batchSize));
+        assertEquals(2, rows);
+    }
+
+    @Test
+    public void testMalformedRowIsRejected() {
+        try {
+            KaggleCsvReader.read(
+                    new ByteArrayInputStream("label,pixel0\n1,2\n".getBytes(StandardCharsets.US_ASCII)),
+                    true,
+                    10,
+                    (pixels, labels, batchSize, firstRow) -> { });
+        } catch (RuntimeException | IOException e) {
+            assertTrue(e.getMessage().contains("columns"));
+            return;
+        }
+        throw new AssertionError("Expected a parsing failure");
+    }
+
+    @Test
+    public void testErrorsReportPhysicalLineNumbers() {
+        final String csv = csv(1, true) + "\n\r\n" + row(1).replaceFirst(",0,", ",x,");
+        try {
+            read(csv);
+        } catch (RuntimeException | IOException e) {
+            assertEquals("Unexpected character 'x' in line 5", e.getMessage());
+            return;
+        }
+        throw new AssertionError("Expected a parsing failure");
+    }
+
+    @Test
+    public void testWhitespaceIsAcceptedAroundValuesOnly() throws Exception {
+        final String padded = csv(0, true) + " " + row(0).replace(",", " ,\t").replace("\r\n", " \r\n");
+        assertEquals(1, read(padded));
+
+        try {
+            read(csv(0, true) + row(0).replaceFirst(",[0-9]+,", ",1 2,"));
+        } catch (RuntimeException | IOException e) {
+            assertEquals("Whitespace inside a value in line 2, column 2", e.getMessage());
+            return;
+        }
+        throw new AssertionError("Expected a parsing failure");
+    }
+
+    @Test
+    public void testFailedConversionLeavesNoTemporaryFiles() throws Exception {
+        final File csv = write(csv(2, true) + "1,2\n");
+        final File images = new File(folder.getRoot(), "images");
+        final File labels = new File(folder.getRoot(), "labels");
+        try {
+            KaggleCsvReader.convertToIdx(csv.toString(), true, images, labels);
+            throw new AssertionError("Expected a parsing failure");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("columns"));
+        }
+        assertEquals(List.of("train.csv"), List.of(folder.getRoot().list()));
+    }
+
+    private static int read(final String csv) throws IOException {
+        return KaggleCsvReader.read(new ByteArrayInputStream(csv.getBytes(StandardCharsets.US_ASCII)), true, 10,
+                (pixels, labels, batchSize, firstRow) -> { });
+    }
+
+    private File write(final String content) throws IOException {
+        final File file = folder.newFile("train.csv");
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+        return file;
+    }
+
+    private static String csv(final int rows, final boolean labelled) {
+        final StringBuilder csv = new StringBuilder(labelled ? "label" : "");
+        for (int p = 0; p < KaggleCsvReader.IMAGE_SIZE; p++) {
+            csv.append(p == 0 && !labelled ? "" : ",").append("pixel").append(p);
+        }
+        csv.append("\r\n");
+        for (int i = 0; i < rows; i++) {
+            if (labelled) {
+                csv.append(MnistFixtures.label(i)).append(',');
+            }
+            for (int p = 0; p < KaggleCsvReader.IMAGE_SIZE; p++) {
+                csv.append(MnistFixtures.pixel(i, p)).append(p + 1 < KaggleCsvReader.IMAGE_SIZE ? "," : "\r\n");
+            }
+        }
+        return csv.toString();
+    }
+
+    private static String row(final int index) {
+        final String csv = csv(index + 1, true);
+        return csv.substring(csv.lastIndexOf('\n', csv.length() - 2) + 1);
+    }
+}
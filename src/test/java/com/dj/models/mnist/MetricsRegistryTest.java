@@ -0,0 +1,124 @@
+package com.dj.models.mnist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsRegistryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSnapshot() {
+        final MetricsRegistry registry = new DefaultMetricsRegistry();
+        registry.counter("images").increment(3);
+        registry.counter("images").increment();
+        for (int i = 1; i <= 100; i++) {
+            registry.timer("batch").record(i, TimeUnit.MILLISECONDS);
+        }
+        registry.gauge("rate", () -> 2.5);
+
+        final Map<String, Number> snapshot = registry.snapshot();
+
+        assertEquals(4L, snapshot.get("images"));
+        assertEquals(100L, snapshot.get("batch.count"));
+        assertEquals(50_500., snapshot.get("batch.mean").doubleValue(), 1.);
+        assertEquals(50_000., snapshot.get("batch.p50").doubleValue(), 50_000. / 8);
+        assertEquals(99_000., snapshot.get("batch.p99").doubleValue(), 99_000. / 8);
+        assertEquals(100_000L, snapshot.get("batch.max"));
+        assertEquals(2.5, snapshot.get("rate").doubleValue(), 0.);
+    }
+
+    @Test
+    public void testNoopRegistryRecordsNothing() {
+        final MetricsRegistry registry = MetricsRegistry.noop();
+        registry.counter("images").increment();
+        registry.timer("batch").recordSince(System.nanoTime());
+        registry.gauge("rate", () -> 1.);
+
+        assertFalse(registry.isEnabled());
+        assertTrue(registry.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testPipelineReportsToTheInstalledRegistry() {
+        final MetricsRegistry registry = new DefaultMetricsRegistry();
+        Metrics.install(registry);
+        try {
+            new ParallelEvaluator().evaluate(MnistFixtures.randomModel(1, 4),
+                    MnistFixtures.imageMatrix(MnistFixtures.images(10)), MnistFixtures.labels(10));
+        } finally {
+            Metrics.uninstall();
+        }
+
+        assertEquals(1L, registry.snapshot().get(Metrics.EVALUATION_TIME + ".count"));
+        assertTrue(registry.snapshot().get("jvm.heap.used").doubleValue() > 0);
+    }
+
+    @Test
+    public void testSystemPropertiesKeepAnInstalledRegistry() {
+        final MetricsRegistry registry = new DefaultMetricsRegistry();
+        Metrics.install(registry);
+        System.setProperty(Metrics.JMX_PROPERTY, "true");
+        try {
+            Metrics.installFromSystemProperties().close();
+            assertSame(registry, Metrics.registry());
+        } finally {
+            System.clearProperty(Metrics.JMX_PROPERTY);
+            Metrics.uninstall();
+        }
+    }
+
+    @Test
+    public void testFileReporter() throws Exception {
+        final MetricsRegistry registry = new DefaultMetricsRegistry();
+        registry.counter("images").increment(7);
+        final File csv = new File(folder.getRoot(), "metrics.csv");
+        final File json = new File(folder.getRoot(), "metrics.json");
+
+        final FileMetricsReporter csvReporter
+                = FileMetricsReporter.start(registry, csv, FileMetricsReporter.Format.CSV, 1, TimeUnit.HOURS);
+        final FileMetricsReporter jsonReporter
+                = FileMetricsReporter.start(registry, json, FileMetricsReporter.Format.JSON, 1, TimeUnit.HOURS);
+        csvReporter.report();
+        registry.gauge("rate", () -> 0.5);
+        csvReporter.close();
+        jsonReporter.close();
+
+        final List<String> csvLines = Files.readAllLines(csv.toPath());
+        assertEquals(4, csvLines.size());
+        assertEquals("timestamp,images", csvLines.get(0));
+        assertTrue(csvLines.get(1).endsWith(",7"));
+        assertEquals("timestamp,images,rate", csvLines.get(2));
+        assertTrue(csvLines.get(3).endsWith(",7,0.500"));
+        final List<String> jsonLines = Files.readAllLines(json.toPath());
+        assertEquals(1, jsonLines.size());
+        assertTrue(jsonLines.get(0), jsonLines.get(0).matches("\\{\"timestamp\":\\d+,\"images\":7,\"rate\":0.500}"));
+    }
+
+    @Test
+    public void testJmxExporter() throws Exception {
+        final MetricsRegistry registry = new DefaultMetricsRegistry();
+        registry.counter("images").increment(5);
+        final String name = "com.dj.models:type=Metrics,name=test";
+
+        try (JmxMetricsExporter exporter = JmxMetricsExporter.register(registry, name)) {
+            assertEquals(5L, ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(name), "images"));
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(name)));
+    }
+}
@@ -0,0 +1,217 @@
+package com.dj.models.mnist;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MnistDataLoaderTest {
+
+    private static final int SIZE = 103;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IdxDataset images;
+
+    private IdxDataset labels;
+
+    @Before
+    public void setUp() throws Exception {
+        images = IdxDataset.openImages(MnistFixtures.writeImages(folder.newFile(), SIZE).toString());
+        labels = IdxDataset.openLabels(MnistFixtures.writeLabels(folder.newFile(), SIZE).toString());
+    }
+
+    @Test
+    public void testEpochVisitsEveryRecordOnce() {
+        final MnistDataLoader loader = loader().batchSize(10).seed(1).build();
+        final BitSet seen = new BitSet();
+        int batches = 0;
+        try (MnistDataLoader.BatchIterator epoch = loader.epoch(0)) {
+            while (epoch.hasNext()) {
+                final MnistDataLoader.Batch batch = epoch.next();
+                assertEquals(batches++, batch.index());
+                for (int i = 0; i < batch.size(); i++) {
+                    final int record = batch.recordIndex(i);
+                    assertFalse(seen.get(record));
+                    seen.set(record);
+                    assertEquals(MnistFixtures.label(record), batch.labels().get(i));
+                    for (int p = 0; p < MnistFixtures.IMAGE_SIZE; p += 97) {
+                        assertEquals(MnistFixtures.pixel(record, p) / 255f, batch.images().get(i, p), 1e-6f);
+                    }
+                }
+            }
+        }
+        assertEquals(SIZE, seen.cardinality());
+        assertEquals(11, batches);
+        assertEquals(loader.numberOfBatches(), batches);
+    }
+
+    @Test
+    public void testMatricesInMemoryServeTheSameBatchesAsIdx() {
+        final MnistDataLoader fromMatrices = new MnistDataLoader.Builder()
+                .images(ImageMatrix.fromIdx(images).scale(1f / 255f))
+                .labels(LabelVector.fromIdx(labels))
+                .batchSize(10)
+                .seed(3)
+                .build();
+
+        final List<float[]> expected = collect(loader().batchSize(10).seed(3).build(), 1);
+        final List<float[]> actual = collect(fromMatrices, 1);
+        assertEquals(expected.size(), actual.size());
+        for (int b = 0; b < expected.size(); b++) {
+            assertArrayEquals(expected.get(b), actual.get(b), 0f);
+        }
+        try (MnistDataLoader.BatchIterator epoch = fromMatrices.epoch(0)) {
+            final MnistDataLoader.Batch batch = epoch.next();
+            for (int i = 0; i < batch.size(); i++) {
+                assertEquals(MnistFixtures.label(batch.recordIndex(i)), batch.labels().get(i));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsTwoSourcesOfImages() {
+        loader().images(ImageMatrix.fromIdx(images)).build();
+    }
+
+    @Test
+    public void testShufflingIsSeededPerEpoch() {
+        final int[] first = loader().seed(42).build().order(0);
+
+        assertArrayEquals(first, loader().seed(42).build().order(0));
+        assertFalse(Arrays.equals(first, loader().seed(42).build().order(1)));
+        assertFalse(Arrays.equals(first, loader().seed(43).build().order(0)));
+        assertArrayEquals(indexes(SIZE), loader().shuffle(false).build().order(0));
+    }
+
+    @Test
+    public void testShardsSplitTheEpoch() {
+        final BitSet seen = new BitSet();
+        int total = 0;
+        for (int shard = 0; shard < 4; shard++) {
+            final int[] order = loader().seed(7).shard(shard, 4).build().order(3);
+            for (final int record : order) {
+                assertFalse(seen.get(record));
+                seen.set(record);
+            }
+            total += order.length;
+        }
+        assertEquals(SIZE, total);
+        assertEquals(SIZE, seen.cardinality());
+    }
+
+    @Test
+    public void testDropLastAndBufferReuse() {
+        final MnistDataLoader loader = loader().batchSize(10).prefetch(1).dropLast(true).build();
+        final List<MnistDataLoader.Batch> batches = new ArrayList<>();
+        try (MnistDataLoader.BatchIterator epoch = loader.epoch(0)) {
+            epoch.forEachRemaining(batch -> {
+                assertEquals(10, batch.size());
+                if (!batches.contains(batch)) {
+                    batches.add(batch);
+                }
+            });
+        }
+        assertEquals(10, loader.numberOfBatches());
+        assertTrue(batches.size() <= 2);
+    }
+
+    @Test
+    public void testAugmentationDoesNotDependOnTheNumberOfWorkers() {
+        final Augmenter augmenter = new Augmenter.Builder().maxShift(2f).maxRotation(10f).noise(0.05f).build();
+        final List<float[]> single = collect(loader().batchSize(8).seed(5).augmenter(augmenter).build(), 1);
+        final List<float[]> parallel = collect(
+                loader().batchSize(8).seed(5).augmenter(augmenter).workers(3).prefetch(4).build(), 1);
+        final List<float[]> plain = collect(loader().batchSize(8).seed(5).workers(3).build(), 1);
+
+        assertEquals(single.size(), parallel.size());
+        for (int b = 0; b < single.size(); b++) {
+            assertArrayEquals(single.get(b), parallel.get(b), 0f);
+            assertFalse(Arrays.equals(single.get(b), plain.get(b)));
+        }
+        assertFalse(Arrays.equals(single.get(0),
+                collect(loader().batchSize(8).seed(5).augmenter(augmenter).build(), 2).get(0)));
+    }
+
+    @Test
+    public void testWorkersServeBatchesInOrder() {
+        final MnistDataLoader loader = loader().batchSize(4).seed(9).workers(4).prefetch(2).build();
+        final int[] order = loader.order(0);
+        int position = 0;
+        try (MnistDataLoader.BatchIterator epoch = loader.epoch(0)) {
+            while (epoch.hasNext()) {
+                final MnistDataLoader.Batch batch = epoch.next();
+                for (int i = 0; i < batch.size(); i++) {
+                    assertEquals(order[position++], batch.recordIndex(i));
+                }
+            }
+        }
+        assertEquals(SIZE, position);
+    }
+
+    @Test
+    public void testWorkerFailureIsRethrownOnEveryCall() {
+        final IllegalStateException broken = new IllegalStateException("broken registry");
+        Metrics.install(new DefaultMetricsRegistry() {
+            @Override
+            public Counter counter(final String name) {
+                if (Metrics.DECODED_IMAGES.equals(name)) {
+                    throw broken;
+                }
+                return super.counter(name);
+            }
+        });
+        try (MnistDataLoader.BatchIterator epoch = loader().batchSize(10).workers(2).build().epoch(0)) {
+            for (int call = 0; call < 3; call++) {
+                try {
+                    epoch.hasNext();
+                    fail("hasNext returned after a worker failed");
+                } catch (RuntimeException e) {
+                    assertSame(broken, e.getCause());
+                }
+            }
+            try {
+                epoch.next();
+                fail("next returned after a worker failed");
+            } catch (RuntimeException e) {
+                assertSame(broken, e.getCause());
+            }
+        } finally {
+            Metrics.uninstall();
+        }
+    }
+
+    private static List<float[]> collect(final MnistDataLoader loader, final int epoch) {
+        final List<float[]> batches = new ArrayList<>();
+        try (MnistDataLoader.BatchIterator iterator = loader.epoch(epoch)) {
+            iterator.forEachRemaining(batch -> batches.add(
+                    Arrays.copyOf(batch.images().data(), batch.size() * MnistFixtures.IMAGE_SIZE)));
+        }
+        return batches;
+    }
+
+    private MnistDataLoader.Builder loader() {
+        return new MnistDataLoader.Builder().images(images).labels(labels);
+    }
+
+    private static int[] indexes(final int size) {
+        final int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = i;
+        }
+        return indexes;
+    }
+}
@@ -1,12 +1,30 @@
 package com.dj.models.mnist;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
 
 import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 
 public class MnistDownloaderTest {
-    
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void name() {
         MnistDownloader.clearDownloadedFiles();
@@ -25,4 +43,79 @@ public class MnistDownloaderTest {
         assertFalse(MnistDownloader.MNIST_TEST_SET_IMAGES_FILE.exists());
         assertFalse(MnistDownloader.MNIST_TEST_SET_LABELS_FILE.exists());
     }
+
+    @Test
+    public void testDownloadFromLocalMirror() throws Exception {
+        final File mirror = createMirror();
+        final File target = folder.newFolder("target");
+
+        MnistDownloader.downloadMnist(MnistSource.url(mirror.toURI().toString()), target, false);
+
+        assertEquals(30, IdxDataset.openImages(new File(target, "train-images").toString()).size());
+        assertEquals(30, IdxDataset.openLabels(new File(target, "train-labels").toString()).size());
+        assertEquals(10, IdxDataset.openImages(new File(target, "test-images").toString()).size());
+        assertEquals(10, IdxDataset.openLabels(new File(target, "test-labels").toString()).size());
+    }
+
+    @Test
+    public void testTruncatedFilesAreNotTakenAsCached() throws Exception {
+        final File mirror = createMirror();
+        final File target = folder.newFolder("target");
+        final MnistSource source = MnistSource.directory(mirror);
+        MnistDownloader.downloadMnist(source, target, false);
+        final File images = new File(target, "train-images");
+        final byte[] expected = Files.readAllBytes(images.toPath());
+
+        try (RandomAccessFile file = new RandomAccessFile(images, "rw")) {
+            file.setLength(file.length() / 2);
+        }
+        MnistDownloader.downloadMnist(source, target, false);
+
+        assertArrayEquals(expected, Files.readAllBytes(images.toPath()));
+    }
+
+    @Test
+    public void testInterruptedDownloadIsResumed() throws Exception {
+        final File mirror = createMirror();
+        final File target = folder.newFolder("target");
+        final byte[] archive = Files.readAllBytes(new File(mirror, "train-labels-idx1-ubyte.gz").toPath());
+        try (OutputStream partial = new FileOutputStream(new File(target, "train-labels.gz.part"))) {
+            partial.write(archive, 0, archive.length / 2);
+        }
+
+        MnistDownloader.downloadMnist(MnistSource.directory(mirror), target, false);
+
+        assertArrayEquals(archive, Files.readAllBytes(new File(target, "train-labels.gz").toPath()));
+        assertFalse(new File(target, "train-labels.gz.part").exists());
+        assertEquals(30, IdxDataset.openLabels(new File(target, "train-labels").toString()).size());
+    }
+
+    @Test
+    public void testChecksumMismatchIsRejected() throws Exception {
+        final File mirror = createMirror();
+        final File target = folder.newFolder("target");
+        try {
+            MnistDownloader.downloadMnist(MnistSource.directory(mirror), target, true);
+            fail("Stand-in data must not pass the checksum of the published data set");
+        } catch (RuntimeException e) {
+            assertFalse(new File(target, "train-images.gz").exists());
+            assertFalse(new File(target, "train-images").exists());
+        }
+    }
+
+    private File createMirror() throws IOException {
+        final File mirror = folder.newFolder("mirror");
+        gzip(MnistFixtures.writeImages(folder.newFile(), 30), new File(mirror, "train-images-idx3-ubyte.gz"));
+        gzip(MnistFixtures.writeLabels(folder.newFile(), 30), new File(mirror, "train-labels-idx1-ubyte.gz"));
+        gzip(MnistFixtures.writeImages(folder.newFile(), 10), new File(mirror, "t10k-images-idx3-ubyte.gz"));
+        gzip(MnistFixtures.writeLabels(folder.newFile(), 10), new File(mirror, "t10k-labels-idx1-ubyte.gz"));
+        return mirror;
+    }
+
+    private static void gzip(final File source, final File destination) throws IOException {
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(destination))) {
+            in.transferTo(out);
+        }
+    }
 }
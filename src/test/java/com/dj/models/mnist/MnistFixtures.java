@@ -0,0 +1,156 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.activation.Sigmoid;
+import com.dj.core.model.graph.Context;
+import com.dj.core.model.graph.Neuron;
+import com.dj.core.serializer.ModelWrapper;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic MNIst-shaped data so tests can run without downloading the real data set.
+ */
+public final class MnistFixtures {
+
+    public static final int ROWS = 28;
+
+    public static final int COLUMNS = 28;
+
+    public static final int IMAGE_SIZE = ROWS * COLUMNS;
+
+    private MnistFixtures() { }
+
+    /**
+     * Pixel value of the synthetic image {@code index} at {@code pixel}; roughly 80% of pixels are zero
+     * like in the real data set.
+     */
+    public static int pixel(final int index, final int pixel) {
+        final int value = (index * 31 + pixel * 17) % 256;
+        return value % 5 == 0 ? value : 0;
+    }
+
+    public static int label(final int index) {
+        return index % 10;
+    }
+
+    public static byte[][] images(final int count) {
+        final byte[][] images = new byte[count][IMAGE_SIZE];
+        for (int i = 0; i < count; i++) {
+            for (int p = 0; p < IMAGE_SIZE; p++) {
+                images[i][p] = (byte) pixel(i, p);
+            }
+        }
+        return images;
+    }
+
+    public static File writeImages(final File file, final int count) throws IOException {
+        return writeImages(file, images(count));
+    }
+
+    public static File writeImages(final File file, final byte[][] images) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(MnistReader.IMAGE_FILE_MAGIC_NUMBER);
+            out.writeInt(images.length);
+            out.writeInt(ROWS);
+            out.writeInt(COLUMNS);
+            for (final byte[] image : images) {
+                out.write(image);
+            }
+        }
+        return file;
+    }
+
+    public static File writeLabels(final File file, final int count) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(MnistReader.LABEL_FILE_MAGIC_NUMBER);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeByte(label(i));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Images whose label can be learned: each class lights up its own horizontal band of rows.
+     */
+    public static byte[][] separableImages(final int count, final long seed) {
+        final Random random = new Random(seed);
+        final byte[][] images = new byte[count][IMAGE_SIZE];
+        for (int i = 0; i < count; i++) {
+            final int label = label(i);
+            for (int row = label * 2 + 4; row < label * 2 + 6; row++) {
+                for (int column = 4; column < 24; column++) {
+                    images[i][row * COLUMNS + column] = (byte) (128 + random.nextInt(128));
+                }
+            }
+        }
+        return images;
+    }
+
+    /**
+     * A randomly initialised 784 -> hidden (leaky ReLU) -> 10 (sigmoid) model.
+     */
+    public static CompiledModel randomModel(final long seed, final int hidden) {
+        final Random random = new Random(seed);
+        final List<DenseLayer> layers = new ArrayList<>();
+        layers.add(randomLayer(random, IMAGE_SIZE, hidden, Activation.LEAKY_RELU, 1e-4f));
+        layers.add(randomLayer(random, hidden, 10, Activation.SIGMOID, 0f));
+        return new CompiledModel(layers);
+    }
+
+    /**
+     * {@link #randomModel(long, int)} as a neuron graph whose first hidden neuron is a sigmoid, which no
+     * {@link CompiledModel} can express.
+     */
+    public static ModelWrapper uncompilableModel(final long seed, final int hidden) {
+        final ModelWrapper modelWrapper = ModelCompiler.toModelWrapper(randomModel(seed, hidden),
+                new Context(0.0005, false));
+        final Neuron neuron = ModelCompiler.layers(modelWrapper.getInputLayer(), modelWrapper.getOutputLayer())
+                .get(1)
+                .get(0);
+        ModelCompiler.writeField(neuron, "activationFunction", new Sigmoid());
+        return modelWrapper;
+    }
+
+    public static ImageMatrix imageMatrix(final byte[][] images) {
+        final ImageMatrix matrix = ImageMatrix.allocate(images.length, IMAGE_SIZE);
+        for (int i = 0; i < images.length; i++) {
+            for (int p = 0; p < IMAGE_SIZE; p++) {
+                matrix.set(i, p, (images[i][p] & 0xFF) / 255f);
+            }
+        }
+        return matrix;
+    }
+
+    public static LabelVector labels(final int count) {
+        final LabelVector labels = LabelVector.allocate(count);
+        for (int i = 0; i < count; i++) {
+            labels.set(i, label(i));
+        }
+        return labels;
+    }
+
+    private static DenseLayer randomLayer(final Random random,
+                                          final int inputs,
+                                          final int outputs,
+                                          final Activation activation,
+                                          final float parameter) {
+        final float[] weights = new float[inputs * outputs];
+        final float[] biases = new float[outputs];
+        final double scale = Math.sqrt(2. / inputs);
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (float) ((random.nextDouble() * 2. - 1.) * scale);
+        }
+        for (int i = 0; i < biases.length; i++) {
+            biases[i] = (float) ((random.nextDouble() * 2. - 1.) * .1);
+        }
+        return new DenseLayer(inputs, outputs, weights, biases, activation, parameter);
+    }
+}
@@ -1,30 +1,130 @@
 package com.dj.models.mnist;
 
+import com.dj.core.helpers.NormalizationHelper;
+import com.dj.core.model.graph.Context;
 import com.dj.core.serializer.ModelWrapper;
 import com.dj.core.serializer.SerializerHelper;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class MnistTrainerTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTrainOnATinyDataset() {
+        final ModelWrapper modelWrapper = ModelCompiler.toModelWrapper(MnistFixtures.randomModel(1, 16),
+                new Context(0.01, false));
+        final TrainingControl control = new TrainingControl.Builder()
+                .maxEpochs(30)
+                .patience(5)
+                .targetAccuracy(0.95)
+                .build();
+
+        final TrainingControl.Result result = MnistTrainer.trainMnistNN(modelWrapper, control,
+                MnistFixtures.imageMatrix(MnistFixtures.separableImages(200, 5)), MnistFixtures.labels(200),
+                MnistFixtures.imageMatrix(MnistFixtures.separableImages(100, 6)), MnistFixtures.labels(100),
+                folder.getRoot());
+
+        assertTrue(result.toString(), result.getBestError() < 0.2);
+        assertTrue(result.getEpochs() <= 30);
+        final CompiledModel saved = ModelFile.read(new File(folder.getRoot(), "mnist.djm"));
+        assertEquals(result.getBestError(), new ParallelEvaluator()
+                .evaluate(saved, MnistFixtures.imageMatrix(MnistFixtures.separableImages(100, 6)),
+                        MnistFixtures.labels(100))
+                .errorRate(), 1e-9);
+        assertTrue(new File(folder.getRoot(), "mnist.dj").exists());
+        assertTrue(new File(folder.getRoot(), String.format("mnist_model_checkpoint_%d.dj", result.getBestEpoch()))
+                .exists());
+    }
+
+    @Test
+    public void testAugmentOptionDistortsTheTrainingImages() throws Exception {
+        final float[] plain = trainTwoEpochs(folder.newFolder());
+        System.setProperty("dj.train.augment", "true");
+        final float[] augmented;
+        try {
+            augmented = trainTwoEpochs(folder.newFolder());
+        } finally {
+            System.clearProperty("dj.train.augment");
+        }
+
+        assertArrayEquals(plain, trainTwoEpochs(folder.newFolder()), 1e-6f);
+        assertFalse(Arrays.equals(plain, augmented));
+    }
+
+    @Test
+    public void testImagesAreNormalizedLikeTheBundledModels() throws Exception {
+        final File idx = MnistFixtures.writeImages(folder.newFile(), 50);
+        final List<int[][]> raw = MnistReader.getImages(idx.toString());
+        final double[][] rows = new double[raw.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = MnistTrainer.convertImageToTheInput(raw.get(i));
+        }
+        final double[][] expected = NormalizationHelper.normalize(rows);
+
+        System.setProperty("dj.cache.dir", folder.newFolder().toString());
+        try {
+            // computed on the first call, read back from the cache on the second
+            for (int call = 0; call < 2; call++) {
+                final ImageMatrix images = MnistTrainer.loadImageMatrix(idx.toString());
+                assertEquals(expected.length, images.size());
+                for (int i = 0; i < expected.length; i++) {
+                    for (int p = 0; p < expected[i].length; p++) {
+                        assertEquals((float) expected[i][p], images.get(i, p), 0f);
+                    }
+                }
+            }
+        } finally {
+            System.clearProperty("dj.cache.dir");
+        }
+    }
+
+    /**
+     * Outputs of the trained model for the first validation image; the graph may order hidden neurons
+     * differently from run to run, so its weights can not be compared.
+     */
+    private static float[] trainTwoEpochs(final File outputDirectory) {
+        final ModelWrapper modelWrapper = ModelCompiler.toModelWrapper(MnistFixtures.randomModel(1, 16),
+                new Context(0.01, false));
+        final ImageMatrix validation = MnistFixtures.imageMatrix(MnistFixtures.separableImages(50, 6));
+        MnistTrainer.trainMnistNN(modelWrapper, new TrainingControl.Builder().maxEpochs(2).restoreBest(false).build(),
+                MnistFixtures.imageMatrix(MnistFixtures.separableImages(100, 5)), MnistFixtures.labels(100),
+                validation, MnistFixtures.labels(50), outputDirectory);
+        final CompiledModel model = ModelCompiler.compile(modelWrapper);
+        return model.forward(validation.data(), validation.offset(0), model.newWorkspace()).clone();
+    }
+
     @Test
-    @Ignore("Test will never end since there is no condition to stop training")
+    @Ignore("Downloads MNIst and trains for up to 500 epochs")
     public void testTrainMnist() {
         MnistTrainer.downloadDataAndTrainMnistNN(true);
     }
 
     @Test
-    @Ignore("Test will never end since there is no condition to stop training")
+    @Ignore("Downloads MNIst and trains for up to 500 epochs")
     public void testTrainKaggleMnist() {
         MnistTrainer.trainMnistNNOnKaggleData(true);
     }
 
     @Test
-    @Ignore("Test will never end since there is no condition to stop training")
+    @Ignore("Downloads MNIst and trains for up to 500 epochs")
     public void testTrainMnistContinue() {
         String path = MnistTrainer.class.getClassLoader().getResource("com/dj/models/mnist/mnist.dj").getPath()
                 .toString();
         ModelWrapper modelWrapper = SerializerHelper.deserializeFromFile(path);
         MnistTrainer.downloadDataAndTrainMnistNN(modelWrapper);
     }
-}
\ No newline at end of file
+}
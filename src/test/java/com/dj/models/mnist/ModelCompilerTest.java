@@ -0,0 +1,138 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.activation.LeakyRelu;
+import com.dj.core.model.activation.Sigmoid;
+import com.dj.core.model.graph.ConnectedNeuron;
+import com.dj.core.model.graph.Context;
+import com.dj.core.model.graph.InputNeuron;
+import com.dj.core.model.graph.Neuron;
+import com.dj.core.serializer.ModelWrapper;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ModelCompilerTest {
+
+    private static final int INPUTS = 784;
+
+    private static final int HIDDEN = 16;
+
+    private static final int OUTPUTS = 10;
+
+    @Test
+    public void testCoreOnTheClassPathIsSupported() {
+        ModelCompiler.requireSupportedCore();
+    }
+
+    @Test
+    public void testCompiledModelMatchesTheGraph() {
+        final ModelWrapper modelWrapper = createModel(new Random(7));
+        final CompiledModel model = ModelCompiler.compile(modelWrapper);
+
+        assertEquals(INPUTS, model.inputSize());
+        assertEquals(OUTPUTS, model.outputSize());
+        assertEquals(2, model.layers().size());
+        assertEquals(Activation.LEAKY_RELU, model.layers().get(0).activation());
+        assertEquals(Activation.SIGMOID, model.layers().get(1).activation());
+
+        final byte[][] images = MnistFixtures.images(50);
+        final ImageMatrix matrix = ImageMatrix.allocate(images.length, INPUTS);
+        final CompiledModel.Workspace workspace = model.newWorkspace();
+        for (int i = 0; i < images.length; i++) {
+            for (int p = 0; p < INPUTS; p++) {
+                final double pixel = (images[i][p] & 0xFF) / 255.;
+                matrix.set(i, p, (float) pixel);
+                modelWrapper.getInputLayer().get(p).forwardSignalReceived(null, pixel);
+            }
+            final float[] outputs = model.forward(matrix.data(), matrix.offset(i), workspace);
+            int expected = 0;
+            for (int o = 0; o < OUTPUTS; o++) {
+                final double graphOutput = modelWrapper.getOutputLayer().get(o).getForwardResult();
+                assertEquals(graphOutput, outputs[o], 1e-4);
+                if (graphOutput > modelWrapper.getOutputLayer().get(expected).getForwardResult()) {
+                    expected = o;
+                }
+            }
+            assertEquals(expected, model.predict(matrix.data(), matrix.offset(i), workspace));
+        }
+
+        final int[] batchPredictions = model.predict(matrix);
+        for (int i = 0; i < images.length; i++) {
+            assertEquals(model.predict(matrix.data(), matrix.offset(i), workspace), batchPredictions[i]);
+        }
+    }
+
+    @Test
+    public void testCompiledModelIsASnapshot() {
+        final ModelWrapper modelWrapper = createModel(new Random(3));
+        final CompiledModel model = ModelCompiler.compile(modelWrapper);
+        final float weight = model.layers().get(1).weight(0, 0);
+
+        final CompiledModel copy = model.copy();
+        copy.layers().get(1).weights()[0] += 1f;
+
+        assertEquals(weight, model.layers().get(1).weight(0, 0), 0f);
+    }
+
+    @Test
+    public void testBoundedSigmoidCompilesOnlyToTheSameOutputs() {
+        final Random random = new Random(5);
+        final Context context = new Context(0.0005, false);
+        final List<Neuron> inputLayer = layer(INPUTS, InputNeuron::new);
+        final List<Neuron> outputLayer = layer(OUTPUTS, () -> new ConnectedNeuron.Builder()
+                .activationFunction(new Sigmoid(true))
+                .context(context)
+                .build());
+        // weights this large drive most outputs far into saturation, where a limit would show
+        inputLayer.forEach(input -> outputLayer.forEach(output ->
+                input.connect(output, (random.nextDouble() * 2. - 1.) * 20.)));
+        final CompiledModel model;
+        try {
+            model = ModelCompiler.compile(inputLayer, outputLayer);
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+
+        final byte[][] images = MnistFixtures.images(20);
+        final float[] pixels = new float[INPUTS];
+        final CompiledModel.Workspace workspace = model.newWorkspace();
+        for (final byte[] image : images) {
+            for (int p = 0; p < INPUTS; p++) {
+                pixels[p] = (image[p] & 0xFF) / 255f;
+                inputLayer.get(p).forwardSignalReceived(null, (double) pixels[p]);
+            }
+            final float[] outputs = model.forward(pixels, 0, workspace);
+            for (int o = 0; o < OUTPUTS; o++) {
+                assertEquals(outputLayer.get(o).getForwardResult(), outputs[o], 1e-6);
+            }
+        }
+    }
+
+    static ModelWrapper createModel(final Random random) {
+        final Context context = new Context(0.0005, false);
+        final List<Neuron> inputLayer = layer(INPUTS, InputNeuron::new);
+        final List<Neuron> hiddenLayer = layer(HIDDEN, () -> new ConnectedNeuron.Builder()
+                .activationFunction(new LeakyRelu())
+                .context(context)
+                .build());
+        final List<Neuron> outputLayer = layer(OUTPUTS, () -> new ConnectedNeuron.Builder()
+                .activationFunction(new Sigmoid(true))
+                .context(context)
+                .build());
+        inputLayer.forEach(input -> hiddenLayer.forEach(hidden ->
+                input.connect(hidden, (random.nextDouble() * 2. - 1.) * Math.sqrt(2. / INPUTS))));
+        hiddenLayer.forEach(hidden -> outputLayer.forEach(output ->
+                hidden.connect(output, (random.nextDouble() * 2. - 1.) / HIDDEN)));
+        return new ModelWrapper.Builder().inputLayer(inputLayer).outputLayer(outputLayer).context(context).build();
+    }
+
+    private static List<Neuron> layer(final int size, final Supplier<Neuron> supplier) {
+        return IntStream.range(0, size).mapToObj(i -> supplier.get()).collect(Collectors.toList());
+    }
+}
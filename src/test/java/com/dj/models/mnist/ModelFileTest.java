@@ -0,0 +1,79 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.serializer.ModelWrapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ModelFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        final CompiledModel model = MnistFixtures.randomModel(3, 32);
+        final File file = folder.newFile("model.djm");
+
+        ModelFile.write(model, file);
+        final CompiledModel read = ModelFile.read(file);
+
+        assertEquals(ModelFile.fileSize(model), file.length());
+        assertEquals(model.numberOfParameters() * Float.BYTES + 16 + 2 * 16, file.length());
+        assertEquals(model.layers().size(), read.layers().size());
+        for (int i = 0; i < model.layers().size(); i++) {
+            final DenseLayer expected = model.layers().get(i);
+            final DenseLayer actual = read.layers().get(i);
+            assertEquals(expected.inputSize(), actual.inputSize());
+            assertEquals(expected.outputSize(), actual.outputSize());
+            assertEquals(expected.activation(), actual.activation());
+            assertEquals(expected.activationParameter(), actual.activationParameter(), 0f);
+            assertArrayEquals(expected.weights(), actual.weights(), 0f);
+            assertArrayEquals(expected.biases(), actual.biases(), 0f);
+        }
+        final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.images(20));
+        assertArrayEquals(model.predict(images), read.predict(images));
+    }
+
+    @Test
+    public void testExportAndImport() throws Exception {
+        final CompiledModel model = MnistFixtures.randomModel(5, 8);
+        final File file = folder.newFile("model.djm");
+        final ModelWrapper modelWrapper = ModelCompiler.toModelWrapper(model, new Context(0.0005, false));
+
+        ModelFile.exportModel(modelWrapper, file);
+        final CompiledModel imported = ModelCompiler.compile(
+                ModelFile.importModel(file, new Context(0.0005, false)));
+
+        final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.images(20));
+        assertArrayEquals(model.predict(images), imported.predict(images));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testTruncatedFileIsRejected() throws Exception {
+        final File file = folder.newFile("model.djm");
+        ModelFile.write(MnistFixtures.randomModel(3, 4), file);
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.setLength(file.length() - Float.BYTES);
+        }
+
+        ModelFile.read(file);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testForeignFileIsRejected() throws Exception {
+        final File file = folder.newFile("model.dj");
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.write(new byte[64]);
+        }
+
+        ModelFile.read(file);
+    }
+}
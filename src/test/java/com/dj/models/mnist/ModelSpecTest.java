@@ -0,0 +1,136 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.loss.QuadraticLoss;
+import com.dj.core.serializer.ModelWrapper;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ModelSpecTest {
+
+    @Test
+    public void testBaselinePresetMatchesTheOriginalNetwork() {
+        final ModelSpec spec = ModelSpec.preset(ModelSpec.BASELINE);
+
+        assertEquals(ModelSpec.BASELINE, spec.getName());
+        assertEquals(784, spec.getInputSize());
+        assertEquals(2, spec.getLayers().size());
+        assertEquals(Activation.LEAKY_RELU, spec.getLayers().get(0).getActivation());
+        assertEquals(Activation.SIGMOID, spec.getLayers().get(1).getActivation());
+        assertEquals(0.0005, spec.getLearningRate(), 1e-12);
+        assertEquals(784 * 10 + 10 + 10 * 10 + 10, spec.numberOfParameters());
+        assertEquals(2 * 784 * 10 + 10 + 2 * 10 * 10 + 10, spec.flopsPerImage());
+        assertTrue(spec.newLoss() instanceof QuadraticLoss);
+    }
+
+    @Test
+    public void testPresetsGrowInCost() {
+        long previous = 0;
+        for (final String name : ModelSpec.presets()) {
+            final ModelSpec spec = ModelSpec.preset(name);
+            assertEquals(name, spec.getName());
+            assertTrue(spec.flopsPerImage() > previous);
+            previous = spec.flopsPerImage();
+        }
+    }
+
+    @Test
+    public void testSeededInitializationIsReproducibleAndBounded() {
+        final ModelSpec spec = new ModelSpec.Builder()
+                .inputSize(50)
+                .layer(20, Activation.LEAKY_RELU, 0.01f, ModelSpec.Initialization.HE_UNIFORM)
+                .layer(10, Activation.SIGMOID, 1f, ModelSpec.Initialization.FAN_IN_UNIFORM)
+                .seed(7L)
+                .build();
+
+        final CompiledModel first = spec.initialize();
+        final CompiledModel second = spec.initialize();
+
+        assertEquals(spec.numberOfParameters(), first.numberOfParameters());
+        assertArrayEquals(first.layers().get(0).weights(), second.layers().get(0).weights(), 0f);
+        for (final float weight : first.layers().get(0).weights()) {
+            assertTrue(Math.abs(weight) <= Math.sqrt(2. / 50));
+        }
+        for (final float weight : first.layers().get(1).weights()) {
+            assertTrue(Math.abs(weight) <= 1. / 20);
+        }
+        assertEquals(0.01f, first.layers().get(0).activationParameter(), 0f);
+    }
+
+    @Test
+    public void testPropertiesRoundTrip() throws IOException {
+        final ModelSpec spec = new ModelSpec.Builder()
+                .name("round-trip")
+                .layer(32, Activation.LEAKY_RELU, 0.001f, ModelSpec.Initialization.HE_UNIFORM)
+                .layer(10, Activation.SIGMOID, 1f, ModelSpec.Initialization.XAVIER_UNIFORM)
+                .learningRate(0.01)
+                .seed(3L)
+                .build();
+        final File file = File.createTempFile("model-spec", ".properties");
+        try {
+            spec.save(file);
+            final ModelSpec loaded = ModelSpec.load(file);
+
+            assertEquals(spec.toProperties(), loaded.toProperties());
+            assertArrayEquals(spec.initialize().layers().get(1).weights(),
+                    loaded.initialize().layers().get(1).weights(), 0f);
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Test
+    public void testCrossEntropyIsTheLossOfTheCompiledTrainers() {
+        final Properties properties = ModelSpec.preset(ModelSpec.TINY).toProperties();
+        properties.setProperty("loss", "cross_entropy");
+
+        final ModelSpec spec = ModelSpec.fromProperties(properties);
+
+        assertEquals(BatchTrainer.LossFunction.CROSS_ENTROPY, spec.getLoss());
+        assertEquals("cross_entropy", spec.toProperties().getProperty("loss"));
+        try {
+            spec.newLoss();
+            fail("com.dj.core has no cross-entropy loss");
+        } catch (UnsupportedOperationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("cross-entropy"));
+        }
+    }
+
+    @Test
+    public void testCreatesATrainableGraph() {
+        final ModelWrapper modelWrapper = ModelSpec.preset(ModelSpec.WIDE).createModel(false);
+
+        final CompiledModel model = ModelCompiler.compile(modelWrapper);
+
+        assertEquals(ModelSpec.preset(ModelSpec.WIDE).numberOfParameters(), model.numberOfParameters());
+        assertEquals(0.0005, ModelCompiler.getLearningRate(modelWrapper.getContext()), 1e-12);
+    }
+
+    @Test
+    public void testProfileMeasuresLatency() {
+        final ModelSpec.Profile profile = ModelSpec.preset(ModelSpec.TINY).profile();
+
+        assertEquals(7850, profile.getParameters());
+        assertTrue(profile.getP99LatencyMicros() >= profile.getMedianLatencyMicros());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsAnIncompleteSpec() {
+        final Properties properties = new Properties();
+        properties.setProperty("input.size", "784");
+        ModelSpec.fromProperties(properties);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsAnUnknownPreset() {
+        ModelSpec.preset("huge");
+    }
+}
@@ -0,0 +1,227 @@
+package com.dj.models.mnist;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OnlineLearnerTest {
+
+    private static final int COUNT = 200;
+
+    private final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.separableImages(COUNT, 5));
+
+    private final LabelVector labels = MnistFixtures.labels(COUNT);
+
+    private final ImageMatrix guardImages = MnistFixtures.imageMatrix(MnistFixtures.separableImages(100, 6));
+
+    private final LabelVector guardLabels = MnistFixtures.labels(100);
+
+    @Test
+    public void testPublishesImprovedVersions() throws Exception {
+        final CompiledModel initial = MnistFixtures.randomModel(1, 16);
+        try (OnlineLearner learner = learner(initial, 0.01).build().start()) {
+            assertEquals(0, learner.current().getVersion());
+            final double initialError = learner.current().getErrorRate();
+
+            stream(learner, 10);
+
+            final OnlineLearner.ModelVersion current = learner.current();
+            assertTrue(current.getVersion() > 0);
+            assertTrue(current.getErrorRate() < initialError);
+            assertTrue(current.getErrorRate() < 0.2);
+            assertEquals(10 * COUNT, learner.getImagesTrained());
+            assertEquals(current.getErrorRate(),
+                    new ParallelEvaluator().evaluate(current.getModel(), guardImages, guardLabels).errorRate(), 1e-9);
+        }
+    }
+
+    @Test
+    public void testGuardRejectsWorseVersions() throws Exception {
+        final CompiledModel initial = MnistFixtures.randomModel(1, 16);
+        new BatchTrainer.Builder().batchSize(16).epochs(10).learningRate(0.01).seed(42).build()
+                .train(initial, images, labels);
+        try (OnlineLearner learner = learner(initial, 0.01).build().start()) {
+            final OnlineLearner.ModelVersion served = learner.current();
+
+            for (int i = 0; i < COUNT; i++) {
+                // teaching every image to be a 3 can only hurt
+                assertTrue(learner.submit(copy(i), 3));
+            }
+            assertTrue(learner.awaitIdle(1, TimeUnit.MINUTES));
+
+            assertTrue(learner.getRejectedVersions() > 0);
+            assertSame(served, learner.current());
+            assertEquals(1, learner.versions().size());
+        }
+    }
+
+    @Test
+    public void testRollbackServesAnEarlierVersion() throws Exception {
+        try (OnlineLearner learner = learner(MnistFixtures.randomModel(1, 16), 0.01)
+                .maxErrorIncrease(1)
+                .maxHistory(3)
+                .build()
+                .start()) {
+            final OnlineLearner.ModelVersion first = learner.current();
+            stream(learner, 3);
+            final List<OnlineLearner.ModelVersion> versions = learner.versions();
+            assertEquals(3, versions.size());
+            assertSame(learner.current(), versions.get(2));
+
+            assertSame(versions.get(1), learner.rollback());
+            assertSame(versions.get(1), learner.current());
+            assertSame(versions.get(0), learner.rollback(versions.get(0).getVersion()));
+            assertTrue(versions.get(0).getVersion() > first.getVersion());
+
+            stream(learner, 1);
+            assertTrue(learner.current().getVersion() > versions.get(2).getVersion());
+        }
+    }
+
+    @Test
+    public void testFailedTrainingStopsTheLearner() throws Exception {
+        final IllegalStateException broken = new IllegalStateException("broken registry");
+        Metrics.install(new DefaultMetricsRegistry() {
+            @Override
+            public Counter counter(final String name) {
+                if (Metrics.ONLINE_PUBLISHED_VERSIONS.equals(name)) {
+                    throw broken;
+                }
+                return super.counter(name);
+            }
+        });
+        try (OnlineLearner learner = learner(MnistFixtures.randomModel(1, 16), 0.01)
+                .maxErrorIncrease(1)
+                .build()
+                .start()) {
+            for (int i = 0; i < COUNT; i++) {
+                assertTrue(learner.submit(copy(i), labels.get(i)));
+            }
+            try {
+                learner.awaitIdle(1, TimeUnit.MINUTES);
+                fail("awaitIdle returned after training failed");
+            } catch (IllegalStateException e) {
+                assertSame(broken, e.getCause());
+            }
+            assertSame(broken, learner.getFailure());
+            try {
+                learner.submit(copy(0), labels.get(0));
+                fail("submit accepted an image after training failed");
+            } catch (IllegalStateException e) {
+                assertSame(broken, e.getCause());
+            }
+        } finally {
+            Metrics.uninstall();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRollbackToAnUnknownVersionFails() {
+        try (OnlineLearner learner = learner(MnistFixtures.randomModel(1, 16), 0.01).build()) {
+            learner.rollback(7);
+        }
+    }
+
+    @Test
+    public void testReadersNeverSeeChangingWeights() throws Exception {
+        try (OnlineLearner learner = learner(MnistFixtures.randomModel(1, 16), 0.01)
+                .maxErrorIncrease(1)
+                .publishInterval(16)
+                .build()
+                .start()) {
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicReference<String> failure = new AtomicReference<>();
+            final Thread reader = new Thread(() -> {
+                long lastVersion = -1;
+                while (!done.get()) {
+                    final OnlineLearner.ModelVersion version = learner.current();
+                    final double before = checksum(version.getModel());
+                    Thread.yield();
+                    if (checksum(version.getModel()) != before || version.getVersion() < lastVersion) {
+                        failure.set("Version " + version.getVersion() + " changed after it was published");
+                    }
+                    lastVersion = version.getVersion();
+                }
+            });
+            reader.start();
+
+            stream(learner, 3);
+            done.set(true);
+            reader.join();
+
+            assertEquals(null, failure.get());
+            assertTrue(learner.current().getVersion() > 10);
+        }
+    }
+
+    @Test
+    public void testInferenceServerFollowsTheCurrentVersion() throws Exception {
+        try (OnlineLearner learner = learner(MnistFixtures.randomModel(1, 16), 0.01).build();
+             InferenceServer server = new InferenceServer.Builder()
+                     .models(learner::currentModel)
+                     .port(0)
+                     .workers(1)
+                     .build()
+                     .start()) {
+            final OnlineLearner.ModelVersion first = learner.current();
+            learner.start();
+            stream(learner, 10);
+            assertFalse(first == learner.current());
+
+            final float[] image = copy(0);
+            final int expected = learner.currentModel().predict(image, 0, learner.currentModel().newWorkspace());
+            final byte[] pixels = new byte[image.length];
+            for (int p = 0; p < image.length; p++) {
+                pixels[p] = (byte) Math.round(image[p] * 255f);
+            }
+            final String body = InferenceServerTest.post(server, "application/octet-stream", pixels).body;
+            assertTrue(body, body.startsWith("{\"label\":" + expected + ","));
+        }
+    }
+
+    private OnlineLearner.Builder learner(final CompiledModel model, final double learningRate) {
+        return new OnlineLearner.Builder()
+                .model(model)
+                .guard(guardImages, guardLabels)
+                .batchSize(16)
+                .learningRate(learningRate)
+                .publishInterval(COUNT);
+    }
+
+    private void stream(final OnlineLearner learner, final int passes) throws InterruptedException {
+        for (int pass = 0; pass < passes; pass++) {
+            for (int i = 0; i < COUNT; i++) {
+                assertTrue(learner.submit(copy(i), labels.get(i)));
+            }
+            assertTrue(learner.awaitIdle(1, TimeUnit.MINUTES));
+        }
+    }
+
+    private float[] copy(final int index) {
+        final float[] image = new float[images.imageSize()];
+        images.copyImage(index, image, 0);
+        return image;
+    }
+
+    private static double checksum(final CompiledModel model) {
+        double sum = 0;
+        for (final DenseLayer layer : model.layers()) {
+            for (final float weight : layer.weights()) {
+                sum += weight;
+            }
+            for (final float bias : layer.biases()) {
+                sum += bias;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,58 @@
+package com.dj.models.mnist;
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParallelEvaluatorTest {
+
+    @Test
+    public void testParallelResultMatchesSequentialScoring() {
+        final CompiledModel model = MnistFixtures.randomModel(11, 16);
+        final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.images(2000));
+        final LabelVector labels = MnistFixtures.labels(2000);
+
+        final int[] predictions = model.predict(images);
+        int correct = 0;
+        final int[][] confusion = new int[10][10];
+        for (int i = 0; i < predictions.length; i++) {
+            confusion[labels.get(i)][predictions[i]]++;
+            if (predictions[i] == labels.get(i)) {
+                correct++;
+            }
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final EvaluationResult result = new ParallelEvaluator(pool, 100).evaluate(model, images, labels);
+            assertEquals(2000, result.total());
+            assertEquals(correct, result.correct());
+            assertEquals(1. - correct / 2000., result.errorRate(), 1e-12);
+            for (int expected = 0; expected < 10; expected++) {
+                assertEquals((double) confusion[expected][expected] / 200, result.classAccuracy(expected), 1e-12);
+                for (int predicted = 0; predicted < 10; predicted++) {
+                    assertEquals(confusion[expected][predicted], result.confusion(expected, predicted));
+                    assertEquals(confusion[expected][predicted], result.confusionMatrix()[expected][predicted]);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPrebuiltSparseFormScoresLikeTheDenseImages() {
+        final CompiledModel model = MnistFixtures.randomModel(12, 16);
+        final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.images(300));
+        final LabelVector labels = MnistFixtures.labels(300);
+        final SparseImageMatrix sparse = SparseImageMatrix.fromDense(images);
+        final ParallelEvaluator evaluator = new ParallelEvaluator();
+
+        final int correct = evaluator.evaluate(model, images, null, labels).correct();
+
+        assertEquals(correct, evaluator.evaluate(model, null, sparse, labels).correct());
+        assertEquals(correct, evaluator.evaluate(model, images, labels).correct());
+    }
+}
@@ -0,0 +1,163 @@
+package com.dj.models.mnist;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParameterServerTest {
+
+    private static final int COUNT = 200;
+
+    private final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.separableImages(COUNT, 5));
+
+    private final LabelVector labels = MnistFixtures.labels(COUNT);
+
+    @Test
+    public void testSingleWorkerMatchesBatchTrainer() throws Exception {
+        final CompiledModel expected = MnistFixtures.randomModel(1, 16);
+        new BatchTrainer.Builder().batchSize(16).epochs(2).learningRate(0.01).seed(42).build()
+                .train(expected, images, labels);
+
+        try (ParameterServer server = server(ParameterServer.Mode.SYNCHRONOUS, 1).build().start()) {
+            assertEquals(0, worker(server).build().run());
+            assertTrue(server.awaitCompletion(1, TimeUnit.MINUTES));
+
+            final CompiledModel trained = server.snapshot();
+            for (int l = 0; l < trained.layers().size(); l++) {
+                assertArrayEquals(expected.layers().get(l).weights(), trained.layers().get(l).weights(), 1e-4f);
+                assertArrayEquals(expected.layers().get(l).biases(), trained.layers().get(l).biases(), 1e-4f);
+            }
+            assertEquals(2 * ((COUNT + 15) / 16), server.getVersion());
+        }
+    }
+
+    @Test
+    public void testSynchronousWorkersLearn() throws Exception {
+        assertLearns(ParameterServer.Mode.SYNCHRONOUS);
+    }
+
+    @Test
+    public void testBoundedStalenessWorkersLearn() throws Exception {
+        assertLearns(ParameterServer.Mode.BOUNDED_STALENESS);
+    }
+
+    @Test
+    public void testFailedWorkersShardIsResumed() throws Exception {
+        try (ParameterServer server = server(ParameterServer.Mode.SYNCHRONOUS, 2).build().start()) {
+            assertEquals(0, worker(server).maxSteps(3).build().run());
+            awaitFailure(server);
+
+            assertEquals(0, worker(server).build().run());
+            assertEquals(1, worker(server).build().run());
+
+            assertTrue(server.awaitCompletion(1, TimeUnit.MINUTES));
+            assertEquals(1, server.getRejoins());
+            // two epochs of 7 steps per shard, the 3 steps of the failed worker not repeated
+            assertEquals(2 * 2 * 7, server.getVersion());
+        }
+    }
+
+    @Test
+    public void testSilentWorkerTimesOut() throws Exception {
+        try (ParameterServer server = server(ParameterServer.Mode.SYNCHRONOUS, 1)
+                .failureTimeout(100, TimeUnit.MILLISECONDS)
+                .build()
+                .start();
+             Socket socket = new Socket("localhost", server.getPort())) {
+            final DataInputStream input = hello(socket);
+            assertEquals(ParameterServer.WELCOME, input.readByte());
+
+            awaitFailure(server);
+            assertEquals(0, server.getLiveWorkers());
+            assertEquals(0, worker(server).build().run());
+        }
+    }
+
+    @Test
+    public void testRejectsWorkersWhenAllShardsAreTaken() throws Exception {
+        try (ParameterServer server = server(ParameterServer.Mode.SYNCHRONOUS, 1).build().start();
+             Socket socket = new Socket("localhost", server.getPort())) {
+            assertEquals(ParameterServer.WELCOME, hello(socket).readByte());
+
+            assertEquals(-1, worker(server).build().run());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidSettings() {
+        server(ParameterServer.Mode.SYNCHRONOUS, 0).build();
+    }
+
+    private void assertLearns(final ParameterServer.Mode mode) throws Exception {
+        final CompiledModel initial = MnistFixtures.randomModel(1, 16);
+        try (ParameterServer server = new ParameterServer.Builder()
+                .model(initial)
+                .shards(3)
+                .epochs(10)
+                .batchSize(16)
+                .learningRate(0.01)
+                .seed(42)
+                .mode(mode)
+                .build()
+                .start()) {
+            final Thread[] workers = new Thread[3];
+            for (int w = 0; w < workers.length; w++) {
+                workers[w] = new Thread(() -> worker(server).build().run());
+                workers[w].start();
+            }
+            for (final Thread worker : workers) {
+                worker.join();
+            }
+
+            assertTrue(server.awaitCompletion(1, TimeUnit.MINUTES));
+            assertEquals(0, server.getFailures());
+            assertTrue(errorRate(server.snapshot()) < errorRate(initial));
+            assertTrue(errorRate(server.snapshot()) < 0.2);
+        }
+    }
+
+    private static ParameterServer.Builder server(final ParameterServer.Mode mode, final int shards) {
+        return new ParameterServer.Builder()
+                .model(MnistFixtures.randomModel(1, 16))
+                .shards(shards)
+                .epochs(2)
+                .batchSize(16)
+                .learningRate(0.01)
+                .seed(42)
+                .mode(mode);
+    }
+
+    private ParameterServerWorker.Builder worker(final ParameterServer server) {
+        return new ParameterServerWorker.Builder()
+                .server("localhost", server.getPort())
+                .data(images, labels);
+    }
+
+    private static void awaitFailure(final ParameterServer server) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (server.getFailures() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getFailures());
+    }
+
+    private static DataInputStream hello(final Socket socket) throws IOException {
+        final DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.writeInt(ParameterServer.MAGIC_NUMBER);
+        output.writeInt(ParameterServer.PROTOCOL_VERSION);
+        output.flush();
+        return new DataInputStream(socket.getInputStream());
+    }
+
+    private double errorRate(final CompiledModel model) {
+        return new ParallelEvaluator().evaluate(model, images, labels).errorRate();
+    }
+}
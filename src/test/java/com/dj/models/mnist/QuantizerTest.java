@@ -0,0 +1,106 @@
+package com.dj.models.mnist;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantizerTest {
+
+    private static final int COUNT = 300;
+
+    @Test
+    public void testQuantizedModelKeepsTheAccuracy() {
+        final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.separableImages(COUNT, 9));
+        final LabelVector labels = MnistFixtures.labels(COUNT);
+        final CompiledModel model = MnistFixtures.randomModel(2, 32);
+        new DataParallelTrainer.Builder()
+                .workers(2)
+                .batchSize(16)
+                .epochs(10)
+                .learningRate(0.01)
+                .seed(1)
+                .build()
+                .train(model, images, labels);
+
+        final QuantizedModel quantized = Quantizer.quantize(model, images);
+        final Quantizer.Report report = Quantizer.compare(model, quantized, images, labels);
+
+        assertTrue(report.toString(), report.floatError() < 0.1);
+        assertTrue(report.toString(), Math.abs(report.accuracyDelta()) <= 0.02);
+        assertTrue(report.toString(), report.agreement() >= 0.98);
+        assertTrue(report.withinErrorThreshold());
+        assertTrue(report.toString(), (double) report.floatBytes() / report.quantizedBytes() > 3.5);
+        assertTrue(report.toString(), report.compressionOverDoubles() > 7.);
+    }
+
+    @Test
+    public void testOutputsStayCloseToTheFloatModel() {
+        final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.images(50));
+        final CompiledModel model = MnistFixtures.randomModel(3, 16);
+        final QuantizedModel quantized = Quantizer.quantize(model, images);
+        final CompiledModel.Workspace floatWorkspace = model.newWorkspace();
+        final QuantizedModel.Workspace workspace = quantized.newWorkspace();
+
+        for (int i = 0; i < images.size(); i++) {
+            final float[] expected = model.forward(images.data(), images.offset(i), floatWorkspace).clone();
+            final float[] actual = quantized.forward(images.data(), images.offset(i), workspace);
+            for (int o = 0; o < model.outputSize(); o++) {
+                assertEquals(expected[o], actual[o], 0.02);
+            }
+        }
+    }
+
+    @Test
+    public void testCalibrationFindsTheInputRanges() {
+        final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.images(20));
+        final CompiledModel model = MnistFixtures.randomModel(3, 16);
+
+        final float[] ranges = Quantizer.calibrate(model, images);
+
+        float max = 0f;
+        for (final float pixel : images.data()) {
+            max = Math.max(max, Math.abs(pixel));
+        }
+        assertEquals(max, ranges[0], 0f);
+        assertTrue(ranges[1] > 0f);
+    }
+
+    @Test
+    public void testIntegerKernelMatchesNaiveProducts() {
+        final Random random = new Random(5);
+        final byte[] weights = new byte[2 * 37];
+        final byte[] input = new byte[37];
+        random.nextBytes(weights);
+        random.nextBytes(input);
+        for (int row = 0; row < 2; row++) {
+            int expected = 0;
+            for (int i = 0; i < input.length; i++) {
+                expected += weights[row * input.length + i] * input[i];
+            }
+            assertEquals(expected, QuantizedLayer.dot(weights, row * input.length, input, input.length));
+        }
+    }
+
+    @Test
+    public void testWeightsUseTheFullRangePerRow() {
+        final DenseLayer layer = new DenseLayer(3, 2, new float[] {0.5f, -1f, 0.25f, 0f, 0f, 0f},
+                new float[] {0.1f, 0.2f}, Activation.SIGMOID, 1f);
+
+        final QuantizedLayer quantized = QuantizedLayer.quantize(layer, 2f);
+
+        assertArrayEquals(new byte[] {64, -127, 32, 0, 0, 0}, quantized.weights());
+        assertEquals(1f / 127, quantized.weightScales()[0], 1e-9f);
+        assertEquals(1f, quantized.weightScales()[1], 0f);
+        assertEquals(2f / 127, quantized.inputScale(), 1e-9f);
+        assertEquals(127, QuantizedLayer.quantize(10f, quantized.inputScale()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCalibrationImagesOfTheWrongSize() {
+        Quantizer.calibrate(MnistFixtures.randomModel(3, 16), ImageMatrix.allocate(2, 10));
+    }
+}
@@ -0,0 +1,95 @@
+package com.dj.models.mnist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SparseImageMatrixTest {
+
+    private static final int COUNT = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.images(COUNT));
+
+    @Test
+    public void testKeepsOnlyNonZeroPixels() {
+        final SparseImageMatrix sparse = SparseImageMatrix.fromDense(images);
+
+        assertEquals(COUNT, sparse.size());
+        assertEquals(MnistFixtures.IMAGE_SIZE, sparse.imageSize());
+        assertEquals(images.density(), sparse.density(), 1e-12);
+        assertTrue(sparse.density() < 0.25);
+        assertArrayEquals(images.data(), sparse.toDense().data(), 0f);
+        for (int p = 0; p < MnistFixtures.IMAGE_SIZE; p++) {
+            assertEquals(images.get(7, p), sparse.get(7, p), 0f);
+        }
+        for (int i = 0; i < COUNT; i++) {
+            for (int k = sparse.start(i) + 1; k < sparse.end(i); k++) {
+                assertTrue(sparse.indexes()[k - 1] < sparse.indexes()[k]);
+            }
+        }
+        assertTrue(sparse.sizeInBytes() * 3 < (long) images.data().length * Float.BYTES);
+    }
+
+    @Test
+    public void testReadsIdxFilesWithoutDenseCopy() throws Exception {
+        final File file = MnistFixtures.writeImages(folder.newFile("images.idx"), COUNT);
+
+        final SparseImageMatrix sparse = SparseImageMatrix.fromIdx(file.getPath()).scale(1 / 255f);
+
+        assertArrayEquals(images.data(), sparse.toDense().data(), 1e-6f);
+    }
+
+    @Test
+    public void testOnlyConvertsSparseEnoughImages() {
+        assertNotNull(SparseImageMatrix.ifSparse(images));
+        assertNull(SparseImageMatrix.ifSparse(images, 0.1));
+        final ImageMatrix dense = ImageMatrix.allocate(2, 4);
+        Arrays.fill(dense.data(), 1f);
+        assertNull(SparseImageMatrix.ifSparse(dense));
+    }
+
+    @Test
+    public void testSparseForwardMatchesDenseForward() {
+        final CompiledModel model = MnistFixtures.randomModel(3, 16);
+        final SparseImageMatrix sparse = SparseImageMatrix.fromDense(images);
+        final CompiledModel.Workspace dense = model.newWorkspace();
+        final CompiledModel.Workspace workspace = model.newWorkspace();
+
+        for (int start = 0; start < COUNT; start += CompiledModel.DEFAULT_BLOCK_SIZE) {
+            final int count = Math.min(CompiledModel.DEFAULT_BLOCK_SIZE, COUNT - start);
+            final float[] expected = model.forward(images.data(), images.offset(start), count, dense);
+            final float[] actual = model.forward(sparse, start, count, workspace);
+            for (int k = 0; k < count * model.outputSize(); k++) {
+                assertEquals(expected[k], actual[k], 1e-5f);
+            }
+        }
+        assertArrayEquals(model.predict(images), model.predict(sparse));
+    }
+
+    @Test
+    public void testEvaluatesSparseImages() {
+        final CompiledModel model = MnistFixtures.randomModel(3, 16);
+        final LabelVector labels = MnistFixtures.labels(COUNT);
+
+        assertEquals(new ParallelEvaluator().evaluate(model, images, labels).errorRate(),
+                new ParallelEvaluator().evaluate(model, SparseImageMatrix.fromDense(images), labels).errorRate(),
+                0.);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsImagesOfTheWrongSize() {
+        MnistFixtures.randomModel(3, 16).predict(SparseImageMatrix.fromDense(ImageMatrix.allocate(2, 10)));
+    }
+}
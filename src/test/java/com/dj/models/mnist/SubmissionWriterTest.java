@@ -0,0 +1,59 @@
+package com.dj.models.mnist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+public class SubmissionWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRowsAreWrittenInOrder() throws Exception {
+        final CompiledModel model = MnistFixtures.randomModel(9, 16);
+        final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.images(1234));
+        final int[] predictions = model.predict(images);
+        final StringBuilder expected = new StringBuilder("ImageId,Label\n");
+        for (int i = 0; i < predictions.length; i++) {
+            expected.append(i + 1).append(',').append(predictions[i]).append('\n');
+        }
+
+        for (final int chunkSize : new int[] {1, 100, 1234, 5000}) {
+            final File output = new File(folder.getRoot(), "submission_" + chunkSize + ".csv");
+            new SubmissionWriter(ForkJoinPool.commonPool(), chunkSize).write(model, images, output);
+            assertEquals(expected.toString(), new String(Files.readAllBytes(output.toPath()), StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void testSparseImagesGiveTheSameSubmission() throws Exception {
+        final CompiledModel model = MnistFixtures.randomModel(9, 16);
+        final ImageMatrix images = MnistFixtures.imageMatrix(MnistFixtures.images(500));
+        final File dense = new File(folder.getRoot(), "dense.csv");
+        final File sparse = new File(folder.getRoot(), "sparse.csv");
+
+        new SubmissionWriter().write(model, images, dense);
+        new SubmissionWriter().write(model, SparseImageMatrix.fromDense(images), sparse);
+
+        assertEquals(new String(Files.readAllBytes(dense.toPath()), StandardCharsets.US_ASCII),
+                new String(Files.readAllBytes(sparse.toPath()), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testEmptyTestSet() throws Exception {
+        final File output = folder.newFile("submission.csv");
+
+        new SubmissionWriter().write(
+                MnistFixtures.randomModel(9, 4), ImageMatrix.allocate(0, MnistFixtures.IMAGE_SIZE), output);
+
+        assertEquals(SubmissionWriter.HEADER, new String(Files.readAllBytes(output.toPath()), StandardCharsets.US_ASCII));
+    }
+}
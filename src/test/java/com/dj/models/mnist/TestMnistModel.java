@@ -35,4 +35,20 @@ public class TestMnistModel {
         double error = MnistTrainer.calculateError(inputLayer, outputLayer, testImages, testLabels);
         assertTrue(error < .2);
     }
+
+    @Test
+    public void testQuantizedInference() {
+        MnistDownloader.downloadMnist();
+        final ImageMatrix images = ImageMatrix.fromRows(
+                MnistTrainer.loadImages(MnistDownloader.MNIST_TEST_SET_IMAGES_FILE.toString()));
+        final LabelVector labels = LabelVector.fromOneHot(
+                MnistTrainer.loadLabels(MnistDownloader.MNIST_TEST_SET_LABELS_FILE.toString()));
+
+        String path = MnistTrainer.class.getClassLoader().getResource("com/dj/models/mnist/mnist.dj").getPath()
+                .toString();
+        final CompiledModel model = ModelCompiler.compile(SerializerHelper.deserializeFromFile(path));
+        final QuantizedModel quantized = Quantizer.quantize(model, Quantizer.calibrationSample(images));
+        final Quantizer.Report report = Quantizer.compare(model, quantized, images, labels);
+        assertTrue(report.toString(), report.withinErrorThreshold());
+    }
 }
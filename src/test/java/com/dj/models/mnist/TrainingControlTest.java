@@ -0,0 +1,222 @@
+package com.dj.models.mnist;
+
+import com.dj.core.model.graph.Context;
+import com.dj.core.model.graph.Neuron;
+import com.dj.core.model.loss.QuadraticLoss;
+import com.dj.core.optimizer.SGDOptimizer;
+import com.dj.core.serializer.ModelWrapper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrainingControlTest {
+
+    private static final int COUNT = 40;
+
+    @Test
+    public void testLearningRateSchedules() {
+        assertEquals(0.1, LearningRateSchedule.constant(0.1).learningRate(42), 1e-12);
+        final LearningRateSchedule step = LearningRateSchedule.step(1., 10, 0.5);
+        assertEquals(1., step.learningRate(9), 1e-12);
+        assertEquals(0.5, step.learningRate(10), 1e-12);
+        assertEquals(0.25, step.learningRate(25), 1e-12);
+        assertEquals(0.81, LearningRateSchedule.exponential(1., 0.9).learningRate(2), 1e-12);
+        final LearningRateSchedule cosine = LearningRateSchedule.cosine(1., 0.1, 10);
+        assertEquals(1., cosine.learningRate(0), 1e-12);
+        assertEquals(0.55, cosine.learningRate(5), 1e-12);
+        assertEquals(0.1, cosine.learningRate(10), 1e-12);
+        assertEquals(0.1, cosine.learningRate(20), 1e-12);
+    }
+
+    @Test
+    public void testRestoreWritesWeightsIntoTheGraph() {
+        final ModelWrapper modelWrapper = model(3);
+        final CompiledModel other = MnistFixtures.randomModel(4, 8);
+
+        ModelCompiler.restore(other, modelWrapper.getInputLayer(), modelWrapper.getOutputLayer());
+
+        final CompiledModel restored = ModelCompiler.compile(modelWrapper);
+        for (int i = 0; i < other.layers().size(); i++) {
+            assertArrayEquals(other.layers().get(i).weights(), restored.layers().get(i).weights(), 1e-6f);
+            assertArrayEquals(other.layers().get(i).biases(), restored.layers().get(i).biases(), 1e-6f);
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testRestoreRejectsADifferentShape() {
+        final ModelWrapper modelWrapper = model(3);
+        ModelCompiler.restore(MnistFixtures.randomModel(4, 9), modelWrapper.getInputLayer(), modelWrapper.getOutputLayer());
+    }
+
+    @Test
+    public void testStopsAtMaxEpochsAndKeepsTheBestWeights() {
+        final ModelWrapper modelWrapper = model(5);
+        final List<Double> errors = new ArrayList<>();
+        final List<Double> rates = new ArrayList<>();
+        final TrainingControl control = new TrainingControl.Builder()
+                .maxEpochs(3)
+                .learningRateSchedule(LearningRateSchedule.step(0.001, 1, 0.5))
+                .build();
+
+        final TrainingControl.Result result = train(modelWrapper, control,
+                (epoch, loss, model, error) -> errors.add(error), rates);
+
+        assertEquals(TrainingControl.StopReason.MAX_EPOCHS, result.getStopReason());
+        assertEquals(3, result.getEpochs());
+        assertEquals(3, errors.size());
+        assertEquals(errors.stream().mapToDouble(Double::doubleValue).min().getAsDouble(), result.getBestError(), 1e-12);
+        assertEquals(errors.get(result.getBestEpoch()), result.getBestError(), 1e-12);
+        assertEquals(Arrays.asList(0.001, 0.0005, 0.00025), rates);
+        assertEquals(0.0005, ModelCompiler.getLearningRate(modelWrapper.getContext()), 0.);
+        final double restoredError = new ParallelEvaluator()
+                .evaluate(ModelCompiler.compile(modelWrapper), images(), MnistFixtures.labels(COUNT))
+                .errorRate();
+        assertEquals(result.getBestError(), restoredError, 1e-12);
+    }
+
+    @Test
+    public void testStopsWhenTheTimeBudgetIsSpent() {
+        final TrainingControl control = new TrainingControl.Builder()
+                .maxEpochs(100)
+                .timeBudget(1, TimeUnit.NANOSECONDS)
+                .build();
+
+        final TrainingControl.Result result = train(model(5), control, null);
+
+        assertEquals(TrainingControl.StopReason.TIME_BUDGET, result.getStopReason());
+        assertEquals(1, result.getEpochs());
+    }
+
+    @Test
+    public void testStopsWithoutImprovementOrOnTarget() {
+        final TrainingControl control = new TrainingControl.Builder()
+                .maxEpochs(100)
+                .patience(2)
+                .minDelta(1.)
+                .build();
+
+        final TrainingControl.Result result = train(model(5), control, null);
+
+        assertEquals(TrainingControl.StopReason.NO_IMPROVEMENT, result.getStopReason());
+        assertEquals(3, result.getEpochs());
+        assertEquals(0, result.getBestEpoch());
+
+        final TrainingControl.Result target = train(model(5), new TrainingControl.Builder()
+                .maxEpochs(100)
+                .targetAccuracy(0.)
+                .build(), null);
+        assertEquals(TrainingControl.StopReason.TARGET_ACCURACY, target.getStopReason());
+        assertEquals(1, target.getEpochs());
+    }
+
+    @Test
+    public void testRestoresTheExactWeightsOfTheBestEpoch() {
+        final ModelWrapper modelWrapper = model(5);
+        final Neuron output = modelWrapper.getOutputLayer().get(0);
+        ModelCompiler.state(output).setBias(0.1);
+        final TrainingControl control = new TrainingControl.Builder()
+                .maxEpochs(3)
+                .minDelta(1.)
+                .build();
+
+        // no later epoch can beat the first by a minDelta of 1; they only move a bias it has no float for
+        final TrainingControl.Result result = train(modelWrapper, control,
+                (epoch, loss, model, error) -> ModelCompiler.state(output).setBias(100. + epoch));
+
+        assertEquals(0, result.getBestEpoch());
+        assertEquals(0.1, ModelCompiler.state(output).bias(), 0.);
+    }
+
+    @Test
+    public void testEvaluatesGraphsThatCanNotBeCompiled() {
+        final ModelWrapper modelWrapper = MnistFixtures.uncompilableModel(5, 8);
+        final List<CompiledModel> models = new ArrayList<>();
+        final TrainingControl control = new TrainingControl.Builder()
+                .maxEpochs(2)
+                .build();
+
+        final TrainingControl.Result result = train(modelWrapper, control,
+                (epoch, loss, model, error) -> models.add(model));
+
+        assertEquals(TrainingControl.StopReason.MAX_EPOCHS, result.getStopReason());
+        assertEquals(Arrays.asList(null, null), models);
+        assertNull(result.getBestModel());
+        assertTrue(result.getBestError() >= 0. && result.getBestError() <= 1.);
+    }
+
+    @Test
+    public void testHandsTrainersTheRateOfTheContextByDefault() {
+        final List<Double> rates = new ArrayList<>();
+
+        train(model(5), new TrainingControl.Builder().maxEpochs(2).build(), null, rates);
+
+        assertEquals(Arrays.asList(0.0005, 0.0005), rates);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRejectsAScheduleWithACoreOptimizer() {
+        final double[][] rows = new double[1][MnistFixtures.IMAGE_SIZE];
+        final double[][] labels = {MnistTrainer.convertLabel(0)};
+        final TrainingControl control = new TrainingControl.Builder()
+                .learningRateSchedule(LearningRateSchedule.constant(0.1))
+                .build();
+
+        control.train(model(5), progress -> new SGDOptimizer(new QuadraticLoss(), 1, progress, 2.),
+                rows, labels, rows, labels, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativePatience() {
+        new TrainingControl.Builder().patience(-1).build();
+    }
+
+    private static TrainingControl.Result train(final ModelWrapper modelWrapper,
+                                                final TrainingControl control,
+                                                final TrainingControl.EpochListener listener) {
+        return train(modelWrapper, control, listener, new ArrayList<>());
+    }
+
+    /**
+     * Trains with the graph optimizer, adding the learning rate the trainer was handed for every epoch to
+     * {@code rates}.
+     */
+    private static TrainingControl.Result train(final ModelWrapper modelWrapper,
+                                                final TrainingControl control,
+                                                final TrainingControl.EpochListener listener,
+                                                final List<Double> rates) {
+        final double[][] images = new double[COUNT][];
+        final double[][] labels = new double[COUNT][];
+        final ImageMatrix matrix = images();
+        for (int i = 0; i < COUNT; i++) {
+            images[i] = new double[MnistFixtures.IMAGE_SIZE];
+            for (int p = 0; p < images[i].length; p++) {
+                images[i][p] = matrix.get(i, p);
+            }
+            labels[i] = MnistTrainer.convertLabel(MnistFixtures.label(i));
+        }
+        return control.train(modelWrapper, (wrapper, learningRate, progress) -> {
+            rates.add(learningRate.learningRate(0));
+            new SGDOptimizer(new QuadraticLoss(), control.getMaxEpochs(), (loss, epoch, epochs) -> {
+                progress.onProgress(loss, epoch, epochs);
+                rates.add(learningRate.learningRate(rates.size()));
+            }, 2.).train(wrapper.getContext(), wrapper.getInputLayer(), wrapper.getOutputLayer(),
+                    images, labels, images, labels);
+        }, matrix, MnistFixtures.labels(COUNT), listener);
+    }
+
+    private static ImageMatrix images() {
+        return MnistFixtures.imageMatrix(MnistFixtures.separableImages(COUNT, 11));
+    }
+
+    private static ModelWrapper model(final long seed) {
+        return ModelCompiler.toModelWrapper(MnistFixtures.randomModel(seed, 8), new Context(0.0005, false));
+    }
+}